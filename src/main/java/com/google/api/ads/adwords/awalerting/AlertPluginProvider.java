@@ -0,0 +1,35 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting;
+
+import java.util.List;
+
+/**
+ * Provider of report downloaders, alert rules and alert actions, discovered once at startup with
+ * {@link java.util.ServiceLoader}: list the provider class in a
+ * {@code META-INF/services/com.google.api.ads.adwords.awalerting.AlertPluginProvider} file of the
+ * jar. The plugins can then be referenced in the alerts config by their simple class name.
+ *
+ * <p>Plugins that are not provided can still be referenced by their fully qualified class name,
+ * but are then only found when an alert is run, instead of when the config is loaded.
+ */
+public interface AlertPluginProvider {
+  /**
+   * @return the plugin classes, each implementing {@link AlertReportDownloader},
+   *     {@link AlertRule} or {@link AlertAction}, with a public constructor with a JsonObject
+   *     parameter for configuration
+   */
+  List<Class<?>> getPluginClasses();
+}
@@ -14,7 +14,14 @@
 
 package com.google.api.ads.adwords.awalerting;
 
+import com.google.api.ads.adwords.awalerting.processor.AccountLeaseQueue;
+import com.google.api.ads.adwords.awalerting.processor.AlertCheckServer;
+import com.google.api.ads.adwords.awalerting.processor.AlertDaemon;
+import com.google.api.ads.adwords.awalerting.processor.AlertPlan;
 import com.google.api.ads.adwords.awalerting.processor.AlertProcessor;
+import com.google.api.ads.adwords.awalerting.util.AccountShard;
+import com.google.api.ads.adwords.awalerting.util.ConfigFileWatcher;
+import com.google.api.ads.adwords.awalerting.util.ConfigTags;
 import com.google.api.ads.adwords.awalerting.util.DynamicPropertyPlaceholderConfigurer;
 import com.google.api.ads.adwords.awalerting.util.JaxWsProxySelector;
 import com.google.common.base.Joiner;
@@ -30,9 +37,10 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
+import org.joda.time.DateTimeZone;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.context.ApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
 import org.springframework.context.support.ClassPathXmlApplicationContext;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.core.io.FileSystemResource;
@@ -47,13 +55,19 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ProxySelector;
 import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Main class that executes the alerts processing logic.
@@ -69,11 +83,21 @@ import java.util.Set;
 public class AwAlerting {
   private static final Logger LOGGER = LoggerFactory.getLogger(AwAlerting.class);
   private static final String SEPARATOR = System.getProperty("line.separator");
+  private static final String DEFAULT_SHARD_STATE_DIR = "aw-alerting-shards";
+  // How long a shutdown of the daemon waits for the current run to finish.
+  private static final long DAEMON_SHUTDOWN_GRACE_MINUTES = 5;
+  // How long a shutdown waits for the alert checks in progress.
+  private static final int CHECKS_SHUTDOWN_GRACE_SECONDS = 10;
+  // Time without changes of the alerts file before it's reloaded.
+  private static final long ALERTS_FILE_QUIET_MILLIS = 500;
 
   /**
    * The Spring application context used to get all the beans.
    */
-  private static ApplicationContext appCtx;
+  private static ConfigurableApplicationContext appCtx;
+
+  // The alerts file loaded by getAlertsConfig, watched for changes by the resident modes.
+  private static File alertsConfigFile;
 
   /**
    * Main method.
@@ -124,11 +148,69 @@ public class AwAlerting {
       throws AlertConfigLoadException, AlertProcessingException {
     String propertiesPath = cmdLine.getOptionValue("file");
     JsonObject alertsConfig = getAlertsConfig(propertiesPath);
+    AlertPlan plan;
+    try {
+      // Fails on a mistake in any alert now, rather than after the downloads.
+      plan = AlertPlan.compile(alertsConfig);
+    } catch (AlertConfigLoadException e) {
+      appCtx.close();
+      throw e;
+    }
+    if (cmdLine.hasOption("explain")) {
+      try {
+        int accountsCount = cmdLine.hasOption("accountIdsFile")
+            ? getAccountsFromFile(cmdLine.getOptionValue("accountIdsFile")).size() : -1;
+        System.out.println(plan.explain(accountsCount));
+      } finally {
+        appCtx.close();
+      }
+      return;
+    }
 
     LOGGER.debug("Creating ReportProcessor bean...");
     AlertProcessor processor = createAlertProcessor();
     LOGGER.debug("... success.");
 
+    Path shardStateDir =
+        Paths.get(cmdLine.getOptionValue("shardStateDir", DEFAULT_SHARD_STATE_DIR));
+    String shardRunId = cmdLine.getOptionValue("shardRun");
+    if ((cmdLine.hasOption("merge") || cmdLine.hasOption("shard")) && shardRunId == null) {
+      appCtx.close();
+      throw new AlertConfigLoadException(
+          "Options 'shard' and 'merge' require option 'shardRun'.", null);
+    }
+    if (cmdLine.hasOption("merge")) {
+      LOGGER.info("*** Merging the partial states of the shards of run \"{}\" from {} ***",
+          shardRunId, shardStateDir);
+      try {
+        processor.mergeAlerts(alertsConfig, shardRunId, shardStateDir);
+      } catch (IllegalArgumentException e) {
+        throw new AlertConfigLoadException("Invalid shardRun option.", e);
+      } finally {
+        appCtx.close();
+      }
+      return;
+    }
+
+    AccountLeaseQueue leaseQueue = null;
+    if (cmdLine.hasOption("leaseRun")) {
+      if (cmdLine.hasOption("shard") || !alertsConfig.has(ConfigTags.LEASE_QUEUE)) {
+        appCtx.close();
+        throw new AlertConfigLoadException("Option 'leaseRun' requires the \""
+            + ConfigTags.LEASE_QUEUE + "\" alerts config, and excludes option 'shard'.", null);
+      }
+      leaseQueue = AccountLeaseQueue.fromConfig(
+          alertsConfig.getAsJsonObject(ConfigTags.LEASE_QUEUE), cmdLine.getOptionValue("leaseRun"));
+    } else if (cmdLine.hasOption("shard")) {
+      try {
+        processor.setAccountShard(AccountShard.parse(cmdLine.getOptionValue("shard")),
+            shardRunId, shardStateDir);
+      } catch (IllegalArgumentException e) {
+        appCtx.close();
+        throw new AlertConfigLoadException("Invalid shard or shardRun option.", e);
+      }
+    }
+
     LOGGER.info("*** Retrieving account IDs ***");
     Set<Long> clientCustomerIdsSet = null;
     if (cmdLine.hasOption("accountIdsFile")) {
@@ -139,7 +221,173 @@ public class AwAlerting {
     // If no "accountIdsFile" option, it will pass "clientCustomerIdsSet" as null and later
     // load all accounts under the manager account.
 
-    processor.generateAlerts(clientCustomerIdsSet, alertsConfig);
+    if (cmdLine.hasOption("daemon") || cmdLine.hasOption("httpPort")) {
+      Integer httpPort = null;
+      try {
+        if (cmdLine.hasOption("httpPort")) {
+          httpPort = Integer.valueOf(cmdLine.getOptionValue("httpPort"));
+        }
+      } catch (NumberFormatException e) {
+        appCtx.close();
+        throw new AlertConfigLoadException("Invalid httpPort option.", e);
+      }
+      if (leaseQueue != null) {
+        appCtx.close();
+        throw new AlertConfigLoadException(
+            "Options 'daemon' and 'httpPort' exclude option 'leaseRun'.", null);
+      }
+      runResident(processor, alertsConfig, clientCustomerIdsSet, cmdLine.hasOption("daemon"),
+          httpPort, cmdLine.getOptionValue("httpHost"));
+      return;
+    }
+
+    try {
+      if (leaseQueue != null) {
+        processor.generateLeasedAlerts(clientCustomerIdsSet, alertsConfig, leaseQueue);
+      } else {
+        processor.generateAlerts(clientCustomerIdsSet, alertsConfig);
+      }
+    } finally {
+      // Shuts down the shared thread pools.
+      appCtx.close();
+    }
+  }
+
+  /**
+   * The alert checks are not authenticated, so they are only served on the loopback address unless
+   * another host is given.
+   */
+  private static InetSocketAddress getHttpAddress(String httpHost, int httpPort) {
+    return httpHost == null
+        ? new InetSocketAddress(InetAddress.getLoopbackAddress(), httpPort)
+        : new InetSocketAddress(httpHost, httpPort);
+  }
+
+  /**
+   * Keeps running until the process is stopped, with the application context and the processor
+   * (with its caches) kept for all the runs: generates the alerts on their schedules in daemon
+   * mode, and serves the alert checks if an HTTP port is set. On shutdown, the current run is
+   * allowed to finish before the application context is closed.
+   *
+   * <p>The alerts file is reloaded when it changes; only the new and changed alerts are compiled
+   * again, and an invalid file is ignored until it's fixed.
+   *
+   * @param processor the alert processor
+   * @param alertsConfig the JSON config of the alerts
+   * @param clientCustomerIds the client customer IDs, or null to retrieve them on each run
+   * @param daemonMode whether to generate the alerts on their schedules
+   * @param httpPort the port to serve the alert checks on, or null
+   * @param httpHost the host or address to serve the alert checks on, or null for the loopback
+   *     address
+   */
+  private static void runResident(final AlertProcessor processor, JsonObject alertsConfig,
+      Set<Long> clientCustomerIds, boolean daemonMode, Integer httpPort, String httpHost)
+      throws AlertConfigLoadException {
+    processor.reloadAlerts(alertsConfig);
+    final AlertDaemon daemon;
+    final AlertCheckServer server;
+    try {
+      daemon = daemonMode ? new AlertDaemon(
+          processor, alertsConfig, clientCustomerIds, DateTimeZone.getDefault()) : null;
+      server = httpPort != null
+          ? new AlertCheckServer(processor, alertsConfig, getHttpAddress(httpHost, httpPort))
+          : null;
+    } catch (AlertConfigLoadException e) {
+      appCtx.close();
+      throw e;
+    } catch (IOException e) {
+      appCtx.close();
+      throw new AlertConfigLoadException("Failed to listen on port " + httpPort
+          + (httpHost == null ? "" : " of " + httpHost), e);
+    }
+
+    ConfigFileWatcher watcher = null;
+    try {
+      watcher = new ConfigFileWatcher(alertsConfigFile.toPath(), new ConfigFileWatcher.Listener() {
+        @Override
+        public void onChange(Path file) {
+          reloadAlertsConfig(file.toFile(), processor, daemon, server);
+        }
+      }, ALERTS_FILE_QUIET_MILLIS);
+    } catch (IOException e) {
+      LOGGER.warn("Failed to watch {}, it will not be reloaded.", alertsConfigFile, e);
+    }
+    final ConfigFileWatcher alertsFileWatcher = watcher;
+
+    final CountDownLatch stopped = new CountDownLatch(1);
+    Runtime.getRuntime().addShutdownHook(new Thread("aw-alerting-shutdown") {
+      @Override
+      public void run() {
+        LOGGER.info("*** Shutting down, waiting for the current run to finish ***");
+        if (alertsFileWatcher != null) {
+          try {
+            alertsFileWatcher.close();
+          } catch (IOException e) {
+            LOGGER.warn("Failed to stop watching {}.", alertsConfigFile, e);
+          }
+        }
+        if (server != null) {
+          server.stop(CHECKS_SHUTDOWN_GRACE_SECONDS);
+        }
+        if (daemon != null) {
+          daemon.shutdown();
+          try {
+            if (!daemon.awaitTermination(DAEMON_SHUTDOWN_GRACE_MINUTES, TimeUnit.MINUTES)) {
+              LOGGER.warn("The current run did not finish in {} minutes.",
+                  DAEMON_SHUTDOWN_GRACE_MINUTES);
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        stopped.countDown();
+        // Shuts down the shared thread pools before the JVM exits.
+        appCtx.close();
+      }
+    });
+
+    try {
+      if (server != null) {
+        server.start();
+      }
+      if (daemon != null) {
+        LOGGER.info("*** Starting daemon ***");
+        daemon.run();
+      } else {
+        stopped.await();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      appCtx.close();
+    }
+  }
+
+  /**
+   * Reloads the alerts file into the processor, the daemon and the server. If the file is invalid,
+   * they keep the previous config.
+   *
+   * @param file the alerts file
+   * @param processor the alert processor
+   * @param daemon the daemon, or null
+   * @param server the alert check server, or null
+   */
+  private static void reloadAlertsConfig(File file, AlertProcessor processor, AlertDaemon daemon,
+      AlertCheckServer server) {
+    try {
+      JsonObject alertsConfig = parseAlertsConfig(file);
+      AlertPlan.compile(alertsConfig);
+      if (daemon != null) {
+        daemon.updateAlertsConfig(alertsConfig);
+      }
+      processor.reloadAlerts(alertsConfig);
+      if (server != null) {
+        server.setAlertsConfig(alertsConfig);
+      }
+      LOGGER.info("*** Reloaded alerts config from {} ***", file);
+    } catch (AlertConfigLoadException e) {
+      LOGGER.error("Failed to reload alerts config, keeping the previous one.", e);
+    }
   }
 
   /**
@@ -159,31 +407,44 @@ public class AwAlerting {
       propertiesResource = new FileSystemResource(propertiesPath);
     }
     
-    JsonObject alertsConfig = null;
     try {
       Properties properties = initApplicationContextAndProperties(propertiesResource);
 
       // Load alerts config from the same folder as the properties file
       String alertsConfigFilename = properties.getProperty("aw.alerting.alerts");
       String propertiesFolder = propertiesResource.getFile().getParent();
-      File alertsConfigFile = new File(propertiesFolder, alertsConfigFilename);
+      alertsConfigFile = new File(propertiesFolder, alertsConfigFilename);
 
       // If it does not exist, try the default resource folder according to maven structure.
       if (!alertsConfigFile.exists()) {
         String alertsConfigFilepath = "src/main/resources/" + alertsConfigFilename;
         alertsConfigFile = new File(alertsConfigFilepath);
       }
-
-      LOGGER.debug("Loading alerts config file from {}", alertsConfigFile.getAbsolutePath());
-      JsonParser jsonParser = new JsonParser();
-      alertsConfig = jsonParser.parse(new FileReader(alertsConfigFile)).getAsJsonObject();
-      LOGGER.debug("Done.");
     } catch (IOException e) {
       throw new AlertConfigLoadException("Error loading alerts config at " + propertiesPath, e);
-    } catch (JsonParseException e) {
-      throw new AlertConfigLoadException("Error parsing config file at " + propertiesPath, e);
     }
 
+    return parseAlertsConfig(alertsConfigFile);
+  }
+
+  /**
+   * Parses the JSON alerts config file.
+   *
+   * @param file the alerts config file
+   * @return JSON configuration loaded from the json file
+   * @throws AlertConfigLoadException error reading / parsing the json file
+   */
+  private static JsonObject parseAlertsConfig(File file) throws AlertConfigLoadException {
+    LOGGER.debug("Loading alerts config file from {}", file.getAbsolutePath());
+    JsonObject alertsConfig;
+    try (FileReader reader = new FileReader(file)) {
+      alertsConfig = new JsonParser().parse(reader).getAsJsonObject();
+    } catch (IOException e) {
+      throw new AlertConfigLoadException("Error loading alerts config at " + file, e);
+    } catch (JsonParseException | IllegalStateException e) {
+      throw new AlertConfigLoadException("Error parsing config file at " + file, e);
+    }
+    LOGGER.debug("Done.");
     return alertsConfig;
   }
 
@@ -273,6 +534,72 @@ public class AwAlerting {
     OptionBuilder.isRequired(false);
     options.addOption(OptionBuilder.create("accountIdsFile"));
 
+    OptionBuilder.withArgName("explain");
+    OptionBuilder.hasArg(false);
+    OptionBuilder.withDescription("Check the alerts config and print the plan of the run: the "
+        + "downloads of each alert, the queries shared by several alerts and the number of "
+        + "reports to download, without downloading anything");
+    OptionBuilder.isRequired(false);
+    options.addOption(OptionBuilder.create("explain"));
+
+    OptionBuilder.withArgName("daemon");
+    OptionBuilder.hasArg(false);
+    OptionBuilder.withDescription("Keep running, and generate each alert on its \"Schedule\" "
+        + "(a cron expression) in the alerts config, until the process is stopped");
+    OptionBuilder.isRequired(false);
+    options.addOption(OptionBuilder.create("daemon"));
+
+    OptionBuilder.withArgName("port");
+    OptionBuilder.hasArg(true);
+    OptionBuilder.withDescription("Keep running, and serve on-demand alert checks on the port: "
+        + "GET /check?alert=<alert name>&clientCustomerIds=<ID>,<ID>...");
+    OptionBuilder.isRequired(false);
+    options.addOption(OptionBuilder.create("httpPort"));
+
+    OptionBuilder.withArgName("host");
+    OptionBuilder.hasArg(true);
+    OptionBuilder.withDescription("The host name or address to serve the alert checks of option "
+        + "'httpPort' on, e.g. 0.0.0.0 for all the interfaces (default: the loopback address)");
+    OptionBuilder.isRequired(false);
+    options.addOption(OptionBuilder.create("httpHost"));
+
+    OptionBuilder.withArgName("runId");
+    OptionBuilder.hasArg(true);
+    OptionBuilder.withDescription("Work on the run \"runId\" with the other workers of the "
+        + "same run, claiming batches of accounts from the \"LeaseQueue\" database table");
+    OptionBuilder.isRequired(false);
+    options.addOption(OptionBuilder.create("leaseRun"));
+
+    OptionBuilder.withArgName("index/count");
+    OptionBuilder.hasArg(true);
+    OptionBuilder.withDescription("Process only the shard \"index\" (from 0) of \"count\" "
+        + "disjoint shards of the accounts, e.g. 0/4, saving the partial states of the mergeable "
+        + "alert actions into 'shardStateDir'");
+    OptionBuilder.isRequired(false);
+    options.addOption(OptionBuilder.create("shard"));
+
+    OptionBuilder.withArgName("merge");
+    OptionBuilder.hasArg(false);
+    OptionBuilder.withDescription("Merge the partial states saved by all the shards into "
+        + "'shardStateDir' and finalize the mergeable alert actions, instead of processing "
+        + "alerts");
+    OptionBuilder.isRequired(false);
+    options.addOption(OptionBuilder.create("merge"));
+
+    OptionBuilder.withArgName("runId");
+    OptionBuilder.hasArg(true);
+    OptionBuilder.withDescription("The ID of the run of options 'shard' and 'merge', the same for "
+        + "all the shards of a run and different for each run, e.g. the date of the run");
+    OptionBuilder.isRequired(false);
+    options.addOption(OptionBuilder.create("shardRun"));
+
+    OptionBuilder.withArgName("shardStateDir");
+    OptionBuilder.hasArg(true);
+    OptionBuilder.withDescription("Directory of the partial states of the shards (default: "
+        + DEFAULT_SHARD_STATE_DIR + ")");
+    OptionBuilder.isRequired(false);
+    options.addOption(OptionBuilder.create("shardStateDir"));
+
     OptionBuilder.withArgName("debug");
     OptionBuilder.hasArg(false);
     OptionBuilder.withDescription("Will display all the debug information. "
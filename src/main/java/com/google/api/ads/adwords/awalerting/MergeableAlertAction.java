@@ -0,0 +1,44 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting;
+
+import com.google.gson.JsonObject;
+
+/**
+ * An alert action that aggregates the report entries of all accounts, and can be split across
+ * several processes that each process a shard of the accounts. Each shard saves the partial
+ * state of the action instead of finalizing it, and a final merge step combines the partial
+ * states of all shards into a new instance of the action, before finalizing it.
+ *
+ * <p>Implementing this interface is optional: the other alert actions are run in full on each
+ * shard, and are skipped by the merge step.
+ */
+public interface MergeableAlertAction extends AlertAction {
+  /**
+   * Returns the state aggregated from the report entries, called instead of
+   * {@link #finalizeAction()} when processing a shard of the accounts.
+   *
+   * @return the partial state of the action, as JSON
+   */
+  JsonObject getPartialState() throws AlertProcessingException;
+
+  /**
+   * Merges the partial state of a shard into this action, called after
+   * {@link #initializeAction()} and before {@link #finalizeAction()} for each shard.
+   *
+   * @param partialState the partial state returned by {@link #getPartialState()} on a shard
+   */
+  void mergePartialState(JsonObject partialState) throws AlertProcessingException;
+}
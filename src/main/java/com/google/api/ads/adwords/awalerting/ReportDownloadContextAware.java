@@ -0,0 +1,30 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting;
+
+import com.google.api.ads.adwords.awalerting.report.ReportDownloadContext;
+
+/**
+ * Optional interface for an {@link AlertReportDownloader} that uses the run-scoped state shared
+ * with the downloaders of other alerts, such as the store of downloaded reports.
+ */
+public interface ReportDownloadContextAware {
+  /**
+   * Called once after the downloader is constructed, before any download.
+   *
+   * @param context the run-scoped report download context
+   */
+  void setReportDownloadContext(ReportDownloadContext context);
+}
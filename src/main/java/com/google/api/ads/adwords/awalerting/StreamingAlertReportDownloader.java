@@ -0,0 +1,42 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting;
+
+import com.google.api.ads.adwords.awalerting.report.ReportDataSink;
+import com.google.api.ads.adwords.lib.client.AdWordsSession.ImmutableAdWordsSession;
+
+import java.util.Set;
+
+/**
+ * An alert report downloader that is able to hand over each report as soon as it's downloaded,
+ * instead of returning all reports at the end. This allows the pipelined execution mode to apply
+ * alert rules and actions on some accounts while others are still being downloaded.
+ *
+ * <p>Implementing this interface is optional: downloaders that only implement
+ * {@link AlertReportDownloader} still work in pipelined mode, but without the overlap.
+ */
+public interface StreamingAlertReportDownloader extends AlertReportDownloader {
+  /**
+   * Downloads reports and hands over each of them to the sink as soon as it's available. This
+   * method returns after all reports have been handed over.
+   *
+   * @param protoSession the prototype adwords session used for downloading reports
+   * @param clientCustomerIds the list of client customer IDs for downloading report data
+   * @param sink the receiver of the downloaded reports
+   */
+  void downloadReports(
+      ImmutableAdWordsSession protoSession, Set<Long> clientCustomerIds, ReportDataSink sink)
+      throws AlertProcessingException;
+}
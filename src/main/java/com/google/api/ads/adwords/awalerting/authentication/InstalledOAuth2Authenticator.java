@@ -59,6 +59,8 @@ public class InstalledOAuth2Authenticator implements Authenticator {
   private final String managerAccountId;
   private final String userAgent;
   private String refreshToken = null;
+  // Built once from the refresh token, so that its access token is reused until it expires.
+  private Credential credential;
 
   /**
    * Constructor with the OAuth2 parameters autowired by Spring.
@@ -151,7 +153,12 @@ public class InstalledOAuth2Authenticator implements Authenticator {
         }
       }
     } else {
-      credential = buildOAuth2Credentials();
+      synchronized (this) {
+        if (this.credential == null) {
+          this.credential = buildOAuth2Credentials();
+        }
+        credential = this.credential;
+      }
     }
 
     return credential;
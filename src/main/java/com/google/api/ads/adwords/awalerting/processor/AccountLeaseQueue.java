@@ -0,0 +1,387 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.processor;
+
+import com.google.api.ads.adwords.awalerting.util.JdbcUtil;
+import com.google.common.base.Preconditions;
+import com.google.gson.JsonObject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ResultSetExtractor;
+
+import java.lang.management.ManagementFactory;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Work queue of the accounts of a run in a database table, shared by any number of worker
+ * processes. Each worker claims a batch of accounts at a time by taking a lease on them, renews
+ * its leases while it processes them, and marks them done afterwards. The leases of a worker that
+ * crashed expire, and its accounts are claimed by the other workers.
+ *
+ * <p>Each account is claimed with a conditional update, which only succeeds if the account is not
+ * done and not leased (or its lease expired), so that two workers never hold the same account. The
+ * lease expiry times are taken from the clocks of the workers, which should be roughly in sync
+ * compared to the lease duration.
+ *
+ * <p>Sample JSON configuration, under "LeaseQueue" in the alerts configuration:
+ * <pre>
+ * {
+ *   "Driver": "com.mysql.jdbc.Driver", // optional
+ *   "Url": "jdbc:mysql://localhost:3306/awalerting",
+ *   "Login": "...", // optional
+ *   "Password": "...", // optional
+ *   "Table": "AW_ALERTING_ACCOUNT_LEASES", // optional
+ *   "BatchSize": 50, // optional
+ *   "LeaseSeconds": 600 // optional
+ * }
+ * </pre>
+ *
+ * <p>This class is thread safe.
+ */
+public class AccountLeaseQueue {
+  private static final Logger LOGGER = LoggerFactory.getLogger(AccountLeaseQueue.class);
+
+  private static final String DB_DRIVER_TAG = "Driver"; // optional
+  private static final String DB_URL_TAG = "Url";
+  private static final String DB_LOGIN_TAG = "Login"; // optional
+  private static final String DB_PASSWORD_TAG = "Password"; // optional
+  private static final String TABLE_TAG = "Table"; // optional
+  private static final String BATCH_SIZE_TAG = "BatchSize"; // optional
+  private static final String LEASE_SECONDS_TAG = "LeaseSeconds"; // optional
+
+  private static final String DEFAULT_TABLE = "AW_ALERTING_ACCOUNT_LEASES";
+  private static final int DEFAULT_BATCH_SIZE = 50;
+  private static final int DEFAULT_LEASE_SECONDS = 600;
+
+  // How many more candidates than the batch size are read, so that concurrent workers that race
+  // for the same accounts still find enough free ones.
+  private static final int CANDIDATES_FACTOR = 4;
+
+  private final JdbcTemplate jdbcTemplate;
+  private final String table;
+  private final String runId;
+  private final String workerId;
+  private final int batchSize;
+  private final long leaseMillis;
+
+  // The accounts leased by this worker and not done yet.
+  private final Set<Long> leasedIds = new LinkedHashSet<Long>();
+  private ScheduledExecutorService renewer;
+
+  /**
+   * @param jdbcTemplate the template to access the database
+   * @param table the table of the leases
+   * @param runId the ID of the run, the same for all the workers of the run
+   * @param workerId the ID of this worker, unique among the workers of the run
+   * @param batchSize the maximum number of accounts claimed at a time
+   * @param leaseMillis the duration of a lease before it must be renewed
+   */
+  public AccountLeaseQueue(JdbcTemplate jdbcTemplate, String table, String runId,
+      String workerId, int batchSize, long leaseMillis) {
+    this.jdbcTemplate = Preconditions.checkNotNull(jdbcTemplate, "jdbcTemplate cannot be null.");
+    this.table = Preconditions.checkNotNull(table, "table cannot be null.");
+    this.runId = Preconditions.checkNotNull(runId, "runId cannot be null.");
+    this.workerId = Preconditions.checkNotNull(workerId, "workerId cannot be null.");
+    Preconditions.checkArgument(batchSize > 0, "The batch size must be positive.");
+    Preconditions.checkArgument(leaseMillis > 0, "The lease duration must be positive.");
+    this.batchSize = batchSize;
+    this.leaseMillis = leaseMillis;
+  }
+
+  /**
+   * Creates the queue of the run from its JSON configuration, with a new worker ID.
+   *
+   * @param config the JSON configuration of the lease queue
+   * @param runId the ID of the run, the same for all the workers of the run
+   */
+  public static AccountLeaseQueue fromConfig(JsonObject config, String runId) {
+    JdbcTemplate jdbcTemplate = JdbcUtil.createJdbcTemplate(
+        config, DB_DRIVER_TAG, DB_URL_TAG, DB_LOGIN_TAG, DB_PASSWORD_TAG);
+    String table = config.has(TABLE_TAG) ? config.get(TABLE_TAG).getAsString() : DEFAULT_TABLE;
+    int batchSize =
+        config.has(BATCH_SIZE_TAG) ? config.get(BATCH_SIZE_TAG).getAsInt() : DEFAULT_BATCH_SIZE;
+    int leaseSeconds = config.has(LEASE_SECONDS_TAG)
+        ? config.get(LEASE_SECONDS_TAG).getAsInt() : DEFAULT_LEASE_SECONDS;
+    String workerId = ManagementFactory.getRuntimeMXBean().getName() + "-"
+        + UUID.randomUUID().toString().substring(0, 8);
+    return new AccountLeaseQueue(
+        jdbcTemplate, table, runId, workerId, batchSize, TimeUnit.SECONDS.toMillis(leaseSeconds));
+  }
+
+  /**
+   * Creates the table of the leases if it does not exist yet.
+   */
+  public void createTableIfMissing() {
+    if (tableExists()) {
+      return;
+    }
+    try {
+      jdbcTemplate.execute("CREATE TABLE " + table + " ("
+          + "RUN_ID VARCHAR(64) NOT NULL, "
+          + "CLIENT_CUSTOMER_ID BIGINT NOT NULL, "
+          + "OWNER VARCHAR(128), "
+          + "LEASE_EXPIRY BIGINT NOT NULL, "
+          + "DONE INT NOT NULL, "
+          + "PRIMARY KEY (RUN_ID, CLIENT_CUSTOMER_ID))");
+      LOGGER.info("Created lease table {}.", table);
+    } catch (DataAccessException e) {
+      // Another worker may have created it in the meantime.
+      if (!tableExists()) {
+        throw e;
+      }
+    }
+  }
+
+  private boolean tableExists() {
+    try {
+      jdbcTemplate.queryForList("SELECT RUN_ID FROM " + table + " WHERE 1 = 0");
+      return true;
+    } catch (DataAccessException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Adds the accounts of the run to the queue. Every worker can enqueue the accounts it found:
+   * the accounts already in the queue are ignored, whether they are done or not.
+   *
+   * @param clientCustomerIds the accounts of the run
+   * @return the number of accounts added
+   */
+  public int enqueue(Collection<Long> clientCustomerIds) {
+    Set<Long> existingIds = new HashSet<Long>(jdbcTemplate.queryForList(
+        "SELECT CLIENT_CUSTOMER_ID FROM " + table + " WHERE RUN_ID = ?", Long.class, runId));
+    List<Object[]> rows = new ArrayList<Object[]>();
+    for (Long clientCustomerId : clientCustomerIds) {
+      if (existingIds.add(clientCustomerId)) {
+        rows.add(new Object[] {runId, clientCustomerId});
+      }
+    }
+
+    String sql = "INSERT INTO " + table
+        + " (RUN_ID, CLIENT_CUSTOMER_ID, OWNER, LEASE_EXPIRY, DONE) VALUES (?, ?, NULL, 0, 0)";
+    try {
+      jdbcTemplate.batchUpdate(sql, rows);
+      return rows.size();
+    } catch (DataIntegrityViolationException e) {
+      // Another worker enqueued some of the accounts concurrently, add the others one by one.
+      int added = 0;
+      for (Object[] row : rows) {
+        try {
+          added += jdbcTemplate.update(sql, row);
+        } catch (DataIntegrityViolationException duplicate) {
+          // Already enqueued.
+        }
+      }
+      return added;
+    }
+  }
+
+  /**
+   * Claims the next batch of accounts, which are neither done nor leased by a live worker.
+   *
+   * @return the claimed accounts, empty if there are none to claim right now
+   */
+  public Set<Long> claim() {
+    long now = System.currentTimeMillis();
+    final int maxCandidates = batchSize * CANDIDATES_FACTOR;
+    List<Long> candidates = jdbcTemplate.query(
+        "SELECT CLIENT_CUSTOMER_ID FROM " + table
+            + " WHERE RUN_ID = ? AND DONE = 0 AND LEASE_EXPIRY < ? ORDER BY CLIENT_CUSTOMER_ID",
+        new Object[] {runId, now},
+        new ResultSetExtractor<List<Long>>() {
+          @Override
+          public List<Long> extractData(ResultSet rs) throws SQLException {
+            List<Long> ids = new ArrayList<Long>();
+            while (ids.size() < maxCandidates && rs.next()) {
+              ids.add(rs.getLong(1));
+            }
+            return ids;
+          }
+        });
+    // Workers try the candidates in different orders, to avoid racing for the same accounts.
+    Collections.shuffle(candidates);
+
+    Set<Long> claimedIds = new LinkedHashSet<Long>();
+    long expiry = now + leaseMillis;
+    for (Long clientCustomerId : candidates) {
+      if (claimedIds.size() == batchSize) {
+        break;
+      }
+      int updated = jdbcTemplate.update("UPDATE " + table
+          + " SET OWNER = ?, LEASE_EXPIRY = ?"
+          + " WHERE RUN_ID = ? AND CLIENT_CUSTOMER_ID = ? AND DONE = 0 AND LEASE_EXPIRY < ?",
+          workerId, expiry, runId, clientCustomerId, now);
+      if (updated == 1) {
+        claimedIds.add(clientCustomerId);
+      }
+    }
+
+    synchronized (this) {
+      leasedIds.addAll(claimedIds);
+    }
+    return claimedIds;
+  }
+
+  /**
+   * Extends the leases of all the accounts held by this worker.
+   *
+   * @return the number of leases renewed
+   */
+  public int renewLeases() {
+    synchronized (this) {
+      if (leasedIds.isEmpty()) {
+        return 0;
+      }
+    }
+    int renewed = jdbcTemplate.update("UPDATE " + table + " SET LEASE_EXPIRY = ?"
+        + " WHERE RUN_ID = ? AND OWNER = ? AND DONE = 0",
+        System.currentTimeMillis() + leaseMillis, runId, workerId);
+    synchronized (this) {
+      if (renewed < leasedIds.size()) {
+        LOGGER.warn("Renewed {} of {} leases, the others expired and may be processed twice.",
+            renewed, leasedIds.size());
+      }
+    }
+    return renewed;
+  }
+
+  /**
+   * Marks the accounts still leased by this worker as done, so that they are never claimed again in
+   * the run. Accounts whose leases were lost (e.g. they expired while this worker was paused) are
+   * left to the worker that claimed them since, and logged as processed twice.
+   *
+   * @param clientCustomerIds the accounts claimed by this worker and processed
+   * @return the number of accounts marked as done
+   */
+  public int complete(Collection<Long> clientCustomerIds) {
+    List<Object[]> rows = new ArrayList<Object[]>(clientCustomerIds.size());
+    for (Long clientCustomerId : clientCustomerIds) {
+      rows.add(new Object[] {runId, clientCustomerId, workerId});
+    }
+    int[] updated = jdbcTemplate.batchUpdate("UPDATE " + table + " SET DONE = 1"
+        + " WHERE RUN_ID = ? AND CLIENT_CUSTOMER_ID = ? AND OWNER = ?", rows);
+    synchronized (this) {
+      leasedIds.removeAll(clientCustomerIds);
+    }
+
+    int lost = 0;
+    for (int count : updated) {
+      if (count == 0) {
+        lost++;
+      }
+    }
+    if (lost > 0) {
+      LOGGER.warn("Worker {} lost the leases of {} of {} accounts before completing them, they "
+          + "are processed again by other workers.", workerId, lost, clientCustomerIds.size());
+    }
+    return clientCustomerIds.size() - lost;
+  }
+
+  /**
+   * Gives up the leases of the accounts, so that other workers can claim them right away.
+   *
+   * @param clientCustomerIds the accounts claimed by this worker and not processed
+   */
+  public void release(Collection<Long> clientCustomerIds) {
+    List<Object[]> rows = new ArrayList<Object[]>(clientCustomerIds.size());
+    for (Long clientCustomerId : clientCustomerIds) {
+      rows.add(new Object[] {runId, clientCustomerId, workerId});
+    }
+    jdbcTemplate.batchUpdate("UPDATE " + table + " SET OWNER = NULL, LEASE_EXPIRY = 0"
+        + " WHERE RUN_ID = ? AND CLIENT_CUSTOMER_ID = ? AND OWNER = ? AND DONE = 0", rows);
+    synchronized (this) {
+      leasedIds.removeAll(clientCustomerIds);
+    }
+  }
+
+  /**
+   * @return the number of accounts of the run that are not done, whether leased or not
+   */
+  public int getRemainingCount() {
+    return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM " + table
+        + " WHERE RUN_ID = ? AND DONE = 0", Integer.class, runId);
+  }
+
+  /**
+   * Starts renewing the leases of this worker in the background, three times per lease duration.
+   */
+  public synchronized void startRenewing() {
+    if (renewer != null) {
+      return;
+    }
+    renewer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "lease-renewer");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    long periodMillis = Math.max(1, leaseMillis / 3);
+    renewer.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          renewLeases();
+        } catch (RuntimeException e) {
+          LOGGER.warn("Failed to renew leases.", e);
+        }
+      }
+    }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stops renewing the leases of this worker.
+   */
+  public synchronized void stopRenewing() {
+    if (renewer != null) {
+      renewer.shutdownNow();
+      renewer = null;
+    }
+  }
+
+  /**
+   * @return the time between polls of a worker waiting for the leases of other workers to expire
+   */
+  long getPollMillis() {
+    return Math.max(1, Math.min(leaseMillis / 3, TimeUnit.SECONDS.toMillis(30)));
+  }
+
+  public String getRunId() {
+    return runId;
+  }
+
+  public String getWorkerId() {
+    return workerId;
+  }
+}
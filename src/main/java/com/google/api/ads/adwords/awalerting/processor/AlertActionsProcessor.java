@@ -17,9 +17,12 @@ package com.google.api.ads.adwords.awalerting.processor;
 import com.google.api.ads.adwords.awalerting.AlertAction;
 import com.google.api.ads.adwords.awalerting.AlertConfigLoadException;
 import com.google.api.ads.adwords.awalerting.AlertProcessingException;
+import com.google.api.ads.adwords.awalerting.MergeableAlertAction;
 import com.google.api.ads.adwords.awalerting.report.ReportData;
-import com.google.api.ads.adwords.awalerting.util.ConfigTags;
+import com.google.api.ads.adwords.awalerting.util.AccountShard;
+import com.google.api.ads.adwords.awalerting.util.Deadline;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Stopwatch;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
@@ -28,11 +31,13 @@ import com.google.gson.JsonObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -47,6 +52,7 @@ public class AlertActionsProcessor {
   private static final Logger LOGGER = LoggerFactory.getLogger(AlertActionsProcessor.class);
 
   private final int numThreads;
+  private final ExecutorService sharedExecutor;
   private final List<AlertAction> actions;
 
   /**
@@ -54,7 +60,41 @@ public class AlertActionsProcessor {
    * @param numThreads the number of threads to use
    */
   public AlertActionsProcessor(JsonArray configs, int numThreads) {
+    this(configs, numThreads, null);
+  }
+
+  /**
+   * @param configs the JSON array of alert actions configurations
+   * @param sharedExecutor the shared thread pool to use, which is not shut down by this processor
+   */
+  public AlertActionsProcessor(JsonArray configs, ExecutorService sharedExecutor) {
+    this(configs, 0, Preconditions.checkNotNull(sharedExecutor));
+  }
+
+  /**
+   * @param actions the alert actions, already constructed
+   * @param numThreads the number of threads to use
+   */
+  AlertActionsProcessor(List<AlertAction> actions, int numThreads) {
     this.numThreads = numThreads;
+    this.sharedExecutor = null;
+    this.actions = new ArrayList<AlertAction>(actions);
+  }
+
+  /**
+   * @param actions the alert actions, already constructed
+   * @param sharedExecutor the shared thread pool to use, which is not shut down by this processor
+   */
+  AlertActionsProcessor(List<AlertAction> actions, ExecutorService sharedExecutor) {
+    this.numThreads = 0;
+    this.sharedExecutor = Preconditions.checkNotNull(sharedExecutor);
+    this.actions = new ArrayList<AlertAction>(actions);
+  }
+
+  private AlertActionsProcessor(
+      JsonArray configs, int numThreads, ExecutorService sharedExecutor) {
+    this.numThreads = numThreads;
+    this.sharedExecutor = sharedExecutor;
 
     actions = new ArrayList<AlertAction>(configs.size());
     for (JsonElement config : configs) {
@@ -76,22 +116,7 @@ public class AlertActionsProcessor {
    * @return the instantiated AlertAction object
    */
   protected AlertAction getActionObject(JsonObject config) throws AlertConfigLoadException {
-    String className = config.get(ConfigTags.CLASS_NAME).getAsString();
-    if (!className.contains(".")) {
-      className = "com.google.api.ads.adwords.awalerting.sampleimpl.action." + className;
-    }
-
-    try {
-      Class<?> c = Class.forName(className);
-      if (!AlertAction.class.isAssignableFrom(c)) {
-        throw new InstantiationException("Wrong AlertAction class specified: " + className);
-      }
-
-      return (AlertAction) c.getConstructor(new Class<?>[] {JsonObject.class}).newInstance(config);
-    } catch (Exception e) {
-      throw new AlertConfigLoadException(
-          "Error constructing AlertAction with config: " + config, e);
-    }
+    return PluginRegistry.getDefault().newInstance(AlertAction.class, config);
   }
 
   /**
@@ -100,37 +125,107 @@ public class AlertActionsProcessor {
    * @param reports the list of ReportData to run each alert action against.
    */
   public void processReports(List<ReportData> reports) throws AlertProcessingException {
+    processReports(reports, Deadline.NONE);
+  }
+
+  /**
+   * Process the ReportData list with alert actions, all reports with each action per thread, until
+   * the deadline expires. The actions still running by then are cancelled.
+   *
+   * @param reports the list of ReportData to run each alert action against.
+   * @param deadline the deadline of the alert actions
+   */
+  public void processReports(List<ReportData> reports, Deadline deadline)
+      throws AlertProcessingException {
     // Create one thread for each AlertAction, and process all reports
     Stopwatch stopwatch = Stopwatch.createStarted();
 
     CountDownLatch latch = new CountDownLatch(actions.size());
-    ExecutorService executorService = Executors.newFixedThreadPool(numThreads);
-
-    for (AlertAction action : actions) {
-      RunnableAlertActionProcessor actionProcessor =
-          new RunnableAlertActionProcessor(action, reports);
-      executeRunnableAlertActionProcessor(executorService, actionProcessor, latch);
-    }
+    ExecutorService executorService =
+        sharedExecutor != null ? sharedExecutor : Executors.newFixedThreadPool(numThreads);
+    List<Future<?>> tasks = new ArrayList<Future<?>>(actions.size());
 
     try {
-      latch.await();
+      for (AlertAction action : actions) {
+        RunnableAlertActionProcessor actionProcessor =
+            new RunnableAlertActionProcessor(action, reports);
+        tasks.add(executeRunnableAlertActionProcessor(executorService, actionProcessor, latch));
+      }
+
+      if (!deadline.await(latch)) {
+        for (int i = 0; i < actions.size(); i++) {
+          Future<?> task = tasks.get(i);
+          if (task != null && task.cancel(true)) {
+            LOGGER.warn("AlertAction \"{}\" timed out, cancelled.",
+                actions.get(i).getClass().getSimpleName());
+          }
+        }
+      }
     } catch (InterruptedException e) {
       Thread.currentThread().interrupt();
       throw new AlertProcessingException(
           "AlertActionsProcessor encounters InterruptedException.", e);
+    } finally {
+      if (executorService != sharedExecutor) {
+        executorService.shutdown();
+      }
     }
 
-    executorService.shutdown();
     stopwatch.stop();
 
     LOGGER.info("*** Processed {} actions on {} reports in {} seconds.", actions.size(),
         reports.size(), stopwatch.elapsed(TimeUnit.MILLISECONDS) / 1000);
   }
 
-  protected void executeRunnableAlertActionProcessor(ExecutorService executorService,
+  /**
+   * @return the alert actions, in the order they were configured
+   */
+  List<AlertAction> getActions() {
+    return actions;
+  }
+
+  /**
+   * Makes the mergeable alert actions save their partial states on the shard of the accounts,
+   * instead of being finalized. The other alert actions run in full.
+   *
+   * @param directory the directory of the partial states
+   * @param runId the ID of the run, shared by all its shards
+   * @param alertNumber the sequence number of the alert, from 1
+   * @param shard the shard of the accounts being processed
+   */
+  void savePartialStates(Path directory, String runId, int alertNumber, AccountShard shard) {
+    for (int i = 0; i < actions.size(); i++) {
+      AlertAction action = actions.get(i);
+      if (action instanceof MergeableAlertAction) {
+        actions.set(i, new PartialStateAlertAction((MergeableAlertAction) action,
+            ShardPartialStates.getFile(directory, runId, alertNumber, i + 1, shard)));
+      }
+    }
+  }
+
+  /**
+   * Saves the partial states of the mergeable alert actions (see
+   * {@link #savePartialStates(Path, String, int, AccountShard)}) for a shard without reports to
+   * process. The other alert actions are not run.
+   */
+  void saveEmptyPartialStates() throws AlertProcessingException {
+    for (AlertAction action : actions) {
+      if (action instanceof PartialStateAlertAction) {
+        action.initializeAction();
+        action.finalizeAction();
+      }
+    }
+  }
+
+  /**
+   * Runs the alert action on the executor, and counts down the latch once done.
+   *
+   * @return the future to cancel the action with, could be null
+   */
+  protected Future<?> executeRunnableAlertActionProcessor(ExecutorService executorService,
       RunnableAlertActionProcessor actionProcessor, CountDownLatch latch) {
     actionProcessor.setLatch(latch);
-    executorService.execute(actionProcessor);
+    return executorService.submit(actionProcessor);
   }
 
   /**
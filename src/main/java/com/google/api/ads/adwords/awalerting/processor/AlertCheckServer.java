@@ -0,0 +1,271 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.processor;
+
+import com.google.api.ads.adwords.awalerting.AlertAction;
+import com.google.api.ads.adwords.awalerting.AlertConfigLoadException;
+import com.google.api.ads.adwords.awalerting.AlertProcessingException;
+import com.google.api.ads.adwords.awalerting.report.UnmodifiableReportRow;
+import com.google.api.ads.adwords.awalerting.util.ConfigTags;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Embedded HTTP server to check an alert for a few accounts on demand, with the processor of a
+ * resident process, e.g. a daemon (see {@link AlertDaemon}), so that a check only pays for its
+ * report downloads:
+ * <pre>
+ * GET /check?alert=&lt;alert name&gt;&amp;clientCustomerIds=123-456-7890,...
+ * </pre>
+ *
+ * <p>The alert entries (the report rows left by the alert rules, with their alert messages) are
+ * streamed back as they are found, one JSON object per line, followed by a line with the number
+ * of entries: {@code {"Entries":2}}. Errors are returned as {@code {"Error":"..."}}, with status
+ * 400 for bad requests, 404 for unknown alerts and 500 for failed checks, or as the last line if
+ * some entries were already sent. The configured alert actions are not run.
+ */
+public class AlertCheckServer {
+  private static final Logger LOGGER = LoggerFactory.getLogger(AlertCheckServer.class);
+
+  private static final String CHECK_PATH = "/check";
+  private static final String ALERT_PARAM = "alert";
+  private static final String CLIENT_CUSTOMER_IDS_PARAM = "clientCustomerIds";
+  private static final String ENTRIES_TAG = "Entries";
+  private static final String ERROR_TAG = "Error";
+  private static final int THREADS = 4;
+
+  private final AlertProcessor processor;
+  private volatile JsonObject alertsConfig;
+  private final HttpServer server;
+  private final ExecutorService executor;
+
+  /**
+   * @param processor the alert processor of the process
+   * @param alertsConfig the JSON config of the alerts
+   * @param address the address to listen on, with port 0 for any free port
+   */
+  public AlertCheckServer(AlertProcessor processor, JsonObject alertsConfig,
+      InetSocketAddress address) throws IOException {
+    this.processor = Preconditions.checkNotNull(processor, "processor cannot be null.");
+    this.alertsConfig = Preconditions.checkNotNull(alertsConfig, "alertsConfig cannot be null.");
+    this.server = HttpServer.create(address, 0);
+    this.executor = Executors.newFixedThreadPool(THREADS, new ThreadFactoryBuilder()
+        .setNameFormat("aw-alerting-http-%d")
+        .setDaemon(true)
+        .build());
+    server.setExecutor(executor);
+    server.createContext(CHECK_PATH, new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          check(exchange);
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+  }
+
+  public void start() {
+    server.start();
+    LOGGER.info("*** Alert checks served on http://{}:{}{} ***",
+        server.getAddress().getHostString(), getPort(), CHECK_PATH);
+  }
+
+  /**
+   * Stops accepting checks, and waits up to the delay for the checks in progress.
+   */
+  public void stop(int delaySeconds) {
+    server.stop(delaySeconds);
+    executor.shutdownNow();
+  }
+
+  /**
+   * Replaces the alerts config for the next checks, e.g. after the alerts file was edited.
+   */
+  public void setAlertsConfig(JsonObject alertsConfig) {
+    this.alertsConfig = Preconditions.checkNotNull(alertsConfig, "alertsConfig cannot be null.");
+  }
+
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  private void check(HttpExchange exchange) throws IOException {
+    if (!"GET".equals(exchange.getRequestMethod())) {
+      sendError(exchange, 405, "Only GET is supported.");
+      return;
+    }
+
+    Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+    String alertName = params.get(ALERT_PARAM);
+    String ids = params.get(CLIENT_CUSTOMER_IDS_PARAM);
+    if (alertName == null || ids == null) {
+      sendError(exchange, 400,
+          "Parameters \"" + ALERT_PARAM + "\" and \"" + CLIENT_CUSTOMER_IDS_PARAM + "\" required.");
+      return;
+    }
+    Set<Long> clientCustomerIds = new LinkedHashSet<Long>();
+    try {
+      for (String id : Splitter.on(',').trimResults().omitEmptyStrings().split(ids)) {
+        clientCustomerIds.add(Long.valueOf(id.replaceAll("-", "")));
+      }
+    } catch (NumberFormatException e) {
+      sendError(exchange, 400, "Invalid client customer IDs: " + ids);
+      return;
+    }
+
+    // The same config for the whole check, even if it's replaced meanwhile.
+    JsonObject alertsConfig = this.alertsConfig;
+    if (!hasAlert(alertsConfig, alertName)) {
+      sendError(exchange, 404, "No alert named \"" + alertName + "\".");
+      return;
+    }
+
+    LOGGER.info("Checking alert \"{}\" for {} accounts.", alertName, clientCustomerIds.size());
+    StreamingAction action = new StreamingAction(exchange);
+    try {
+      processor.checkAlert(alertName, clientCustomerIds, alertsConfig, action);
+      action.finish(null);
+    } catch (AlertConfigLoadException | AlertProcessingException | RuntimeException e) {
+      LOGGER.error("Failed to check alert \"{}\".", alertName, e);
+      action.finish(e);
+    }
+  }
+
+  private static boolean hasAlert(JsonObject alertsConfig, String alertName) {
+    for (JsonElement alertConfig : alertsConfig.getAsJsonArray(ConfigTags.ALERTS)) {
+      if (alertName.equals(
+          alertConfig.getAsJsonObject().get(ConfigTags.ALERT_NAME).getAsString())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static Map<String, String> parseQuery(String query)
+      throws UnsupportedEncodingException {
+    Map<String, String> params = new HashMap<String, String>();
+    if (query != null) {
+      for (String param : Splitter.on('&').omitEmptyStrings().split(query)) {
+        int equals = param.indexOf('=');
+        String name = equals < 0 ? param : param.substring(0, equals);
+        String value = equals < 0 ? "" : param.substring(equals + 1);
+        params.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+      }
+    }
+    return params;
+  }
+
+  private static void sendError(HttpExchange exchange, int status, String message)
+      throws IOException {
+    byte[] body = (errorJson(message) + "\n").getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+    exchange.sendResponseHeaders(status, body.length);
+    exchange.getResponseBody().write(body);
+  }
+
+  private static String errorJson(String message) {
+    JsonObject error = new JsonObject();
+    error.addProperty(ERROR_TAG, message);
+    return error.toString();
+  }
+
+  /**
+   * Alert action that streams the alert entries into the HTTP response, starting it with the first
+   * entry.
+   */
+  private static class StreamingAction implements AlertAction {
+    private final HttpExchange exchange;
+    private OutputStream body;
+    private int entries;
+
+    StreamingAction(HttpExchange exchange) {
+      this.exchange = exchange;
+    }
+
+    @Override
+    public void initializeAction() {}
+
+    @Override
+    public synchronized void processReportEntry(UnmodifiableReportRow entry)
+        throws AlertProcessingException {
+      JsonObject entryJson = new JsonObject();
+      for (Map.Entry<String, String> field : entry.getFieldValues().entrySet()) {
+        entryJson.addProperty(field.getKey(), field.getValue());
+      }
+      try {
+        writeLine(entryJson.toString());
+      } catch (IOException e) {
+        throw new AlertProcessingException("Failed to send alert entry, client gone?", e);
+      }
+      entries++;
+    }
+
+    @Override
+    public void finalizeAction() {}
+
+    /**
+     * Ends the response with the number of entries, or with the error.
+     */
+    synchronized void finish(Exception error) throws IOException {
+      if (body == null && error != null) {
+        sendError(exchange, 500, error.getMessage());
+        return;
+      }
+      if (error != null) {
+        writeLine(errorJson(error.getMessage()));
+      } else {
+        JsonObject summary = new JsonObject();
+        summary.addProperty(ENTRIES_TAG, entries);
+        writeLine(summary.toString());
+      }
+    }
+
+    private void writeLine(String line) throws IOException {
+      if (body == null) {
+        exchange.getResponseHeaders().set(
+            "Content-Type", "application/x-ndjson; charset=utf-8");
+        // Chunked, the length is unknown.
+        exchange.sendResponseHeaders(200, 0);
+        body = exchange.getResponseBody();
+      }
+      body.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+      body.flush();
+    }
+  }
+}
@@ -0,0 +1,304 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.processor;
+
+import com.google.api.ads.adwords.awalerting.AlertConfigLoadException;
+import com.google.api.ads.adwords.awalerting.AlertProcessingException;
+import com.google.api.ads.adwords.awalerting.util.ConfigTags;
+import com.google.api.ads.adwords.awalerting.util.CronSchedule;
+import com.google.common.base.Preconditions;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-running process that generates each alert on its own cron-like schedule (see
+ * {@link CronSchedule}), set with "Schedule" in the alert config. The same processor is used for
+ * all the runs, so the session credential, the client customer IDs and the report fields mappings
+ * stay warm between them. The alerts due at the same time are generated in one run. The alerts
+ * that became due while a run was going on are generated late, in the next run; an alert whose
+ * runs were missed that way is generated once for all of them.
+ *
+ * <p>The alerts config can be replaced while the daemon runs (see
+ * {@link #updateAlertsConfig(JsonObject)}); the alerts that keep their name and schedule keep
+ * their next run time.
+ *
+ * <p>{@link #shutdown()} lets the current run finish, and then stops the daemon.
+ */
+public class AlertDaemon {
+  private static final Logger LOGGER = LoggerFactory.getLogger(AlertDaemon.class);
+
+  private final AlertProcessor processor;
+  private final Set<Long> clientCustomerIds;
+  private final DateTimeZone zone;
+
+  private final Object lock = new Object();
+  private final CountDownLatch terminated = new CountDownLatch(1);
+  private ScheduledAlerts scheduledAlerts;
+  private boolean reloaded;
+  private boolean shutdown;
+
+  /**
+   * @param processor the alert processor, kept for all the runs
+   * @param alertsConfig the JSON config of the alerts; the alerts without schedule are skipped
+   * @param clientCustomerIds the client customer IDs, or null to retrieve them on each run
+   * @param zone the time zone of the schedules
+   */
+  public AlertDaemon(AlertProcessor processor, JsonObject alertsConfig, Set<Long> clientCustomerIds,
+      DateTimeZone zone) throws AlertConfigLoadException {
+    this.processor = Preconditions.checkNotNull(processor, "processor cannot be null.");
+    this.clientCustomerIds = clientCustomerIds;
+    this.zone = Preconditions.checkNotNull(zone, "zone cannot be null.");
+    this.scheduledAlerts = new ScheduledAlerts(alertsConfig);
+  }
+
+  /**
+   * Replaces the alerts config, e.g. after the alerts file was edited. The current run, if any,
+   * goes on with the previous config.
+   *
+   * @param alertsConfig the new JSON config of the alerts
+   * @throws AlertConfigLoadException if the new config is invalid, in which case the daemon keeps
+   *     the previous one
+   */
+  public void updateAlertsConfig(JsonObject alertsConfig) throws AlertConfigLoadException {
+    ScheduledAlerts newScheduledAlerts = new ScheduledAlerts(alertsConfig);
+    synchronized (lock) {
+      scheduledAlerts = newScheduledAlerts;
+      reloaded = true;
+      lock.notifyAll();
+    }
+  }
+
+  /**
+   * Generates the alerts on their schedules, until {@link #shutdown()} is called. The errors of a
+   * run are logged, and the daemon goes on with the next runs.
+   */
+  public void run() {
+    try {
+      ScheduledAlerts alerts = null;
+      long[] nextTimes = null;
+      while (true) {
+        synchronized (lock) {
+          if (shutdown) {
+            break;
+          }
+          if (alerts != scheduledAlerts) {
+            nextTimes = reschedule(alerts, nextTimes, scheduledAlerts);
+            alerts = scheduledAlerts;
+            reloaded = false;
+          }
+        }
+        if (!awaitNextRun(min(nextTimes))) {
+          continue;
+        }
+
+        long runTime = System.currentTimeMillis();
+        boolean[] due = new boolean[nextTimes.length];
+        JsonArray dueAlerts = new JsonArray();
+        for (int i = 0; i < nextTimes.length; i++) {
+          if (nextTimes[i] <= runTime) {
+            due[i] = true;
+            dueAlerts.add(alerts.alertConfigs.get(i));
+          }
+        }
+        runAlerts(alerts.baseConfig, dueAlerts);
+
+        // Only the alerts that ran move on; the ones that became due meanwhile run next.
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < nextTimes.length; i++) {
+          if (due[i]) {
+            nextTimes[i] = getNextTime(alerts, i, runTime, now);
+          }
+        }
+      }
+      LOGGER.info("*** Daemon stopped ***");
+    } finally {
+      terminated.countDown();
+    }
+  }
+
+  /**
+   * Computes the next run times of the alerts. The alerts that keep their name and schedule from
+   * the previous alerts keep their next run time.
+   *
+   * @param previousAlerts the previous alerts, or null on start
+   * @param previousNextTimes the next run times of the previous alerts, or null on start
+   * @param alerts the alerts to schedule
+   * @return the next run times of the alerts
+   */
+  private long[] reschedule(ScheduledAlerts previousAlerts, long[] previousNextTimes,
+      ScheduledAlerts alerts) {
+    Map<String, Integer> previousIndexes = new HashMap<String, Integer>();
+    if (previousAlerts != null) {
+      for (int i = 0; i < previousAlerts.alertConfigs.size(); i++) {
+        previousIndexes.put(previousAlerts.getAlertName(i), i);
+      }
+    }
+
+    long[] nextTimes = new long[alerts.alertConfigs.size()];
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < nextTimes.length; i++) {
+      Integer previousIndex = previousIndexes.get(alerts.getAlertName(i));
+      if (previousIndex != null && previousAlerts.schedules.get(previousIndex).toString()
+          .equals(alerts.schedules.get(i).toString())) {
+        nextTimes[i] = previousNextTimes[previousIndex];
+        continue;
+      }
+      nextTimes[i] = alerts.schedules.get(i).next(now, zone);
+      LOGGER.info("Alert \"{}\" scheduled \"{}\", next run at {}.",
+          alerts.getAlertName(i), alerts.schedules.get(i), new DateTime(nextTimes[i], zone));
+    }
+    return nextTimes;
+  }
+
+  /**
+   * Computes the next run time of an alert that just ran. If it became due again while running,
+   * it runs late, once for all the runs it missed.
+   *
+   * @param alerts the scheduled alerts
+   * @param index the index of the alert
+   * @param runTime the time the run started
+   * @param now the time the run ended
+   * @return the next run time of the alert
+   */
+  private long getNextTime(ScheduledAlerts alerts, int index, long runTime, long now) {
+    long nextTime = alerts.schedules.get(index).next(runTime, zone);
+    if (nextTime > now) {
+      return nextTime;
+    }
+    LOGGER.warn("Alert \"{}\" missed its run at {} while running, running it late.",
+        alerts.getAlertName(index), new DateTime(nextTime, zone));
+    return now;
+  }
+
+  private void runAlerts(JsonObject baseConfig, JsonArray dueAlerts) {
+    JsonObject runConfig = new JsonObject();
+    for (Map.Entry<String, JsonElement> entry : baseConfig.entrySet()) {
+      runConfig.add(entry.getKey(), entry.getValue());
+    }
+    runConfig.add(ConfigTags.ALERTS, dueAlerts);
+
+    LOGGER.info("*** Scheduled run of {} alerts ***", dueAlerts.size());
+    try {
+      processor.generateAlerts(clientCustomerIds, runConfig);
+    } catch (AlertConfigLoadException | AlertProcessingException | RuntimeException e) {
+      LOGGER.error("Scheduled run failed.", e);
+    }
+  }
+
+  /**
+   * Waits until the time of the next run, the shutdown, or a new alerts config.
+   *
+   * @return whether to run, false on shutdown or on a new alerts config
+   */
+  private boolean awaitNextRun(long nextTime) {
+    synchronized (lock) {
+      long waitMillis;
+      while (!shutdown && !reloaded
+          && (waitMillis = nextTime - System.currentTimeMillis()) > 0) {
+        try {
+          lock.wait(waitMillis);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          shutdown = true;
+        }
+      }
+      return !shutdown && !reloaded;
+    }
+  }
+
+  private static long min(long[] values) {
+    long min = Long.MAX_VALUE;
+    for (long value : values) {
+      min = Math.min(min, value);
+    }
+    return min;
+  }
+
+  /**
+   * Stops the daemon once the current run, if any, is finished.
+   */
+  public void shutdown() {
+    synchronized (lock) {
+      shutdown = true;
+      lock.notifyAll();
+    }
+  }
+
+  /**
+   * Waits for the daemon to stop after {@link #shutdown()}.
+   *
+   * @return whether the daemon stopped in time
+   */
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    return terminated.await(timeout, unit);
+  }
+
+  /**
+   * The scheduled alerts of an alerts config, with their schedules.
+   */
+  private static final class ScheduledAlerts {
+    // The config of a run is the alerts config with only the alerts due.
+    private final JsonObject baseConfig = new JsonObject();
+    private final List<JsonObject> alertConfigs = new ArrayList<JsonObject>();
+    private final List<CronSchedule> schedules = new ArrayList<CronSchedule>();
+
+    ScheduledAlerts(JsonObject alertsConfig) throws AlertConfigLoadException {
+      for (Map.Entry<String, JsonElement> entry : alertsConfig.entrySet()) {
+        if (!entry.getKey().equals(ConfigTags.ALERTS)) {
+          baseConfig.add(entry.getKey(), entry.getValue());
+        }
+      }
+
+      for (JsonElement alertConfig : alertsConfig.getAsJsonArray(ConfigTags.ALERTS)) {
+        JsonObject alert = alertConfig.getAsJsonObject();
+        String alertName = alert.get(ConfigTags.ALERT_NAME).getAsString();
+        if (!alert.has(ConfigTags.SCHEDULE)) {
+          LOGGER.warn("Alert \"{}\" has no \"{}\", skipped by the daemon.",
+              alertName, ConfigTags.SCHEDULE);
+          continue;
+        }
+        try {
+          schedules.add(CronSchedule.parse(alert.get(ConfigTags.SCHEDULE).getAsString()));
+        } catch (IllegalArgumentException e) {
+          throw new AlertConfigLoadException(
+              "Invalid schedule of alert \"" + alertName + "\".", e);
+        }
+        alertConfigs.add(alert);
+      }
+      if (alertConfigs.isEmpty()) {
+        throw new AlertConfigLoadException(
+            "No alert has a \"" + ConfigTags.SCHEDULE + "\".", null);
+      }
+    }
+
+    String getAlertName(int index) {
+      return alertConfigs.get(index).get(ConfigTags.ALERT_NAME).getAsString();
+    }
+  }
+}
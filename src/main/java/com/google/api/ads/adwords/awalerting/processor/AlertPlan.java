@@ -0,0 +1,547 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.processor;
+
+import com.google.api.ads.adwords.awalerting.AlertAction;
+import com.google.api.ads.adwords.awalerting.AlertConfigLoadException;
+import com.google.api.ads.adwords.awalerting.AlertReportDownloader;
+import com.google.api.ads.adwords.awalerting.AlertRule;
+import com.google.api.ads.adwords.awalerting.ReportDownloadContextAware;
+import com.google.api.ads.adwords.awalerting.report.AwqlReportQuery;
+import com.google.api.ads.adwords.awalerting.report.DictionaryScope;
+import com.google.api.ads.adwords.awalerting.report.ReportDataStore;
+import com.google.api.ads.adwords.awalerting.report.ReportStorage;
+import com.google.api.ads.adwords.awalerting.util.ConfigTags;
+import com.google.api.ads.adwords.awalerting.util.CronSchedule;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Execution plan of an alerts config: the config of each alert checked and compiled into typed
+ * values before any report is downloaded, so that a mistake in the last alert fails the run at
+ * once instead of after the downloads of the previous alerts. All the mistakes of the config are
+ * reported together.
+ *
+ * <p>The plan checks that each alert has a unique name, known report downloader, alert rules and
+ * alert actions (see {@link PluginRegistry}), an alert message, and a valid execution mode,
+ * schedule and priority. For the AWQL report downloaders, the placeholders of the alert message
+ * are resolved against the fields of the report query and the columns added by the alert rules.
+ * The alert rules are constructed for that, but the report downloaders and alert actions are not,
+ * as they may connect to other systems.
+ *
+ * <p>{@link #explain(int)} describes the plan: the downloads of each alert, the downloads shared by
+ * several alerts, and the number of reports to download.
+ *
+ * <p>This class is immutable.
+ */
+public final class AlertPlan {
+  // Tag of the report query of the AWQL report downloaders.
+  private static final String REPORT_QUERY_TAG = "ReportQuery";
+  private static final String FIELDS_TAG = "Fields";
+  // Tags of the storage of the reports of the AWQL report downloaders.
+  private static final String REPORT_STORAGE_TAG = "ReportStorage";
+  private static final String DICTIONARY_SCOPE_TAG = "DictionaryScope";
+
+  private static final Pattern PLACEHOLDER_PATTERN =
+      Pattern.compile(ConfigTags.ALERT_MESSAGE_PLACEHOLDER_REGEX);
+  private static final String SEPARATOR = System.getProperty("line.separator");
+
+  private final List<PlannedAlert> alerts;
+
+  private AlertPlan(List<PlannedAlert> alerts) {
+    this.alerts = ImmutableList.copyOf(alerts);
+  }
+
+  /**
+   * Compiles the alerts config into a plan.
+   *
+   * @param alertsConfig the JSON config of the alerts
+   * @return the plan of the alerts, in the same order
+   * @throws AlertConfigLoadException listing all the mistakes of the config
+   */
+  public static AlertPlan compile(JsonObject alertsConfig) throws AlertConfigLoadException {
+    List<String> errors = new ArrayList<String>();
+    List<PlannedAlert> alerts = new ArrayList<PlannedAlert>();
+    JsonElement alertsElement = alertsConfig.get(ConfigTags.ALERTS);
+    if (alertsElement == null || !alertsElement.isJsonArray()) {
+      throw new AlertConfigLoadException(
+          "The alerts config has no \"" + ConfigTags.ALERTS + "\" array.", null);
+    }
+
+    Set<String> alertNames = new HashSet<String>();
+    int number = 0;
+    for (JsonElement alertElement : alertsElement.getAsJsonArray()) {
+      number++;
+      if (!alertElement.isJsonObject()) {
+        errors.add("Alert #" + number + ": not a JSON object.");
+        continue;
+      }
+      PlannedAlert alert = compileAlert(alertElement.getAsJsonObject(), number, errors);
+      if (alert != null && !alertNames.add(alert.getName())) {
+        errors.add(String.format("Alert #%d: duplicate name \"%s\".", number, alert.getName()));
+      }
+      alerts.add(alert);
+    }
+
+    if (!errors.isEmpty()) {
+      throw new AlertConfigLoadException(
+          "Invalid alerts config:" + SEPARATOR + "  " + Joiner.on(SEPARATOR + "  ").join(errors),
+          null);
+    }
+    return new AlertPlan(alerts);
+  }
+
+  /**
+   * Compiles the config of one alert.
+   *
+   * @param alertConfig the JSON config of the alert
+   * @param number the sequence number of the alert, from 1
+   * @return the planned alert
+   * @throws AlertConfigLoadException listing all the mistakes of the config
+   */
+  static PlannedAlert compileAlert(JsonObject alertConfig, int number)
+      throws AlertConfigLoadException {
+    List<String> errors = new ArrayList<String>();
+    PlannedAlert alert = compileAlert(alertConfig, number, errors);
+    if (!errors.isEmpty()) {
+      throw new AlertConfigLoadException(
+          "Invalid alert config:" + SEPARATOR + "  " + Joiner.on(SEPARATOR + "  ").join(errors),
+          null);
+    }
+    return alert;
+  }
+
+  /**
+   * @return the planned alert, or null if the config has mistakes, which are added to the errors
+   */
+  private static PlannedAlert compileAlert(
+      JsonObject alertConfig, int number, List<String> errors) {
+    int errorsCount = errors.size();
+    PluginRegistry registry = PluginRegistry.getDefault();
+
+    String name = getString(alertConfig, ConfigTags.ALERT_NAME);
+    String prefix = name == null
+        ? "Alert #" + number + ": " : String.format("Alert #%d \"%s\": ", number, name);
+    if (name == null) {
+      errors.add(prefix + "no \"" + ConfigTags.ALERT_NAME + "\".");
+    }
+
+    // Report downloader, with its report query if it's an AWQL one.
+    JsonElement downloaderConfig = alertConfig.get(ConfigTags.REPORT_DOWNLOADER);
+    Class<?> downloaderClass = resolve(
+        registry, AlertReportDownloader.class, downloaderConfig, prefix, errors);
+    String awql = null;
+    String reportType = null;
+    List<String> fields = null;
+    if (downloaderClass != null && downloaderConfig.getAsJsonObject().has(REPORT_QUERY_TAG)) {
+      try {
+        JsonObject queryConfig =
+            downloaderConfig.getAsJsonObject().getAsJsonObject(REPORT_QUERY_TAG);
+        AwqlReportQuery query = new AwqlReportQuery(queryConfig);
+        awql = AwqlReportQuery.normalize(query.generateAWQL());
+        reportType = query.getReportType();
+        fields = Splitter.on(',').trimResults().omitEmptyStrings()
+            .splitToList(queryConfig.get(FIELDS_TAG).getAsString());
+      } catch (RuntimeException e) {
+        errors.add(prefix + "invalid \"" + REPORT_QUERY_TAG + "\": " + e);
+      }
+    }
+
+    // The key of the reports in the report data store, shared by the alerts with the same key.
+    String queryKey = null;
+    if (awql != null && ReportDownloadContextAware.class.isAssignableFrom(downloaderClass)) {
+      JsonObject storageConfig = downloaderConfig.getAsJsonObject();
+      try {
+        queryKey = ReportDataStore.getQueryKey(awql,
+            storageConfig.has(REPORT_STORAGE_TAG)
+                ? ReportStorage.valueOf(storageConfig.get(REPORT_STORAGE_TAG).getAsString())
+                : ReportStorage.ROWS,
+            storageConfig.has(DICTIONARY_SCOPE_TAG)
+                ? DictionaryScope.valueOf(storageConfig.get(DICTIONARY_SCOPE_TAG).getAsString())
+                : DictionaryScope.REPORT);
+      } catch (RuntimeException e) {
+        errors.add(String.format("%sinvalid \"%s\" or \"%s\": %s",
+            prefix, REPORT_STORAGE_TAG, DICTIONARY_SCOPE_TAG, e.getMessage()));
+      }
+    }
+
+    // Alert rules, and the columns they add.
+    List<Class<?>> ruleClasses = new ArrayList<Class<?>>();
+    Set<String> columns = fields == null ? null : new HashSet<String>(fields);
+    JsonElement rulesConfig = alertConfig.get(ConfigTags.RULES);
+    if (rulesConfig != null && !rulesConfig.isJsonArray()) {
+      errors.add(prefix + "\"" + ConfigTags.RULES + "\" is not an array.");
+    } else if (rulesConfig != null) {
+      for (JsonElement ruleConfig : rulesConfig.getAsJsonArray()) {
+        Class<?> ruleClass = resolve(registry, AlertRule.class, ruleConfig, prefix, errors);
+        if (ruleClass == null) {
+          continue;
+        }
+        ruleClasses.add(ruleClass);
+        try {
+          List<String> newColumns = registry.newInstance(
+              AlertRule.class, ruleConfig.getAsJsonObject()).newReportColumns();
+          if (columns != null && newColumns != null) {
+            columns.addAll(newColumns);
+          }
+        } catch (AlertConfigLoadException | RuntimeException e) {
+          errors.add(prefix + e.getMessage());
+        }
+      }
+    }
+
+    // Alert message, with its placeholders.
+    String alertMessage = getString(alertConfig, ConfigTags.ALERT_MESSAGE);
+    Set<String> placeholders = new LinkedHashSet<String>();
+    if (alertMessage == null) {
+      errors.add(prefix + "no \"" + ConfigTags.ALERT_MESSAGE + "\".");
+    } else {
+      Matcher matcher = PLACEHOLDER_PATTERN.matcher(alertMessage);
+      while (matcher.find()) {
+        String placeholder = matcher.group();
+        placeholders.add(placeholder.substring(1, placeholder.length() - 1));
+      }
+      if (columns != null) {
+        Set<String> unknown = new LinkedHashSet<String>(placeholders);
+        unknown.removeAll(columns);
+        if (!unknown.isEmpty()) {
+          errors.add(String.format("%s\"%s\" placeholders %s are not fields of the report query"
+              + " nor columns added by the alert rules.", prefix, ConfigTags.ALERT_MESSAGE,
+              unknown));
+        }
+      }
+    }
+
+    // Alert actions.
+    List<Class<?>> actionClasses = new ArrayList<Class<?>>();
+    JsonElement actionsConfig = alertConfig.get(ConfigTags.ACTIONS);
+    if (actionsConfig == null || !actionsConfig.isJsonArray()) {
+      errors.add(prefix + "no \"" + ConfigTags.ACTIONS + "\" array.");
+    } else {
+      for (JsonElement actionConfig : actionsConfig.getAsJsonArray()) {
+        Class<?> actionClass = resolve(registry, AlertAction.class, actionConfig, prefix, errors);
+        if (actionClass != null) {
+          actionClasses.add(actionClass);
+        }
+      }
+    }
+
+    ExecutionMode executionMode = ExecutionMode.BATCH;
+    String executionModeName = getString(alertConfig, ConfigTags.EXECUTION_MODE);
+    if (executionModeName != null) {
+      try {
+        executionMode = ExecutionMode.valueOf(executionModeName.toUpperCase());
+      } catch (IllegalArgumentException e) {
+        errors.add(prefix + "unknown execution mode: " + executionModeName);
+      }
+    }
+
+    CronSchedule schedule = null;
+    String scheduleExpression = getString(alertConfig, ConfigTags.SCHEDULE);
+    if (scheduleExpression != null) {
+      try {
+        schedule = CronSchedule.parse(scheduleExpression);
+      } catch (IllegalArgumentException e) {
+        errors.add(prefix + "invalid schedule: " + e.getMessage());
+      }
+    }
+
+    int priority = 0;
+    JsonElement priorityValue = alertConfig.get(ConfigTags.PRIORITY);
+    if (priorityValue != null) {
+      try {
+        priority = priorityValue.getAsInt();
+      } catch (RuntimeException e) {
+        errors.add(prefix + "priority must be an integer: " + priorityValue);
+      }
+    }
+
+    if (errors.size() > errorsCount) {
+      return null;
+    }
+    return new PlannedAlert(number, name, alertConfig, executionMode, downloaderClass, reportType,
+        fields, awql, queryKey, ruleClasses, alertMessage, placeholders, actionClasses, schedule,
+        priority);
+  }
+
+  private static Class<?> resolve(PluginRegistry registry, Class<?> pluginType,
+      JsonElement config, String prefix, List<String> errors) {
+    try {
+      return registry.resolve(pluginType, config);
+    } catch (AlertConfigLoadException e) {
+      errors.add(prefix + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * @return the string value of the property, or null if it's missing or not a string
+   */
+  private static String getString(JsonObject config, String property) {
+    JsonElement value = config.get(property);
+    return value != null && value.isJsonPrimitive() ? value.getAsString() : null;
+  }
+
+  /**
+   * @return the planned alerts, in the order of the config
+   */
+  public List<PlannedAlert> getAlerts() {
+    return alerts;
+  }
+
+  /**
+   * @return the planned alerts by priority, the highest first, and in the order of the config for
+   *     the same priority
+   */
+  public List<PlannedAlert> getAlertsByPriority() {
+    List<PlannedAlert> orderedAlerts = new ArrayList<PlannedAlert>(alerts);
+    Collections.sort(orderedAlerts, new Comparator<PlannedAlert>() {
+      @Override
+      public int compare(PlannedAlert alert1, PlannedAlert alert2) {
+        return Integer.compare(alert2.getPriority(), alert1.getPriority());
+      }
+    });
+    return orderedAlerts;
+  }
+
+  /**
+   * @return the planned alert with this name, or null if there is none
+   */
+  public PlannedAlert getAlert(String alertName) {
+    for (PlannedAlert alert : alerts) {
+      if (alert.getName().equals(alertName)) {
+        return alert;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Describes the plan: the downloads, alert rules and alert actions of each alert, the AWQL
+   * queries shared by several alerts (which are downloaded once per account in a run), and the
+   * number of reports to download.
+   *
+   * @param accountsCount the number of accounts, or a negative number if not known yet
+   * @return the description of the plan, on several lines
+   */
+  public String explain(int accountsCount) {
+    StringBuilder sb = new StringBuilder();
+    Map<String, List<PlannedAlert>> alertsByQuery = new LinkedHashMap<String, List<PlannedAlert>>();
+    int otherDownloads = 0;
+    for (PlannedAlert alert : alerts) {
+      sb.append(String.format("Alert #%d \"%s\" (%s%s%s)%n", alert.getNumber(), alert.getName(),
+          alert.getExecutionMode(),
+          alert.getSchedule() == null ? "" : ", schedule \"" + alert.getSchedule() + "\"",
+          alert.getPriority() == 0 ? "" : ", priority " + alert.getPriority()));
+      sb.append("  Download: ").append(alert.getReportDownloaderClass().getSimpleName());
+      if (alert.getAwql() != null) {
+        sb.append(": ").append(alert.getAwql());
+      }
+      if (alert.getQueryKey() != null) {
+        List<PlannedAlert> queryAlerts = alertsByQuery.get(alert.getQueryKey());
+        if (queryAlerts == null) {
+          queryAlerts = new ArrayList<PlannedAlert>();
+          alertsByQuery.put(alert.getQueryKey(), queryAlerts);
+        }
+        queryAlerts.add(alert);
+      } else {
+        otherDownloads++;
+      }
+      sb.append(String.format("%n  Rules: %s%n  Message placeholders: %s%n  Actions: %s%n",
+          getSimpleNames(alert.getRuleClasses()), alert.getPlaceholders(),
+          getSimpleNames(alert.getActionClasses())));
+    }
+
+    int sharedQueries = 0;
+    for (Map.Entry<String, List<PlannedAlert>> entry : alertsByQuery.entrySet()) {
+      if (entry.getValue().size() > 1) {
+        sharedQueries++;
+        List<String> numbers = new ArrayList<String>();
+        for (PlannedAlert alert : entry.getValue()) {
+          numbers.add("#" + alert.getNumber());
+        }
+        sb.append(String.format("Shared by alerts %s: %s%n",
+            Joiner.on(", ").join(numbers), entry.getValue().get(0).getAwql()));
+      }
+    }
+
+    int downloadsPerAccount = alertsByQuery.size() + otherDownloads;
+    sb.append(String.format("%d alerts, %d distinct AWQL queries (%d shared), %d other downloads",
+        alerts.size(), alertsByQuery.size(), sharedQueries, otherDownloads));
+    if (accountsCount >= 0) {
+      sb.append(String.format(": up to %d report downloads for %d accounts.",
+          (long) downloadsPerAccount * accountsCount, accountsCount));
+    } else {
+      sb.append(String.format(
+          ": up to %d report downloads per account, accounts retrieved at run time.",
+          downloadsPerAccount));
+    }
+    return sb.toString();
+  }
+
+  private static List<String> getSimpleNames(List<Class<?>> classes) {
+    List<String> names = new ArrayList<String>(classes.size());
+    for (Class<?> c : classes) {
+      names.add(c.getSimpleName());
+    }
+    return names;
+  }
+
+  /**
+   * The compiled config of an alert.
+   */
+  public static final class PlannedAlert {
+    private final int number;
+    private final String name;
+    private final JsonObject config;
+    private final ExecutionMode executionMode;
+    private final Class<?> reportDownloaderClass;
+    private final String reportType;
+    private final List<String> fields;
+    private final String awql;
+    private final String queryKey;
+    private final List<Class<?>> ruleClasses;
+    private final String alertMessage;
+    private final List<String> placeholders;
+    private final List<Class<?>> actionClasses;
+    private final CronSchedule schedule;
+    private final int priority;
+
+    private PlannedAlert(int number, String name, JsonObject config, ExecutionMode executionMode,
+        Class<?> reportDownloaderClass, String reportType, List<String> fields, String awql,
+        String queryKey, List<Class<?>> ruleClasses, String alertMessage, Set<String> placeholders,
+        List<Class<?>> actionClasses, CronSchedule schedule, int priority) {
+      this.number = number;
+      this.name = name;
+      this.config = config;
+      this.executionMode = executionMode;
+      this.reportDownloaderClass = reportDownloaderClass;
+      this.reportType = reportType;
+      this.fields = fields == null ? null : ImmutableList.copyOf(fields);
+      this.awql = awql;
+      this.queryKey = queryKey;
+      this.ruleClasses = ImmutableList.copyOf(ruleClasses);
+      this.alertMessage = alertMessage;
+      this.placeholders = ImmutableList.copyOf(placeholders);
+      this.actionClasses = ImmutableList.copyOf(actionClasses);
+      this.schedule = schedule;
+      this.priority = priority;
+    }
+
+    /**
+     * @return the sequence number of the alert in the config, from 1
+     */
+    public int getNumber() {
+      return number;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * @return the JSON config of the alert, which must not be modified
+     */
+    public JsonObject getConfig() {
+      return config;
+    }
+
+    public ExecutionMode getExecutionMode() {
+      return executionMode;
+    }
+
+    public Class<?> getReportDownloaderClass() {
+      return reportDownloaderClass;
+    }
+
+    /**
+     * @return the report type of the report query, or null if the report downloader has none
+     */
+    public String getReportType() {
+      return reportType;
+    }
+
+    /**
+     * @return the fields of the report query, or null if the report downloader has none
+     */
+    public List<String> getFields() {
+      return fields;
+    }
+
+    /**
+     * @return the normalized AWQL query, or null if the report downloader has no report query
+     */
+    public String getAwql() {
+      return awql;
+    }
+
+    /**
+     * @return the key of the reports in the {@link ReportDataStore}, or null if the report
+     *     downloader does not share its reports with the other alerts
+     */
+    public String getQueryKey() {
+      return queryKey;
+    }
+
+    public List<Class<?>> getRuleClasses() {
+      return ruleClasses;
+    }
+
+    public String getAlertMessage() {
+      return alertMessage;
+    }
+
+    /**
+     * @return the field names of the placeholders of the alert message, without duplicates
+     */
+    public List<String> getPlaceholders() {
+      return placeholders;
+    }
+
+    public List<Class<?>> getActionClasses() {
+      return actionClasses;
+    }
+
+    /**
+     * @return the schedule of the alert, or null if it has none
+     */
+    public CronSchedule getSchedule() {
+      return schedule;
+    }
+
+    /**
+     * @return the priority of the alert, 0 by default: alerts of higher priority start first
+     */
+    public int getPriority() {
+      return priority;
+    }
+  }
+}
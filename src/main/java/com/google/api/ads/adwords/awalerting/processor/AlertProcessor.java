@@ -15,25 +15,56 @@
 package com.google.api.ads.adwords.awalerting.processor;
 
 import com.google.api.ads.adwords.awalerting.AlertConfigLoadException;
+import com.google.api.ads.adwords.awalerting.AlertAction;
 import com.google.api.ads.adwords.awalerting.AlertProcessingException;
+import com.google.api.ads.adwords.awalerting.AlertRule;
+import com.google.api.ads.adwords.awalerting.MergeableAlertAction;
 import com.google.api.ads.adwords.awalerting.authentication.Authenticator;
+import com.google.api.ads.adwords.awalerting.report.DownloadLedger;
 import com.google.api.ads.adwords.awalerting.report.ReportData;
+import com.google.api.ads.adwords.awalerting.report.ReportDataStore;
+import com.google.api.ads.adwords.awalerting.report.ReportDownloadContext;
+import com.google.api.ads.adwords.awalerting.report.ReportFieldsMappingCache;
+import com.google.api.ads.adwords.awalerting.report.ReportMemoryBudget;
+import com.google.api.ads.adwords.awalerting.report.StringDictionaries;
+import com.google.api.ads.adwords.awalerting.util.AccountShard;
+import com.google.api.ads.adwords.awalerting.util.AdaptiveConcurrencyLimiter;
+import com.google.api.ads.adwords.awalerting.util.CircuitBreaker;
+import com.google.api.ads.adwords.awalerting.util.ClientCustomerIdsRetrievalException;
 import com.google.api.ads.adwords.awalerting.util.ConfigTags;
+import com.google.api.ads.adwords.awalerting.util.Deadline;
 import com.google.api.ads.adwords.awalerting.util.ManagedCustomerDelegate;
+import com.google.api.ads.adwords.awalerting.util.PagedClientCustomerIds;
 import com.google.api.ads.adwords.jaxws.v201705.mcm.ApiException;
 import com.google.api.ads.adwords.lib.client.AdWordsSession;
 import com.google.api.ads.adwords.lib.client.AdWordsSession.ImmutableAdWordsSession;
 import com.google.api.ads.common.lib.exception.OAuthException;
 import com.google.api.ads.common.lib.exception.ValidationException;
 import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Stopwatch;
+import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -52,12 +83,53 @@ public class AlertProcessor {
   private static final String SEPARATOR = System.getProperty("line.separator");
 
   private static final int DEFAULT_NUM_THREADS = 20;
+  private static final String DOWNLOAD_LIMITER_OBJECT_NAME =
+      "com.google.api.ads.adwords.awalerting:type=DownloadLimiter";
+  // Accounts are skipped for the rest of the run after this many consecutive failed downloads.
+  private static final int ACCOUNT_FAILURE_THRESHOLD = 5;
+  private static final long ACCOUNT_CIRCUIT_OPEN_MILLIS = TimeUnit.MINUTES.toMillis(30);
+  private static final int DEFAULT_FIELDS_CACHE_TTL_HOURS = 24;
+  // By default, the downloads of an alert stop when a fifth of its time is left.
+  private static final int DEFAULT_PROCESSING_GRACE_DIVISOR = 5;
   private final int numThreads;
+  private int maxInFlightReports;
+  // The number of alerts of a run processed at the same time.
+  private int alertsConcurrency = 1;
+
+  // The memory budget of the reports of a run in bytes (0 if unlimited), and where to spill them.
+  private long memoryBudgetBytes;
+  private Path spillDirectory = Paths.get(System.getProperty("java.io.tmpdir"));
+
+  // The timeouts of a run, of each alert and of each download in milliseconds (0 if unlimited).
+  private long runTimeoutMillis;
+  private long alertTimeoutMillis;
+  private long downloadTimeoutMillis;
+  // The time reserved at the end of each alert for its rules and actions, 0 for the default.
+  private long processingGraceMillis;
+
+  // Shared by the report downloaders of all alerts for the life of the process.
+  private ReportFieldsMappingCache fieldsMappingCache =
+      new ReportFieldsMappingCache(null, TimeUnit.HOURS.toMillis(DEFAULT_FIELDS_CACHE_TTL_HOURS));
+  private DownloadLedger downloadLedger = new DownloadLedger(null);
+  // The report downloaders and alert rules of the alerts, kept until their configs change.
+  private final CompiledAlerts compiledAlerts = new CompiledAlerts();
 
   private Authenticator authenticator;
+  private ProcessorExecutors executors;
+  private ClientCustomerIdsRetriever clientCustomerIdsRetriever;
+
+  // The run and the alert processed by the current thread, as checks may run alongside a run, and
+  // the alerts of a run may be processed concurrently.
+  private final ThreadLocal<RunState> runState = new ThreadLocal<RunState>();
+  private final ThreadLocal<AlertState> alertState = new ThreadLocal<AlertState>();
+
+  // The shard of the accounts to process, if any, its run and where to save the partial states.
+  private AccountShard accountShard;
+  private String shardRunId;
+  private Path shardStateDirectory;
 
   /**
-   * Constructor with threads parameter autowired by Spring.
+   * Constructor with parameters autowired by Spring.
    *
    * @param numberOfThreads number of threads to be used
    */
@@ -72,6 +144,47 @@ public class AlertProcessor {
           "Config property \"aw.alerting.processor.threads\" not found, using default value {}",
           DEFAULT_NUM_THREADS);
     }
+    // Enough to keep both the rules and the actions threads busy.
+    this.maxInFlightReports = 2 * this.numThreads;
+  }
+
+  /**
+   * @return the timeout in milliseconds, or 0 if not set or not positive
+   */
+  private static long toMillis(Integer timeout, TimeUnit unit) {
+    return timeout != null && timeout > 0 ? unit.toMillis(timeout) : 0;
+  }
+
+  /**
+   * Creates the limiter of concurrent downloads, which can go up to the size of the download
+   * thread pool (twice the number of threads by default). It starts at the number of threads, the
+   * former fixed number of concurrent downloads, and at most at half the pool size, so that it can
+   * go up while the downloads are healthy.
+   */
+  private AdaptiveConcurrencyLimiter newDownloadLimiter() {
+    int maxLimit = executors == null
+        ? 2 * numThreads : executors.getPoolSize(ProcessorExecutors.Stage.DOWNLOAD);
+    return new AdaptiveConcurrencyLimiter(
+        1, maxLimit, Math.max(1, Math.min(numThreads, maxLimit / 2)));
+  }
+
+  /**
+   * Exposes the download limiter of the run through JMX in place of the previous run's one, so
+   * that its limit can be monitored while the run is in progress.
+   */
+  private static void exportDownloadLimiter(AdaptiveConcurrencyLimiter downloadLimiter) {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(DOWNLOAD_LIMITER_OBJECT_NAME);
+      synchronized (AlertProcessor.class) {
+        if (server.isRegistered(name)) {
+          server.unregisterMBean(name);
+        }
+        server.registerMBean(downloadLimiter, name);
+      }
+    } catch (JMException e) {
+      LOGGER.warn("Failed to export the download limiter through JMX.", e);
+    }
   }
 
   /**
@@ -82,6 +195,10 @@ public class AlertProcessor {
    */
   private Set<Long> retrieveClientCustomerIds(AdWordsSession session)
       throws AlertProcessingException {
+    if (clientCustomerIdsRetriever != null) {
+      return clientCustomerIdsRetriever.getClientCustomerIds(session);
+    }
+
     try {
       LOGGER.info("Client customer IDs being recovered from the API. This may take a while...");
       return new ManagedCustomerDelegate(session).getClientCustomerIds();
@@ -92,44 +209,326 @@ public class AlertProcessor {
   }
 
   /**
-   * Generate all the alerts for the given account IDs under the manager account.
+   * Generate all the alerts for the given account IDs under the manager account. The alerts config
+   * is compiled into an {@link AlertPlan} first, so that a mistake fails the run before any
+   * download.
    *
    * @param clientCustomerIds the client customer IDs
    * @param alertsConfig the JSON config of the alerts
    */
-  public void generateAlerts(Set<Long> clientCustomerIds, JsonObject alertsConfig)
+  public synchronized void generateAlerts(Set<Long> clientCustomerIds, JsonObject alertsConfig)
+      throws AlertConfigLoadException, AlertProcessingException {
+    generatePlannedAlerts(clientCustomerIds, AlertPlan.compile(alertsConfig));
+  }
+
+  /**
+   * Generate all the alerts of a compiled plan for the given account IDs under the manager account.
+   *
+   * @param clientCustomerIds the client customer IDs, or null to retrieve them from the API
+   * @param plan the compiled alerts config
+   */
+  private synchronized void generatePlannedAlerts(Set<Long> clientCustomerIds, AlertPlan plan)
       throws AlertConfigLoadException, AlertProcessingException {
     Stopwatch stopwatch = Stopwatch.createStarted();
-    
-    ImmutableAdWordsSession session = null;
-    try {
-      session = authenticator.authenticate();
-    } catch (OAuthException e) {
-      throw new AlertConfigLoadException("Failed to authenticate AdWordsSession.", e);
-    } catch (ValidationException e) {
-      throw new AlertConfigLoadException("Failed to build AdWordsSession.", e);
-    }
+    ImmutableAdWordsSession session = authenticate();
     
     if (clientCustomerIds == null) {
       clientCustomerIds = retrieveClientCustomerIds(session);
 
-      // Write the client customer IDs into debug log.
-      LOGGER.debug("Client customer IDs retrieved:{}{}",
-          SEPARATOR, Joiner.on(SEPARATOR).join(clientCustomerIds));
+      // Write the client customer IDs into debug log, unless they are still being retrieved.
+      if (!(clientCustomerIds instanceof PagedClientCustomerIds)) {
+        LOGGER.debug("Client customer IDs retrieved:{}{}",
+            SEPARATOR, Joiner.on(SEPARATOR).join(clientCustomerIds));
+      }
     }
 
-    int count = 0;
-    for (JsonElement alertConfig : alertsConfig.getAsJsonArray(ConfigTags.ALERTS)) {
-      count++;
-      processAlert(clientCustomerIds, session, alertConfig.getAsJsonObject(), count);
+    if (accountShard != null) {
+      LOGGER.info("*** Processing shard {} of the accounts of run \"{}\", partial states saved "
+          + "into {} ***", accountShard, shardRunId, shardStateDirectory);
+      clientCustomerIds = accountShard.filter(clientCustomerIds);
     }
 
+    processAlerts(clientCustomerIds, session, plan, null);
+
     stopwatch.stop();
     LOGGER.info(
         "*** Finished all processing in {} seconds ***",
         stopwatch.elapsed(TimeUnit.MILLISECONDS) / 1000);
   }
 
+  /**
+   * Checks one alert for a few accounts right away, e.g. on demand from {@link AlertCheckServer}.
+   * Instead of the alert actions of the alert config, the alert entries are passed to the given
+   * action. The checks do not wait for the run in progress, if any: they have their own run state,
+   * and only share the thread pools and the caches of the processor with it.
+   *
+   * @param alertName the name of the alert to check
+   * @param clientCustomerIds the client customer IDs to check the alert for
+   * @param alertsConfig the JSON config of the alerts
+   * @param action the action to run on the alert entries, instead of the configured actions
+   * @throws AlertConfigLoadException if no alert has this name
+   */
+  public void checkAlert(String alertName, Set<Long> clientCustomerIds,
+      JsonObject alertsConfig, AlertAction action)
+      throws AlertConfigLoadException, AlertProcessingException {
+    JsonArray alerts = new JsonArray();
+    for (JsonElement alertConfig : alertsConfig.getAsJsonArray(ConfigTags.ALERTS)) {
+      if (alertName.equals(
+          alertConfig.getAsJsonObject().get(ConfigTags.ALERT_NAME).getAsString())) {
+        alerts.add(alertConfig);
+        break;
+      }
+    }
+    if (alerts.size() == 0) {
+      throw new AlertConfigLoadException("No alert named \"" + alertName + "\".", null);
+    }
+    JsonObject checkConfig = new JsonObject();
+    checkConfig.add(ConfigTags.ALERTS, alerts);
+    AlertPlan plan = AlertPlan.compile(checkConfig);
+
+    Preconditions.checkNotNull(action, "action cannot be null.");
+    processAlerts(clientCustomerIds, authenticate(), plan, action);
+  }
+
+  private ImmutableAdWordsSession authenticate() throws AlertConfigLoadException {
+    try {
+      return authenticator.authenticate();
+    } catch (OAuthException e) {
+      throw new AlertConfigLoadException("Failed to authenticate AdWordsSession.", e);
+    } catch (ValidationException e) {
+      throw new AlertConfigLoadException("Failed to build AdWordsSession.", e);
+    }
+  }
+
+  /**
+   * Process the alerts in one run, which shares the downloaded reports among the alerts.
+   *
+   * @param clientCustomerIds the client customer IDs
+   * @param session the adwords session
+   * @param plan the plan of the alerts
+   * @param actionOverride the action to run instead of the configured ones, or null
+   */
+  private void processAlerts(Set<Long> clientCustomerIds, ImmutableAdWordsSession session,
+      AlertPlan plan, AlertAction actionOverride)
+      throws AlertConfigLoadException, AlertProcessingException {
+    List<AlertPlan.PlannedAlert> alerts = plan.getAlertsByPriority();
+    if (alertsConcurrency > 1 && executors == null) {
+      LOGGER.warn("Config property \"aw.alerting.processor.alerts.concurrency\" needs the "
+          + "shared thread pools, processing the alerts one at a time.");
+    }
+    boolean concurrent = alertsConcurrency > 1 && executors != null && alerts.size() > 1;
+    ReportMemoryBudget memoryBudget = memoryBudgetBytes > 0
+        ? new ReportMemoryBudget(memoryBudgetBytes, spillDirectory) : null;
+    // The alerts processed concurrently only get views of the shared reports.
+    ReportDataStore reportDataStore = new ReportDataStore(memoryBudget, concurrent);
+    // The reports are kept until the last alert of the run that downloads them got them.
+    for (AlertPlan.PlannedAlert alert : plan.getAlerts()) {
+      if (alert.getQueryKey() != null) {
+        reportDataStore.addConsumer(alert.getQueryKey());
+      }
+    }
+    StringDictionaries stringDictionaries = new StringDictionaries();
+    AdaptiveConcurrencyLimiter downloadLimiter = newDownloadLimiter();
+    // The checks have a limiter of their own, the scheduled runs are the ones to monitor.
+    if (actionOverride == null) {
+      exportDownloadLimiter(downloadLimiter);
+    }
+    ReportDownloadContext downloadContext = new ReportDownloadContext(
+        reportDataStore,
+        executors == null ? null : executors.getDownloadExecutor(),
+        downloadLimiter,
+        new CircuitBreaker<Long>(ACCOUNT_FAILURE_THRESHOLD, ACCOUNT_CIRCUIT_OPEN_MILLIS),
+        fieldsMappingCache,
+        stringDictionaries,
+        downloadLedger,
+        downloadTimeoutMillis,
+        Deadline.NONE);
+    RunState run = new RunState(downloadContext, plan,
+        Deadline.after(runTimeoutMillis, TimeUnit.MILLISECONDS), actionOverride);
+    runState.set(run);
+    try {
+      if (concurrent) {
+        processAlertsConcurrently(clientCustomerIds, session, alerts);
+      } else {
+        for (AlertPlan.PlannedAlert alert : alerts) {
+          if (run.deadline.isExpired()) {
+            LOGGER.warn("*** Run deadline expired, skipping alert #{} and the following ones ***",
+                alert.getNumber());
+            break;
+          }
+          processAlert(clientCustomerIds, session, alert.getConfig(), alert.getNumber());
+          if (executors != null) {
+            LOGGER.debug("Thread pools: {}", executors);
+          }
+        }
+      }
+    } catch (ClientCustomerIdsRetrievalException e) {
+      // The accounts still being retrieved while the first alert is processed may fail.
+      throw new AlertProcessingException(e.getMessage(), e.getCause());
+    } finally {
+      LOGGER.info("Report data store: {} downloads, {} reused.",
+          reportDataStore.getMisses(), reportDataStore.getHits());
+      LOGGER.info("Report fields mappings: {} downloads, {} reused.",
+          fieldsMappingCache.getMisses(), fieldsMappingCache.getHits());
+      if (stringDictionaries.getValuesCount() > 0) {
+        LOGGER.info("Run-scoped string dictionaries: {} distinct values.",
+            stringDictionaries.getValuesCount());
+      }
+      if (memoryBudget != null && memoryBudget.getSpilledReportsCount() > 0) {
+        LOGGER.info("Report memory budget: {} reports spilled to {}.",
+            memoryBudget.getSpilledReportsCount(), spillDirectory);
+      }
+      reportDataStore.clear();
+      downloadLedger.commitRun();
+      runState.remove();
+    }
+  }
+
+  /**
+   * Processes the alerts on the shared alerts thread pool, as many at the same time as its threads,
+   * started by priority, so that the downloads of an alert overlap with the rules and actions of
+   * another. The alerts share the thread pools and the download limiter of the run, which bound
+   * the downloads and the processing in flight whatever the number of alerts running. Once an
+   * alert fails, the alerts not started yet are skipped, and the failure is thrown once the
+   * running ones are done.
+   *
+   * @param clientCustomerIds the client customer IDs
+   * @param session the adwords session
+   * @param alerts the planned alerts, by priority
+   */
+  private void processAlertsConcurrently(final Set<Long> clientCustomerIds,
+      final ImmutableAdWordsSession session, List<AlertPlan.PlannedAlert> alerts)
+      throws AlertConfigLoadException, AlertProcessingException {
+    ExecutorService alertsExecutor = executors.getAlertsExecutor();
+    LOGGER.info("*** Processing {} alerts, {} at a time ***", alerts.size(), Math.min(
+        executors.getPoolSize(ProcessorExecutors.Stage.ALERTS), alerts.size()));
+    List<Future<Void>> tasks = new ArrayList<Future<Void>>(alerts.size());
+    final RunState run = runState.get();
+    try {
+      for (final AlertPlan.PlannedAlert alert : alerts) {
+        tasks.add(alertsExecutor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws AlertConfigLoadException, AlertProcessingException {
+            if (run.deadline.isExpired()) {
+              LOGGER.warn("*** Run deadline expired, skipping alert #{} ***", alert.getNumber());
+              return null;
+            }
+            runState.set(run);
+            try {
+              processAlert(clientCustomerIds, session, alert.getConfig(), alert.getNumber());
+            } finally {
+              runState.remove();
+            }
+            LOGGER.debug("Thread pools: {}", executors);
+            return null;
+          }
+        }));
+      }
+
+      Throwable failure = null;
+      for (Future<Void> task : tasks) {
+        try {
+          task.get();
+        } catch (CancellationException e) {
+          // Skipped after the failure of another alert.
+        } catch (ExecutionException e) {
+          if (failure == null) {
+            failure = e.getCause();
+            for (Future<Void> otherTask : tasks) {
+              otherTask.cancel(false);
+            }
+          }
+        }
+      }
+      if (failure != null) {
+        Throwables.propagateIfPossible(
+            failure, AlertConfigLoadException.class, AlertProcessingException.class);
+        throw new AlertProcessingException("Failed to process alert.", failure);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new AlertProcessingException("Interrupted while processing alerts.", e);
+    } finally {
+      // The shared pool is not shut down, only the alerts of this run are cancelled.
+      for (Future<Void> task : tasks) {
+        task.cancel(true);
+      }
+    }
+  }
+
+  /**
+   * Generate all the alerts for the accounts of a run shared with other workers through a lease
+   * queue. The accounts are first added to the queue (the ones already there are ignored), then
+   * this worker claims a batch of accounts at a time and generates all the alerts for it, until
+   * all the accounts of the run are done. Accounts leased by a worker that crashed are claimed
+   * once their leases expire.
+   *
+   * <p>As every batch runs the alert actions on its own accounts only, the lease mode supports the
+   * actions that handle each alert entry separately. The mergeable actions, which aggregate the
+   * alerts of all accounts, are rejected: use {@link #setAccountShard} and {@link #mergeAlerts}
+   * instead. Other aggregating actions run once per batch.
+   *
+   * @param clientCustomerIds the client customer IDs, or null to retrieve them from the API
+   * @param alertsConfig the JSON config of the alerts
+   * @param leaseQueue the lease queue of the run
+   */
+  public void generateLeasedAlerts(Set<Long> clientCustomerIds, JsonObject alertsConfig,
+      AccountLeaseQueue leaseQueue) throws AlertConfigLoadException, AlertProcessingException {
+    AlertPlan plan = AlertPlan.compile(alertsConfig);
+    for (AlertPlan.PlannedAlert alert : plan.getAlerts()) {
+      for (Class<?> actionClass : alert.getActionClasses()) {
+        if (MergeableAlertAction.class.isAssignableFrom(actionClass)) {
+          throw new AlertConfigLoadException("Alert \"" + alert.getName() + "\": "
+              + actionClass.getSimpleName() + " aggregates the alerts of all accounts, which "
+              + "the lease queue processes in batches. Use -shard and -merge instead.", null);
+        }
+      }
+    }
+
+    if (clientCustomerIds == null) {
+      clientCustomerIds = retrieveClientCustomerIds(authenticate());
+    }
+
+    leaseQueue.createTableIfMissing();
+    int added = leaseQueue.enqueue(clientCustomerIds);
+    LOGGER.info("*** Worker {} of run \"{}\": {} accounts enqueued, {} remaining ***",
+        leaseQueue.getWorkerId(), leaseQueue.getRunId(), added, leaseQueue.getRemainingCount());
+
+    leaseQueue.startRenewing();
+    try {
+      int batches = 0;
+      while (true) {
+        Set<Long> batch = leaseQueue.claim();
+        if (batch.isEmpty()) {
+          int remaining = leaseQueue.getRemainingCount();
+          if (remaining == 0) {
+            break;
+          }
+          LOGGER.debug("{} accounts leased by other workers, waiting...", remaining);
+          Thread.sleep(leaseQueue.getPollMillis());
+          continue;
+        }
+
+        batches++;
+        LOGGER.info("*** Processing batch #{} of {} leased accounts ***", batches, batch.size());
+        try {
+          generatePlannedAlerts(batch, plan);
+        } catch (AlertConfigLoadException | AlertProcessingException | RuntimeException e) {
+          leaseQueue.release(batch);
+          throw e;
+        }
+        leaseQueue.complete(batch);
+      }
+      LOGGER.info("*** All accounts of run \"{}\" done, {} batches processed here ***",
+          leaseQueue.getRunId(), batches);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new AlertProcessingException("Interrupted while waiting for leased accounts.", e);
+    } finally {
+      leaseQueue.stopRenewing();
+    }
+  }
+
   /**
    * Process one alert for the given account IDs under the manager account.
    *
@@ -144,21 +543,122 @@ public class AlertProcessor {
       JsonObject alertConfig,
       int count)
       throws AlertConfigLoadException, AlertProcessingException {
-    String alertName = alertConfig.get(ConfigTags.ALERT_NAME).getAsString();
+    AlertPlan.PlannedAlert plannedAlert = getPlannedAlert(alertConfig, count);
     LOGGER.info("*** Generating alert #{} (name: \"{}\") for {} accounts ***",
-        count, alertName, clientCustomerIds.size());
+        count, plannedAlert.getName(), getAccountsCount(clientCustomerIds));
 
     JsonObject downloaderConfig = alertConfig.getAsJsonObject(ConfigTags.REPORT_DOWNLOADER);
     JsonArray rulesConfig = alertConfig.getAsJsonArray(ConfigTags.RULES); // optional
-    String alertMessage = alertConfig.get(ConfigTags.ALERT_MESSAGE).getAsString();
+    String alertMessage = plannedAlert.getAlertMessage();
     JsonArray actionsConfig = alertConfig.getAsJsonArray(ConfigTags.ACTIONS);
+    Deadline deadline =
+        getRunState().deadline.min(Deadline.after(alertTimeoutMillis, TimeUnit.MILLISECONDS));
+    alertState.set(new AlertState(count, deadline, getDownloadDeadline(deadline),
+        compiledAlerts.get(alertConfig)));
+    try {
+      processAlert(protoSession, clientCustomerIds, plannedAlert.getExecutionMode(),
+          downloaderConfig, rulesConfig, alertMessage, actionsConfig);
+    } finally {
+      alertState.remove();
+    }
+  }
+
+  /**
+   * Gets the planned alert from the plan of the run, or compiles the alert if it's not part of it.
+   *
+   * @param alertConfig the JSON config of the alert
+   * @param count the sequence number of the alert
+   */
+  private AlertPlan.PlannedAlert getPlannedAlert(JsonObject alertConfig, int count)
+      throws AlertConfigLoadException {
+    AlertPlan runPlan = getRunState().plan;
+    if (runPlan != null && count <= runPlan.getAlerts().size()) {
+      AlertPlan.PlannedAlert plannedAlert = runPlan.getAlerts().get(count - 1);
+      if (plannedAlert.getConfig() == alertConfig) {
+        return plannedAlert;
+      }
+    }
+    return AlertPlan.compileAlert(alertConfig, count);
+  }
+
+  private void processAlert(
+      ImmutableAdWordsSession protoSession,
+      Set<Long> clientCustomerIds,
+      ExecutionMode executionMode,
+      JsonObject downloaderConfig,
+      JsonArray rulesConfig,
+      String alertMessage,
+      JsonArray actionsConfig)
+      throws AlertConfigLoadException, AlertProcessingException {
+    if (executionMode == ExecutionMode.PIPELINED) {
+      processAlertPipelined(protoSession, clientCustomerIds, downloaderConfig, rulesConfig,
+          alertMessage, actionsConfig);
+      return;
+    }
 
     // Generate AWQL report query and download report data for all accounts under manager account.
     List<ReportData> reports = downloadReports(protoSession, clientCustomerIds, downloaderConfig);
     printReports(reports, "*** Downloaded report data:");
 
-    // Process the downloaded reports
-    processReports(reports, rulesConfig, alertMessage, actionsConfig);
+    // Process the downloaded reports, and release them once all alert actions are done.
+    try {
+      processReports(reports, rulesConfig, alertMessage, actionsConfig);
+    } finally {
+      if (reports != null) {
+        for (ReportData report : reports) {
+          report.release();
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the number of accounts, suffixed with "+" if they are still being retrieved
+   */
+  private static String getAccountsCount(Set<Long> clientCustomerIds) {
+    if (clientCustomerIds instanceof PagedClientCustomerIds) {
+      PagedClientCustomerIds pagedIds = (PagedClientCustomerIds) clientCustomerIds;
+      if (!pagedIds.isCompleted()) {
+        return pagedIds.getPublishedCount() + "+";
+      }
+    }
+    return String.valueOf(clientCustomerIds.size());
+  }
+
+  /**
+   * Download reports, and apply alert rules and actions on each of them as soon as it's
+   * downloaded.
+   *
+   * @param protoSession the prototype adwords session used for downloading reports
+   * @param clientCustomerIds the client customer IDs
+   * @param downloaderConfig the JSON config for this downloader
+   * @param rulesConfig the JSON config of current alert rules
+   * @param alertMessage the current alert message template
+   * @param actionsConfig the JSON config of current alert actions
+   */
+  private void processAlertPipelined(
+      ImmutableAdWordsSession protoSession,
+      Set<Long> clientCustomerIds,
+      JsonObject downloaderConfig,
+      JsonArray rulesConfig,
+      String alertMessage,
+      JsonArray actionsConfig)
+      throws AlertConfigLoadException, AlertProcessingException {
+    LOGGER.info("*** Start pipelined processing with at most {} reports in flight...",
+        maxInFlightReports);
+    AlertReportDownloaderProcessor downloaderProcessor = newDownloaderProcessor(downloaderConfig);
+    PipelinedAlertProcessor pipelinedProcessor = executors != null
+        ? new PipelinedAlertProcessor(downloaderProcessor,
+            newRulesProcessor(rulesConfig, alertMessage),
+            newActionsProcessor(actionsConfig),
+            executors,
+            maxInFlightReports)
+        : new PipelinedAlertProcessor(downloaderProcessor,
+            newRulesProcessor(rulesConfig, alertMessage),
+            newActionsProcessor(actionsConfig),
+            numThreads,
+            maxInFlightReports);
+    pipelinedProcessor.processReports(protoSession, clientCustomerIds, getAlertDeadline());
   }
 
   /**
@@ -174,10 +674,98 @@ public class AlertProcessor {
       JsonObject downloaderConfig)
       throws AlertConfigLoadException, AlertProcessingException {
     AlertReportDownloaderProcessor reportDownloadProcessor =
-        new AlertReportDownloaderProcessor(downloaderConfig);
+        newDownloaderProcessor(downloaderConfig);
     return reportDownloadProcessor.downloadReports(protoSession, clientCustomerIds);
   }
 
+  /**
+   * Creates the report downloader processor of the current alert, with its compiled report
+   * downloader if it's kept.
+   *
+   * @param downloaderConfig the JSON config for this downloader
+   */
+  private AlertReportDownloaderProcessor newDownloaderProcessor(JsonObject downloaderConfig)
+      throws AlertConfigLoadException {
+    AlertState state = alertState.get();
+    return state != null && state.compiledAlert != null
+        && state.compiledAlert.getReportDownloader() != null
+        ? new AlertReportDownloaderProcessor(
+            state.compiledAlert.getReportDownloader(), getAlertDownloadContext())
+        : new AlertReportDownloaderProcessor(downloaderConfig, getAlertDownloadContext());
+  }
+
+  /**
+   * Creates the alert rules processor of the current alert, with its compiled alert rules if any.
+   *
+   * @param rulesConfig the JSON config of the alert rules
+   * @param alertMessage the alert message template
+   */
+  private AlertRulesProcessor newRulesProcessor(JsonArray rulesConfig, String alertMessage) {
+    AlertState state = alertState.get();
+    if (state != null && state.compiledAlert != null) {
+      List<AlertRule> rules = state.compiledAlert.getRules();
+      return executors != null
+          ? AlertRulesProcessor.forRules(rules, alertMessage, executors.getRulesExecutor())
+          : AlertRulesProcessor.forRules(rules, alertMessage, numThreads);
+    }
+    return executors != null
+        ? new AlertRulesProcessor(rulesConfig, alertMessage, executors.getRulesExecutor())
+        : new AlertRulesProcessor(rulesConfig, alertMessage, numThreads);
+  }
+
+  /**
+   * Compiles the new and changed alerts of a reloaded alerts config, so that the next runs reuse
+   * the report downloaders and alert rules of the unchanged alerts.
+   *
+   * @param alertsConfig the reloaded JSON config of the alerts
+   */
+  public void reloadAlerts(JsonObject alertsConfig) {
+    compiledAlerts.update(alertsConfig);
+  }
+
+  /**
+   * @return the deadline of the downloads of an alert, which leaves its rules and actions the
+   *     reserved grace period to process the reports downloaded so far
+   */
+  private Deadline getDownloadDeadline(Deadline alertDeadline) {
+    if (!alertDeadline.isFinite()) {
+      return alertDeadline;
+    }
+    long graceMillis = processingGraceMillis > 0
+        ? processingGraceMillis
+        : alertDeadline.getRemainingMillis() / DEFAULT_PROCESSING_GRACE_DIVISOR;
+    return alertDeadline.before(graceMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @return the run of the current thread, or {@link RunState#NONE} outside of a run
+   */
+  private RunState getRunState() {
+    RunState run = runState.get();
+    return run == null ? RunState.NONE : run;
+  }
+
+  /**
+   * @return the deadline of the rules and actions of the alert processed by the current thread
+   */
+  private Deadline getAlertDeadline() {
+    AlertState state = alertState.get();
+    return state == null ? Deadline.NONE : state.deadline;
+  }
+
+  /**
+   * @return the run-scoped download context with the download deadline of the current alert, or
+   *     null outside of a run
+   */
+  private ReportDownloadContext getAlertDownloadContext() {
+    ReportDownloadContext downloadContext = getRunState().downloadContext;
+    if (downloadContext == null) {
+      return null;
+    }
+    AlertState state = alertState.get();
+    return downloadContext.withDeadline(state == null ? Deadline.NONE : state.downloadDeadline);
+  }
+
   /**
    * Process reports for the given account IDs under the manager account.
    *
@@ -191,13 +779,17 @@ public class AlertProcessor {
       throws AlertProcessingException {
     if (reports == null || reports.isEmpty()) {
       LOGGER.info("No reports to process!");
+      if (accountShard != null) {
+        // The merge expects the partial states of all the shards.
+        newActionsProcessor(actionsConfig).saveEmptyPartialStates();
+      }
       return;
     }
 
     LOGGER.info("*** Start processing reports...");
     Stopwatch stopwatch = Stopwatch.createStarted();
 
-    applyAlertRulesAndMessages(reports, rulesConfig, alertMessage);
+    reports = applyAlertRulesAndMessages(reports, rulesConfig, alertMessage);
     printReports(reports, "*** Reports after processing alert rules and messages:");
     applyAlertActions(reports, actionsConfig);
 
@@ -212,13 +804,13 @@ public class AlertProcessor {
    *
    * @param reports the list of report data
    * @param rulesConfig the JSON config of the alert rules
+   * @return the processed reports, without those cancelled after the alert deadline
    */
-  private void applyAlertRulesAndMessages(
+  private List<ReportData> applyAlertRulesAndMessages(
       List<ReportData> reports, JsonArray rulesConfig, String alertMessage)
       throws AlertProcessingException {
-    AlertRulesProcessor rulesProcessor =
-        new AlertRulesProcessor(rulesConfig, alertMessage, numThreads);
-    rulesProcessor.processReports(reports);
+    AlertRulesProcessor rulesProcessor = newRulesProcessor(rulesConfig, alertMessage);
+    return rulesProcessor.processReports(reports, getAlertDeadline());
   }
 
   /**
@@ -229,8 +821,82 @@ public class AlertProcessor {
    */
   private void applyAlertActions(List<ReportData> reports, JsonArray actionsConfig)
       throws AlertProcessingException {
-    AlertActionsProcessor actionsProcessor = new AlertActionsProcessor(actionsConfig, numThreads);
-    actionsProcessor.processReports(Collections.unmodifiableList(reports));
+    AlertActionsProcessor actionsProcessor = newActionsProcessor(actionsConfig);
+    actionsProcessor.processReports(Collections.unmodifiableList(reports), getAlertDeadline());
+  }
+
+  /**
+   * Creates the alert actions of the current alert. When processing a shard of the accounts, the
+   * mergeable alert actions save their partial states instead of being finalized.
+   *
+   * @param actionsConfig the JSON config of the alert actions
+   */
+  private AlertActionsProcessor newActionsProcessor(JsonArray actionsConfig) {
+    AlertAction actionOverride = getRunState().actionOverride;
+    if (actionOverride != null) {
+      List<AlertAction> actions = Collections.singletonList(actionOverride);
+      return executors != null
+          ? new AlertActionsProcessor(actions, executors.getActionsExecutor())
+          : new AlertActionsProcessor(actions, numThreads);
+    }
+
+    AlertActionsProcessor actionsProcessor = executors != null
+        ? new AlertActionsProcessor(actionsConfig, executors.getActionsExecutor())
+        : new AlertActionsProcessor(actionsConfig, numThreads);
+    if (accountShard != null) {
+      actionsProcessor.savePartialStates(
+          shardStateDirectory, shardRunId, alertState.get().number, accountShard);
+    }
+    return actionsProcessor;
+  }
+
+  /**
+   * Merges the partial states saved by the shards of a run, and finalizes each mergeable alert
+   * action on the merged state, e.g. to send a single email per account manager for all shards.
+   * The other alert actions already ran in full on each shard, and are skipped without being
+   * constructed.
+   *
+   * @param alertsConfig the JSON config of the alerts, the same as for the shards
+   * @param runId the ID of the run of the shards
+   * @param stateDirectory the directory of the partial states of the shards
+   * @throws AlertProcessingException if the partial states of some shards are missing
+   */
+  public void mergeAlerts(JsonObject alertsConfig, String runId, Path stateDirectory)
+      throws AlertConfigLoadException, AlertProcessingException {
+    ShardPartialStates.checkRunId(runId);
+    PluginRegistry registry = PluginRegistry.getDefault();
+    int count = 0;
+    for (JsonElement alertConfig : alertsConfig.getAsJsonArray(ConfigTags.ALERTS)) {
+      count++;
+      JsonArray actionsConfig =
+          alertConfig.getAsJsonObject().getAsJsonArray(ConfigTags.ACTIONS);
+      for (int i = 0; i < actionsConfig.size(); i++) {
+        JsonObject actionConfig = actionsConfig.get(i).getAsJsonObject();
+        Class<?> actionClass = registry.getPluginClass(
+            AlertAction.class, actionConfig.get(ConfigTags.CLASS_NAME).getAsString());
+        if (!MergeableAlertAction.class.isAssignableFrom(actionClass)) {
+          continue;
+        }
+
+        MergeableAlertAction action =
+            (MergeableAlertAction) registry.newInstance(AlertAction.class, actionConfig);
+        List<JsonObject> partialStates;
+        try {
+          partialStates = ShardPartialStates.readAll(stateDirectory, runId, count, i + 1);
+        } catch (IOException | RuntimeException e) {
+          throw new AlertProcessingException("Failed to read the partial states of action #"
+              + (i + 1) + " of alert #" + count + " from " + stateDirectory, e);
+        }
+
+        LOGGER.info("*** Merging {} partial states of \"{}\" (alert #{}) ***",
+            partialStates.size(), action.getClass().getSimpleName(), count);
+        action.initializeAction();
+        for (JsonObject partialState : partialStates) {
+          action.mergePartialState(partialState);
+        }
+        action.finalizeAction();
+      }
+    }
   }
 
   /**
@@ -251,6 +917,134 @@ public class AlertProcessor {
     }
   }
 
+  /**
+   * Restricts the runs to a shard of the accounts, e.g. to spread them over several machines. The
+   * mergeable alert actions save their partial states into the directory, to be combined later by
+   * {@link #mergeAlerts(JsonObject, String, Path)}.
+   *
+   * @param accountShard the shard of the accounts to process, or null for all the accounts
+   * @param runId the ID of the run, shared by all its shards
+   * @param stateDirectory the directory of the partial states
+   */
+  public void setAccountShard(AccountShard accountShard, String runId, Path stateDirectory) {
+    if (accountShard != null) {
+      ShardPartialStates.checkRunId(runId);
+      Preconditions.checkArgument(
+          stateDirectory != null, "The directory of the partial states cannot be null.");
+    }
+    this.accountShard = accountShard;
+    this.shardRunId = runId;
+    this.shardStateDirectory = stateDirectory;
+  }
+
+  /**
+   * Set the maximum number of reports held in memory by a pipelined alert, autowired by Spring.
+   * Twice the number of threads by default.
+   *
+   * @param maxInFlightReports maximum number of reports, the default if not positive
+   */
+  @Autowired
+  public void setMaxInFlightReports(
+      @Value(value = "${aw.alerting.processor.pipeline.maxInFlightReports:}")
+          Integer maxInFlightReports) {
+    this.maxInFlightReports = maxInFlightReports != null && maxInFlightReports > 0
+        ? maxInFlightReports : 2 * numThreads;
+  }
+
+  /**
+   * Set the number of alerts of a run processed at the same time, autowired by Spring. Alerts are
+   * only processed concurrently with the shared thread pools of {@link ProcessorExecutors}, whose
+   * alerts pool is sized by the same property.
+   *
+   * @param alertsConcurrency number of alerts processed at the same time, 1 if not positive
+   */
+  @Autowired
+  public void setAlertsConcurrency(
+      @Value(value = "${aw.alerting.processor.alerts.concurrency:}") Integer alertsConcurrency) {
+    this.alertsConcurrency =
+        alertsConcurrency != null && alertsConcurrency > 0 ? alertsConcurrency : 1;
+  }
+
+  /**
+   * Set the cache of the report fields mappings, autowired by Spring.
+   *
+   * @param fieldsCacheFile file to persist the report fields mappings into, if any
+   * @param fieldsCacheTtlHours hours before the cached report fields mappings are refreshed
+   */
+  @Autowired
+  public void setReportFieldsCache(
+      @Value(value = "${aw.alerting.reportFieldsCache.file:}") String fieldsCacheFile,
+      @Value(value = "${aw.alerting.reportFieldsCache.ttlHours:}") Integer fieldsCacheTtlHours) {
+    int ttlHours = fieldsCacheTtlHours != null && fieldsCacheTtlHours >= 0
+        ? fieldsCacheTtlHours : DEFAULT_FIELDS_CACHE_TTL_HOURS;
+    this.fieldsMappingCache = new ReportFieldsMappingCache(
+        Strings.isNullOrEmpty(fieldsCacheFile) ? null : Paths.get(fieldsCacheFile),
+        TimeUnit.HOURS.toMillis(ttlHours));
+  }
+
+  /**
+   * Set the memory budget of the reports of a run, autowired by Spring.
+   *
+   * @param memoryBudgetMb megabytes of reports held in memory in a run before they are spilled to
+   *     disk, unlimited if not positive
+   * @param spillDirectory directory of the spilled reports, the temporary directory by default
+   */
+  @Autowired
+  public void setMemoryBudget(
+      @Value(value = "${aw.alerting.memoryBudget.mb:}") Integer memoryBudgetMb,
+      @Value(value = "${aw.alerting.memoryBudget.spillDirectory:}") String spillDirectory) {
+    this.memoryBudgetBytes = memoryBudgetMb != null && memoryBudgetMb > 0
+        ? memoryBudgetMb * 1024L * 1024L : 0;
+    this.spillDirectory = Paths.get(Strings.isNullOrEmpty(spillDirectory)
+        ? System.getProperty("java.io.tmpdir") : spillDirectory);
+  }
+
+  /**
+   * Set the deadlines of the runs, alerts and downloads, autowired by Spring.
+   *
+   * @param runTimeoutMinutes minutes before the remaining alerts of a run are skipped, unlimited
+   *     if not positive
+   * @param alertTimeoutMinutes minutes before the downloads, alert rules and actions of an alert
+   *     are cancelled, unlimited if not positive
+   * @param downloadTimeoutSeconds seconds before a running download is cancelled, unlimited if
+   *     not positive
+   */
+  @Autowired
+  public void setDeadlines(
+      @Value(value = "${aw.alerting.deadline.runMinutes:}") Integer runTimeoutMinutes,
+      @Value(value = "${aw.alerting.deadline.alertMinutes:}") Integer alertTimeoutMinutes,
+      @Value(value = "${aw.alerting.deadline.downloadSeconds:}") Integer downloadTimeoutSeconds) {
+    this.runTimeoutMillis = toMillis(runTimeoutMinutes, TimeUnit.MINUTES);
+    this.alertTimeoutMillis = toMillis(alertTimeoutMinutes, TimeUnit.MINUTES);
+    this.downloadTimeoutMillis = toMillis(downloadTimeoutSeconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Set the ledger of the past downloads of each account, autowired by Spring.
+   *
+   * @param downloadLedgerFile file to keep the past downloads of each account between runs, if
+   *     any
+   */
+  @Autowired
+  public void setDownloadLedgerFile(
+      @Value(value = "${aw.alerting.downloadLedger.file:}") String downloadLedgerFile) {
+    this.downloadLedger = new DownloadLedger(
+        Strings.isNullOrEmpty(downloadLedgerFile) ? null : Paths.get(downloadLedgerFile));
+  }
+
+  /**
+   * Set the time reserved at the end of each alert for its rules and actions, autowired by Spring.
+   * The downloads of an alert are cancelled that long before its deadline, so that the reports
+   * downloaded so far are still processed. A fifth of the time left to the alert by default.
+   *
+   * @param graceSeconds seconds reserved for the rules and actions, the default if not positive
+   */
+  @Autowired
+  public void setProcessingGraceSeconds(
+      @Value(value = "${aw.alerting.deadline.processingGraceSeconds:}") Integer graceSeconds) {
+    this.processingGraceMillis = toMillis(graceSeconds, TimeUnit.SECONDS);
+  }
+
   /**
    * Set Authenticator autowired by Spring
    *
@@ -260,4 +1054,66 @@ public class AlertProcessor {
   public void setAuthentication(Authenticator authenticator) {
     this.authenticator = authenticator;
   }
+
+  /**
+   * Set the shared thread pools autowired by Spring. Without them, each alert creates its own
+   * thread pools of {@code aw.alerting.processor.threads} threads.
+   *
+   * @param executors the shared thread pools of the processing stages
+   */
+  @Autowired(required = false)
+  public void setProcessorExecutors(ProcessorExecutors executors) {
+    this.executors = executors;
+  }
+
+  /**
+   * Set the client customer IDs retriever autowired by Spring. Without it, the accounts are
+   * retrieved from the API one page after another on each run.
+   *
+   * @param clientCustomerIdsRetriever the retriever of the accounts under the manager account
+   */
+  @Autowired(required = false)
+  public void setClientCustomerIdsRetriever(ClientCustomerIdsRetriever clientCustomerIdsRetriever) {
+    this.clientCustomerIdsRetriever = clientCustomerIdsRetriever;
+  }
+
+  /**
+   * The run processed by a thread: the download context shared by its alerts, its plan, its
+   * deadline, and the action run instead of the configured ones while checking an alert, if any.
+   */
+  private static final class RunState {
+    private static final RunState NONE = new RunState(null, null, Deadline.NONE, null);
+
+    private final ReportDownloadContext downloadContext;
+    private final AlertPlan plan;
+    private final Deadline deadline;
+    private final AlertAction actionOverride;
+
+    RunState(ReportDownloadContext downloadContext, AlertPlan plan, Deadline deadline,
+        AlertAction actionOverride) {
+      this.downloadContext = downloadContext;
+      this.plan = plan;
+      this.deadline = deadline;
+      this.actionOverride = actionOverride;
+    }
+  }
+
+  /**
+   * The alert processed by a thread: its sequence number from 1, its deadlines and its compiled
+   * downloader and rules.
+   */
+  private static final class AlertState {
+    private final int number;
+    private final Deadline deadline;
+    private final Deadline downloadDeadline;
+    private final CompiledAlerts.CompiledAlert compiledAlert;
+
+    AlertState(int number, Deadline deadline, Deadline downloadDeadline,
+        CompiledAlerts.CompiledAlert compiledAlert) {
+      this.number = number;
+      this.deadline = deadline;
+      this.downloadDeadline = downloadDeadline;
+      this.compiledAlert = compiledAlert;
+    }
+  }
 }
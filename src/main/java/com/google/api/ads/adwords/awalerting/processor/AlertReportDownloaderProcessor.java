@@ -17,8 +17,11 @@ package com.google.api.ads.adwords.awalerting.processor;
 import com.google.api.ads.adwords.awalerting.AlertConfigLoadException;
 import com.google.api.ads.adwords.awalerting.AlertProcessingException;
 import com.google.api.ads.adwords.awalerting.AlertReportDownloader;
+import com.google.api.ads.adwords.awalerting.ReportDownloadContextAware;
+import com.google.api.ads.adwords.awalerting.StreamingAlertReportDownloader;
 import com.google.api.ads.adwords.awalerting.report.ReportData;
-import com.google.api.ads.adwords.awalerting.util.ConfigTags;
+import com.google.api.ads.adwords.awalerting.report.ReportDataSink;
+import com.google.api.ads.adwords.awalerting.report.ReportDownloadContext;
 import com.google.api.ads.adwords.lib.client.AdWordsSession.ImmutableAdWordsSession;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.gson.JsonObject;
@@ -37,7 +40,31 @@ public class AlertReportDownloaderProcessor {
    */
   public AlertReportDownloaderProcessor(JsonObject config)
       throws AlertConfigLoadException {
+    this(config, null);
+  }
+
+  /**
+   * @param config the report downloader configuration
+   * @param context the run-scoped report download context, could be null
+   */
+  public AlertReportDownloaderProcessor(JsonObject config, ReportDownloadContext context)
+      throws AlertConfigLoadException {
     reportDownloader = getReportDownloaderObject(config);
+    if (context != null && reportDownloader instanceof ReportDownloadContextAware) {
+      ((ReportDownloadContextAware) reportDownloader).setReportDownloadContext(context);
+    }
+  }
+
+  /**
+   * @param reportDownloader the report downloader, already constructed
+   * @param context the run-scoped report download context, could be null
+   */
+  AlertReportDownloaderProcessor(
+      AlertReportDownloader reportDownloader, ReportDownloadContext context) {
+    this.reportDownloader = reportDownloader;
+    if (context != null && reportDownloader instanceof ReportDownloadContextAware) {
+      ((ReportDownloadContextAware) reportDownloader).setReportDownloadContext(context);
+    }
   }
 
   /**
@@ -48,24 +75,7 @@ public class AlertReportDownloaderProcessor {
    */
   protected AlertReportDownloader getReportDownloaderObject(JsonObject config)
       throws AlertConfigLoadException {
-    String className = config.get(ConfigTags.CLASS_NAME).getAsString();
-    if (!className.contains(".")) {
-      className = "com.google.api.ads.adwords.awalerting.sampleimpl.downloader." + className;
-    }
-    
-    try {
-      Class<?> c = Class.forName(className);
-      if (!AlertReportDownloader.class.isAssignableFrom(c)) {
-        throw new InstantiationException(
-            "Wrong AlertReportDownloader class specified: " + className);
-      }
-
-      return (AlertReportDownloader) c.getConstructor(new Class<?>[] {JsonObject.class})
-          .newInstance(config);
-    } catch (Exception e) {
-      throw new AlertConfigLoadException(
-          "Error constructing AlertReportDownloader with config: " + config, e);
-    }
+    return PluginRegistry.getDefault().newInstance(AlertReportDownloader.class, config);
   }
 
   /**
@@ -77,6 +87,32 @@ public class AlertReportDownloaderProcessor {
     return reportDownloader.downloadReports(protoSession, clientCustomerIds);
   }
 
+  /**
+   * Use the AlertReportDownloader object to download reports, and hand over each report to the
+   * sink. Reports are streamed as they are downloaded if the downloader is a
+   * {@link StreamingAlertReportDownloader}, otherwise they are handed over after all downloads.
+   */
+  public void downloadReports(
+      ImmutableAdWordsSession protoSession, Set<Long> clientCustomerIds, ReportDataSink sink)
+      throws AlertProcessingException {
+    if (reportDownloader instanceof StreamingAlertReportDownloader) {
+      ((StreamingAlertReportDownloader) reportDownloader)
+          .downloadReports(protoSession, clientCustomerIds, sink);
+      return;
+    }
+
+    List<ReportData> reports = reportDownloader.downloadReports(protoSession, clientCustomerIds);
+    try {
+      for (ReportData report : reports) {
+        sink.accept(report);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new AlertProcessingException(
+          "AlertReportDownloaderProcessor encounters InterruptedException.", e);
+    }
+  }
+
   /**
    * For testing.
    */
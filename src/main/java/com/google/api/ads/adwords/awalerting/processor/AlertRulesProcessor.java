@@ -18,8 +18,9 @@ import com.google.api.ads.adwords.awalerting.AlertConfigLoadException;
 import com.google.api.ads.adwords.awalerting.AlertProcessingException;
 import com.google.api.ads.adwords.awalerting.AlertRule;
 import com.google.api.ads.adwords.awalerting.report.ReportData;
-import com.google.api.ads.adwords.awalerting.util.ConfigTags;
+import com.google.api.ads.adwords.awalerting.util.Deadline;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Stopwatch;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
@@ -31,8 +32,10 @@ import org.slf4j.LoggerFactory;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -45,6 +48,7 @@ public class AlertRulesProcessor {
   private static final Logger LOGGER = LoggerFactory.getLogger(AlertRulesProcessor.class);
 
   private final int numThreads;
+  private final ExecutorService sharedExecutor;
   private final List<AlertRule> rules;
   private String alertMessage;
 
@@ -54,9 +58,53 @@ public class AlertRulesProcessor {
    * @param numThreads the number of threads to use
    */
   public AlertRulesProcessor(JsonArray configs, String alertMessage, int numThreads) {
+    this(configs, alertMessage, numThreads, null);
+  }
+
+  /**
+   * @param configs the JSON array of alert rules configurations, could be null
+   * @param alertMessage the alert message template string
+   * @param sharedExecutor the shared thread pool to use, which is not shut down by this processor
+   */
+  public AlertRulesProcessor(
+      JsonArray configs, String alertMessage, ExecutorService sharedExecutor) {
+    this(configs, alertMessage, 0, Preconditions.checkNotNull(sharedExecutor));
+  }
+
+  /**
+   * @param rules the alert rules, already constructed
+   * @param alertMessage the alert message template string
+   * @param numThreads the number of threads to use
+   */
+  static AlertRulesProcessor forRules(List<AlertRule> rules, String alertMessage, int numThreads) {
+    return new AlertRulesProcessor(rules, alertMessage, numThreads, null);
+  }
+
+  /**
+   * @param rules the alert rules, already constructed
+   * @param alertMessage the alert message template string
+   * @param sharedExecutor the shared thread pool to use, which is not shut down by this processor
+   */
+  static AlertRulesProcessor forRules(
+      List<AlertRule> rules, String alertMessage, ExecutorService sharedExecutor) {
+    return new AlertRulesProcessor(
+        rules, alertMessage, 0, Preconditions.checkNotNull(sharedExecutor));
+  }
+
+  private AlertRulesProcessor(List<AlertRule> rules, String alertMessage, int numThreads,
+      ExecutorService sharedExecutor) {
+    this.rules = new ArrayList<AlertRule>(rules);
+    this.alertMessage = alertMessage;
+    this.numThreads = numThreads;
+    this.sharedExecutor = sharedExecutor;
+  }
+
+  private AlertRulesProcessor(
+      JsonArray configs, String alertMessage, int numThreads, ExecutorService sharedExecutor) {
     this.rules = new ArrayList<AlertRule>(configs == null ? 0 : configs.size());
     this.alertMessage = alertMessage;
     this.numThreads = numThreads;
+    this.sharedExecutor = sharedExecutor;
 
     if (configs != null) {
       for (JsonElement config : configs) {
@@ -71,6 +119,13 @@ public class AlertRulesProcessor {
     }
   }
 
+  /**
+   * @return the alert rules, in the order they were configured
+   */
+  List<AlertRule> getRules() {
+    return rules;
+  }
+
   /**
    * Construct the AlertRule object according to the JSON configuration.
    *
@@ -78,59 +133,112 @@ public class AlertRulesProcessor {
    * @return the instantiated AlertRule object
    */
   protected AlertRule getRuleObject(JsonObject config) throws AlertConfigLoadException {
-    String className = config.get(ConfigTags.CLASS_NAME).getAsString();
-    if (!className.contains(".")) {
-      className = "com.google.api.ads.adwords.awalerting.sampleimpl.rule." + className;
-    }
-    
-    try {
-      Class<?> c = Class.forName(className);
-      if (!AlertRule.class.isAssignableFrom(c)) {
-        throw new InstantiationException("Wrong AlertRule class specified: " + className);
-      }
-
-      return (AlertRule) c.getConstructor(new Class<?>[] {JsonObject.class}).newInstance(config);
-    } catch (Exception e) {
-      throw new AlertConfigLoadException("Error constructing AlertRule with config: " + config, e);
-    }
+    return PluginRegistry.getDefault().newInstance(AlertRule.class, config);
   }
 
   /**
    * Process the ReportData list with the alert rules, each report with all rules per thread.
    *
    * @param reports the list of ReportData to run each alert action against
+   * @return the processed reports, i.e. all of them
+   */
+  public List<ReportData> processReports(List<ReportData> reports)
+      throws AlertProcessingException {
+    return processReports(reports, Deadline.NONE);
+  }
+
+  /**
+   * Process the ReportData list with the alert rules, each report with all rules per thread, until
+   * the deadline expires. The reports still being processed by then are cancelled, and left out of
+   * the result.
+   *
+   * @param reports the list of ReportData to run each alert action against
+   * @param deadline the deadline of the alert rules
+   * @return the processed reports, in the same order
    */
-  public void processReports(List<ReportData> reports) throws AlertProcessingException {
+  public List<ReportData> processReports(List<ReportData> reports, Deadline deadline)
+      throws AlertProcessingException {
     // Create one thread for each report, and apply all alert rules in sequence
     Stopwatch stopwatch = Stopwatch.createStarted();
 
     CountDownLatch latch = new CountDownLatch(reports.size());
-    ExecutorService executorService = Executors.newFixedThreadPool(numThreads);
-
-    for (ReportData report : reports) {
-      RunnableAlertRulesProcessor rulesProcessor =
-          new RunnableAlertRulesProcessor(report, rules, alertMessage);
-      executeRunnableAlertRulesProcessor(executorService, rulesProcessor, latch);
-    }
+    ExecutorService executorService =
+        sharedExecutor != null ? sharedExecutor : Executors.newFixedThreadPool(numThreads);
+    List<Future<?>> tasks = new ArrayList<Future<?>>(reports.size());
+    List<ReportData> processedReports = reports;
 
     try {
-      latch.await();
+      for (ReportData report : reports) {
+        RunnableAlertRulesProcessor rulesProcessor = newRunnableAlertRulesProcessor(report);
+        tasks.add(executeRunnableAlertRulesProcessor(executorService, rulesProcessor, latch));
+      }
+
+      if (!deadline.await(latch)) {
+        processedReports = new ArrayList<ReportData>(reports.size());
+        for (int i = 0; i < reports.size(); i++) {
+          Future<?> task = tasks.get(i);
+          if (task == null || !task.cancel(true)) {
+            processedReports.add(reports.get(i));
+          }
+        }
+        LOGGER.warn("Alert rules timed out, skipping {} of {} reports.",
+            reports.size() - processedReports.size(), reports.size());
+      }
     } catch (InterruptedException e) {
       Thread.currentThread().interrupt();
       throw new AlertProcessingException("AlertRulesProcessor encounters InterruptedException.", e);
+    } finally {
+      if (executorService != sharedExecutor) {
+        executorService.shutdown();
+      }
     }
 
-    executorService.shutdown();
+    logFailures(reports, tasks);
     stopwatch.stop();
 
     LOGGER.info("*** Processed {} rules and add alert messages on {} reports in {} seconds.",
-        rules.size(), reports.size(), stopwatch.elapsed(TimeUnit.MILLISECONDS) / 1000);
+        rules.size(), processedReports.size(), stopwatch.elapsed(TimeUnit.MILLISECONDS) / 1000);
+    return processedReports;
+  }
+
+  /**
+   * Logs the errors of the alert rules, which are applied to the reports as usual.
+   */
+  private static void logFailures(List<ReportData> reports, List<Future<?>> tasks) {
+    for (int i = 0; i < tasks.size(); i++) {
+      Future<?> task = tasks.get(i);
+      // The tasks not cancelled are done, or about to be done as they counted down the latch.
+      if (task != null && !task.isCancelled()) {
+        try {
+          task.get();
+        } catch (ExecutionException e) {
+          LOGGER.error("Error applying alert rules on report of account {}.",
+              reports.get(i).getClientCustomerId(), e.getCause());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
   }
 
-  protected void executeRunnableAlertRulesProcessor(ExecutorService executorService,
+  /**
+   * Creates the runner that applies all alert rules and the alert message on one report.
+   *
+   * @param report the ReportData to process
+   */
+  RunnableAlertRulesProcessor newRunnableAlertRulesProcessor(ReportData report) {
+    return new RunnableAlertRulesProcessor(report, rules, alertMessage);
+  }
+
+  /**
+   * Runs the alert rules on the executor, and counts down the latch once done.
+   *
+   * @return the future to cancel the processing with, could be null
+   */
+  protected Future<?> executeRunnableAlertRulesProcessor(ExecutorService executorService,
       RunnableAlertRulesProcessor rulesProcessor, CountDownLatch latch) {
     rulesProcessor.setLatch(latch);
-    executorService.execute(rulesProcessor);
+    return executorService.submit(rulesProcessor);
   }
 
   /**
@@ -0,0 +1,325 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.processor;
+
+import com.google.api.ads.adwords.awalerting.AlertProcessingException;
+import com.google.api.ads.adwords.awalerting.util.ManagedCustomerDelegate;
+import com.google.api.ads.adwords.awalerting.util.PagedClientCustomerIds;
+import com.google.api.ads.adwords.jaxws.v201705.mcm.ApiException;
+import com.google.api.ads.adwords.lib.client.AdWordsSession;
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Retrieves the client customer IDs of all accounts under the manager account.
+ *
+ * <p>The account pages are retrieved concurrently on a small thread pool of their own, so that they
+ * do not wait behind the report downloads. The returned set is filled page by page in the
+ * background (see {@link PagedClientCustomerIds}), so that reports are downloaded for the first
+ * accounts while the other pages are still being retrieved. If a snapshot file is specified, the
+ * IDs are saved into it, and the next runs use it instead of the API while it's
+ * younger than {@code maxAgeHours}. Snapshots older than {@code refreshMinutes} are still used,
+ * but the accounts are retrieved again in the background to update the snapshot for the next
+ * runs. The latest IDs are also kept in memory, so that the next runs of a long-running process
+ * (see {@link AlertDaemon}) use them the same way, without reading the file.
+ */
+@Component
+public class ClientCustomerIdsRetriever {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ClientCustomerIdsRetriever.class);
+
+  private static final String MANAGER_CUSTOMER_ID_TAG = "ManagerCustomerId";
+  private static final String CREATED_AT_TAG = "CreatedAt";
+  private static final String CLIENT_CUSTOMER_IDS_TAG = "ClientCustomerIds";
+  private static final String SEPARATOR = System.getProperty("line.separator");
+
+  private static final int DEFAULT_REFRESH_MINUTES = 60;
+  private static final int DEFAULT_MAX_AGE_HOURS = 24;
+  private static final int PAGE_THREADS = 4;
+
+  private final Executor pageExecutor;
+  private final Path snapshotFile;
+  private final long refreshAfterMillis;
+  private final long maxAgeMillis;
+  private final Executor backgroundExecutor;
+  private final AtomicBoolean refreshing = new AtomicBoolean();
+
+  // The latest client customer IDs retrieved by this process, if any.
+  private volatile Snapshot latestSnapshot;
+
+  /**
+   * Constructor with parameters autowired by Spring.
+   *
+   * @param snapshotFile the file to save the client customer IDs into, if any
+   * @param refreshMinutes minutes before the snapshot is refreshed in the background
+   * @param maxAgeHours hours before the snapshot is no longer used
+   */
+  @Autowired
+  public ClientCustomerIdsRetriever(
+      @Value(value = "${aw.alerting.accountsSnapshot.file:}") String snapshotFile,
+      @Value(value = "${aw.alerting.accountsSnapshot.refreshMinutes:}") Integer refreshMinutes,
+      @Value(value = "${aw.alerting.accountsSnapshot.maxAgeHours:}") Integer maxAgeHours) {
+    this(newPageExecutor(),
+        Strings.isNullOrEmpty(snapshotFile) ? null : Paths.get(snapshotFile),
+        TimeUnit.MINUTES.toMillis(refreshMinutes != null && refreshMinutes >= 0
+            ? refreshMinutes : DEFAULT_REFRESH_MINUTES),
+        TimeUnit.HOURS.toMillis(maxAgeHours != null && maxAgeHours >= 0
+            ? maxAgeHours : DEFAULT_MAX_AGE_HOURS),
+        Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("aw-alerting-accounts-%d")
+            .setDaemon(true)
+            .build()));
+  }
+
+  private static Executor newPageExecutor() {
+    ThreadPoolExecutor pageExecutor = new ThreadPoolExecutor(PAGE_THREADS, PAGE_THREADS,
+        1L, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactoryBuilder().setNameFormat("aw-alerting-account-pages-%d").setDaemon(true)
+            .build());
+    // The pages are only retrieved once in a while, e.g. at the start of a run.
+    pageExecutor.allowCoreThreadTimeOut(true);
+    return pageExecutor;
+  }
+
+  ClientCustomerIdsRetriever(Executor pageExecutor, Path snapshotFile, long refreshAfterMillis,
+      long maxAgeMillis, Executor backgroundExecutor) {
+    this.pageExecutor = Preconditions.checkNotNull(pageExecutor, "pageExecutor cannot be null.");
+    this.snapshotFile = snapshotFile;
+    this.refreshAfterMillis = refreshAfterMillis;
+    this.maxAgeMillis = maxAgeMillis;
+    this.backgroundExecutor =
+        Preconditions.checkNotNull(backgroundExecutor, "backgroundExecutor cannot be null.");
+  }
+
+  /**
+   * Gets the client customer IDs of all accounts under the session's manager account, from the
+   * snapshot if it's recent enough, otherwise from the API. In the latter case, the returned set
+   * is still being filled in the background.
+   *
+   * @param session the adwords session of the manager account
+   * @return the client customer IDs
+   */
+  public Set<Long> getClientCustomerIds(final AdWordsSession session) {
+    Snapshot snapshot = latestSnapshot;
+    if (snapshot != null
+        && Objects.equals(session.getClientCustomerId(), snapshot.managerCustomerId)) {
+      Set<Long> clientCustomerIds = useSnapshot(session, snapshot.createdAt, snapshot.ids);
+      if (clientCustomerIds != null) {
+        return clientCustomerIds;
+      }
+    }
+
+    if (snapshotFile != null && Files.exists(snapshotFile)) {
+      try {
+        JsonObject snapshotJson = readSnapshot();
+        if (Objects.equals(session.getClientCustomerId(), getManagerCustomerId(snapshotJson))) {
+          Set<Long> clientCustomerIds = useSnapshot(session,
+              snapshotJson.get(CREATED_AT_TAG).getAsLong(), getClientCustomerIds(snapshotJson));
+          if (clientCustomerIds != null) {
+            return clientCustomerIds;
+          }
+        }
+      } catch (IOException | RuntimeException e) {
+        LOGGER.warn("Failed to read client customer IDs snapshot {}, ignoring it.",
+            snapshotFile, e);
+      }
+    }
+
+    LOGGER.info("Client customer IDs being recovered from the API in the background...");
+    final PagedClientCustomerIds clientCustomerIds = new PagedClientCustomerIds();
+    backgroundExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          retrieveAndSave(session, clientCustomerIds);
+          // Write the client customer IDs into debug log.
+          LOGGER.debug("Client customer IDs retrieved:{}{}",
+              SEPARATOR, Joiner.on(SEPARATOR).join(clientCustomerIds));
+        } catch (AlertProcessingException | RuntimeException e) {
+          // Also surfaced to the users of the set.
+          clientCustomerIds.fail(e);
+          LOGGER.error("Failed to retrieve client customer IDs.", e);
+        }
+      }
+    });
+    return clientCustomerIds;
+  }
+
+  /**
+   * @return the IDs of the snapshot if it's recent enough, refreshed in the background if needed,
+   *     or null if it's too old
+   */
+  private Set<Long> useSnapshot(AdWordsSession session, long createdAt, Set<Long> ids) {
+    long ageMillis = System.currentTimeMillis() - createdAt;
+    if (ageMillis >= maxAgeMillis) {
+      return null;
+    }
+    LOGGER.info("Using snapshot of {} client customer IDs from {} minutes ago.",
+        ids.size(), TimeUnit.MILLISECONDS.toMinutes(ageMillis));
+    if (ageMillis >= refreshAfterMillis) {
+      refreshInBackground(session);
+    }
+    return ids;
+  }
+
+  private void refreshInBackground(final AdWordsSession session) {
+    if (!refreshing.compareAndSet(false, true)) {
+      return;
+    }
+
+    backgroundExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          PagedClientCustomerIds clientCustomerIds = new PagedClientCustomerIds();
+          retrieveAndSave(session, clientCustomerIds);
+          LOGGER.info("Refreshed snapshot of {} client customer IDs.", clientCustomerIds.size());
+        } catch (AlertProcessingException | RuntimeException e) {
+          LOGGER.warn("Failed to refresh client customer IDs snapshot.", e);
+        } finally {
+          refreshing.set(false);
+        }
+      }
+    });
+  }
+
+  private void retrieveAndSave(AdWordsSession session, PagedClientCustomerIds clientCustomerIds)
+      throws AlertProcessingException {
+    retrieveClientCustomerIds(session, pageExecutor, clientCustomerIds);
+    if (clientCustomerIds.isCompleted()) {
+      latestSnapshot = new Snapshot(session.getClientCustomerId(), System.currentTimeMillis(),
+          Collections.unmodifiableSet(new LinkedHashSet<Long>(clientCustomerIds)));
+    }
+    if (snapshotFile != null) {
+      try {
+        writeSnapshot(session.getClientCustomerId(), clientCustomerIds);
+      } catch (IOException e) {
+        LOGGER.warn("Failed to save client customer IDs snapshot {}.", snapshotFile, e);
+      }
+    }
+  }
+
+  /**
+   * Uses the API to retrieve the managed accounts, and publish their IDs. The set must be
+   * completed or failed when this method returns.
+   *
+   * @param session the adwords session
+   * @param executor the executor to retrieve the pages of accounts on
+   * @param clientCustomerIds the set to publish the client customer IDs into
+   */
+  protected void retrieveClientCustomerIds(AdWordsSession session, Executor executor,
+      PagedClientCustomerIds clientCustomerIds) throws AlertProcessingException {
+    try {
+      new ManagedCustomerDelegate(session).getClientCustomerIds(executor, clientCustomerIds);
+    } catch (ApiException e) {
+      throw new AlertProcessingException(
+          "Encountered API error while getting client customer IDs.", e);
+    }
+  }
+
+  private JsonObject readSnapshot() throws IOException {
+    try (Reader reader = Files.newBufferedReader(snapshotFile, StandardCharsets.UTF_8)) {
+      return new JsonParser().parse(reader).getAsJsonObject();
+    }
+  }
+
+  private static String getManagerCustomerId(JsonObject snapshot) {
+    JsonElement managerCustomerId = snapshot.get(MANAGER_CUSTOMER_ID_TAG);
+    return managerCustomerId == null || managerCustomerId.isJsonNull()
+        ? null : managerCustomerId.getAsString();
+  }
+
+  private static Set<Long> getClientCustomerIds(JsonObject snapshot) {
+    Set<Long> clientCustomerIds = new LinkedHashSet<Long>();
+    for (JsonElement clientCustomerId : snapshot.getAsJsonArray(CLIENT_CUSTOMER_IDS_TAG)) {
+      clientCustomerIds.add(clientCustomerId.getAsLong());
+    }
+    return Collections.unmodifiableSet(clientCustomerIds);
+  }
+
+  /**
+   * Writes the snapshot through a temporary file, so that readers never see a partial file.
+   */
+  private synchronized void writeSnapshot(String managerCustomerId, Set<Long> clientCustomerIds)
+      throws IOException {
+    JsonArray idsJson = new JsonArray();
+    for (Long clientCustomerId : clientCustomerIds) {
+      idsJson.add(new JsonPrimitive(clientCustomerId));
+    }
+    JsonObject snapshot = new JsonObject();
+    snapshot.addProperty(MANAGER_CUSTOMER_ID_TAG, managerCustomerId);
+    snapshot.addProperty(CREATED_AT_TAG, System.currentTimeMillis());
+    snapshot.add(CLIENT_CUSTOMER_IDS_TAG, idsJson);
+
+    Path parent = snapshotFile.toAbsolutePath().getParent();
+    Files.createDirectories(parent);
+    Path tempFile = Files.createTempFile(parent, snapshotFile.getFileName().toString(), ".tmp");
+    try {
+      try (Writer writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+        writer.write(snapshot.toString());
+      }
+      Files.move(tempFile, snapshotFile,
+          StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(tempFile);
+    }
+  }
+
+  /**
+   * Client customer IDs retrieved at some point.
+   */
+  private static class Snapshot {
+    private final String managerCustomerId;
+    private final long createdAt;
+    private final Set<Long> ids;
+
+    Snapshot(String managerCustomerId, long createdAt, Set<Long> ids) {
+      this.managerCustomerId = managerCustomerId;
+      this.createdAt = createdAt;
+      this.ids = ids;
+    }
+  }
+}
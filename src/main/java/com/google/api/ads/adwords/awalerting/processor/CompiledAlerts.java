@@ -0,0 +1,141 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.processor;
+
+import com.google.api.ads.adwords.awalerting.AlertConfigLoadException;
+import com.google.api.ads.adwords.awalerting.AlertReportDownloader;
+import com.google.api.ads.adwords.awalerting.AlertRule;
+import com.google.api.ads.adwords.awalerting.ReportDownloadContextAware;
+import com.google.api.ads.adwords.awalerting.util.ConfigTags;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The report downloaders and alert rules of the alerts, constructed from their configs once and
+ * reused by the next runs of the same alerts, with their caches. An alert is compiled again only
+ * when its config changes, e.g. when the alerts config file is reloaded.
+ *
+ * <p>Alert actions are not kept: they hold the state of a run between {@code initializeAction()}
+ * and {@code finalizeAction()}, so they are constructed for each run. Neither are the report
+ * downloaders implementing {@link ReportDownloadContextAware}, which hold the download context of
+ * a run, as a check may run the same alert alongside a scheduled run.
+ */
+final class CompiledAlerts {
+  private static final Logger LOGGER = LoggerFactory.getLogger(CompiledAlerts.class);
+
+  // The compiled alerts, by alert name.
+  private final Map<String, CompiledAlert> alerts = new HashMap<String, CompiledAlert>();
+
+  /**
+   * @param alertConfig the JSON config of the alert
+   * @return the compiled alert, compiled now if it's new or its config changed
+   */
+  synchronized CompiledAlert get(JsonObject alertConfig) throws AlertConfigLoadException {
+    String alertName = alertConfig.get(ConfigTags.ALERT_NAME).getAsString();
+    CompiledAlert alert = alerts.get(alertName);
+    if (alert == null || !alert.config.equals(alertConfig)) {
+      alert = new CompiledAlert(alertConfig);
+      alerts.put(alertName, alert);
+      LOGGER.debug("Compiled alert \"{}\".", alertName);
+    }
+    return alert;
+  }
+
+  /**
+   * Compiles the new and changed alerts of the config, and drops the removed ones. The alerts that
+   * fail to compile are dropped too, and fail again when they are run.
+   *
+   * @param alertsConfig the new JSON config of the alerts
+   */
+  synchronized void update(JsonObject alertsConfig) {
+    Set<String> alertNames = new HashSet<String>();
+    int compiled = 0;
+    int failed = 0;
+    for (JsonElement alertConfig : alertsConfig.getAsJsonArray(ConfigTags.ALERTS)) {
+      JsonObject alert = alertConfig.getAsJsonObject();
+      String alertName = alert.get(ConfigTags.ALERT_NAME).getAsString();
+      alertNames.add(alertName);
+      CompiledAlert previous = alerts.get(alertName);
+      if (previous != null && previous.config.equals(alert)) {
+        continue;
+      }
+      try {
+        alerts.put(alertName, new CompiledAlert(alert));
+        compiled++;
+      } catch (AlertConfigLoadException | RuntimeException e) {
+        alerts.remove(alertName);
+        failed++;
+        LOGGER.error("Failed to compile alert \"{}\".", alertName, e);
+      }
+    }
+    int removed = alerts.size();
+    alerts.keySet().retainAll(alertNames);
+    removed -= alerts.size();
+
+    LOGGER.info("Alerts compiled: {} new or changed, {} unchanged, {} failed, {} removed.",
+        compiled, alertNames.size() - compiled - failed, failed, removed);
+  }
+
+  /**
+   * @return the names of the compiled alerts
+   */
+  synchronized Set<String> getAlertNames() {
+    return new HashSet<String>(alerts.keySet());
+  }
+
+  /**
+   * The report downloader and alert rules of an alert.
+   */
+  static final class CompiledAlert {
+    private final JsonObject config;
+    private final AlertReportDownloader reportDownloader;
+    private final List<AlertRule> rules;
+
+    CompiledAlert(JsonObject config) throws AlertConfigLoadException {
+      this.config = config;
+      // Constructed anyway, so that an invalid config fails when the alert is compiled.
+      AlertReportDownloader reportDownloader = new AlertReportDownloaderProcessor(
+          config.getAsJsonObject(ConfigTags.REPORT_DOWNLOADER)).getAlertReportDownloader();
+      this.reportDownloader =
+          reportDownloader instanceof ReportDownloadContextAware ? null : reportDownloader;
+      this.rules = Collections.unmodifiableList(new AlertRulesProcessor(
+          config.getAsJsonArray(ConfigTags.RULES), null, 1).getRules());
+    }
+
+    /**
+     * @return the report downloader, or null if it's constructed for each run
+     */
+    AlertReportDownloader getReportDownloader() {
+      return reportDownloader;
+    }
+
+    /**
+     * @return the alert rules, which are thread safe and can be shared by the runs
+     */
+    List<AlertRule> getRules() {
+      return rules;
+    }
+  }
+}
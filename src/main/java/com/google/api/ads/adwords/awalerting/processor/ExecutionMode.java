@@ -0,0 +1,33 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.processor;
+
+/**
+ * How an alert goes through report downloading, alert rules and alert actions, configured by the
+ * optional "ExecutionMode" tag of the alert.
+ */
+public enum ExecutionMode {
+  /**
+   * Downloads all reports, then applies alert rules on all of them, then runs alert actions on
+   * all of them. This is the default.
+   */
+  BATCH,
+
+  /**
+   * Applies alert rules and runs alert actions on each report as soon as it's downloaded, keeping
+   * only a bounded number of reports in memory. See {@link PipelinedAlertProcessor}.
+   */
+  PIPELINED
+}
@@ -0,0 +1,72 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.processor;
+
+import com.google.api.ads.adwords.awalerting.AlertAction;
+import com.google.api.ads.adwords.awalerting.AlertProcessingException;
+import com.google.api.ads.adwords.awalerting.MergeableAlertAction;
+import com.google.api.ads.adwords.awalerting.report.UnmodifiableReportRow;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Runs a mergeable alert action on a shard of the accounts, and saves its partial state into a
+ * file instead of finalizing it.
+ */
+final class PartialStateAlertAction implements AlertAction {
+  private final MergeableAlertAction action;
+  private final Path file;
+
+  /**
+   * @param action the mergeable alert action
+   * @param file the file to save the partial state into
+   */
+  PartialStateAlertAction(MergeableAlertAction action, Path file) {
+    this.action = action;
+    this.file = file;
+  }
+
+  @Override
+  public void initializeAction() throws AlertProcessingException {
+    action.initializeAction();
+  }
+
+  @Override
+  public void processReportEntry(UnmodifiableReportRow entry) throws AlertProcessingException {
+    action.processReportEntry(entry);
+  }
+
+  @Override
+  public void finalizeAction() throws AlertProcessingException {
+    try {
+      ShardPartialStates.write(file, action.getPartialState());
+    } catch (IOException e) {
+      throw new AlertProcessingException("Failed to save partial state into " + file, e);
+    }
+  }
+
+  /**
+   * @return the wrapped alert action
+   */
+  MergeableAlertAction getAction() {
+    return action;
+  }
+
+  @Override
+  public String toString() {
+    return action.getClass().getSimpleName() + " (partial state into " + file + ")";
+  }
+}
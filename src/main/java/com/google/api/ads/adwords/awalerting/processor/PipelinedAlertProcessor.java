@@ -0,0 +1,445 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.processor;
+
+import com.google.api.ads.adwords.awalerting.AlertAction;
+import com.google.api.ads.adwords.awalerting.AlertProcessingException;
+import com.google.api.ads.adwords.awalerting.report.ReportData;
+import com.google.api.ads.adwords.awalerting.report.ReportDataSink;
+import com.google.api.ads.adwords.awalerting.util.Deadline;
+import com.google.api.ads.adwords.lib.client.AdWordsSession.ImmutableAdWordsSession;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pipelined alert processor that overlaps report downloading, alert rules and alert actions: each
+ * report is handed to the alert rules as soon as it's downloaded, and then to every alert action,
+ * so it can be released before the other accounts finish downloading.
+ *
+ * <p>At most {@code maxInFlightReports} reports are held in memory at a time; when the limit is
+ * reached the downloader is blocked until an earlier report has gone through all alert actions,
+ * and has been released (see {@link ReportData#release()}).
+ *
+ * <p>Alert actions are not required to be thread safe, so each action receives its reports one
+ * at a time, in the order they come out of the alert rules. As in the batch mode, each action is
+ * initialized before its first report and finalized after its last one.
+ *
+ * <p>With a deadline, the reports that come in after it expired are skipped, and the processor
+ * stops waiting for the alert actions once it expired.
+ */
+public class PipelinedAlertProcessor {
+  private static final Logger LOGGER = LoggerFactory.getLogger(PipelinedAlertProcessor.class);
+
+  private final AlertReportDownloaderProcessor downloaderProcessor;
+  private final AlertRulesProcessor rulesProcessor;
+  private final AlertActionsProcessor actionsProcessor;
+  private final int numThreads;
+  private final ExecutorService sharedRulesExecutor;
+  private final ExecutorService sharedActionsExecutor;
+  private final int maxInFlightReports;
+
+  /**
+   * @param downloaderProcessor the processor to download reports
+   * @param rulesProcessor the processor to apply alert rules and alert message on reports
+   * @param actionsProcessor the processor holding the alert actions to run on reports
+   * @param numThreads the number of threads to use for each of the rules and actions stages
+   * @param maxInFlightReports the maximum number of reports held in memory at a time
+   */
+  public PipelinedAlertProcessor(
+      AlertReportDownloaderProcessor downloaderProcessor,
+      AlertRulesProcessor rulesProcessor,
+      AlertActionsProcessor actionsProcessor,
+      int numThreads,
+      int maxInFlightReports) {
+    this(downloaderProcessor, rulesProcessor, actionsProcessor, numThreads, null, null,
+        maxInFlightReports);
+    Preconditions.checkArgument(numThreads > 0, "numThreads must be positive.");
+  }
+
+  /**
+   * @param downloaderProcessor the processor to download reports
+   * @param rulesProcessor the processor to apply alert rules and alert message on reports
+   * @param actionsProcessor the processor holding the alert actions to run on reports
+   * @param executors the shared thread pools for the rules and actions stages
+   * @param maxInFlightReports the maximum number of reports held in memory at a time
+   */
+  public PipelinedAlertProcessor(
+      AlertReportDownloaderProcessor downloaderProcessor,
+      AlertRulesProcessor rulesProcessor,
+      AlertActionsProcessor actionsProcessor,
+      ProcessorExecutors executors,
+      int maxInFlightReports) {
+    this(downloaderProcessor, rulesProcessor, actionsProcessor, 0,
+        executors.getRulesExecutor(), executors.getActionsExecutor(), maxInFlightReports);
+  }
+
+  private PipelinedAlertProcessor(
+      AlertReportDownloaderProcessor downloaderProcessor,
+      AlertRulesProcessor rulesProcessor,
+      AlertActionsProcessor actionsProcessor,
+      int numThreads,
+      ExecutorService sharedRulesExecutor,
+      ExecutorService sharedActionsExecutor,
+      int maxInFlightReports) {
+    Preconditions.checkArgument(maxInFlightReports > 0, "maxInFlightReports must be positive.");
+    this.downloaderProcessor =
+        Preconditions.checkNotNull(downloaderProcessor, "downloaderProcessor cannot be null.");
+    this.rulesProcessor =
+        Preconditions.checkNotNull(rulesProcessor, "rulesProcessor cannot be null.");
+    this.actionsProcessor =
+        Preconditions.checkNotNull(actionsProcessor, "actionsProcessor cannot be null.");
+    this.numThreads = numThreads;
+    this.sharedRulesExecutor = sharedRulesExecutor;
+    this.sharedActionsExecutor = sharedActionsExecutor;
+    this.maxInFlightReports = maxInFlightReports;
+  }
+
+  /**
+   * Downloads the reports for the given accounts and runs alert rules and actions on them, and
+   * returns after all alert actions have been finalized.
+   *
+   * @param protoSession the prototype adwords session used for downloading reports
+   * @param clientCustomerIds the client customer IDs
+   */
+  public void processReports(ImmutableAdWordsSession protoSession, Set<Long> clientCustomerIds)
+      throws AlertProcessingException {
+    processReports(protoSession, clientCustomerIds, Deadline.NONE);
+  }
+
+  /**
+   * Downloads the reports for the given accounts and runs alert rules and actions on them, and
+   * returns after all alert actions have been finalized, or once the deadline has expired.
+   *
+   * @param protoSession the prototype adwords session used for downloading reports
+   * @param clientCustomerIds the client customer IDs
+   * @param deadline the deadline of the processing
+   */
+  public void processReports(ImmutableAdWordsSession protoSession, Set<Long> clientCustomerIds,
+      Deadline deadline) throws AlertProcessingException {
+    Stopwatch stopwatch = Stopwatch.createStarted();
+
+    ExecutorService rulesExecutor = sharedRulesExecutor != null
+        ? sharedRulesExecutor : Executors.newFixedThreadPool(numThreads);
+    ExecutorService actionsExecutor = sharedActionsExecutor != null
+        ? sharedActionsExecutor : Executors.newFixedThreadPool(numThreads);
+    try {
+      List<AlertAction> actions = actionsProcessor.getActions();
+      List<ActionStage> actionStages = new ArrayList<ActionStage>(actions.size());
+      Semaphore inFlightReports = new Semaphore(maxInFlightReports);
+      ReportStage reportStage =
+          new ReportStage(rulesExecutor, inFlightReports, actionStages, deadline);
+      try {
+        for (AlertAction action : actions) {
+          ActionStage actionStage = new ActionStage(action, actionsExecutor);
+          actionStage.initialize();
+          actionStages.add(actionStage);
+        }
+        downloaderProcessor.downloadReports(protoSession, clientCustomerIds, reportStage);
+      } finally {
+        // Even if the downloads failed, the reports already downloaded go through the alert
+        // actions, which are then finalized. All permits come back once every report has gone
+        // through all alert actions.
+        if (!deadline.tryAcquire(inFlightReports, maxInFlightReports)) {
+          LOGGER.warn("Deadline expired with {} reports still in the alert rules or actions.",
+              maxInFlightReports - inFlightReports.availablePermits());
+        }
+        finalizeActions(actionStages, deadline);
+      }
+
+      stopwatch.stop();
+      LOGGER.info("*** Processed {} reports through {} actions in {} seconds.",
+          reportStage.getReportsCount(), actionStages.size(),
+          stopwatch.elapsed(TimeUnit.MILLISECONDS) / 1000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new AlertProcessingException(
+          "PipelinedAlertProcessor encounters InterruptedException.", e);
+    } finally {
+      if (rulesExecutor != sharedRulesExecutor) {
+        rulesExecutor.shutdownNow();
+      }
+      if (actionsExecutor != sharedActionsExecutor) {
+        actionsExecutor.shutdownNow();
+      }
+    }
+  }
+
+  /**
+   * Finalizes all the alert actions after the reports they already got, and waits for them.
+   */
+  private static void finalizeActions(List<ActionStage> actionStages, Deadline deadline)
+      throws InterruptedException {
+    for (ActionStage actionStage : actionStages) {
+      actionStage.finalizeAction();
+    }
+    for (ActionStage actionStage : actionStages) {
+      if (!actionStage.awaitFinalized(deadline)) {
+        LOGGER.warn("Deadline expired before AlertAction \"{}\" was finalized.",
+            actionStage.getActionName());
+      }
+    }
+  }
+
+  /**
+   * The entry of the pipeline: receives downloaded reports, applies alert rules on them and
+   * passes them on to all alert actions.
+   */
+  private class ReportStage implements ReportDataSink {
+    private final Executor rulesExecutor;
+    private final Semaphore inFlightReports;
+    private final List<ActionStage> actionStages;
+    private final Deadline deadline;
+    private final AtomicInteger reportsCount = new AtomicInteger();
+
+    ReportStage(Executor rulesExecutor, Semaphore inFlightReports, List<ActionStage> actionStages,
+        Deadline deadline) {
+      this.rulesExecutor = rulesExecutor;
+      this.inFlightReports = inFlightReports;
+      this.actionStages = actionStages;
+      this.deadline = deadline;
+    }
+
+    @Override
+    public void accept(final ReportData report) throws InterruptedException {
+      if (!deadline.tryAcquire(inFlightReports, 1)) {
+        LOGGER.warn("Deadline expired, skipping report of account {}.",
+            report.getClientCustomerId());
+        report.release();
+        return;
+      }
+      reportsCount.incrementAndGet();
+      boolean submitted = false;
+      try {
+        rulesExecutor.execute(new Runnable() {
+          @Override
+          public void run() {
+            applyRulesAndActions(report);
+          }
+        });
+        submitted = true;
+      } finally {
+        if (!submitted) {
+          release(report);
+        }
+      }
+    }
+
+    /**
+     * Applies the alert rules on the report and passes it on to all alert actions. Whatever
+     * happens, the report is released exactly once.
+     */
+    private void applyRulesAndActions(final ReportData report) {
+      boolean passedOn = false;
+      try {
+        rulesProcessor.newRunnableAlertRulesProcessor(report).run();
+        if (!actionStages.isEmpty()) {
+          passOn(report);
+          passedOn = true;
+        }
+      } catch (RuntimeException e) {
+        LOGGER.error("Error applying alert rules on report of account {}, skipping it.",
+            report.getClientCustomerId(), e);
+      } finally {
+        if (!passedOn) {
+          release(report);
+        }
+      }
+    }
+
+    /**
+     * Passes the report on to all alert actions, and releases it after the last one is done.
+     */
+    private void passOn(final ReportData report) {
+      final AtomicInteger pendingActions = new AtomicInteger(actionStages.size());
+      Runnable onActionDone = new Runnable() {
+        @Override
+        public void run() {
+          if (pendingActions.decrementAndGet() == 0) {
+            release(report);
+          }
+        }
+      };
+      for (ActionStage actionStage : actionStages) {
+        try {
+          actionStage.process(report, onActionDone);
+        } catch (RuntimeException e) {
+          LOGGER.error("Error passing report of account {} to AlertAction \"{}\", skipping it.",
+              report.getClientCustomerId(), actionStage.getActionName(), e);
+          onActionDone.run();
+        }
+      }
+    }
+
+    /**
+     * Releases the report (see {@link ReportData#release()}), and lets the next one in.
+     */
+    private void release(ReportData report) {
+      try {
+        report.release();
+      } finally {
+        inFlightReports.release();
+      }
+    }
+
+    @Override
+    public int getMaxInFlightReports() {
+      return maxInFlightReports;
+    }
+
+    int getReportsCount() {
+      return reportsCount.get();
+    }
+  }
+
+  /**
+   * Runs one alert action on reports serially (but not necessarily on the same thread). After an
+   * error, the remaining reports are skipped for this action, as in
+   * {@link RunnableAlertActionProcessor}.
+   */
+  private static class ActionStage {
+    private final AlertAction action;
+    private final SerialExecutor executor;
+    private final CountDownLatch finalized = new CountDownLatch(1);
+    // Only accessed by the tasks of the serial executor.
+    private boolean failed;
+
+    ActionStage(AlertAction action, Executor executor) {
+      this.action = action;
+      this.executor = new SerialExecutor(executor);
+    }
+
+    void initialize() {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          LOGGER.debug("Start running AlertAction \"{}\"", getActionName());
+          try {
+            action.initializeAction();
+          } catch (AlertProcessingException e) {
+            handleFailure(e);
+          }
+        }
+      });
+    }
+
+    void process(final ReportData report, final Runnable onDone) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            if (!failed) {
+              RunnableAlertActionProcessor.processReport(action, report);
+            }
+          } catch (AlertProcessingException e) {
+            handleFailure(e);
+          } finally {
+            onDone.run();
+          }
+        }
+      });
+    }
+
+    /**
+     * Finalizes the action after the reports it already got.
+     */
+    void finalizeAction() {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            if (!failed) {
+              action.finalizeAction();
+              LOGGER.debug("... AlertAction \"{}\" success.", getActionName());
+            }
+          } catch (AlertProcessingException e) {
+            handleFailure(e);
+          } finally {
+            finalized.countDown();
+          }
+        }
+      });
+    }
+
+    /**
+     * @return whether the action was finalized before the deadline
+     */
+    boolean awaitFinalized(Deadline deadline) throws InterruptedException {
+      return deadline.await(finalized);
+    }
+
+    private void handleFailure(AlertProcessingException e) {
+      failed = true;
+      LOGGER.error("Error running AlertAction \"{}\": {}.", getActionName(), e);
+    }
+
+    private String getActionName() {
+      return action.getClass().getSimpleName();
+    }
+  }
+
+  /**
+   * Executor that runs the submitted tasks one at a time, in submission order, on the underlying
+   * executor.
+   */
+  private static class SerialExecutor implements Executor {
+    private final Queue<Runnable> tasks = new ArrayDeque<Runnable>();
+    private final Executor executor;
+    private Runnable active;
+
+    SerialExecutor(Executor executor) {
+      this.executor = executor;
+    }
+
+    @Override
+    public synchronized void execute(final Runnable task) {
+      tasks.add(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            task.run();
+          } finally {
+            scheduleNext();
+          }
+        }
+      });
+      if (active == null) {
+        scheduleNext();
+      }
+    }
+
+    private synchronized void scheduleNext() {
+      active = tasks.poll();
+      if (active != null) {
+        executor.execute(active);
+      }
+    }
+  }
+}
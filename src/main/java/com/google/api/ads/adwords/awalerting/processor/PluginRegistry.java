@@ -0,0 +1,294 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.processor;
+
+import com.google.api.ads.adwords.awalerting.AlertAction;
+import com.google.api.ads.adwords.awalerting.AlertConfigLoadException;
+import com.google.api.ads.adwords.awalerting.AlertPluginProvider;
+import com.google.api.ads.adwords.awalerting.AlertReportDownloader;
+import com.google.api.ads.adwords.awalerting.AlertRule;
+import com.google.api.ads.adwords.awalerting.util.ConfigTags;
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of the report downloaders, alert rules and alert actions, with the constructor of each
+ * plugin class resolved once into a method handle. The plugins of the {@link AlertPluginProvider}s
+ * found by {@link ServiceLoader} are registered when the registry is created, and can be
+ * referenced in the alerts config by their simple class name; other plugins are referenced by
+ * their fully qualified class name, and resolved the first time they are used.
+ *
+ * <p>{@link #validate(JsonObject)} checks all the class names of an alerts config, so that a typo
+ * fails the run before any report is downloaded.
+ *
+ * <p>This class is thread safe.
+ */
+public final class PluginRegistry {
+  private static final Logger LOGGER = LoggerFactory.getLogger(PluginRegistry.class);
+
+  private static final List<Class<?>> PLUGIN_TYPES = ImmutableList.<Class<?>>of(
+      AlertReportDownloader.class, AlertRule.class, AlertAction.class);
+  private static final MethodType CONSTRUCTOR_TYPE =
+      MethodType.methodType(void.class, JsonObject.class);
+  private static final MethodType FACTORY_TYPE =
+      MethodType.methodType(Object.class, JsonObject.class);
+
+  // The provided plugins by simple class name, for each plugin type.
+  private final Map<Class<?>, Map<String, Class<?>>> pluginsByName =
+      new HashMap<Class<?>, Map<String, Class<?>>>();
+  // The constructors of the plugins, as (JsonObject)Object, by plugin class.
+  private final ConcurrentMap<Class<?>, MethodHandle> factories =
+      new ConcurrentHashMap<Class<?>, MethodHandle>();
+
+  /**
+   * The registry of the plugins provided on the class path, created on first use.
+   */
+  private static final class DefaultRegistryHolder {
+    private static final PluginRegistry INSTANCE =
+        new PluginRegistry(ServiceLoader.load(AlertPluginProvider.class));
+  }
+
+  /**
+   * @param providers the providers of the plugins to register
+   */
+  PluginRegistry(Iterable<AlertPluginProvider> providers) {
+    for (Class<?> pluginType : PLUGIN_TYPES) {
+      pluginsByName.put(pluginType, new HashMap<String, Class<?>>());
+    }
+
+    int count = 0;
+    for (AlertPluginProvider provider : providers) {
+      for (Class<?> pluginClass : provider.getPluginClasses()) {
+        if (register(pluginClass)) {
+          count++;
+        }
+      }
+    }
+    LOGGER.debug("Registered {} plugins.", count);
+  }
+
+  /**
+   * @return the registry of the plugins provided on the class path
+   */
+  public static PluginRegistry getDefault() {
+    return DefaultRegistryHolder.INSTANCE;
+  }
+
+  private boolean register(Class<?> pluginClass) {
+    MethodHandle factory;
+    try {
+      factory = resolveFactory(pluginClass);
+    } catch (ReflectiveOperationException e) {
+      LOGGER.error("Plugin {} has no public constructor with a JsonObject parameter, skipped.",
+          pluginClass.getName(), e);
+      return false;
+    }
+
+    boolean registered = false;
+    for (Class<?> pluginType : PLUGIN_TYPES) {
+      if (!pluginType.isAssignableFrom(pluginClass)) {
+        continue;
+      }
+      Map<String, Class<?>> plugins = pluginsByName.get(pluginType);
+      Class<?> previous = plugins.get(pluginClass.getSimpleName());
+      if (previous == null) {
+        plugins.put(pluginClass.getSimpleName(), pluginClass);
+      } else if (previous != pluginClass) {
+        LOGGER.warn("Plugins {} and {} have the same name, keeping the first one.",
+            previous.getName(), pluginClass.getName());
+      }
+      registered = true;
+    }
+    if (!registered) {
+      LOGGER.error("Plugin {} is not a report downloader, alert rule or alert action, skipped.",
+          pluginClass.getName());
+      return false;
+    }
+    factories.put(pluginClass, factory);
+    return true;
+  }
+
+  private static MethodHandle resolveFactory(Class<?> pluginClass)
+      throws ReflectiveOperationException {
+    return MethodHandles.publicLookup().findConstructor(pluginClass, CONSTRUCTOR_TYPE)
+        .asType(FACTORY_TYPE);
+  }
+
+  /**
+   * Finds the plugin class of a class name from the alerts config.
+   *
+   * @param pluginType the plugin type, e.g. {@code AlertRule.class}
+   * @param className the simple name of a provided plugin, or a fully qualified class name
+   * @return the plugin class
+   * @throws AlertConfigLoadException if there is no such plugin of this type
+   */
+  public Class<?> getPluginClass(Class<?> pluginType, String className)
+      throws AlertConfigLoadException {
+    Map<String, Class<?>> plugins = pluginsByName.get(pluginType);
+    Preconditions.checkArgument(plugins != null, "Not a plugin type: %s", pluginType);
+
+    if (!className.contains(".")) {
+      Class<?> pluginClass = plugins.get(className);
+      if (pluginClass == null) {
+        throw new AlertConfigLoadException(String.format("Unknown %s \"%s\", known ones: %s",
+            pluginType.getSimpleName(), className,
+            Joiner.on(", ").join(new TreeSet<String>(plugins.keySet()))), null);
+      }
+      return pluginClass;
+    }
+
+    Class<?> pluginClass;
+    try {
+      pluginClass = Class.forName(className);
+    } catch (ClassNotFoundException e) {
+      throw new AlertConfigLoadException(
+          "Unknown " + pluginType.getSimpleName() + " class: " + className, e);
+    }
+    if (!pluginType.isAssignableFrom(pluginClass)) {
+      throw new AlertConfigLoadException(
+          "Wrong " + pluginType.getSimpleName() + " class specified: " + className, null);
+    }
+    return pluginClass;
+  }
+
+  /**
+   * Constructs a plugin according to its JSON configuration.
+   *
+   * @param pluginType the plugin type, e.g. {@code AlertRule.class}
+   * @param config the JSON configuration of the plugin, with its class name
+   * @return the new plugin
+   */
+  public <T> T newInstance(Class<T> pluginType, JsonObject config)
+      throws AlertConfigLoadException {
+    Class<?> pluginClass =
+        getPluginClass(pluginType, config.get(ConfigTags.CLASS_NAME).getAsString());
+    Object plugin;
+    try {
+      plugin = (Object) getFactory(pluginClass).invokeExact(config);
+    } catch (Error e) {
+      // E.g. a static initializer of the plugin that failed.
+      if (!(e instanceof LinkageError)) {
+        throw e;
+      }
+      throw newConstructionException(pluginType, config, e);
+    } catch (Throwable e) {
+      throw newConstructionException(pluginType, config, e);
+    }
+    return pluginType.cast(plugin);
+  }
+
+  private static AlertConfigLoadException newConstructionException(
+      Class<?> pluginType, JsonObject config, Throwable cause) {
+    return new AlertConfigLoadException(
+        "Error constructing " + pluginType.getSimpleName() + " with config: " + config, cause);
+  }
+
+  private MethodHandle getFactory(Class<?> pluginClass) throws ReflectiveOperationException {
+    MethodHandle factory = factories.get(pluginClass);
+    if (factory == null) {
+      factory = resolveFactory(pluginClass);
+      factories.putIfAbsent(pluginClass, factory);
+    }
+    return factory;
+  }
+
+  /**
+   * Checks that all the report downloaders, alert rules and alert actions of the alerts config
+   * exist and can be constructed, without constructing them.
+   *
+   * @param alertsConfig the JSON config of the alerts
+   * @throws AlertConfigLoadException listing all the invalid class names
+   */
+  public void validate(JsonObject alertsConfig) throws AlertConfigLoadException {
+    List<String> errors = new ArrayList<String>();
+    for (JsonElement alertElement : alertsConfig.getAsJsonArray(ConfigTags.ALERTS)) {
+      JsonObject alertConfig = alertElement.getAsJsonObject();
+      String alertName = alertConfig.has(ConfigTags.ALERT_NAME)
+          ? alertConfig.get(ConfigTags.ALERT_NAME).getAsString() : "?";
+      validate(AlertReportDownloader.class,
+          alertConfig.get(ConfigTags.REPORT_DOWNLOADER), alertName, errors);
+      if (alertConfig.has(ConfigTags.RULES)) {
+        for (JsonElement ruleConfig : alertConfig.getAsJsonArray(ConfigTags.RULES)) {
+          validate(AlertRule.class, ruleConfig, alertName, errors);
+        }
+      }
+      if (alertConfig.has(ConfigTags.ACTIONS)) {
+        for (JsonElement actionConfig : alertConfig.getAsJsonArray(ConfigTags.ACTIONS)) {
+          validate(AlertAction.class, actionConfig, alertName, errors);
+        }
+      }
+    }
+
+    if (!errors.isEmpty()) {
+      throw new AlertConfigLoadException(
+          "Invalid alerts config:\n  " + Joiner.on("\n  ").join(errors), null);
+    }
+  }
+
+  private void validate(
+      Class<?> pluginType, JsonElement config, String alertName, List<String> errors) {
+    try {
+      resolve(pluginType, config);
+    } catch (AlertConfigLoadException e) {
+      errors.add(String.format("Alert \"%s\": %s", alertName, e.getMessage()));
+    }
+  }
+
+  /**
+   * Checks that a plugin of the alerts config exists and can be constructed, without constructing
+   * it.
+   *
+   * @param pluginType the plugin type, e.g. {@code AlertRule.class}
+   * @param config the JSON configuration of the plugin, with its class name
+   * @return the plugin class
+   * @throws AlertConfigLoadException if the config has no class name, or the plugin is unknown
+   */
+  public Class<?> resolve(Class<?> pluginType, JsonElement config)
+      throws AlertConfigLoadException {
+    if (config == null || !config.isJsonObject()
+        || !config.getAsJsonObject().has(ConfigTags.CLASS_NAME)) {
+      throw new AlertConfigLoadException(String.format("%s config without \"%s\".",
+          pluginType.getSimpleName(), ConfigTags.CLASS_NAME), null);
+    }
+    String className = config.getAsJsonObject().get(ConfigTags.CLASS_NAME).getAsString();
+    Class<?> pluginClass = getPluginClass(pluginType, className);
+    try {
+      getFactory(pluginClass);
+    } catch (ReflectiveOperationException e) {
+      throw new AlertConfigLoadException(String.format(
+          "%s %s has no public constructor with a JsonObject parameter.",
+          pluginType.getSimpleName(), className), e);
+    }
+    return pluginClass;
+  }
+}
@@ -0,0 +1,189 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.processor;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thread pools shared by all alerts, one for each processing stage: report downloading (I/O
+ * bound), alert rules (CPU bound) and alert actions (I/O bound), and one for the alerts of a run
+ * processed concurrently.
+ *
+ * <p>The pools are created once and shut down when the Spring context is closed. Users of these
+ * pools must not shut them down.
+ */
+@Component
+public class ProcessorExecutors implements DisposableBean {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ProcessorExecutors.class);
+
+  private static final int DEFAULT_NUM_THREADS = 20;
+  private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+  /**
+   * The processing stages with their own thread pool.
+   */
+  public enum Stage {
+    DOWNLOAD, RULES, ACTIONS, ALERTS
+  }
+
+  private final Map<Stage, ThreadPoolExecutor> executors =
+      new EnumMap<Stage, ThreadPoolExecutor>(Stage.class);
+
+  /**
+   * @param numberOfThreads general number of threads
+   * @param downloadThreads number of threads for downloading reports
+   * @param rulesThreads number of threads for applying alert rules
+   * @param actionsThreads number of threads for running alert actions
+   */
+  public ProcessorExecutors(Integer numberOfThreads, Integer downloadThreads,
+      Integer rulesThreads, Integer actionsThreads) {
+    this(numberOfThreads, downloadThreads, rulesThreads, actionsThreads, null);
+  }
+
+  /**
+   * Constructor with threads parameters autowired by Spring. The download pool defaults to twice
+   * the general number of threads, so that the adaptive download limit can go up from the general
+   * number of threads, the actions pool to the general number of threads, the rules pool to the
+   * number of processors, and the alerts pool to one thread.
+   *
+   * @param numberOfThreads general number of threads
+   * @param downloadThreads number of threads for downloading reports
+   * @param rulesThreads number of threads for applying alert rules
+   * @param actionsThreads number of threads for running alert actions
+   * @param alertsThreads number of alerts of a run processed at the same time
+   */
+  @Autowired
+  public ProcessorExecutors(
+      @Value(value = "${aw.alerting.processor.threads:}") Integer numberOfThreads,
+      @Value(value = "${aw.alerting.processor.download.threads:}") Integer downloadThreads,
+      @Value(value = "${aw.alerting.processor.rules.threads:}") Integer rulesThreads,
+      @Value(value = "${aw.alerting.processor.actions.threads:}") Integer actionsThreads,
+      @Value(value = "${aw.alerting.processor.alerts.concurrency:}") Integer alertsThreads) {
+    int defaultThreads = getOrDefault(numberOfThreads, DEFAULT_NUM_THREADS);
+    int cpuThreads = Runtime.getRuntime().availableProcessors();
+
+    executors.put(Stage.DOWNLOAD, newExecutor(Stage.DOWNLOAD,
+        getOrDefault(downloadThreads, 2 * defaultThreads)));
+    executors.put(Stage.RULES, newExecutor(Stage.RULES,
+        getOrDefault(rulesThreads, cpuThreads)));
+    executors.put(Stage.ACTIONS, newExecutor(Stage.ACTIONS,
+        getOrDefault(actionsThreads, defaultThreads)));
+    executors.put(Stage.ALERTS, newExecutor(Stage.ALERTS, getOrDefault(alertsThreads, 1)));
+  }
+
+  private static int getOrDefault(Integer value, int defaultValue) {
+    return value != null && value > 0 ? value : defaultValue;
+  }
+
+  private static ThreadPoolExecutor newExecutor(Stage stage, int numThreads) {
+    LOGGER.debug("Creating {} thread pool with {} threads.", stage, numThreads);
+    return new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactoryBuilder()
+            .setNameFormat("aw-alerting-" + stage.name().toLowerCase() + "-%d")
+            .setDaemon(true)
+            .build());
+  }
+
+  /**
+   * @return the thread pool of the specified stage
+   */
+  public ExecutorService getExecutor(Stage stage) {
+    return executors.get(stage);
+  }
+
+  public ExecutorService getDownloadExecutor() {
+    return getExecutor(Stage.DOWNLOAD);
+  }
+
+  public ExecutorService getRulesExecutor() {
+    return getExecutor(Stage.RULES);
+  }
+
+  public ExecutorService getActionsExecutor() {
+    return getExecutor(Stage.ACTIONS);
+  }
+
+  public ExecutorService getAlertsExecutor() {
+    return getExecutor(Stage.ALERTS);
+  }
+
+  /**
+   * @return the number of threads of the specified stage
+   */
+  public int getPoolSize(Stage stage) {
+    return executors.get(stage).getMaximumPoolSize();
+  }
+
+  /**
+   * @return the number of tasks waiting in the queue of the specified stage
+   */
+  public int getQueueDepth(Stage stage) {
+    return executors.get(stage).getQueue().size();
+  }
+
+  /**
+   * @return the approximate number of threads running tasks in the specified stage
+   */
+  public int getActiveCount(Stage stage) {
+    return executors.get(stage).getActiveCount();
+  }
+
+  /**
+   * Shuts down all thread pools, called by Spring when the context is closed.
+   */
+  @Override
+  public void destroy() throws InterruptedException {
+    for (ThreadPoolExecutor executor : executors.values()) {
+      executor.shutdown();
+    }
+    for (Map.Entry<Stage, ThreadPoolExecutor> entry : executors.entrySet()) {
+      if (!entry.getValue().awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        LOGGER.warn("{} thread pool did not terminate in time, interrupting it.", entry.getKey());
+        entry.getValue().shutdownNow();
+      }
+    }
+  }
+
+  /**
+   * Returns the size, active count and queue depth of each thread pool.
+   */
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (Stage stage : Stage.values()) {
+      if (sb.length() > 0) {
+        sb.append(", ");
+      }
+      sb.append(String.format("%s: %d/%d active, %d queued", stage, getActiveCount(stage),
+          getPoolSize(stage), getQueueDepth(stage)));
+    }
+    return sb.toString();
+  }
+}
@@ -53,7 +53,9 @@ public class RunnableAlertActionProcessor implements Runnable {
    * Executes the API call to run alert actions on the report that was given when this
    * {@code Runnable} was created.
    *
-   * <p>The processing blocks this thread until it is finished.
+   * <p>The processing blocks this thread until it is finished. If this thread is interrupted
+   * (e.g. the alert deadline expired), the remaining reports are skipped, and the action is
+   * finalized with the entries processed so far.
    */
   @Override
   public void run() {
@@ -63,17 +65,30 @@ public class RunnableAlertActionProcessor implements Runnable {
 
       // Run alert action on each report
       action.initializeAction();
+      int processedReports = 0;
       for (ReportData report : reports) {
-        Map<String, Integer> mapping = report.getIndexMapping();
-        for (List<String> row : report.getRows()) {
-          UnmodifiableReportRow curRow = new UnmodifiableReportRow(row, mapping);
-          action.processReportEntry(curRow);
+        if (Thread.currentThread().isInterrupted()) {
+          break;
         }
+        processReport(action, report);
+        processedReports++;
+      }
+      if (processedReports < reports.size()) {
+        LOGGER.warn("AlertAction \"{}\" cancelled after {} of {} reports, finalizing it.",
+            action.getClass().getSimpleName(), processedReports, reports.size());
+        // Lets the action write out its results, and restores the interrupt afterwards.
+        Thread.interrupted();
+        try {
+          action.finalizeAction();
+        } finally {
+          Thread.currentThread().interrupt();
+        }
+      } else {
+        action.finalizeAction();
       }
-      action.finalizeAction();
 
       LOGGER.debug("... success.");
-    } catch (AlertProcessingException e) {
+    } catch (AlertProcessingException | RuntimeException e) {
       LOGGER.error("Error running AlertAction \"{}\": {}.", action.getClass().getSimpleName(), e);
     } finally {
       if (this.latch != null) {
@@ -82,6 +97,21 @@ public class RunnableAlertActionProcessor implements Runnable {
     }
   }
 
+  /**
+   * Runs the alert action on each entry of the report, without altering the report.
+   *
+   * @param action the AlertAction to use
+   * @param report the ReportData to apply the action
+   */
+  static void processReport(AlertAction action, ReportData report)
+      throws AlertProcessingException {
+    Map<String, Integer> mapping = report.getIndexMapping();
+    for (List<String> row : report.getRows()) {
+      UnmodifiableReportRow curRow = new UnmodifiableReportRow(row, mapping);
+      action.processReportEntry(curRow);
+    }
+  }
+
   /**
    * @param latch the latch to set
    */
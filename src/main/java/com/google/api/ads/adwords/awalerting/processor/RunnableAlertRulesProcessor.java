@@ -20,9 +20,8 @@ import com.google.api.ads.adwords.awalerting.report.ReportRow;
 import com.google.api.ads.adwords.awalerting.util.ConfigTags;
 import com.google.common.base.Preconditions;
 
-import java.util.Iterator;
+import java.util.BitSet;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -64,14 +63,20 @@ public class RunnableAlertRulesProcessor implements Runnable {
   @Override
   public void run() {
     // The execution is in the same thread
-    for (AlertRule rule : rules) {
-      extendAndTransformReportData(rule, report);
-      filterReportData(rule, report);
-    }
-    appendAlertMessages(report);
-
-    if (this.latch != null) {
-      this.latch.countDown();
+    try {
+      for (AlertRule rule : rules) {
+        if (Thread.currentThread().isInterrupted()) {
+          // Cancelled, the report is left out.
+          return;
+        }
+        extendAndTransformReportData(rule, report);
+        filterReportData(rule, report);
+      }
+      appendAlertMessages(report);
+    } finally {
+      if (this.latch != null) {
+        this.latch.countDown();
+      }
     }
   }
 
@@ -93,29 +98,30 @@ public class RunnableAlertRulesProcessor implements Runnable {
       }
     }
 
-    Map<String, Integer> mapping = report.getIndexMapping();
-    for (List<String> row : report.getRows()) {
-      ReportRow curRow = new ReportRow(row, mapping);
+    int rowsCount = report.getRowsCount();
+    for (int i = 0; i < rowsCount; i++) {
+      ReportRow curRow = report.getReportRow(i);
       rule.appendReportEntryValues(curRow);
       rule.transformReportEntry(curRow);
     }
   }
 
   /**
-   * Filter unwanted ReportData entries using the specified alert rule.
+   * Filter unwanted ReportData entries using the specified alert rule. The entries are removed at
+   * once after all of them have been checked.
    *
    * @param rule the AlertRule to use
    * @param report the ReportData to filter
    */
   protected void filterReportData(AlertRule rule, ReportData report) {
-    Map<String, Integer> mapping = report.getIndexMapping();
-    for (Iterator<List<String>> iter = report.getRows().iterator(); iter.hasNext();) {
-      List<String> row = iter.next();
-      ReportRow curRow = new ReportRow(row, mapping);
-      if (rule.shouldRemoveReportEntry(curRow)) {
-        iter.remove();
+    int rowsCount = report.getRowsCount();
+    BitSet removedRows = new BitSet(rowsCount);
+    for (int i = 0; i < rowsCount; i++) {
+      if (rule.shouldRemoveReportEntry(report.getReportRow(i))) {
+        removedRows.set(i);
       }
     }
+    report.removeRows(removedRows);
   }
 
   /**
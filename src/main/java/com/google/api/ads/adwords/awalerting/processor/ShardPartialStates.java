@@ -0,0 +1,155 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.processor;
+
+import com.google.api.ads.adwords.awalerting.AlertProcessingException;
+import com.google.api.ads.adwords.awalerting.util.AccountShard;
+import com.google.common.base.Preconditions;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Files of the partial states of the mergeable alert actions, one per run, alert action and shard:
+ * "run-{run}.alert-{alert}-action-{action}.shard-{index}-of-{count}.json", where the alert and the
+ * action are numbered from 1 in the order of the alerts configuration. The run ID keeps the files
+ * of a previous run out of the merge.
+ */
+final class ShardPartialStates {
+  private static final Pattern SHARD_PATTERN =
+      Pattern.compile("\\.shard-(\\d+)-of-(\\d+)\\.json$");
+  private static final Pattern RUN_ID_PATTERN = Pattern.compile("[A-Za-z0-9._-]+");
+
+  private ShardPartialStates() {}
+
+  /**
+   * @param runId the ID of the run, shared by all its shards
+   * @throws IllegalArgumentException if the run ID cannot be part of a file name
+   */
+  static void checkRunId(String runId) {
+    Preconditions.checkArgument(runId != null && RUN_ID_PATTERN.matcher(runId).matches(),
+        "The run ID can only have letters, digits, '.', '_' and '-': %s", runId);
+  }
+
+  /**
+   * @return the file of the partial state of the alert action on the shard
+   */
+  static Path getFile(Path directory, String runId, int alertNumber, int actionNumber,
+      AccountShard shard) {
+    return directory.resolve(getPrefix(runId, alertNumber, actionNumber)
+        + ".shard-" + shard.getIndex() + "-of-" + shard.getCount() + ".json");
+  }
+
+  private static String getPrefix(String runId, int alertNumber, int actionNumber) {
+    return "run-" + runId + ".alert-" + alertNumber + "-action-" + actionNumber;
+  }
+
+  /**
+   * Writes the partial state into the file, through a temporary file so that the merge step never
+   * reads a partial file.
+   */
+  static void write(Path file, JsonObject partialState) throws IOException {
+    Path parent = file.toAbsolutePath().getParent();
+    Files.createDirectories(parent);
+    Path tempFile = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+    try {
+      try (Writer writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+        writer.write(partialState.toString());
+      }
+      Files.move(tempFile, file,
+          StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(tempFile);
+    }
+  }
+
+  /**
+   * Reads the partial states of the alert action on all the shards of the run, in the order of the
+   * shards.
+   *
+   * @return the partial states of all the shards
+   * @throws AlertProcessingException if the partial states of some shards are missing, or the
+   *     shards do not agree on the number of shards
+   */
+  static List<JsonObject> readAll(Path directory, String runId, int alertNumber, int actionNumber)
+      throws AlertProcessingException, IOException {
+    // The files by shard index, for each number of shards found.
+    Map<Integer, SortedMap<Integer, Path>> filesByCount =
+        new TreeMap<Integer, SortedMap<Integer, Path>>();
+    if (Files.isDirectory(directory)) {
+      String glob = getPrefix(runId, alertNumber, actionNumber) + ".shard-*-of-*.json";
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, glob)) {
+        for (Path file : stream) {
+          Matcher matcher = SHARD_PATTERN.matcher(file.getFileName().toString());
+          if (matcher.find()) {
+            Integer count = Integer.valueOf(matcher.group(2));
+            if (!filesByCount.containsKey(count)) {
+              filesByCount.put(count, new TreeMap<Integer, Path>());
+            }
+            filesByCount.get(count).put(Integer.valueOf(matcher.group(1)), file);
+          }
+        }
+      }
+    }
+
+    String action = "action #" + actionNumber + " of alert #" + alertNumber + " in run \""
+        + runId + "\"";
+    if (filesByCount.isEmpty()) {
+      throw new AlertProcessingException(
+          "No partial states of " + action + " in " + directory, null);
+    }
+    if (filesByCount.size() > 1) {
+      throw new AlertProcessingException("The partial states of " + action
+          + " have different numbers of shards: " + filesByCount.keySet(), null);
+    }
+    int shardsCount = filesByCount.keySet().iterator().next();
+    SortedMap<Integer, Path> files = filesByCount.get(shardsCount);
+    if (files.size() < shardsCount) {
+      Set<Integer> missingShards = new TreeSet<Integer>();
+      for (int index = 0; index < shardsCount; index++) {
+        if (!files.containsKey(index)) {
+          missingShards.add(index);
+        }
+      }
+      throw new AlertProcessingException("The partial states of " + action + " are missing for "
+          + "shards " + missingShards + " of " + shardsCount, null);
+    }
+
+    List<JsonObject> partialStates = new ArrayList<JsonObject>(files.size());
+    for (Path file : files.values()) {
+      try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+        partialStates.add(new JsonParser().parse(reader).getAsJsonObject());
+      }
+    }
+    return partialStates;
+  }
+}
@@ -15,6 +15,7 @@
 package com.google.api.ads.adwords.awalerting.report;
 
 import com.google.api.ads.adwords.jaxws.v201705.cm.ReportDefinitionReportType;
+import com.google.common.base.Preconditions;
 import com.google.gson.JsonObject;
 
 /**
@@ -60,6 +61,13 @@ public class AwqlReportQuery {
   public ReportDefinitionReportType getReportTypeEnum() {
     return ReportDefinitionReportType.valueOf(reportType);
   }
+
+  /**
+   * @return the date range as configured, or null if not specified
+   */
+  public String getDateRange() {
+    return dateRange;
+  }
   
   /**
    * Generates AWQL report query.
@@ -80,4 +88,37 @@ public class AwqlReportQuery {
 
     return builder.toString();
   }
+
+  /**
+   * Normalizes the AWQL query by trimming it and collapsing whitespaces outside of quoted string
+   * literals, so that the same query formatted differently maps to the same report.
+   *
+   * @param awql the AWQL query
+   * @return the normalized AWQL query
+   */
+  public static String normalize(String awql) {
+    Preconditions.checkNotNull(awql, "awql cannot be null.");
+    StringBuilder sb = new StringBuilder(awql.length());
+    char quote = 0;
+    boolean pendingSpace = false;
+    for (int i = 0; i < awql.length(); i++) {
+      char c = awql.charAt(i);
+      if (quote == 0 && Character.isWhitespace(c)) {
+        pendingSpace = sb.length() > 0;
+        continue;
+      }
+
+      if (pendingSpace) {
+        sb.append(' ');
+        pendingSpace = false;
+      }
+      if (quote == 0 && (c == '\'' || c == '"')) {
+        quote = c;
+      } else if (c == quote) {
+        quote = 0;
+      }
+      sb.append(c);
+    }
+    return sb.toString();
+  }
 }
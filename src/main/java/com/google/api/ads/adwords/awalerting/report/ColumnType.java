@@ -0,0 +1,47 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.report;
+
+/**
+ * Storage type of a column of {@link ColumnarReportData}.
+ */
+public enum ColumnType {
+  LONG,
+  DOUBLE,
+  STRING;
+
+  /**
+   * Gets the column type of a report field.
+   *
+   * @param fieldType the field type from the report definition, such as "Long" or "Money"
+   * @return the column type, STRING for unknown or missing field types
+   */
+  public static ColumnType fromFieldType(String fieldType) {
+    if (fieldType == null) {
+      return STRING;
+    }
+    switch (fieldType) {
+      case "Long":
+      case "Integer":
+      case "Money":
+      case "Bid":
+        return LONG;
+      case "Double":
+        return DOUBLE;
+      default:
+        return STRING;
+    }
+  }
+}
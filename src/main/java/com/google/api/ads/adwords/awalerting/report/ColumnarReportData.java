@@ -0,0 +1,704 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.report;
+
+import com.google.api.ads.adwords.jaxws.v201705.cm.ReportDefinitionReportType;
+import com.google.common.base.Preconditions;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Report data stored column by column, with the numeric columns stored as {@code long[]} or
+ * {@code double[]}, so that the rows don't hold one {@code String} object per cell, and the rules
+ * read the numeric values through {@link ReportRow#getLongValue(String)} and
+ * {@link ReportRow#getDoubleValue(String)} without parsing them.
+ *
+ * <p>A numeric column is stored as strings instead as soon as it gets a value whose string form
+ * would not be preserved (such as " --" or "1.50"), so that {@link #getRows()} always returns the
+ * original values. The columns appended by the alert rules are string columns.
+ *
+ * <p>If {@link StringDictionaries} are given, the string columns of the report are dictionary
+ * encoded: each row only holds the int code of its value, and each distinct value is stored once
+ * in the dictionary of the column, which may be shared by other reports. A column which turns out
+ * to have mostly distinct values is stored as strings instead.
+ *
+ * <p>{@link #getRows()} and {@link #getRow(int)} return views of the columns, which can be read
+ * and modified as before; values can only be appended to a row into the columns appended with
+ * {@link #appendNewColumn(String)}. Removing rows one by one from {@link #getRows()} moves all the
+ * following values, so use {@link #removeRows(BitSet)} instead.
+ */
+public class ColumnarReportData extends ReportData {
+  private static final int INITIAL_CAPACITY = 16;
+
+  // A dictionary encoded column is stored as strings instead if more than half of its values are
+  // new to the dictionary, once it has this many rows.
+  private static final int MIN_ROWS_FOR_CARDINALITY_CHECK = 256;
+
+  private final List<Column> columns;
+  private final int loadedColumnsCount;
+  private int rowsCount;
+
+  /**
+   * @param clientCustomerId the client customer ID of the report
+   * @param reportType the report type
+   * @param columnNames the column names
+   * @param columnTypes the column types, in the same order as the column names
+   */
+  public ColumnarReportData(
+      Long clientCustomerId,
+      ReportDefinitionReportType reportType,
+      List<String> columnNames,
+      List<ColumnType> columnTypes) {
+    this(clientCustomerId, reportType, columnNames, columnTypes, null);
+  }
+
+  /**
+   * @param clientCustomerId the client customer ID of the report
+   * @param reportType the report type
+   * @param columnNames the column names
+   * @param columnTypes the column types, in the same order as the column names
+   * @param dictionaries the dictionaries to encode the string columns with, or null to store
+   *     them as strings
+   */
+  public ColumnarReportData(
+      Long clientCustomerId,
+      ReportDefinitionReportType reportType,
+      List<String> columnNames,
+      List<ColumnType> columnTypes,
+      StringDictionaries dictionaries) {
+    super(clientCustomerId, reportType, columnNames, Collections.<List<String>>emptyList());
+    Preconditions.checkArgument(columnTypes.size() == columnNames.size(),
+        "columnTypes must have the same size as columnNames.");
+
+    this.columns = new ArrayList<Column>(columnTypes.size());
+    for (int i = 0; i < columnTypes.size(); i++) {
+      ColumnType columnType = columnTypes.get(i);
+      if (columnType == ColumnType.STRING && dictionaries != null) {
+        columns.add(
+            new DictionaryColumn(dictionaries.get(columnNames.get(i)), INITIAL_CAPACITY));
+      } else {
+        columns.add(newColumn(columnType, INITIAL_CAPACITY));
+      }
+    }
+    this.loadedColumnsCount = columnTypes.size();
+  }
+
+  private ColumnarReportData(ColumnarReportData report) {
+    super(report.getClientCustomerId(), report.getReportType(), report.getColumnNames(),
+        Collections.<List<String>>emptyList());
+    this.columns = new ArrayList<Column>(report.columns.size());
+    for (Column column : report.columns) {
+      columns.add(column.copy());
+    }
+    this.loadedColumnsCount = report.loadedColumnsCount;
+    this.rowsCount = report.rowsCount;
+  }
+
+  private static Column newColumn(ColumnType columnType, int capacity) {
+    switch (columnType) {
+      case LONG:
+        return new LongColumn(capacity);
+      case DOUBLE:
+        return new DoubleColumn(capacity);
+      default:
+        return new StringColumn(capacity);
+    }
+  }
+
+  /**
+   * @param columnName the column name
+   * @return the storage type of the column
+   */
+  public ColumnType getColumnType(String columnName) {
+    return columns.get(getColumnIndex(columnName)).getType();
+  }
+
+  /**
+   * @param columnName the column name
+   * @return whether the column is dictionary encoded
+   */
+  public boolean isDictionaryEncoded(String columnName) {
+    return columns.get(getColumnIndex(columnName)) instanceof DictionaryColumn;
+  }
+
+  @Override
+  public List<List<String>> getRows() {
+    return new AbstractList<List<String>>() {
+      @Override
+      public List<String> get(int index) {
+        return getRow(index);
+      }
+
+      @Override
+      public int size() {
+        return rowsCount;
+      }
+
+      @Override
+      public boolean add(List<String> row) {
+        addRow(row);
+        return true;
+      }
+
+      @Override
+      public List<String> remove(int index) {
+        List<String> removedRow = new ArrayList<String>(getRow(index));
+        BitSet removedRows = new BitSet();
+        removedRows.set(index);
+        removeRows(removedRows);
+        return removedRow;
+      }
+    };
+  }
+
+  @Override
+  public List<String> getRow(int index) {
+    Preconditions.checkElementIndex(index, rowsCount);
+    return new RowView(index);
+  }
+
+  @Override
+  public int getRowsCount() {
+    return rowsCount;
+  }
+
+  @Override
+  public ReportRow getReportRow(final int index) {
+    Preconditions.checkElementIndex(index, rowsCount);
+    return new ReportRow(new RowView(index), getIndexMapping()) {
+      @Override
+      public long getLongValue(String fieldName) {
+        return columns.get(getColumnIndex(fieldName)).getLong(index);
+      }
+
+      @Override
+      public double getDoubleValue(String fieldName) {
+        return columns.get(getColumnIndex(fieldName)).getDouble(index);
+      }
+    };
+  }
+
+  @Override
+  public void addRow(List<String> row) {
+    int size = row.size();
+    for (int i = 0; i < columns.size(); i++) {
+      if (i < size) {
+        appendValue(i, row.get(i));
+      } else {
+        Preconditions.checkArgument(i >= loadedColumnsCount, "The row has missing values.");
+        ((StringColumn) columns.get(i)).appendUnset();
+      }
+    }
+    rowsCount++;
+  }
+
+  private void appendValue(int columnIndex, String value) {
+    Column column = columns.get(columnIndex);
+    if (!column.append(value)) {
+      column = StringColumn.copyOf(column);
+      column.append(value);
+      columns.set(columnIndex, column);
+    }
+  }
+
+  private void setValue(int rowIndex, int columnIndex, String value) {
+    Column column = columns.get(columnIndex);
+    if (!column.set(rowIndex, value)) {
+      column = StringColumn.copyOf(column);
+      column.set(rowIndex, value);
+      columns.set(columnIndex, column);
+    }
+  }
+
+  @Override
+  public void appendNewColumn(String columnName) {
+    super.appendNewColumn(columnName);
+    columns.add(StringColumn.newAppendedColumn(rowsCount));
+  }
+
+  @Override
+  public void removeRows(BitSet removedRows) {
+    if (removedRows.isEmpty()) {
+      return;
+    }
+    for (Column column : columns) {
+      column.removeRows(removedRows, rowsCount);
+    }
+    rowsCount -= removedRows.get(0, rowsCount).cardinality();
+  }
+
+  @Override
+  public long getEstimatedBytes() {
+    long bytes = 0;
+    for (Column column : columns) {
+      bytes += column.getEstimatedBytes();
+    }
+    return bytes;
+  }
+
+  @Override
+  public long getEstimatedViewBytes() {
+    long bytes = 0;
+    for (Column column : columns) {
+      bytes += column.getEstimatedCopyBytes();
+    }
+    return bytes;
+  }
+
+  /**
+   * Creates a copy of this report, which is cheap since the numeric columns are arrays of
+   * primitives and the string values are shared.
+   */
+  @Override
+  public ReportData newCopyOnWriteView() {
+    return new ColumnarReportData(this);
+  }
+
+  /**
+   * The row view of the columns, whose size is the number of loaded columns plus the number of
+   * appended columns that have a value for this row.
+   */
+  private class RowView extends AbstractList<String> implements RandomAccess {
+    private final int rowIndex;
+
+    RowView(int rowIndex) {
+      this.rowIndex = rowIndex;
+    }
+
+    @Override
+    public String get(int index) {
+      Preconditions.checkElementIndex(index, size());
+      return columns.get(index).getString(rowIndex);
+    }
+
+    @Override
+    public String set(int index, String element) {
+      String previous = get(index);
+      setValue(rowIndex, index, element);
+      return previous;
+    }
+
+    @Override
+    public void add(int index, String element) {
+      int size = size();
+      Preconditions.checkArgument(index == size, "Values can only be appended to the row.");
+      Preconditions.checkState(size < columns.size(),
+          "No column to append the value into, the column must be appended beforehand.");
+      ((StringColumn) columns.get(size)).set(rowIndex, element);
+    }
+
+    @Override
+    public int size() {
+      int size = loadedColumnsCount;
+      while (size < columns.size() && ((StringColumn) columns.get(size)).isSet(rowIndex)) {
+        size++;
+      }
+      return size;
+    }
+  }
+
+  /**
+   * A column of values, stored from index 0 to its size.
+   */
+  private abstract static class Column {
+    protected int size;
+
+    abstract ColumnType getType();
+
+    abstract String getString(int index);
+
+    /**
+     * @return the estimated number of bytes of the values, not counting the shared dictionaries
+     */
+    abstract long getEstimatedBytes();
+
+    /**
+     * @return the estimated number of bytes of a copy of this column, see {@link #copy()}
+     */
+    long getEstimatedCopyBytes() {
+      return getEstimatedBytes();
+    }
+
+    long getLong(int index) {
+      return Long.parseLong(getString(index));
+    }
+
+    double getDouble(int index) {
+      String value = getString(index);
+      if (value == null) {
+        throw new NumberFormatException("null");
+      }
+      return Double.parseDouble(value);
+    }
+
+    /**
+     * @return false if the value cannot be stored by this column type, the column is unchanged
+     */
+    abstract boolean set(int index, String value);
+
+    boolean append(String value) {
+      ensureCapacity(size + 1);
+      if (!set(size, value)) {
+        return false;
+      }
+      size++;
+      return true;
+    }
+
+    abstract void ensureCapacity(int capacity);
+
+    abstract void move(int from, int to);
+
+    abstract Column copy();
+
+    void removeRows(BitSet removedRows, int rowsCount) {
+      int kept = 0;
+      for (int i = 0; i < size; i++) {
+        if (i >= rowsCount || !removedRows.get(i)) {
+          if (kept != i) {
+            move(i, kept);
+          }
+          kept++;
+        }
+      }
+      size = kept;
+    }
+
+    static int grow(int length, int capacity) {
+      return Math.max(capacity, length + (length >> 1) + 1);
+    }
+  }
+
+  private static class LongColumn extends Column {
+    private long[] values;
+
+    LongColumn(int capacity) {
+      values = new long[capacity];
+    }
+
+    @Override
+    ColumnType getType() {
+      return ColumnType.LONG;
+    }
+
+    @Override
+    long getEstimatedBytes() {
+      return 8L * values.length;
+    }
+
+    @Override
+    String getString(int index) {
+      return Long.toString(values[index]);
+    }
+
+    @Override
+    long getLong(int index) {
+      return values[index];
+    }
+
+    @Override
+    double getDouble(int index) {
+      return values[index];
+    }
+
+    @Override
+    boolean set(int index, String value) {
+      if (value == null || value.isEmpty()) {
+        return false;
+      }
+      long longValue;
+      try {
+        longValue = Long.parseLong(value);
+      } catch (NumberFormatException e) {
+        return false;
+      }
+      // Values like "+1" or "007" would not be read back as they were.
+      if (!Long.toString(longValue).equals(value)) {
+        return false;
+      }
+      values[index] = longValue;
+      return true;
+    }
+
+    @Override
+    void ensureCapacity(int capacity) {
+      if (capacity > values.length) {
+        values = Arrays.copyOf(values, grow(values.length, capacity));
+      }
+    }
+
+    @Override
+    void move(int from, int to) {
+      values[to] = values[from];
+    }
+
+    @Override
+    Column copy() {
+      LongColumn copy = new LongColumn(0);
+      copy.values = Arrays.copyOf(values, size);
+      copy.size = size;
+      return copy;
+    }
+  }
+
+  private static class DoubleColumn extends Column {
+    private double[] values;
+
+    DoubleColumn(int capacity) {
+      values = new double[capacity];
+    }
+
+    @Override
+    ColumnType getType() {
+      return ColumnType.DOUBLE;
+    }
+
+    @Override
+    long getEstimatedBytes() {
+      return 8L * values.length;
+    }
+
+    @Override
+    String getString(int index) {
+      return Double.toString(values[index]);
+    }
+
+    @Override
+    double getDouble(int index) {
+      return values[index];
+    }
+
+    @Override
+    boolean set(int index, String value) {
+      if (value == null || value.isEmpty()) {
+        return false;
+      }
+      double doubleValue;
+      try {
+        doubleValue = Double.parseDouble(value);
+      } catch (NumberFormatException e) {
+        return false;
+      }
+      // Values like "1.50" or "12" would not be read back as they were.
+      if (!Double.toString(doubleValue).equals(value)) {
+        return false;
+      }
+      values[index] = doubleValue;
+      return true;
+    }
+
+    @Override
+    void ensureCapacity(int capacity) {
+      if (capacity > values.length) {
+        values = Arrays.copyOf(values, grow(values.length, capacity));
+      }
+    }
+
+    @Override
+    void move(int from, int to) {
+      values[to] = values[from];
+    }
+
+    @Override
+    Column copy() {
+      DoubleColumn copy = new DoubleColumn(0);
+      copy.values = Arrays.copyOf(values, size);
+      copy.size = size;
+      return copy;
+    }
+  }
+
+  private static class DictionaryColumn extends Column {
+    private final StringDictionary dictionary;
+    private int[] codes;
+
+    // The number of values that were new to the dictionary when appended.
+    private int newValuesCount;
+
+    DictionaryColumn(StringDictionary dictionary, int capacity) {
+      this.dictionary = dictionary;
+      this.codes = new int[capacity];
+    }
+
+    @Override
+    ColumnType getType() {
+      return ColumnType.STRING;
+    }
+
+    @Override
+    long getEstimatedBytes() {
+      return 4L * codes.length;
+    }
+
+    @Override
+    String getString(int index) {
+      return dictionary.decode(codes[index]);
+    }
+
+    @Override
+    boolean set(int index, String value) {
+      codes[index] = dictionary.encode(value);
+      return true;
+    }
+
+    @Override
+    boolean append(String value) {
+      if (size >= MIN_ROWS_FOR_CARDINALITY_CHECK && newValuesCount * 2 > size) {
+        return false;
+      }
+      ensureCapacity(size + 1);
+      // Codes are given in sequence, so a code not below the previous size is a new value.
+      int previousSize = dictionary.size();
+      int code = dictionary.encode(value);
+      if (code >= previousSize) {
+        newValuesCount++;
+      }
+      codes[size++] = code;
+      return true;
+    }
+
+    @Override
+    void ensureCapacity(int capacity) {
+      if (capacity > codes.length) {
+        codes = Arrays.copyOf(codes, grow(codes.length, capacity));
+      }
+    }
+
+    @Override
+    void move(int from, int to) {
+      codes[to] = codes[from];
+    }
+
+    @Override
+    Column copy() {
+      DictionaryColumn copy = new DictionaryColumn(dictionary, 0);
+      copy.codes = Arrays.copyOf(codes, size);
+      copy.size = size;
+      copy.newValuesCount = newValuesCount;
+      return copy;
+    }
+  }
+
+  private static class StringColumn extends Column {
+    private String[] values;
+
+    // The rows which have a value, only tracked for the appended columns.
+    private BitSet setRows;
+
+    StringColumn(int capacity) {
+      values = new String[capacity];
+    }
+
+    static StringColumn copyOf(Column column) {
+      StringColumn copy = new StringColumn(column.size + 1);
+      for (int i = 0; i < column.size; i++) {
+        copy.values[i] = column.getString(i);
+      }
+      copy.size = column.size;
+      return copy;
+    }
+
+    static StringColumn newAppendedColumn(int rowsCount) {
+      StringColumn column = new StringColumn(rowsCount);
+      column.size = rowsCount;
+      column.setRows = new BitSet(rowsCount);
+      return column;
+    }
+
+    boolean isSet(int index) {
+      return setRows == null || setRows.get(index);
+    }
+
+    void appendUnset() {
+      ensureCapacity(size + 1);
+      values[size++] = null;
+    }
+
+    @Override
+    ColumnType getType() {
+      return ColumnType.STRING;
+    }
+
+    @Override
+    long getEstimatedBytes() {
+      long bytes = (long) REFERENCE_BYTES * (values.length - size);
+      for (int i = 0; i < size; i++) {
+        bytes += estimateBytes(values[i]);
+      }
+      return bytes;
+    }
+
+    @Override
+    long getEstimatedCopyBytes() {
+      // The copy shares the string values.
+      return (long) REFERENCE_BYTES * size;
+    }
+
+    @Override
+    String getString(int index) {
+      return values[index];
+    }
+
+    @Override
+    boolean set(int index, String value) {
+      values[index] = value;
+      if (setRows != null) {
+        setRows.set(index);
+      }
+      return true;
+    }
+
+    @Override
+    void ensureCapacity(int capacity) {
+      if (capacity > values.length) {
+        values = Arrays.copyOf(values, grow(values.length, capacity));
+      }
+    }
+
+    @Override
+    void move(int from, int to) {
+      values[to] = values[from];
+      if (setRows != null) {
+        setRows.set(to, setRows.get(from));
+      }
+    }
+
+    @Override
+    void removeRows(BitSet removedRows, int rowsCount) {
+      int oldSize = size;
+      super.removeRows(removedRows, rowsCount);
+      // Releases the removed values.
+      Arrays.fill(values, size, oldSize, null);
+      if (setRows != null) {
+        setRows.clear(size, oldSize);
+      }
+    }
+
+    @Override
+    Column copy() {
+      StringColumn copy = new StringColumn(0);
+      copy.values = Arrays.copyOf(values, size);
+      copy.size = size;
+      copy.setRows = setRows == null ? null : (BitSet) setRows.clone();
+      return copy;
+    }
+  }
+}
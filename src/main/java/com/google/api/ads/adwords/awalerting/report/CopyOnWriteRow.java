@@ -0,0 +1,72 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.report;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Report row that reads the values of a shared row, and copies them on the first modification so
+ * the shared row is never altered.
+ */
+class CopyOnWriteRow extends AbstractList<String> implements RandomAccess {
+  private List<String> values;
+  private boolean copied;
+
+  /**
+   * @param sharedValues the shared row values, which must not be modified afterwards
+   */
+  CopyOnWriteRow(List<String> sharedValues) {
+    this.values = sharedValues;
+  }
+
+  @Override
+  public String get(int index) {
+    return values.get(index);
+  }
+
+  @Override
+  public int size() {
+    return values.size();
+  }
+
+  @Override
+  public String set(int index, String element) {
+    return ownValues().set(index, element);
+  }
+
+  @Override
+  public void add(int index, String element) {
+    ownValues().add(index, element);
+  }
+
+  @Override
+  public String remove(int index) {
+    return ownValues().remove(index);
+  }
+
+  private List<String> ownValues() {
+    if (!copied) {
+      List<String> ownValues =
+          new ArrayList<String>(values.size() + ReportDataLoader.APPENDED_COLUMNS_HEADROOM);
+      ownValues.addAll(values);
+      values = ownValues;
+      copied = true;
+    }
+    return values;
+  }
+}
@@ -0,0 +1,311 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.report;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * CSV reader that finds the separators, quotes and line breaks over the raw bytes of the stream,
+ * instead of decoding the whole stream into chars first. Each cell is only decoded into a
+ * {@code String} when it's read, always as UTF-8, and cells that only contain ASCII bytes take a
+ * fast path.
+ *
+ * <p>Cells are separated by commas; a cell can be quoted with double quotes, in which case it can
+ * contain commas, line breaks, and double quotes written twice. Lines end with "\n" or "\r\n".
+ *
+ * <p>The bytes are read into a large buffer, which is reused by the next reader on the same thread
+ * once this one is closed. Reading stops with an {@link InterruptedIOException} once the thread is
+ * interrupted, e.g. when the download is cancelled. This class is not thread safe.
+ */
+public final class CsvRowReader implements Closeable {
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private static final byte SEPARATOR = ',';
+  private static final byte QUOTE = '"';
+
+  private static final int QUOTED = 1;
+  private static final int NON_ASCII = 2;
+
+  private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>();
+
+  private final InputStream stream;
+  private byte[] buffer;
+  private int limit;
+  private boolean endOfStream;
+  private boolean started;
+
+  // The current record: its start in the buffer, the end of its line break, and the raw range and
+  // flags of each of its cells.
+  private int recordStart;
+  private int recordEnd;
+  private int cellsCount;
+  private int[] cellStarts = new int[32];
+  private int[] cellEnds = new int[32];
+  private int[] cellFlags = new int[32];
+
+  /**
+   * @param stream the CSV stream, which is closed with this reader
+   */
+  public CsvRowReader(InputStream stream) {
+    this.stream = stream;
+    byte[] reusedBuffer = buffers.get();
+    if (reusedBuffer != null) {
+      buffers.remove();
+      this.buffer = reusedBuffer;
+    } else {
+      this.buffer = new byte[BUFFER_SIZE];
+    }
+  }
+
+  /**
+   * Reads the next record.
+   *
+   * @return the values of the next record, which are only valid until the next call, or null at
+   *     the end of the stream
+   */
+  public List<String> readNext() throws IOException {
+    if (!started) {
+      started = true;
+      skipByteOrderMark();
+    }
+    recordStart = recordEnd;
+    while (!parseRecord()) {
+      fill();
+    }
+    return cellsCount == 0 ? null : new Row();
+  }
+
+  /**
+   * Parses the record at {@code recordStart}.
+   *
+   * @return false if more bytes are needed to know where the record ends
+   */
+  private boolean parseRecord() {
+    cellsCount = 0;
+    if (recordStart == limit && endOfStream) {
+      recordEnd = recordStart;
+      return true;
+    }
+
+    int position = recordStart;
+    int cellStart = position;
+    int flags = 0;
+    boolean inQuotes = false;
+    while (true) {
+      if (position == limit) {
+        if (!endOfStream) {
+          return false;
+        }
+        addCell(cellStart, position, flags);
+        recordEnd = position;
+        return true;
+      }
+
+      byte b = buffer[position];
+      if (inQuotes) {
+        if (b == QUOTE) {
+          if (position + 1 == limit && !endOfStream) {
+            return false;
+          }
+          if (position + 1 < limit && buffer[position + 1] == QUOTE) {
+            position += 2;
+            continue;
+          }
+          inQuotes = false;
+        } else if (b < 0) {
+          flags |= NON_ASCII;
+        }
+        position++;
+      } else if (b == SEPARATOR) {
+        addCell(cellStart, position, flags);
+        position++;
+        cellStart = position;
+        flags = 0;
+      } else if (b == '\n' || b == '\r') {
+        if (b == '\r' && position + 1 == limit && !endOfStream) {
+          return false;
+        }
+        addCell(cellStart, position, flags);
+        position++;
+        if (b == '\r' && position < limit && buffer[position] == '\n') {
+          position++;
+        }
+        recordEnd = position;
+        return true;
+      } else {
+        if (b == QUOTE) {
+          inQuotes = true;
+          flags |= QUOTED;
+        } else if (b < 0) {
+          flags |= NON_ASCII;
+        }
+        position++;
+      }
+    }
+  }
+
+  private void addCell(int start, int end, int flags) {
+    if (cellsCount == cellStarts.length) {
+      int capacity = cellsCount * 2;
+      cellStarts = Arrays.copyOf(cellStarts, capacity);
+      cellEnds = Arrays.copyOf(cellEnds, capacity);
+      cellFlags = Arrays.copyOf(cellFlags, capacity);
+    }
+    cellStarts[cellsCount] = start;
+    cellEnds[cellsCount] = end;
+    cellFlags[cellsCount] = flags;
+    cellsCount++;
+  }
+
+  /**
+   * Moves the current record to the start of the buffer, growing it if the record fills it, and
+   * reads more bytes after it.
+   */
+  private void fill() throws IOException {
+    if (Thread.currentThread().isInterrupted()) {
+      throw new InterruptedIOException("Interrupted while reading CSV stream.");
+    }
+    int length = limit - recordStart;
+    if (recordStart > 0) {
+      System.arraycopy(buffer, recordStart, buffer, 0, length);
+    } else if (length == buffer.length) {
+      buffer = Arrays.copyOf(buffer, buffer.length * 2);
+    }
+    recordStart = 0;
+    recordEnd = 0;
+    limit = length;
+
+    int read = stream.read(buffer, limit, buffer.length - limit);
+    if (read < 0) {
+      endOfStream = true;
+    } else {
+      limit += read;
+    }
+  }
+
+  /**
+   * Skips the UTF-8 byte order mark at the start of the stream, if any.
+   */
+  private void skipByteOrderMark() throws IOException {
+    while (limit < 3 && !endOfStream) {
+      fill();
+    }
+    if (limit >= 3 && buffer[0] == (byte) 0xEF && buffer[1] == (byte) 0xBB
+        && buffer[2] == (byte) 0xBF) {
+      recordEnd = 3;
+    }
+  }
+
+  /**
+   * @param index the 0-based index of the cell in the current record
+   * @return the decoded value of the cell
+   */
+  String getValue(int index) {
+    int start = cellStarts[index];
+    int end = cellEnds[index];
+    int flags = cellFlags[index];
+    if ((flags & QUOTED) != 0) {
+      byte[] bytes = unquote(start, end);
+      return decode(bytes, 0, bytes.length, flags);
+    }
+    return decode(buffer, start, end - start, flags);
+  }
+
+  /**
+   * @param index the 0-based index of the cell in the current record
+   * @return the UTF-8 bytes of the cell, without decoding them
+   */
+  byte[] getBytes(int index) {
+    int start = cellStarts[index];
+    int end = cellEnds[index];
+    if ((cellFlags[index] & QUOTED) != 0) {
+      return unquote(start, end);
+    }
+    return Arrays.copyOfRange(buffer, start, end);
+  }
+
+  private static String decode(byte[] bytes, int offset, int length, int flags) {
+    // ASCII bytes are decoded the same way as ISO-8859-1, which is a plain copy.
+    return new String(bytes, offset, length,
+        (flags & NON_ASCII) == 0 ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Removes the quotes around (or within) a quoted cell, and the escaping of its quotes.
+   */
+  private byte[] unquote(int start, int end) {
+    byte[] bytes = new byte[end - start];
+    int length = 0;
+    boolean inQuotes = false;
+    for (int i = start; i < end; i++) {
+      byte b = buffer[i];
+      if (b != QUOTE) {
+        bytes[length++] = b;
+      } else if (inQuotes && i + 1 < end && buffer[i + 1] == QUOTE) {
+        bytes[length++] = QUOTE;
+        i++;
+      } else {
+        inQuotes = !inQuotes;
+      }
+    }
+    return Arrays.copyOf(bytes, length);
+  }
+
+  /**
+   * Closes the stream, and keeps the buffer for the next reader on this thread.
+   */
+  @Override
+  public void close() throws IOException {
+    if (buffer != null && buffer.length == BUFFER_SIZE) {
+      buffers.set(buffer);
+    }
+    buffer = null;
+    stream.close();
+  }
+
+  /**
+   * The values of the current record, decoded when they are read.
+   */
+  final class Row extends AbstractList<String> implements RandomAccess {
+    @Override
+    public String get(int index) {
+      if (index < 0 || index >= cellsCount) {
+        throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + cellsCount);
+      }
+      return getValue(index);
+    }
+
+    @Override
+    public int size() {
+      return cellsCount;
+    }
+
+    /**
+     * @param index the 0-based index of the cell
+     * @return the UTF-8 bytes of the cell
+     */
+    byte[] getBytes(int index) {
+      return CsvRowReader.this.getBytes(index);
+    }
+  }
+}
@@ -0,0 +1,36 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.report;
+
+/**
+ * Which reports share the dictionaries of the string columns of {@link ColumnarReportData}.
+ */
+public enum DictionaryScope {
+  /**
+   * The string columns are not dictionary encoded.
+   */
+  NONE,
+
+  /**
+   * Each report has its own dictionaries. This is the default.
+   */
+  REPORT,
+
+  /**
+   * All reports of the run share the same dictionaries, so that the values repeated across
+   * accounts, such as device or network names, are stored once.
+   */
+  RUN
+}
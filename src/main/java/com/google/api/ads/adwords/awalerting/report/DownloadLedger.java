@@ -0,0 +1,271 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.report;
+
+import com.google.common.base.Preconditions;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Process-wide ledger of the past report downloads of each account: the compressed bytes, the
+ * rows and the latency of the last downloads, per report type. It's used to download the reports
+ * that are expected to take the longest first, so that a few large accounts do not start last and
+ * stretch the run while the other download threads are idle.
+ *
+ * <p>The downloads of a run are recorded as they complete, but only taken into account once the
+ * run is over (see {@link #commitRun()}), each as a moving average with the previous runs. If a
+ * file is specified, the ledger is loaded from it on creation, and saved into it after each run.
+ *
+ * <p>This class is thread safe.
+ */
+public class DownloadLedger {
+  private static final Logger LOGGER = LoggerFactory.getLogger(DownloadLedger.class);
+
+  private static final String BYTES_TAG = "Bytes";
+  private static final String ROWS_TAG = "Rows";
+  private static final String LATENCY_MILLIS_TAG = "LatencyMillis";
+
+  // Weight of the latest run in the moving averages.
+  private static final double LATEST_RUN_WEIGHT = 0.5;
+
+  private final Path file;
+
+  // The downloads of the previous runs, and of the current run, by report type and account.
+  private final Map<String, Map<Long, Entry>> entries = new HashMap<String, Map<Long, Entry>>();
+  private final Map<String, Map<Long, Entry>> runEntries = new HashMap<String, Map<Long, Entry>>();
+
+  /**
+   * @param file the file to load the ledger from and save it into, could be null
+   */
+  public DownloadLedger(Path file) {
+    this.file = file;
+    if (file != null && Files.exists(file)) {
+      try {
+        load();
+        LOGGER.info("Loaded download ledger of {} report types from {}.", entries.size(), file);
+      } catch (IOException | RuntimeException e) {
+        LOGGER.warn("Failed to load download ledger from {}, ignoring it.", file, e);
+      }
+    }
+  }
+
+  /**
+   * Records a completed download of the current run. If the same report type is downloaded more
+   * than once for the account in a run (e.g. by alerts with different queries), the largest values
+   * are kept.
+   *
+   * @param reportType the report type
+   * @param clientCustomerId the account of the report
+   * @param bytes the compressed bytes of the report
+   * @param rows the rows of the report
+   * @param latencyMillis the time from the start of the download until the report was loaded
+   */
+  public synchronized void record(String reportType, Long clientCustomerId, long bytes, int rows,
+      long latencyMillis) {
+    Preconditions.checkNotNull(reportType, "reportType cannot be null.");
+    Preconditions.checkNotNull(clientCustomerId, "clientCustomerId cannot be null.");
+    Map<Long, Entry> reportTypeEntries = runEntries.get(reportType);
+    if (reportTypeEntries == null) {
+      reportTypeEntries = new HashMap<Long, Entry>();
+      runEntries.put(reportType, reportTypeEntries);
+    }
+    Entry entry = new Entry(bytes, rows, latencyMillis);
+    Entry previous = reportTypeEntries.get(clientCustomerId);
+    reportTypeEntries.put(clientCustomerId, previous == null ? entry : new Entry(
+        Math.max(previous.bytes, bytes),
+        Math.max(previous.rows, rows),
+        Math.max(previous.latencyMillis, latencyMillis)));
+  }
+
+  /**
+   * Orders the accounts by expected download latency, the longest first. The accounts without
+   * past downloads of the report type are expected to take the average latency of the others;
+   * accounts expected to take the same time keep their order.
+   *
+   * @param reportType the report type
+   * @param clientCustomerIds the accounts to download the report for
+   * @return the ordered accounts
+   */
+  public Set<Long> orderLongestFirst(String reportType, Collection<Long> clientCustomerIds) {
+    final Map<Long, Long> expectedMillis = new HashMap<Long, Long>();
+    long defaultMillis;
+    synchronized (this) {
+      Map<Long, Entry> reportTypeEntries = entries.get(reportType);
+      if (reportTypeEntries == null || reportTypeEntries.isEmpty()) {
+        return new LinkedHashSet<Long>(clientCustomerIds);
+      }
+
+      long totalMillis = 0;
+      for (Entry entry : reportTypeEntries.values()) {
+        totalMillis += entry.latencyMillis;
+      }
+      defaultMillis = totalMillis / reportTypeEntries.size();
+      for (Long clientCustomerId : clientCustomerIds) {
+        Entry entry = reportTypeEntries.get(clientCustomerId);
+        expectedMillis.put(clientCustomerId, entry == null ? defaultMillis : entry.latencyMillis);
+      }
+    }
+
+    List<Long> orderedIds = new ArrayList<Long>(clientCustomerIds);
+    Collections.sort(orderedIds, new Comparator<Long>() {
+      @Override
+      public int compare(Long id1, Long id2) {
+        return Long.compare(expectedMillis.get(id2), expectedMillis.get(id1));
+      }
+    });
+    return new LinkedHashSet<Long>(orderedIds);
+  }
+
+  /**
+   * Merges the downloads of the current run into the ledger, and saves it into the file if there
+   * is one.
+   */
+  public void commitRun() {
+    JsonObject json;
+    synchronized (this) {
+      if (runEntries.isEmpty()) {
+        return;
+      }
+      for (Map.Entry<String, Map<Long, Entry>> runEntry : runEntries.entrySet()) {
+        Map<Long, Entry> reportTypeEntries = entries.get(runEntry.getKey());
+        if (reportTypeEntries == null) {
+          reportTypeEntries = new HashMap<Long, Entry>();
+          entries.put(runEntry.getKey(), reportTypeEntries);
+        }
+        for (Map.Entry<Long, Entry> accountEntry : runEntry.getValue().entrySet()) {
+          Entry previous = reportTypeEntries.get(accountEntry.getKey());
+          Entry latest = accountEntry.getValue();
+          reportTypeEntries.put(accountEntry.getKey(),
+              previous == null ? latest : previous.average(latest));
+        }
+      }
+      runEntries.clear();
+      json = toJson();
+    }
+
+    if (file != null) {
+      save(json);
+    }
+  }
+
+  /**
+   * @return the number of accounts with past downloads of the report type
+   */
+  public synchronized int getAccountsCount(String reportType) {
+    Map<Long, Entry> reportTypeEntries = entries.get(reportType);
+    return reportTypeEntries == null ? 0 : reportTypeEntries.size();
+  }
+
+  private void load() throws IOException {
+    try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      JsonObject json = new JsonParser().parse(reader).getAsJsonObject();
+      for (Map.Entry<String, JsonElement> reportTypeJson : json.entrySet()) {
+        Map<Long, Entry> reportTypeEntries = new HashMap<Long, Entry>();
+        for (Map.Entry<String, JsonElement> accountJson :
+            reportTypeJson.getValue().getAsJsonObject().entrySet()) {
+          JsonObject entryJson = accountJson.getValue().getAsJsonObject();
+          reportTypeEntries.put(Long.valueOf(accountJson.getKey()), new Entry(
+              entryJson.get(BYTES_TAG).getAsLong(),
+              entryJson.get(ROWS_TAG).getAsInt(),
+              entryJson.get(LATENCY_MILLIS_TAG).getAsLong()));
+        }
+        entries.put(reportTypeJson.getKey(), reportTypeEntries);
+      }
+    }
+  }
+
+  private JsonObject toJson() {
+    JsonObject json = new JsonObject();
+    for (Map.Entry<String, Map<Long, Entry>> reportTypeEntries : entries.entrySet()) {
+      JsonObject reportTypeJson = new JsonObject();
+      for (Map.Entry<Long, Entry> accountEntry : reportTypeEntries.getValue().entrySet()) {
+        Entry entry = accountEntry.getValue();
+        JsonObject entryJson = new JsonObject();
+        entryJson.addProperty(BYTES_TAG, entry.bytes);
+        entryJson.addProperty(ROWS_TAG, entry.rows);
+        entryJson.addProperty(LATENCY_MILLIS_TAG, entry.latencyMillis);
+        reportTypeJson.add(String.valueOf(accountEntry.getKey()), entryJson);
+      }
+      json.add(reportTypeEntries.getKey(), reportTypeJson);
+    }
+    return json;
+  }
+
+  /**
+   * Writes the ledger into the file, through a temporary file so that readers never see a partial
+   * file.
+   */
+  private synchronized void save(JsonObject json) {
+    try {
+      Path parent = file.toAbsolutePath().getParent();
+      Files.createDirectories(parent);
+      Path tempFile = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+      try {
+        try (Writer writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+          writer.write(json.toString());
+        }
+        Files.move(tempFile, file,
+            StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } finally {
+        Files.deleteIfExists(tempFile);
+      }
+    } catch (IOException e) {
+      LOGGER.warn("Failed to save download ledger into {}.", file, e);
+    }
+  }
+
+  private static class Entry {
+    private final long bytes;
+    private final int rows;
+    private final long latencyMillis;
+
+    Entry(long bytes, int rows, long latencyMillis) {
+      this.bytes = bytes;
+      this.rows = rows;
+      this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * @return the moving average of this entry and the one of the latest run
+     */
+    Entry average(Entry latest) {
+      return new Entry(
+          Math.round(bytes + LATEST_RUN_WEIGHT * (latest.bytes - bytes)),
+          (int) Math.round(rows + LATEST_RUN_WEIGHT * (latest.rows - rows)),
+          Math.round(latencyMillis + LATEST_RUN_WEIGHT * (latest.latencyMillis - latencyMillis)));
+    }
+  }
+}
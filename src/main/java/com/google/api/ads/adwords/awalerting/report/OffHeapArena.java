@@ -0,0 +1,340 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.report;
+
+import com.google.common.base.Preconditions;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Append-only storage of rows in direct {@link ByteBuffer} chunks, outside the Java heap. Each
+ * row is written as its number of cells, followed by each cell as its length and its UTF-8 bytes
+ * (a length of -1 is a null cell), and is identified by its address: the chunk index in the high
+ * 32 bits, and the offset in the chunk in the low 32 bits.
+ *
+ * <p>Rows are never modified in place: a modified row is written again, and its old version is
+ * only reclaimed with the whole arena.
+ *
+ * <p>An arena can also be spilled to disk (see {@link #spill(List, Path, long[])}): its rows are
+ * then written into a temporary file in the same format, which is memory-mapped read-only, so the
+ * operating system pages the rows in and out as they are read.
+ *
+ * <p>The arena is reference counted, since it's shared by the copy-on-write views of a report;
+ * the last {@link #release()} returns its chunks to a small process-wide pool, so that the next
+ * reports reuse them instead of waiting for the garbage collector to free the direct memory.
+ *
+ * <p>This class is thread safe.
+ */
+final class OffHeapArena {
+  static final int CHUNK_SIZE = 1 << 20;
+
+  // The size of the regions of a spill file mapped at once, unless a row is larger.
+  private static final int MAPPED_REGION_SIZE = 64 << 20;
+
+  // At most this many released chunks are kept for reuse.
+  private static final int MAX_POOLED_CHUNKS = 64;
+
+  private static final Queue<ByteBuffer> pooledChunks = new ConcurrentLinkedQueue<ByteBuffer>();
+  private static final AtomicInteger pooledChunksCount = new AtomicInteger();
+
+  // Written under the lock, and read after getting an address, which is published after its chunk
+  // was written. Set to null once released.
+  private volatile ByteBuffer[] chunks = new ByteBuffer[4];
+  private int chunksCount;
+  private int position;
+  private long allocatedBytes;
+  private int references = 1;
+
+  OffHeapArena() {}
+
+  private OffHeapArena(List<ByteBuffer> mappedChunks) {
+    chunks = mappedChunks.toArray(new ByteBuffer[Math.max(mappedChunks.size(), 4)]);
+    chunksCount = mappedChunks.size();
+    // The mapped chunks are read-only, so the rows written later go into new chunks.
+    position = chunksCount == 0 ? 0 : chunks[chunksCount - 1].capacity();
+  }
+
+  /**
+   * Writes rows into a temporary file, and maps it as a new arena. The file is deleted right
+   * away where the operating system allows it, otherwise when the JVM exits.
+   *
+   * @param rows the rows to write
+   * @param directory the directory of the temporary file
+   * @param rowAddresses receives the address of each row, in the same order
+   * @return the arena of the mapped file
+   */
+  static OffHeapArena spill(List<List<String>> rows, Path directory, long[] rowAddresses)
+      throws IOException {
+    Path file = Files.createTempFile(directory, "aw-alerting-report", ".spill");
+    try {
+      // The [start, end) file positions of the regions to map.
+      List<long[]> regions = new ArrayList<long[]>();
+      long regionStart = 0;
+      long filePosition = 0;
+      try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+          Files.newOutputStream(file, StandardOpenOption.WRITE)))) {
+        int index = 0;
+        for (List<String> row : rows) {
+          byte[][] cells = encode(row);
+          int length = getLength(cells);
+          if (filePosition > regionStart && filePosition + length - regionStart
+              > MAPPED_REGION_SIZE) {
+            regions.add(new long[] {regionStart, filePosition});
+            regionStart = filePosition;
+          }
+          rowAddresses[index++] = ((long) regions.size() << 32) | (filePosition - regionStart);
+          output.writeInt(cells.length);
+          for (byte[] cell : cells) {
+            if (cell == null) {
+              output.writeInt(-1);
+            } else {
+              output.writeInt(cell.length);
+              output.write(cell);
+            }
+          }
+          filePosition += length;
+        }
+      }
+      if (filePosition > regionStart) {
+        regions.add(new long[] {regionStart, filePosition});
+      }
+
+      List<ByteBuffer> mappedChunks = new ArrayList<ByteBuffer>(regions.size());
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+        for (long[] region : regions) {
+          mappedChunks.add(channel.map(MapMode.READ_ONLY, region[0], region[1] - region[0]));
+        }
+      }
+      return new OffHeapArena(mappedChunks);
+    } finally {
+      try {
+        Files.delete(file);
+      } catch (IOException e) {
+        // Mapped files cannot be deleted on some systems.
+        file.toFile().deleteOnExit();
+      }
+    }
+  }
+
+  /**
+   * Writes a row into the arena.
+   *
+   * @param values the values of the row, which could be null
+   * @return the address of the row
+   */
+  long write(List<String> values) {
+    byte[][] cells = encode(values);
+    long address = allocate(getLength(cells));
+    ByteBuffer buffer = getChunk(address).duplicate();
+    buffer.position(getOffset(address));
+    buffer.putInt(cells.length);
+    for (byte[] cell : cells) {
+      if (cell == null) {
+        buffer.putInt(-1);
+      } else {
+        buffer.putInt(cell.length);
+        buffer.put(cell);
+      }
+    }
+    return address;
+  }
+
+  private static byte[][] encode(List<String> values) {
+    int size = values.size();
+    byte[][] cells = new byte[size][];
+    if (values instanceof CsvRowReader.Row) {
+      // The CSV bytes are copied as they are, without decoding them.
+      for (int i = 0; i < size; i++) {
+        cells[i] = ((CsvRowReader.Row) values).getBytes(i);
+      }
+      return cells;
+    }
+    for (int i = 0; i < size; i++) {
+      String value = values.get(i);
+      if (value != null) {
+        cells[i] = value.getBytes(StandardCharsets.UTF_8);
+      }
+    }
+    return cells;
+  }
+
+  /**
+   * @return the number of bytes of the encoded row
+   */
+  private static int getLength(byte[][] cells) {
+    int length = 4;
+    for (byte[] cell : cells) {
+      length += 4 + (cell == null ? 0 : cell.length);
+    }
+    return length;
+  }
+
+  /**
+   * @param address the address of the row
+   * @return the number of cells of the row
+   */
+  int getCellsCount(long address) {
+    return getChunk(address).getInt(getOffset(address));
+  }
+
+  /**
+   * @param address the address of the row
+   * @param index the 0-based index of the cell in the row
+   * @return the value of the cell
+   */
+  String readCell(long address, int index) {
+    ByteBuffer chunk = getChunk(address);
+    int offset = getOffset(address) + 4;
+    for (int i = 0; i < index; i++) {
+      offset += 4 + Math.max(chunk.getInt(offset), 0);
+    }
+    return readValue(chunk, offset);
+  }
+
+  /**
+   * @param address the address of the row
+   * @return a modifiable copy of the values of the row
+   */
+  List<String> readCells(long address) {
+    ByteBuffer chunk = getChunk(address);
+    int offset = getOffset(address);
+    int size = chunk.getInt(offset);
+    offset += 4;
+    List<String> values = new ArrayList<String>(size + 1);
+    for (int i = 0; i < size; i++) {
+      values.add(readValue(chunk, offset));
+      offset += 4 + Math.max(chunk.getInt(offset), 0);
+    }
+    return values;
+  }
+
+  private static String readValue(ByteBuffer chunk, int offset) {
+    int length = chunk.getInt(offset);
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    ByteBuffer buffer = chunk.duplicate();
+    buffer.position(offset + 4);
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @return the number of bytes of the chunks allocated by this arena, not counting the mapped
+   *     chunks
+   */
+  synchronized long getAllocatedBytes() {
+    return allocatedBytes;
+  }
+
+  /**
+   * Adds a reference to this arena, which must not be released yet.
+   */
+  synchronized void retain() {
+    Preconditions.checkState(references > 0, "The arena has been released.");
+    references++;
+  }
+
+  /**
+   * Removes a reference to this arena, and frees its chunks once it has no references left.
+   */
+  void release() {
+    ByteBuffer[] releasedChunks;
+    int releasedChunksCount;
+    synchronized (this) {
+      Preconditions.checkState(references > 0, "The arena has been released.");
+      if (--references > 0) {
+        return;
+      }
+      releasedChunks = chunks;
+      releasedChunksCount = chunksCount;
+      chunks = null;
+      chunksCount = 0;
+    }
+
+    for (int i = 0; i < releasedChunksCount; i++) {
+      ByteBuffer chunk = releasedChunks[i];
+      // The mapped chunks are read-only, and unmapped by the garbage collector.
+      if (chunk.isReadOnly() || chunk.capacity() != CHUNK_SIZE) {
+        continue;
+      }
+      if (pooledChunksCount.incrementAndGet() <= MAX_POOLED_CHUNKS) {
+        pooledChunks.add(chunk);
+      } else {
+        pooledChunksCount.decrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Reserves the space of a row, in a new chunk if it doesn't fit into the current one.
+   */
+  private synchronized long allocate(int length) {
+    Preconditions.checkState(chunks != null, "The arena has been released.");
+    if (chunksCount == 0 || position + length > chunks[chunksCount - 1].capacity()) {
+      ByteBuffer chunk = newChunk(length);
+      ByteBuffer[] newChunks = chunks;
+      if (chunksCount == newChunks.length) {
+        newChunks = Arrays.copyOf(newChunks, chunksCount * 2);
+      }
+      newChunks[chunksCount++] = chunk;
+      chunks = newChunks;
+      position = 0;
+      allocatedBytes += chunk.capacity();
+    }
+    long address = ((long) (chunksCount - 1) << 32) | position;
+    position += length;
+    return address;
+  }
+
+  private static ByteBuffer newChunk(int length) {
+    if (length > CHUNK_SIZE) {
+      // Rows larger than a chunk get a chunk of their own.
+      return ByteBuffer.allocateDirect(length);
+    }
+    ByteBuffer chunk = pooledChunks.poll();
+    if (chunk != null) {
+      pooledChunksCount.decrementAndGet();
+      return chunk;
+    }
+    return ByteBuffer.allocateDirect(CHUNK_SIZE);
+  }
+
+  private ByteBuffer getChunk(long address) {
+    ByteBuffer[] currentChunks = chunks;
+    Preconditions.checkState(currentChunks != null, "The arena has been released.");
+    return currentChunks[(int) (address >>> 32)];
+  }
+
+  private static int getOffset(long address) {
+    return (int) address;
+  }
+}
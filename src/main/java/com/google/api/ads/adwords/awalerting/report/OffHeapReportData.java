@@ -0,0 +1,268 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.report;
+
+import com.google.api.ads.adwords.jaxws.v201705.cm.ReportDefinitionReportType;
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Report data whose rows are stored outside the Java heap, in an {@link OffHeapArena} of direct
+ * buffers, so that very large reports don't fill the old generation with millions of short
+ * strings. The heap only holds one {@code long} address per row.
+ *
+ * <p>{@link #getRow(int)} and {@link #getReportRow(int)} return flyweight views, which decode
+ * each value from the arena when it's read. Modifying a row (or appending a value to it) writes
+ * the whole row again into the arena; removing rows only removes their addresses.
+ *
+ * <p>Any report can also be spilled to a memory-mapped temporary file with
+ * {@link #spill(ReportData, Path)}, see {@link ReportMemoryBudget}.
+ *
+ * <p>The arena is freed by {@link #release()}, after which the report must not be used. The
+ * copy-on-write views share the arena of the report, which is freed once the report and all its
+ * views have been released. The memory of reports that are never released is only freed by the
+ * garbage collector.
+ */
+public class OffHeapReportData extends ReportData {
+  private static final int INITIAL_CAPACITY = 16;
+
+  private final OffHeapArena arena;
+  private long[] rowAddresses;
+  private int rowsCount;
+  private boolean released;
+
+  /**
+   * @param clientCustomerId the client customer ID of the report
+   * @param reportType the report type
+   * @param columnNames the column names
+   */
+  public OffHeapReportData(
+      Long clientCustomerId, ReportDefinitionReportType reportType, List<String> columnNames) {
+    super(clientCustomerId, reportType, columnNames, Collections.<List<String>>emptyList());
+    this.arena = new OffHeapArena();
+    this.rowAddresses = new long[INITIAL_CAPACITY];
+  }
+
+  private OffHeapReportData(ReportData report, OffHeapArena arena, long[] rowAddresses) {
+    super(report.getClientCustomerId(), report.getReportType(), report.getColumnNames(),
+        Collections.<List<String>>emptyList());
+    this.arena = arena;
+    this.rowAddresses = rowAddresses;
+    this.rowsCount = report.getRowsCount();
+  }
+
+  /**
+   * Copies the rows of a report into a memory-mapped temporary file. The report is left as is.
+   *
+   * @param report the report to copy
+   * @param directory the directory of the temporary file
+   * @return the copy of the report, whose rows are read from the file
+   */
+  public static OffHeapReportData spill(ReportData report, Path directory) throws IOException {
+    long[] rowAddresses = new long[Math.max(report.getRowsCount(), 1)];
+    OffHeapArena arena = OffHeapArena.spill(report.getRows(), directory, rowAddresses);
+    return new OffHeapReportData(report, arena, rowAddresses);
+  }
+
+  private OffHeapReportData(OffHeapReportData report) {
+    super(report.getClientCustomerId(), report.getReportType(), report.getColumnNames(),
+        Collections.<List<String>>emptyList());
+    report.arena.retain();
+    this.arena = report.arena;
+    this.rowAddresses = Arrays.copyOf(report.rowAddresses, Math.max(report.rowsCount, 1));
+    this.rowsCount = report.rowsCount;
+  }
+
+  @Override
+  public List<List<String>> getRows() {
+    return new AbstractList<List<String>>() {
+      @Override
+      public List<String> get(int index) {
+        return getRow(index);
+      }
+
+      @Override
+      public int size() {
+        return rowsCount;
+      }
+
+      @Override
+      public boolean add(List<String> row) {
+        addRow(row);
+        return true;
+      }
+
+      @Override
+      public List<String> remove(int index) {
+        List<String> removedRow = arena.readCells(getRowAddress(index));
+        BitSet removedRows = new BitSet();
+        removedRows.set(index);
+        removeRows(removedRows);
+        return removedRow;
+      }
+    };
+  }
+
+  @Override
+  public List<String> getRow(int index) {
+    Preconditions.checkElementIndex(index, rowsCount);
+    return new RowView(index);
+  }
+
+  @Override
+  public int getRowsCount() {
+    return rowsCount;
+  }
+
+  @Override
+  public void addRow(List<String> row) {
+    checkNotReleased();
+    if (rowsCount == rowAddresses.length) {
+      rowAddresses = Arrays.copyOf(rowAddresses, rowsCount + (rowsCount >> 1) + 1);
+    }
+    rowAddresses[rowsCount++] = arena.write(row);
+  }
+
+  @Override
+  public void removeRows(BitSet removedRows) {
+    checkNotReleased();
+    int kept = 0;
+    for (int i = 0; i < rowsCount; i++) {
+      if (!removedRows.get(i)) {
+        rowAddresses[kept++] = rowAddresses[i];
+      }
+    }
+    rowsCount = kept;
+  }
+
+  /**
+   * Only counts the memory allocated for the rows, since the mapped files are paged out by the
+   * operating system when needed.
+   */
+  @Override
+  public long getEstimatedBytes() {
+    return getAllocatedBytes() + (long) REFERENCE_BYTES * rowsCount;
+  }
+
+  @Override
+  public long getEstimatedViewBytes() {
+    return (long) REFERENCE_BYTES * rowsCount;
+  }
+
+  /**
+   * Creates a view of this report that shares its arena, so only the row addresses are copied.
+   */
+  @Override
+  public ReportData newCopyOnWriteView() {
+    checkNotReleased();
+    return new OffHeapReportData(this);
+  }
+
+  /**
+   * Frees the arena of this report, unless it's still used by another view. Releasing the report
+   * more than once has no effect.
+   */
+  @Override
+  public void release() {
+    if (!released) {
+      released = true;
+      rowAddresses = null;
+      rowsCount = 0;
+      arena.release();
+    }
+    super.release();
+  }
+
+  /**
+   * @return the number of bytes of direct memory allocated for the rows of this report and its
+   *     views
+   */
+  public long getAllocatedBytes() {
+    return arena.getAllocatedBytes();
+  }
+
+  private long getRowAddress(int index) {
+    checkNotReleased();
+    return rowAddresses[index];
+  }
+
+  private void checkNotReleased() {
+    Preconditions.checkState(!released, "The report of account %s has been released.",
+        getClientCustomerId());
+  }
+
+  /**
+   * The flyweight view of a row, which reads its values from the arena.
+   */
+  private class RowView extends AbstractList<String> implements RandomAccess {
+    private final int rowIndex;
+
+    RowView(int rowIndex) {
+      this.rowIndex = rowIndex;
+    }
+
+    @Override
+    public String get(int index) {
+      long address = getRowAddress(rowIndex);
+      Preconditions.checkElementIndex(index, arena.getCellsCount(address));
+      return arena.readCell(address, index);
+    }
+
+    @Override
+    public String set(int index, String element) {
+      List<String> values = arena.readCells(getRowAddress(rowIndex));
+      String previous = values.set(index, element);
+      rowAddresses[rowIndex] = arena.write(values);
+      return previous;
+    }
+
+    @Override
+    public void add(int index, String element) {
+      List<String> values = arena.readCells(getRowAddress(rowIndex));
+      values.add(index, element);
+      rowAddresses[rowIndex] = arena.write(values);
+    }
+
+    @Override
+    public boolean addAll(int index, Collection<? extends String> elements) {
+      List<String> values = arena.readCells(getRowAddress(rowIndex));
+      values.addAll(index, elements);
+      rowAddresses[rowIndex] = arena.write(values);
+      return !elements.isEmpty();
+    }
+
+    @Override
+    public String remove(int index) {
+      List<String> values = arena.readCells(getRowAddress(rowIndex));
+      String previous = values.remove(index);
+      rowAddresses[rowIndex] = arena.write(values);
+      return previous;
+    }
+
+    @Override
+    public int size() {
+      return arena.getCellsCount(getRowAddress(rowIndex));
+    }
+  }
+}
@@ -18,9 +18,12 @@ import com.google.api.ads.adwords.jaxws.v201705.cm.ReportDefinitionReportType;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Report data corresponding to a downloaded report for one account.
@@ -28,6 +31,11 @@ import java.util.Map;
 public class ReportData {
   private static final String SEPARATOR = System.getProperty("line.separator");
 
+  // Rough sizes of the objects holding the rows, for getEstimatedBytes().
+  static final int REFERENCE_BYTES = 8;
+  private static final int ROW_OVERHEAD_BYTES = 48;
+  private static final int STRING_OVERHEAD_BYTES = 40;
+
   private final Long clientCustomerId;
   private final ReportDefinitionReportType reportType;
 
@@ -37,6 +45,10 @@ public class ReportData {
   // Column name -> row index (0-based) mapping.
   private final Map<String, Integer> indexMapping;
 
+  // Called once when this report is released.
+  private final List<Runnable> releaseListeners = new CopyOnWriteArrayList<Runnable>();
+  private final AtomicBoolean released = new AtomicBoolean();
+
   public ReportData(
       Long clientCustomerId,
       ReportDefinitionReportType reportType,
@@ -87,6 +99,42 @@ public class ReportData {
     return rows.get(index);
   }
 
+  /**
+   * @return the number of rows
+   */
+  public int getRowsCount() {
+    return getRows().size();
+  }
+
+  /**
+   * Get the report row of the specified index (0-based), for alert rules.
+   *
+   * @param index the 0-based index of the returning row
+   */
+  public ReportRow getReportRow(int index) {
+    return new ReportRow(getRow(index), indexMapping);
+  }
+
+  /**
+   * Remove the specified rows at once, which is cheaper than removing them one by one.
+   *
+   * @param removedRows the 0-based indexes of the rows to remove
+   */
+  public void removeRows(BitSet removedRows) {
+    List<List<String>> rows = getRows();
+    int size = rows.size();
+    int kept = 0;
+    for (int i = 0; i < size; i++) {
+      if (!removedRows.get(i)) {
+        if (kept != i) {
+          rows.set(kept, rows.get(i));
+        }
+        kept++;
+      }
+    }
+    rows.subList(kept, size).clear();
+  }
+
   /**
    * Add one row into the rows list.
    *
@@ -132,6 +180,75 @@ public class ReportData {
     indexMapping.put(columnName, Integer.valueOf(newIndex));
   }
 
+  /**
+   * Creates a view of this report that can be modified without altering this report. The view
+   * has its own column mapping and list of rows, and each of its rows shares the values of this
+   * report until it's modified. This report must not be modified while its views are in use.
+   */
+  public ReportData newCopyOnWriteView() {
+    List<List<String>> viewRows = new ArrayList<List<String>>(rows.size());
+    for (List<String> row : rows) {
+      viewRows.add(new CopyOnWriteRow(row));
+    }
+    return new ReportData(clientCustomerId, reportType, getColumnNames(), viewRows);
+  }
+
+  /**
+   * Estimates the memory used by the rows of this report, for {@link ReportMemoryBudget}.
+   *
+   * @return the estimated number of bytes
+   */
+  public long getEstimatedBytes() {
+    long bytes = 0;
+    for (List<String> row : getRows()) {
+      bytes += ROW_OVERHEAD_BYTES;
+      for (String value : row) {
+        bytes += estimateBytes(value);
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * Estimates the memory used by a copy-on-write view of this report (see
+   * {@link #newCopyOnWriteView()}), beyond the memory it shares with this report, for
+   * {@link ReportMemoryBudget}.
+   *
+   * @return the estimated number of bytes
+   */
+  public long getEstimatedViewBytes() {
+    return (long) (ROW_OVERHEAD_BYTES + REFERENCE_BYTES) * getRowsCount();
+  }
+
+  /**
+   * @return the estimated number of bytes of the value and its reference
+   */
+  static long estimateBytes(String value) {
+    return value == null ? REFERENCE_BYTES : REFERENCE_BYTES + STRING_OVERHEAD_BYTES
+        + 2L * value.length();
+  }
+
+  /**
+   * Releases the storage of this report once all alert actions are done with it, after which the
+   * report must not be used anymore. This frees the reports stored outside the heap (see
+   * {@link OffHeapReportData}), and gives the memory of the report back to its
+   * {@link ReportMemoryBudget}, if any. Subclasses must call this method when they override it.
+   */
+  public void release() {
+    if (released.compareAndSet(false, true)) {
+      for (Runnable listener : releaseListeners) {
+        listener.run();
+      }
+    }
+  }
+
+  /**
+   * @param listener the listener called once when this report is released
+   */
+  void addReleaseListener(Runnable listener) {
+    releaseListeners.add(listener);
+  }
+
   /**
    * Returns string representation of the report.
    */
@@ -143,7 +260,7 @@ public class ReportData {
     builder.append(reportType.value()).append(" of account ").append(clientCustomerId).append(":");
     builder.append(SEPARATOR).append("Column Names: ").append(joiner.join(indexMapping.keySet()));
     builder.append(SEPARATOR).append("Data:");
-    for (List<String> row : rows) {
+    for (List<String> row : getRows()) {
       builder.append(SEPARATOR).append(joiner.join(row));
     }
 
@@ -14,15 +14,11 @@
 
 package com.google.api.ads.adwords.awalerting.report;
 
-import au.com.bytecode.opencsv.CSVReader;
 import com.google.api.ads.adwords.jaxws.v201705.cm.ReportDefinitionReportType;
 import com.google.common.base.Preconditions;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
@@ -30,6 +26,12 @@ import java.util.Map;
  * This class is responsible for generating ReportData from various data sources.
  */
 public class ReportDataLoader {
+  /**
+   * Extra capacity reserved in each row for the columns appended later by alert rules (and the
+   * alert message column), so that rows are not re-allocated while rules are applied.
+   */
+  static final int APPENDED_COLUMNS_HEADROOM = 3;
+
   private final ReportDefinitionReportType reportType;
 
   /**
@@ -37,41 +39,167 @@ public class ReportDataLoader {
    */
   private final Map<String, String> fieldsMapping;
 
+  private final ReportStorage storage;
+
+  /**
+   * The (fieldName -> fieldType) mapping, only used for the COLUMNAR storage.
+   */
+  private final Map<String, String> fieldTypes;
+
+  private final DictionaryScope dictionaryScope;
+  private final StringDictionaries runDictionaries;
+
   public ReportDataLoader(
       ReportDefinitionReportType reportType, Map<String, String> fieldsMapping) {
+    this(reportType, fieldsMapping, null);
+  }
+
+  /**
+   * @param reportType the report type
+   * @param fieldsMapping the (displayFieldName -> fieldName) mapping
+   * @param fieldTypes the (fieldName -> fieldType) mapping of the report definition to store the
+   *     reports as {@link ColumnarReportData}, or null to store them row by row
+   */
+  public ReportDataLoader(ReportDefinitionReportType reportType,
+      Map<String, String> fieldsMapping, Map<String, String> fieldTypes) {
+    this(reportType, fieldsMapping, fieldTypes, DictionaryScope.REPORT, null);
+  }
+
+  /**
+   * @param reportType the report type
+   * @param fieldsMapping the (displayFieldName -> fieldName) mapping
+   * @param fieldTypes the (fieldName -> fieldType) mapping of the report definition to store the
+   *     reports as {@link ColumnarReportData}, or null to store them row by row
+   * @param dictionaryScope which reports share the dictionaries of the string columns
+   * @param runDictionaries the dictionaries shared by the reports of the run, required for the
+   *     {@link DictionaryScope#RUN} scope
+   */
+  public ReportDataLoader(ReportDefinitionReportType reportType,
+      Map<String, String> fieldsMapping, Map<String, String> fieldTypes,
+      DictionaryScope dictionaryScope, StringDictionaries runDictionaries) {
+    this(reportType, fieldsMapping,
+        fieldTypes != null ? ReportStorage.COLUMNAR : ReportStorage.ROWS, fieldTypes,
+        dictionaryScope, runDictionaries);
+  }
+
+  /**
+   * @param reportType the report type
+   * @param fieldsMapping the (displayFieldName -> fieldName) mapping
+   * @param storage how to store the reports
+   * @param fieldTypes the (fieldName -> fieldType) mapping of the report definition, required for
+   *     the {@link ReportStorage#COLUMNAR} storage
+   * @param dictionaryScope which reports share the dictionaries of the string columns
+   * @param runDictionaries the dictionaries shared by the reports of the run, required for the
+   *     {@link DictionaryScope#RUN} scope
+   */
+  public ReportDataLoader(ReportDefinitionReportType reportType,
+      Map<String, String> fieldsMapping, ReportStorage storage, Map<String, String> fieldTypes,
+      DictionaryScope dictionaryScope, StringDictionaries runDictionaries) {
+    Preconditions.checkArgument(storage != ReportStorage.COLUMNAR || fieldTypes != null,
+        "fieldTypes are required for the COLUMNAR storage.");
+    Preconditions.checkArgument(dictionaryScope != DictionaryScope.RUN || runDictionaries != null,
+        "runDictionaries are required for the RUN dictionary scope.");
     this.reportType = reportType;
+    this.storage = Preconditions.checkNotNull(storage);
     this.fieldsMapping = fieldsMapping;
+    this.fieldTypes = fieldTypes;
+    this.dictionaryScope = Preconditions.checkNotNull(dictionaryScope);
+    this.runDictionaries = runDictionaries;
   }
 
   /**
    * Generate ReportData from an input stream (normally an HTTP steam of report in CSV format),
    * which will be closed after reading.
+   *
+   * <p>The stream is parsed one row at a time, and each row is copied straight into its final
+   * (extendible) storage, so the whole CSV content is never held in memory twice. The stream is
+   * read as UTF-8 bytes by {@link CsvRowReader}, and the values are only decoded when the storage
+   * needs them as strings.
+   *
    * @param stream the input stream (in CSV format)
    * @param clientCustomerId the client customer ID of this report
    * @return the generated ReportData
    */
   public ReportData fromStream(InputStream stream, Long clientCustomerId) throws IOException {
-    CSVReader csvReader = new CSVReader(new InputStreamReader(stream, Charset.defaultCharset()));
-    String[] headerArray = csvReader.readNext();
-    List<String[]> rowsArray = csvReader.readAll();
-    csvReader.close();
-
-    int rowsCount = rowsArray.size();
-    List<List<String>> rows = new ArrayList<List<String>>(rowsCount);
-    for (int i = 0; i < rowsCount; ++i) {
-      // need to create a new ArrayList object which is extendible.
-      List<String> row = new ArrayList<String>(Arrays.asList(rowsArray.get(i)));
-      rows.add(row);
+    CsvRowReader csvReader = new CsvRowReader(stream);
+    try {
+      List<String> header = csvReader.readNext();
+      if (header == null) {
+        throw new IOException("Report stream of account " + clientCustomerId + " is empty.");
+      }
+
+      List<String> columnNames = getColumnNames(header);
+      if (storage == ReportStorage.COLUMNAR) {
+        return fromCsvRows(csvReader, newColumnarReportData(clientCustomerId, columnNames));
+      }
+      if (storage == ReportStorage.OFF_HEAP) {
+        ReportData report = new OffHeapReportData(clientCustomerId, reportType, columnNames);
+        try {
+          return fromCsvRows(csvReader, report);
+        } catch (IOException | RuntimeException e) {
+          report.release();
+          throw e;
+        }
+      }
+      ReportData report = new ReportData(clientCustomerId, reportType, columnNames);
+
+      int rowCapacity = columnNames.size() + APPENDED_COLUMNS_HEADROOM;
+      List<String> csvRow;
+      while ((csvRow = csvReader.readNext()) != null) {
+        // need to create a new ArrayList object which is extendible.
+        List<String> row = new ArrayList<String>(rowCapacity);
+        row.addAll(csvRow);
+        report.addRow(row);
+      }
+
+      return report;
+    } finally {
+      csvReader.close();
     }
+  }
 
-    int columns = headerArray.length;
-    List<String> columnNames = new ArrayList<String>(columns);
-    for (int i = 0; i < columns; i++) {
-      String fieldName = fieldsMapping.get(headerArray[i]);
-      Preconditions.checkNotNull(fieldName, "Unknown field name: %s.", fieldName);
-      columnNames.add(fieldName);
+  private ColumnarReportData newColumnarReportData(
+      Long clientCustomerId, List<String> columnNames) {
+    List<ColumnType> columnTypes = new ArrayList<ColumnType>(columnNames.size());
+    for (String columnName : columnNames) {
+      columnTypes.add(ColumnType.fromFieldType(fieldTypes.get(columnName)));
+    }
+    StringDictionaries dictionaries = null;
+    if (dictionaryScope == DictionaryScope.RUN) {
+      dictionaries = runDictionaries;
+    } else if (dictionaryScope == DictionaryScope.REPORT) {
+      dictionaries = new StringDictionaries();
+    }
+    return new ColumnarReportData(
+        clientCustomerId, reportType, columnNames, columnTypes, dictionaries);
+  }
+
+  /**
+   * Reads the remaining CSV rows into the columnar or off-heap report, which copy the values
+   * they need out of the CSV rows.
+   */
+  private static ReportData fromCsvRows(CsvRowReader csvReader, ReportData report)
+      throws IOException {
+    List<String> csvRow;
+    while ((csvRow = csvReader.readNext()) != null) {
+      report.addRow(csvRow);
     }
+    return report;
+  }
 
-    return new ReportData(clientCustomerId, reportType, columnNames, rows);
+  /**
+   * Translates the CSV header (display field names) into report field names.
+   *
+   * @param header the CSV header row
+   * @return the list of field names, in the same order as the header
+   */
+  private List<String> getColumnNames(List<String> header) {
+    List<String> columnNames = new ArrayList<String>(header.size());
+    for (String displayFieldName : header) {
+      String fieldName = fieldsMapping.get(displayFieldName);
+      Preconditions.checkNotNull(fieldName, "Unknown field name: %s.", displayFieldName);
+      columnNames.add(fieldName);
+    }
+    return columnNames;
   }
 }
@@ -0,0 +1,37 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.report;
+
+/**
+ * Receiver of report data that is handed over one report at a time, as soon as each report is
+ * available.
+ */
+public interface ReportDataSink {
+  /**
+   * Accepts one report. Implementations may block the caller while the downstream stages are
+   * saturated, which throttles the producer.
+   *
+   * @param report the report data to accept
+   * @throws InterruptedException if interrupted while waiting for downstream capacity
+   */
+  void accept(ReportData report) throws InterruptedException;
+
+  /**
+   * @return the number of reports the downstream stages hold at a time, beyond which
+   *     {@link #accept(ReportData)} blocks, or {@code Integer.MAX_VALUE} if it never blocks.
+   *     Producers should not load more reports than that ahead of the sink.
+   */
+  int getMaxInFlightReports();
+}
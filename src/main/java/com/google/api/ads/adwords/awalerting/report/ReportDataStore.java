@@ -0,0 +1,322 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.report;
+
+import com.google.api.ads.adwords.awalerting.AlertProcessingException;
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Run-scoped store of downloaded reports, keyed by client customer ID and query key (see
+ * {@link #getQueryKey(String, ReportStorage, DictionaryScope)}), so that alerts with the same
+ * report query download each report only once.
+ *
+ * <p>Only the first request for a key downloads the report. Concurrent requests for the same key
+ * wait for that download instead of starting another one. Failed downloads are not kept, so a
+ * later request will try again. If the download is cancelled for the alert that started it (e.g.
+ * it timed out), the alerts waiting for it download the report again instead of failing too.
+ *
+ * <p>A report is only kept until the last alert of the run that downloads its query has got it,
+ * as declared with {@link #addConsumer(String)} (a query without consumers has one). The alerts
+ * before the last one get their own copy-on-write view (see
+ * {@link ReportData#newCopyOnWriteView()}), since alert rules modify the reports, and the last one
+ * gets the stored report itself. If the consumers may use the reports at the same time (e.g. the
+ * alerts of a run are processed concurrently), the last one gets a view too, as the stored report
+ * must not be modified while the other views are in use, and the stored report is released once
+ * all its views are released.
+ *
+ * <p>If a {@link ReportMemoryBudget} is given, the downloaded reports are stored in memory while
+ * they fit into it, and spilled to disk beyond it. The views handed out are counted in the budget
+ * too, and each report or view gives its memory back to the budget once it's released.
+ *
+ * <p>This class is thread safe.
+ */
+public class ReportDataStore {
+  private final ConcurrentMap<String, Entry> reports = new ConcurrentHashMap<String, Entry>();
+
+  // The number of alerts of the run that download each query.
+  private final ConcurrentMap<String, AtomicInteger> consumers =
+      new ConcurrentHashMap<String, AtomicInteger>();
+
+  private final AtomicInteger hits = new AtomicInteger();
+  private final AtomicInteger misses = new AtomicInteger();
+
+  private final ReportMemoryBudget memoryBudget;
+  private final boolean concurrentConsumers;
+
+  public ReportDataStore() {
+    this(null);
+  }
+
+  /**
+   * @param memoryBudget the memory budget of the stored reports, could be null
+   */
+  public ReportDataStore(ReportMemoryBudget memoryBudget) {
+    this(memoryBudget, false);
+  }
+
+  /**
+   * @param memoryBudget the memory budget of the stored reports, could be null
+   * @param concurrentConsumers whether the consumers of a report may use it at the same time, in
+   *     which case they all get a view of it
+   */
+  public ReportDataStore(ReportMemoryBudget memoryBudget, boolean concurrentConsumers) {
+    this.memoryBudget = memoryBudget;
+    this.concurrentConsumers = concurrentConsumers;
+  }
+
+  /**
+   * @param awql the AWQL query of the reports
+   * @param storage how the reports are stored
+   * @param dictionaryScope which reports share the dictionaries of the string columns
+   * @return the key of the reports, which are only shared by the alerts with the same key
+   */
+  public static String getQueryKey(
+      String awql, ReportStorage storage, DictionaryScope dictionaryScope) {
+    return AwqlReportQuery.normalize(awql) + "|" + storage + "|" + dictionaryScope;
+  }
+
+  /**
+   * Records that one more alert of the run downloads the reports of the query, so that they are
+   * kept until it got them.
+   *
+   * @param queryKey the query key of the reports
+   */
+  public void addConsumer(String queryKey) {
+    Preconditions.checkNotNull(queryKey, "queryKey cannot be null.");
+    AtomicInteger count = consumers.get(queryKey);
+    if (count == null) {
+      AtomicInteger newCount = new AtomicInteger();
+      count = consumers.putIfAbsent(queryKey, newCount);
+      if (count == null) {
+        count = newCount;
+      }
+    }
+    count.incrementAndGet();
+  }
+
+  /**
+   * Wraps the report loader so that it only runs if the report is not in the store yet.
+   *
+   * @param clientCustomerId the client customer ID of the report
+   * @param queryKey the query key of the report
+   * @param loader the loader to download the report if needed
+   * @return the callable that returns the report
+   */
+  public Callable<ReportData> memoize(
+      final Long clientCustomerId, final String queryKey, final Callable<ReportData> loader) {
+    return new Callable<ReportData>() {
+      @Override
+      public ReportData call() throws AlertProcessingException {
+        return get(clientCustomerId, queryKey, loader);
+      }
+    };
+  }
+
+  /**
+   * Gets the report, downloading it with the loader if it's not in the store yet.
+   *
+   * @param clientCustomerId the client customer ID of the report
+   * @param queryKey the query key of the report
+   * @param loader the loader to download the report if needed
+   * @return a copy-on-write view of the stored report, or the stored report itself for the last
+   *     consumer unless the consumers are concurrent
+   */
+  public ReportData get(Long clientCustomerId, String queryKey, Callable<ReportData> loader)
+      throws AlertProcessingException {
+    Preconditions.checkNotNull(clientCustomerId, "clientCustomerId cannot be null.");
+    Preconditions.checkNotNull(queryKey, "queryKey cannot be null.");
+    Preconditions.checkNotNull(loader, "loader cannot be null.");
+    String key = clientCustomerId + ":" + queryKey;
+
+    while (true) {
+      boolean owner = false;
+      Entry entry = reports.get(key);
+      if (entry == null) {
+        AtomicInteger count = consumers.get(queryKey);
+        Entry newEntry = new Entry(count == null ? 1 : Math.max(count.get(), 1), loader);
+        entry = reports.putIfAbsent(key, newEntry);
+        if (entry == null) {
+          entry = newEntry;
+          owner = true;
+          misses.incrementAndGet();
+          newEntry.task.run();
+        }
+      }
+
+      ReportData report;
+      try {
+        report = entry.task.get();
+      } catch (ExecutionException e) {
+        reports.remove(key, entry);
+        if (!owner && entry.cancelled) {
+          // Cancelled for the alert that started the download, this one downloads it again.
+          continue;
+        }
+        Throwable cause = e.getCause();
+        if (cause instanceof AlertProcessingException) {
+          throw (AlertProcessingException) cause;
+        }
+        throw new AlertProcessingException(
+            "Failed to download report for account " + clientCustomerId + ".", cause);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new AlertProcessingException("ReportDataStore encounters InterruptedException.", e);
+      }
+
+      ReportData result = take(key, entry, report);
+      if (result == null) {
+        // Handed to its last consumer in the meantime, the report is downloaded again.
+        continue;
+      }
+      if (!owner) {
+        hits.incrementAndGet();
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Hands the stored report to one of its consumers, and evicts it for the last one.
+   *
+   * @return a view of the report, the report itself for the last consumer unless the consumers
+   *     are concurrent, or null if it was already handed to its last consumer
+   */
+  private ReportData take(String key, Entry entry, ReportData report) {
+    synchronized (entry) {
+      if (entry.remainingConsumers == 0) {
+        return null;
+      }
+      entry.remainingConsumers--;
+      if (entry.remainingConsumers == 0) {
+        reports.remove(key, entry);
+      }
+      if (entry.remainingConsumers > 0 || concurrentConsumers) {
+        // Created before the last consumer gets the report, which it may then modify.
+        return newView(entry, report);
+      }
+    }
+    return report;
+  }
+
+  /**
+   * Creates a view of the stored report. With concurrent consumers, the stored report is released
+   * along with its last view.
+   */
+  private ReportData newView(final Entry entry, final ReportData report) {
+    ReportData view = report.newCopyOnWriteView();
+    if (memoryBudget != null) {
+      memoryBudget.admitView(view, report.getEstimatedViewBytes());
+    }
+    if (concurrentConsumers) {
+      entry.openViews++;
+      view.addReleaseListener(new Runnable() {
+        @Override
+        public void run() {
+          synchronized (entry) {
+            entry.openViews--;
+            if (entry.openViews > 0 || entry.remainingConsumers > 0) {
+              return;
+            }
+          }
+          report.release();
+        }
+      });
+    }
+    return view;
+  }
+
+  /**
+   * Releases the reports not handed to their last consumer (see {@link ReportData#release()}), and
+   * removes all reports from the store. The reports that were handed out remain usable until they
+   * are released.
+   */
+  public void clear() {
+    for (Entry entry : reports.values()) {
+      if (entry.task.isDone()) {
+        try {
+          ReportData report = entry.task.get();
+          synchronized (entry) {
+            if (entry.remainingConsumers == 0) {
+              continue;
+            }
+            entry.remainingConsumers = 0;
+            if (entry.openViews > 0) {
+              // Released along with its last view.
+              continue;
+            }
+          }
+          report.release();
+        } catch (ExecutionException | InterruptedException e) {
+          // The failed downloads have nothing to release.
+        }
+      }
+    }
+    reports.clear();
+    consumers.clear();
+  }
+
+  /**
+   * @return the number of requests served from the store (or an in-flight download)
+   */
+  public int getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return the number of requests that downloaded the report
+   */
+  public int getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * A report of the store, downloaded once for all its consumers.
+   */
+  private class Entry {
+    private final FutureTask<ReportData> task;
+    // Guarded by this entry.
+    private int remainingConsumers;
+    // The views not released yet, only counted with concurrent consumers. Guarded by this entry.
+    private int openViews;
+    // Whether the download was cancelled for the alert that started it.
+    private volatile boolean cancelled;
+
+    Entry(int consumers, final Callable<ReportData> loader) {
+      this.remainingConsumers = consumers;
+      this.task = new FutureTask<ReportData>(new Callable<ReportData>() {
+        @Override
+        public ReportData call() throws Exception {
+          ReportData report;
+          try {
+            report = loader.call();
+          } catch (Exception e) {
+            if (Thread.currentThread().isInterrupted() || e instanceof InterruptedException) {
+              cancelled = true;
+            }
+            throw e;
+          }
+          return memoryBudget == null ? report : memoryBudget.admit(report);
+        }
+      });
+    }
+  }
+}
@@ -0,0 +1,178 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.report;
+
+import com.google.api.ads.adwords.awalerting.util.AdaptiveConcurrencyLimiter;
+import com.google.api.ads.adwords.awalerting.util.CircuitBreaker;
+import com.google.api.ads.adwords.awalerting.util.Deadline;
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Run-scoped state shared by the report downloaders of all alerts in the same run. It's handed to
+ * the downloaders that implement
+ * {@link com.google.api.ads.adwords.awalerting.ReportDownloadContextAware}.
+ *
+ * <p>Each alert gets a copy with its own deadline (see {@link #withDeadline(Deadline)}), by which
+ * the downloaders should give up on the reports that are not downloaded yet.
+ */
+public class ReportDownloadContext {
+  private final ReportDataStore reportDataStore;
+  private final ExecutorService downloadExecutor;
+  private final AdaptiveConcurrencyLimiter downloadLimiter;
+  private final CircuitBreaker<Long> accountCircuitBreaker;
+  private final ReportFieldsMappingCache fieldsMappingCache;
+  private final StringDictionaries stringDictionaries;
+  private final DownloadLedger downloadLedger;
+  private final long downloadTimeoutMillis;
+  private final Deadline deadline;
+
+  /**
+   * @param reportDataStore the store of the reports downloaded in this run
+   * @param downloadExecutor the shared thread pool for downloading reports, could be null
+   * @param downloadLimiter the limiter of concurrent API downloads, could be null
+   * @param accountCircuitBreaker the circuit breaker of the accounts failing to download, could
+   *     be null
+   * @param fieldsMappingCache the process-wide cache of report fields mappings, could be null
+   * @param stringDictionaries the dictionaries of string columns shared by the reports of this
+   *     run, could be null
+   */
+  public ReportDownloadContext(
+      ReportDataStore reportDataStore,
+      ExecutorService downloadExecutor,
+      AdaptiveConcurrencyLimiter downloadLimiter,
+      CircuitBreaker<Long> accountCircuitBreaker,
+      ReportFieldsMappingCache fieldsMappingCache,
+      StringDictionaries stringDictionaries) {
+    this(reportDataStore, downloadExecutor, downloadLimiter, accountCircuitBreaker,
+        fieldsMappingCache, stringDictionaries, null, 0, Deadline.NONE);
+  }
+
+  /**
+   * @param reportDataStore the store of the reports downloaded in this run
+   * @param downloadExecutor the shared thread pool for downloading reports, could be null
+   * @param downloadLimiter the limiter of concurrent API downloads, could be null
+   * @param accountCircuitBreaker the circuit breaker of the accounts failing to download, could
+   *     be null
+   * @param fieldsMappingCache the process-wide cache of report fields mappings, could be null
+   * @param stringDictionaries the dictionaries of string columns shared by the reports of this
+   *     run, could be null
+   * @param downloadLedger the process-wide ledger of past downloads, could be null
+   * @param downloadTimeoutMillis the maximum time of each download once started, unlimited if not
+   *     positive
+   * @param deadline the deadline of the downloads
+   */
+  public ReportDownloadContext(
+      ReportDataStore reportDataStore,
+      ExecutorService downloadExecutor,
+      AdaptiveConcurrencyLimiter downloadLimiter,
+      CircuitBreaker<Long> accountCircuitBreaker,
+      ReportFieldsMappingCache fieldsMappingCache,
+      StringDictionaries stringDictionaries,
+      DownloadLedger downloadLedger,
+      long downloadTimeoutMillis,
+      Deadline deadline) {
+    this.reportDataStore = reportDataStore;
+    this.downloadExecutor = downloadExecutor;
+    this.downloadLimiter = downloadLimiter;
+    this.accountCircuitBreaker = accountCircuitBreaker;
+    this.fieldsMappingCache = fieldsMappingCache;
+    this.stringDictionaries = stringDictionaries;
+    this.downloadLedger = downloadLedger;
+    this.downloadTimeoutMillis = Math.max(downloadTimeoutMillis, 0);
+    this.deadline = Preconditions.checkNotNull(deadline, "deadline cannot be null.");
+  }
+
+  /**
+   * @param deadline the deadline of the downloads of an alert
+   * @return a copy of this context with the specified deadline
+   */
+  public ReportDownloadContext withDeadline(Deadline deadline) {
+    return new ReportDownloadContext(reportDataStore, downloadExecutor, downloadLimiter,
+        accountCircuitBreaker, fieldsMappingCache, stringDictionaries, downloadLedger,
+        downloadTimeoutMillis, deadline);
+  }
+
+  /**
+   * @return the store of the reports downloaded in this run
+   */
+  public ReportDataStore getReportDataStore() {
+    return reportDataStore;
+  }
+
+  /**
+   * @return the shared thread pool for downloading reports (must not be shut down), or null if
+   *     downloaders should use their own
+   */
+  public ExecutorService getDownloadExecutor() {
+    return downloadExecutor;
+  }
+
+  /**
+   * @return the limiter shared by all API downloads of this run, or null if downloads are only
+   *     limited by the thread pool size
+   */
+  public AdaptiveConcurrencyLimiter getDownloadLimiter() {
+    return downloadLimiter;
+  }
+
+  /**
+   * @return the circuit breaker shared by all downloads of this run, keyed by client customer ID,
+   *     or null if failing accounts are never skipped
+   */
+  public CircuitBreaker<Long> getAccountCircuitBreaker() {
+    return accountCircuitBreaker;
+  }
+
+  /**
+   * @return the process-wide cache of report fields mappings, or null if each downloader gets
+   *     them from the API
+   */
+  public ReportFieldsMappingCache getFieldsMappingCache() {
+    return fieldsMappingCache;
+  }
+
+  /**
+   * @return the dictionaries of string columns shared by the reports of this run, or null if
+   *     downloaders should use their own
+   */
+  public StringDictionaries getStringDictionaries() {
+    return stringDictionaries;
+  }
+
+  /**
+   * @return the process-wide ledger of past downloads to order the downloads by, and to record
+   *     them into, or null if the downloads are not ordered
+   */
+  public DownloadLedger getDownloadLedger() {
+    return downloadLedger;
+  }
+
+  /**
+   * @return the maximum time of each download once started, or 0 if unlimited
+   */
+  public long getDownloadTimeoutMillis() {
+    return downloadTimeoutMillis;
+  }
+
+  /**
+   * @return the deadline by which the downloads are cancelled, {@link Deadline#NONE} if they are
+   *     never cancelled
+   */
+  public Deadline getDeadline() {
+    return deadline;
+  }
+}
@@ -0,0 +1,321 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.report;
+
+import com.google.api.ads.adwords.awalerting.AlertProcessingException;
+import com.google.api.ads.adwords.jaxws.v201705.cm.ReportDefinitionReportType;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process-wide cache of the (displayFieldName -> fieldName) mappings of the report types, per API
+ * version, so that the report definitions are not downloaded again by each alert. The
+ * (fieldName -> fieldType) mappings are cached in the same way.
+ *
+ * <p>If a file is specified, the mappings are loaded from it on creation, and saved into it each
+ * time a mapping is downloaded. Mappings older than the TTL are still returned, but are downloaded
+ * again in the background.
+ *
+ * <p>This class is thread safe.
+ */
+public class ReportFieldsMappingCache {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ReportFieldsMappingCache.class);
+
+  private static final String LOADED_AT_TAG = "LoadedAt";
+  private static final String FIELDS_TAG = "Fields";
+
+  // Prefix of the keys of the (fieldName -> fieldType) mappings.
+  private static final String FIELD_TYPES_KEY_PREFIX = "FieldTypes:";
+
+  private final Path file;
+  private final long ttlMillis;
+  private final Executor refreshExecutor;
+
+  private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+  private final ConcurrentMap<String, FutureTask<Entry>> loads =
+      new ConcurrentHashMap<String, FutureTask<Entry>>();
+  private final Set<String> refreshes =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private final Object fileLock = new Object();
+
+  private final AtomicInteger hits = new AtomicInteger();
+  private final AtomicInteger misses = new AtomicInteger();
+
+  /**
+   * @param file the file to load the mappings from and save them into, could be null
+   * @param ttlMillis how long a mapping is used before being downloaded again
+   */
+  public ReportFieldsMappingCache(Path file, long ttlMillis) {
+    this(file, ttlMillis, Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+        .setNameFormat("aw-alerting-fields-refresh-%d")
+        .setDaemon(true)
+        .build()));
+  }
+
+  ReportFieldsMappingCache(Path file, long ttlMillis, Executor refreshExecutor) {
+    Preconditions.checkArgument(ttlMillis >= 0, "ttlMillis must not be negative.");
+    this.file = file;
+    this.ttlMillis = ttlMillis;
+    this.refreshExecutor =
+        Preconditions.checkNotNull(refreshExecutor, "refreshExecutor cannot be null.");
+
+    if (file != null && Files.exists(file)) {
+      try {
+        load();
+        LOGGER.info("Loaded {} report fields mappings from {}.", entries.size(), file);
+      } catch (IOException | RuntimeException e) {
+        LOGGER.warn("Failed to load report fields mappings from {}, ignoring it.", file, e);
+      }
+    }
+  }
+
+  /**
+   * Gets the fields mapping of the report type, downloading it with the loader if it's not cached
+   * yet. If the cached mapping is stale, it's returned and downloaded again in the background.
+   *
+   * @param apiVersion the API version of the report type
+   * @param reportType the report type
+   * @param loader the loader to download the fields mapping if needed
+   * @return the (displayFieldName -> fieldName) mapping, which must not be modified
+   */
+  public Map<String, String> get(String apiVersion, ReportDefinitionReportType reportType,
+      Callable<Map<String, String>> loader) throws AlertProcessingException {
+    final String key = getKey(apiVersion, reportType);
+    Entry entry = entries.get(key);
+    if (entry != null) {
+      hits.incrementAndGet();
+      if (System.currentTimeMillis() - entry.loadedAtMillis >= ttlMillis) {
+        refreshInBackground(key, loader);
+      }
+      return entry.fieldsMapping;
+    }
+
+    // Concurrent requests for the same report type wait for the same download.
+    FutureTask<Entry> newLoad = new FutureTask<Entry>(newEntryLoader(key, loader));
+    FutureTask<Entry> load = loads.putIfAbsent(key, newLoad);
+    if (load == null) {
+      load = newLoad;
+      misses.incrementAndGet();
+      newLoad.run();
+    } else {
+      hits.incrementAndGet();
+    }
+
+    try {
+      return load.get().fieldsMapping;
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof AlertProcessingException) {
+        throw (AlertProcessingException) cause;
+      }
+      throw new AlertProcessingException(
+          "Failed to download fields mapping of " + reportType.value() + ".", cause);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new AlertProcessingException(
+          "ReportFieldsMappingCache encounters InterruptedException.", e);
+    } finally {
+      loads.remove(key, load);
+    }
+  }
+
+  /**
+   * Gets the (fieldName -> fieldType) mapping of the report type, in the same way as
+   * {@link #get(String, ReportDefinitionReportType, Callable)}.
+   *
+   * @param apiVersion the API version of the report type
+   * @param reportType the report type
+   * @param loader the loader to download the field types if needed
+   * @return the (fieldName -> fieldType) mapping, which must not be modified
+   */
+  public Map<String, String> getFieldTypes(String apiVersion,
+      ReportDefinitionReportType reportType, Callable<Map<String, String>> loader)
+      throws AlertProcessingException {
+    return get(FIELD_TYPES_KEY_PREFIX + apiVersion, reportType, loader);
+  }
+
+  /**
+   * Caches the fields mapping of the report type, when it was downloaded along with something
+   * else rather than by {@link #get(String, ReportDefinitionReportType, Callable)}.
+   *
+   * @param apiVersion the API version of the report type
+   * @param reportType the report type
+   * @param fieldsMapping the (displayFieldName -> fieldName) mapping
+   */
+  public void put(String apiVersion, ReportDefinitionReportType reportType,
+      Map<String, String> fieldsMapping) {
+    entries.put(getKey(apiVersion, reportType),
+        new Entry(fieldsMapping, System.currentTimeMillis()));
+    save();
+  }
+
+  /**
+   * Caches the (fieldName -> fieldType) mapping of the report type, in the same way as
+   * {@link #put(String, ReportDefinitionReportType, Map)}.
+   *
+   * @param apiVersion the API version of the report type
+   * @param reportType the report type
+   * @param fieldTypes the (fieldName -> fieldType) mapping
+   */
+  public void putFieldTypes(String apiVersion, ReportDefinitionReportType reportType,
+      Map<String, String> fieldTypes) {
+    put(FIELD_TYPES_KEY_PREFIX + apiVersion, reportType, fieldTypes);
+  }
+
+  private static String getKey(String apiVersion, ReportDefinitionReportType reportType) {
+    return apiVersion + ":" + reportType.value();
+  }
+
+  private Callable<Entry> newEntryLoader(
+      final String key, final Callable<Map<String, String>> loader) {
+    return new Callable<Entry>() {
+      @Override
+      public Entry call() throws Exception {
+        Entry entry = new Entry(loader.call(), System.currentTimeMillis());
+        entries.put(key, entry);
+        save();
+        return entry;
+      }
+    };
+  }
+
+  private void refreshInBackground(final String key, Callable<Map<String, String>> loader) {
+    if (!refreshes.add(key)) {
+      return;
+    }
+
+    final Callable<Entry> entryLoader = newEntryLoader(key, loader);
+    refreshExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          entryLoader.call();
+          LOGGER.debug("Refreshed fields mapping of {}.", key);
+        } catch (Exception e) {
+          LOGGER.warn("Failed to refresh fields mapping of {}, keeping the stale one.", key, e);
+        } finally {
+          refreshes.remove(key);
+        }
+      }
+    });
+  }
+
+  private void load() throws IOException {
+    try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      JsonObject json = new JsonParser().parse(reader).getAsJsonObject();
+      for (Map.Entry<String, JsonElement> jsonEntry : json.entrySet()) {
+        JsonObject entryJson = jsonEntry.getValue().getAsJsonObject();
+        Map<String, String> fieldsMapping = new HashMap<String, String>();
+        for (Map.Entry<String, JsonElement> field :
+            entryJson.getAsJsonObject(FIELDS_TAG).entrySet()) {
+          fieldsMapping.put(field.getKey(), field.getValue().getAsString());
+        }
+        entries.put(jsonEntry.getKey(),
+            new Entry(fieldsMapping, entryJson.get(LOADED_AT_TAG).getAsLong()));
+      }
+    }
+  }
+
+  /**
+   * Writes all mappings into the file, through a temporary file so that readers never see a
+   * partial file.
+   */
+  private void save() {
+    if (file == null) {
+      return;
+    }
+
+    synchronized (fileLock) {
+      JsonObject json = new JsonObject();
+      for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+        JsonObject fieldsJson = new JsonObject();
+        for (Map.Entry<String, String> field : entry.getValue().fieldsMapping.entrySet()) {
+          fieldsJson.addProperty(field.getKey(), field.getValue());
+        }
+        JsonObject entryJson = new JsonObject();
+        entryJson.addProperty(LOADED_AT_TAG, entry.getValue().loadedAtMillis);
+        entryJson.add(FIELDS_TAG, fieldsJson);
+        json.add(entry.getKey(), entryJson);
+      }
+
+      try {
+        Path parent = file.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path tempFile = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        try {
+          try (Writer writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+            writer.write(json.toString());
+          }
+          Files.move(tempFile, file,
+              StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+          Files.deleteIfExists(tempFile);
+        }
+      } catch (IOException e) {
+        LOGGER.warn("Failed to save report fields mappings into {}.", file, e);
+      }
+    }
+  }
+
+  /**
+   * @return the number of requests served without waiting for a download of their own
+   */
+  public int getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return the number of requests that downloaded the fields mapping
+   */
+  public int getMisses() {
+    return misses.get();
+  }
+
+  private static class Entry {
+    private final Map<String, String> fieldsMapping;
+    private final long loadedAtMillis;
+
+    Entry(Map<String, String> fieldsMapping, long loadedAtMillis) {
+      this.fieldsMapping = Collections.unmodifiableMap(fieldsMapping);
+      this.loadedAtMillis = loadedAtMillis;
+    }
+  }
+}
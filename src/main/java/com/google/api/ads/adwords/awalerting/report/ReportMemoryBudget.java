@@ -0,0 +1,153 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.report;
+
+import com.google.common.base.Preconditions;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Run-scoped memory budget of the downloaded reports. The reports are admitted in memory while
+ * their estimated size (see {@link ReportData#getEstimatedBytes()}) fits into the budget; the
+ * reports completed beyond it are spilled to memory-mapped temporary files instead (see
+ * {@link OffHeapReportData#spill(ReportData, Path)}), so a run with too many large reports slows
+ * down to disk speed rather than running out of memory.
+ *
+ * <p>A report that cannot be spilled is kept in memory, with a warning.
+ *
+ * <p>This class is thread safe.
+ */
+public class ReportMemoryBudget {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ReportMemoryBudget.class);
+
+  private final long maxBytes;
+  private final Path spillDirectory;
+
+  // The reports admitted in memory, and their estimated sizes.
+  private final Map<ReportData, Long> admittedReports = new IdentityHashMap<ReportData, Long>();
+  private long usedBytes;
+  private int spilledReportsCount;
+
+  /**
+   * @param maxBytes the maximum estimated number of bytes of the reports held in memory
+   * @param spillDirectory the directory of the temporary files of the spilled reports
+   */
+  public ReportMemoryBudget(long maxBytes, Path spillDirectory) {
+    Preconditions.checkArgument(maxBytes >= 0, "maxBytes cannot be negative.");
+    this.maxBytes = maxBytes;
+    this.spillDirectory =
+        Preconditions.checkNotNull(spillDirectory, "spillDirectory cannot be null.");
+  }
+
+  /**
+   * Admits a completed report in memory if it fits into the budget, or spills it to disk.
+   *
+   * @param report the completed report
+   * @return the report itself, or its spilled copy, in which case the report is released
+   */
+  public ReportData admit(ReportData report) {
+    long bytes = report.getEstimatedBytes();
+    synchronized (this) {
+      if (usedBytes + bytes <= maxBytes) {
+        track(report, bytes);
+        return report;
+      }
+    }
+
+    ReportData spilledReport;
+    try {
+      spilledReport = OffHeapReportData.spill(report, spillDirectory);
+    } catch (IOException e) {
+      LOGGER.warn("Failed to spill report of account {} to {}, keeping it in memory: {}",
+          report.getClientCustomerId(), spillDirectory, e.toString());
+      synchronized (this) {
+        track(report, bytes);
+      }
+      return report;
+    }
+
+    report.release();
+    synchronized (this) {
+      spilledReportsCount++;
+    }
+    LOGGER.debug("Spilled report of account {} ({} rows, about {} bytes) to disk.",
+        report.getClientCustomerId(), spilledReport.getRowsCount(), bytes);
+    return spilledReport;
+  }
+
+  /**
+   * Counts a copy-on-write view of an admitted report in the budget until it's released. The view
+   * is never spilled, since it shares most of its memory with its report, but the reports
+   * completed while it's held are spilled sooner.
+   *
+   * @param view the view, see {@link ReportData#newCopyOnWriteView()}
+   * @param bytes the estimated number of bytes of the view, see
+   *     {@link ReportData#getEstimatedViewBytes()}
+   */
+  public synchronized void admitView(ReportData view, long bytes) {
+    track(view, bytes);
+  }
+
+  /**
+   * Counts the report in the budget until it's released.
+   */
+  private void track(final ReportData report, long bytes) {
+    admittedReports.put(report, Long.valueOf(bytes));
+    usedBytes += bytes;
+    report.addReleaseListener(new Runnable() {
+      @Override
+      public void run() {
+        untrack(report);
+      }
+    });
+  }
+
+  private synchronized void untrack(ReportData report) {
+    Long bytes = admittedReports.remove(report);
+    if (bytes != null) {
+      usedBytes -= bytes.longValue();
+    }
+  }
+
+  /**
+   * Releases a report returned by {@link #admit(ReportData)}. Its memory is given back to the
+   * budget whoever releases it (see {@link ReportData#release()}).
+   *
+   * @param report the report to release
+   */
+  public void release(ReportData report) {
+    report.release();
+  }
+
+  /**
+   * @return the estimated number of bytes of the reports held in memory
+   */
+  public synchronized long getUsedBytes() {
+    return usedBytes;
+  }
+
+  /**
+   * @return the number of reports spilled to disk so far
+   */
+  public synchronized int getSpilledReportsCount() {
+    return spilledReportsCount;
+  }
+}
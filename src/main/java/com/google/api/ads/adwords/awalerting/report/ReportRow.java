@@ -14,6 +14,9 @@
 
 package com.google.api.ads.adwords.awalerting.report;
 
+import com.google.common.base.Preconditions;
+
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -46,6 +49,61 @@ public class ReportRow {
     return null;
   }
 
+  /**
+   * Get the values of all the fields.
+   *
+   * @return the "field name" -> value mapping, in the order of the fields in the report
+   */
+  public Map<String, String> getFieldValues() {
+    String[] fieldNames = new String[values.size()];
+    for (Map.Entry<String, Integer> field : mapping.entrySet()) {
+      if (field.getValue() < fieldNames.length) {
+        fieldNames[field.getValue()] = field.getKey();
+      }
+    }
+    Map<String, String> fieldValues = new LinkedHashMap<String, String>();
+    for (int i = 0; i < fieldNames.length; i++) {
+      if (fieldNames[i] != null) {
+        fieldValues.put(fieldNames[i], values.get(i));
+      }
+    }
+    return fieldValues;
+  }
+
+  /**
+   * Get the value of the specified field name as a long.
+   *
+   * @param fieldName the field name
+   * @return value of the specified field name
+   * @throws NumberFormatException if the value is not a long
+   * @throws IllegalArgumentException if the field is not in report
+   */
+  public long getLongValue(String fieldName) {
+    return Long.parseLong(getRequiredFieldValue(fieldName));
+  }
+
+  /**
+   * Get the value of the specified field name as a double.
+   *
+   * @param fieldName the field name
+   * @return value of the specified field name
+   * @throws NumberFormatException if the value is not a double
+   * @throws IllegalArgumentException if the field is not in report
+   */
+  public double getDoubleValue(String fieldName) {
+    String value = getRequiredFieldValue(fieldName);
+    if (value == null) {
+      throw new NumberFormatException("null");
+    }
+    return Double.parseDouble(value);
+  }
+
+  private String getRequiredFieldValue(String fieldName) {
+    Preconditions.checkArgument(mapping.containsKey(fieldName),
+        "The specified field name is not available in the report: %s", fieldName);
+    return values.get(mapping.get(fieldName).intValue());
+  }
+
   /**
    * Set the value of the specified field name.
    *
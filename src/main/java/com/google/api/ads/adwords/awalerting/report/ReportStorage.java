@@ -0,0 +1,35 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.report;
+
+/**
+ * How {@link ReportDataLoader} stores the rows of the reports.
+ */
+public enum ReportStorage {
+  /**
+   * Each row is a list of strings. This is the default.
+   */
+  ROWS,
+
+  /**
+   * The report is stored column by column, see {@link ColumnarReportData}.
+   */
+  COLUMNAR,
+
+  /**
+   * The rows are stored outside the heap, see {@link OffHeapReportData}.
+   */
+  OFF_HEAP
+}
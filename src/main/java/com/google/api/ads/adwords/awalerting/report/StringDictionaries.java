@@ -0,0 +1,56 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.report;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The {@link StringDictionary} of each column name, either for a single report, or shared by all
+ * the reports of a run (see {@link ReportDownloadContext#getStringDictionaries()}).
+ *
+ * <p>This class is thread safe.
+ */
+public class StringDictionaries {
+  private final ConcurrentMap<String, StringDictionary> dictionaries =
+      new ConcurrentHashMap<String, StringDictionary>();
+
+  /**
+   * @param columnName the column name
+   * @return the dictionary of the column, created if needed
+   */
+  public StringDictionary get(String columnName) {
+    StringDictionary dictionary = dictionaries.get(columnName);
+    if (dictionary == null) {
+      StringDictionary newDictionary = new StringDictionary();
+      dictionary = dictionaries.putIfAbsent(columnName, newDictionary);
+      if (dictionary == null) {
+        dictionary = newDictionary;
+      }
+    }
+    return dictionary;
+  }
+
+  /**
+   * @return the total number of distinct values of all columns
+   */
+  public int getValuesCount() {
+    int count = 0;
+    for (StringDictionary dictionary : dictionaries.values()) {
+      count += dictionary.size();
+    }
+    return count;
+  }
+}
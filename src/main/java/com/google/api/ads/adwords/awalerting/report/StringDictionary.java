@@ -0,0 +1,83 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.report;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Dictionary of the distinct values of a string column, which encodes each value as an int code,
+ * so that the rows of {@link ColumnarReportData} only hold codes and share a single instance of
+ * each value.
+ *
+ * <p>This class is thread safe, so the same dictionary can be shared by the reports loaded
+ * concurrently.
+ */
+public class StringDictionary {
+  // The code of null values.
+  static final int NULL_CODE = -1;
+
+  private final ConcurrentMap<String, Integer> codes = new ConcurrentHashMap<String, Integer>();
+
+  // Written under the lock, and read after getting a code from the map, which happens after the
+  // value was written.
+  private volatile String[] values = new String[16];
+  private int size;
+
+  /**
+   * @param value the value to encode, could be null
+   * @return the code of the value, which is added into the dictionary if it's not there yet
+   */
+  public int encode(String value) {
+    if (value == null) {
+      return NULL_CODE;
+    }
+    Integer code = codes.get(value);
+    if (code != null) {
+      return code.intValue();
+    }
+
+    synchronized (this) {
+      code = codes.get(value);
+      if (code == null) {
+        String[] newValues = values;
+        if (size == newValues.length) {
+          newValues = Arrays.copyOf(newValues, size * 2);
+        }
+        newValues[size] = value;
+        values = newValues;
+        code = Integer.valueOf(size++);
+        codes.put(value, code);
+      }
+    }
+    return code.intValue();
+  }
+
+  /**
+   * @param code the code returned by {@link #encode(String)}
+   * @return the value of the code
+   */
+  public String decode(int code) {
+    return code == NULL_CODE ? null : values[code];
+  }
+
+  /**
+   * @return the number of distinct values
+   */
+  public int size() {
+    return codes.size();
+  }
+}
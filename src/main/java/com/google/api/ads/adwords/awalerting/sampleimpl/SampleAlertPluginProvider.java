@@ -0,0 +1,57 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.sampleimpl;
+
+import com.google.api.ads.adwords.awalerting.AlertPluginProvider;
+import com.google.api.ads.adwords.awalerting.sampleimpl.action.NoOpAlertAction;
+import com.google.api.ads.adwords.awalerting.sampleimpl.action.PerAccountManagerEmailSender;
+import com.google.api.ads.adwords.awalerting.sampleimpl.action.SimpleConsoleWriter;
+import com.google.api.ads.adwords.awalerting.sampleimpl.action.SimpleLogFileWriter;
+import com.google.api.ads.adwords.awalerting.sampleimpl.action.SqlDbPersister;
+import com.google.api.ads.adwords.awalerting.sampleimpl.downloader.AwqlReportDownloader;
+import com.google.api.ads.adwords.awalerting.sampleimpl.downloader.NoOpAlertReportDownloader;
+import com.google.api.ads.adwords.awalerting.sampleimpl.downloader.SqlDbReportDownloader;
+import com.google.api.ads.adwords.awalerting.sampleimpl.rule.AddAccountManager;
+import com.google.api.ads.adwords.awalerting.sampleimpl.rule.AddAccountMonthlyBudget;
+import com.google.api.ads.adwords.awalerting.sampleimpl.rule.ConvertMoneyValue;
+import com.google.api.ads.adwords.awalerting.sampleimpl.rule.NoOpAlertRule;
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+/**
+ * Provides the report downloaders, alert rules and alert actions of the sample implementation.
+ */
+public class SampleAlertPluginProvider implements AlertPluginProvider {
+  @Override
+  public List<Class<?>> getPluginClasses() {
+    return ImmutableList.<Class<?>>of(
+        // Report downloaders
+        AwqlReportDownloader.class,
+        NoOpAlertReportDownloader.class,
+        SqlDbReportDownloader.class,
+        // Alert rules
+        AddAccountManager.class,
+        AddAccountMonthlyBudget.class,
+        ConvertMoneyValue.class,
+        NoOpAlertRule.class,
+        // Alert actions
+        NoOpAlertAction.class,
+        PerAccountManagerEmailSender.class,
+        SimpleConsoleWriter.class,
+        SimpleLogFileWriter.class,
+        SqlDbPersister.class);
+  }
+}
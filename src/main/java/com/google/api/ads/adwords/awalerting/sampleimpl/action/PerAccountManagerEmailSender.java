@@ -14,11 +14,14 @@
 
 package com.google.api.ads.adwords.awalerting.sampleimpl.action;
 
-import com.google.api.ads.adwords.awalerting.AlertAction;
+import com.google.api.ads.adwords.awalerting.MergeableAlertAction;
 import com.google.api.ads.adwords.awalerting.report.UnmodifiableReportRow;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Multimap;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -43,8 +46,11 @@ import java.util.Map;
  *   "CC": "abc@example.com,xyz@example.com"
  * }
  * </pre>
+ *
+ * <p>When the accounts are split into shards, each shard saves its alert emails as partial state,
+ * and the merge step sends the combined emails.
  */
-public class PerAccountManagerEmailSender implements AlertAction {
+public class PerAccountManagerEmailSender implements MergeableAlertAction {
   private static final Logger LOGGER = LoggerFactory.getLogger(PerAccountManagerEmailSender.class);
 
   private static final String NEWLINE = String.format("%n");
@@ -52,6 +58,7 @@ public class PerAccountManagerEmailSender implements AlertAction {
 
   private static final String SUBJECT_TAG = "Subject";
   private static final String CC_TAG = "CC";
+  private static final String EMAILS_TAG = "Emails";
 
   // Each email for one receiver (account manager)
   private Map<String, AlertEmail> emailsMap;
@@ -107,6 +114,51 @@ public class PerAccountManagerEmailSender implements AlertAction {
     LOGGER.info(sb.toString());
   }
 
+  /**
+   * Returns the alert emails of this shard, by receiver and account.
+   */
+  @Override
+  public JsonObject getPartialState() {
+    JsonObject emailsJson = new JsonObject();
+    for (AlertEmail email : emailsMap.values()) {
+      JsonObject alertsJson = new JsonObject();
+      for (String clientCustomerId : email.alertsMap.keySet()) {
+        JsonArray alertMessagesJson = new JsonArray();
+        for (String alertMessage : email.alertsMap.get(clientCustomerId)) {
+          alertMessagesJson.add(new JsonPrimitive(alertMessage));
+        }
+        alertsJson.add(clientCustomerId, alertMessagesJson);
+      }
+      emailsJson.add(email.to, alertsJson);
+    }
+
+    JsonObject partialState = new JsonObject();
+    partialState.add(EMAILS_TAG, emailsJson);
+    return partialState;
+  }
+
+  /**
+   * Adds the alert emails of a shard to the alert emails of the same receivers.
+   */
+  @Override
+  public void mergePartialState(JsonObject partialState) {
+    for (Map.Entry<String, JsonElement> emailJson :
+        partialState.getAsJsonObject(EMAILS_TAG).entrySet()) {
+      String to = emailJson.getKey();
+      AlertEmail email = emailsMap.get(to);
+      if (email == null) {
+        email = new AlertEmail(to);
+        emailsMap.put(to, email);
+      }
+      for (Map.Entry<String, JsonElement> alertsJson :
+          emailJson.getValue().getAsJsonObject().entrySet()) {
+        for (JsonElement alertMessage : alertsJson.getValue().getAsJsonArray()) {
+          email.addAlert(alertsJson.getKey(), alertMessage.getAsString());
+        }
+      }
+    }
+  }
+
   /**
    * Helper inner class for alert email.
    */
@@ -15,6 +15,7 @@
 package com.google.api.ads.adwords.awalerting.sampleimpl.downloader;
 
 import com.google.api.ads.adwords.awalerting.AlertProcessingException;
+import com.google.api.ads.adwords.awalerting.report.ReportFieldsMappingCache;
 import com.google.api.ads.adwords.awalerting.util.AdWordsServicesUtil;
 import com.google.api.ads.adwords.jaxws.v201705.cm.ApiException_Exception;
 import com.google.api.ads.adwords.jaxws.v201705.cm.ReportDefinitionField;
@@ -25,28 +26,47 @@ import com.google.common.annotations.VisibleForTesting;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import javax.annotation.concurrent.NotThreadSafe;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.concurrent.ThreadSafe;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Class to download report definition and generate (displayFiledName -> filedName) mapping
- * for each required report type.
+ * for each required report type. If a {@link ReportFieldsMappingCache} is specified, the mappings
+ * are shared with the other downloaders through it.
  */
-@NotThreadSafe
+@ThreadSafe
 public class AwReportDefinitionDownloader {
   private static final Logger LOGGER = LoggerFactory.getLogger(AwReportDefinitionDownloader.class);
 
+  // The API version of ReportDefinitionService and ReportDefinitionReportType.
+  private static final String API_VERSION = "v201705";
+
   private final AdWordsSession session;
+  private final ReportFieldsMappingCache fieldsMappingCache;
 
   private final Map<ReportDefinitionReportType, Map<String, String>> reportFieldsMappings =
-      new HashMap<ReportDefinitionReportType, Map<String, String>>();
+      new ConcurrentHashMap<ReportDefinitionReportType, Map<String, String>>();
+  private final Map<ReportDefinitionReportType, Map<String, String>> reportFieldTypes =
+      new ConcurrentHashMap<ReportDefinitionReportType, Map<String, String>>();
 
   /**
    * @param session the adwords session
    */
   public AwReportDefinitionDownloader(AdWordsSession session) {
+    this(session, null);
+  }
+
+  /**
+   * @param session the adwords session
+   * @param fieldsMappingCache the process-wide cache of fields mappings, could be null
+   */
+  public AwReportDefinitionDownloader(
+      AdWordsSession session, ReportFieldsMappingCache fieldsMappingCache) {
     this.session = session;
+    this.fieldsMappingCache = fieldsMappingCache;
   }
 
   /**
@@ -54,8 +74,17 @@ public class AwReportDefinitionDownloader {
    *
    * @param reportType the specified report type
    */
-  public Map<String, String> getFieldsMapping(ReportDefinitionReportType reportType)
+  public Map<String, String> getFieldsMapping(final ReportDefinitionReportType reportType)
       throws AlertProcessingException {
+    if (fieldsMappingCache != null) {
+      return fieldsMappingCache.get(API_VERSION, reportType, new Callable<Map<String, String>>() {
+        @Override
+        public Map<String, String> call() throws AlertProcessingException {
+          return generateFieldsMapping(reportType);
+        }
+      });
+    }
+
     Map<String, String> fieldsMapping = reportFieldsMappings.get(reportType);
     if (fieldsMapping == null) {
       fieldsMapping = generateFieldsMapping(reportType);
@@ -65,15 +94,101 @@ public class AwReportDefinitionDownloader {
     return fieldsMapping;
   }
 
+  /**
+   * Generates (filedName -> fieldType) mapping for the specified report type, such as
+   * "Impressions" -> "Long".
+   *
+   * @param reportType the specified report type
+   */
+  public Map<String, String> getFieldTypes(final ReportDefinitionReportType reportType)
+      throws AlertProcessingException {
+    if (fieldsMappingCache != null) {
+      return fieldsMappingCache.getFieldTypes(API_VERSION, reportType,
+          new Callable<Map<String, String>>() {
+            @Override
+            public Map<String, String> call() throws AlertProcessingException {
+              return generateFieldTypes(reportType);
+            }
+          });
+    }
+
+    Map<String, String> fieldTypes = reportFieldTypes.get(reportType);
+    if (fieldTypes == null) {
+      fieldTypes = generateFieldTypes(reportType);
+      reportFieldTypes.put(reportType, fieldTypes);
+    }
+
+    return fieldTypes;
+  }
+
   /**
    * Downloads fields from ReportDefinitionService (with retry logic) and generates
-   * (displayFiledName -> filedName) mapping for the specified report type.
+   * (displayFiledName -> filedName) mapping for the specified report type. The field types from
+   * the same download are kept too, so that {@link #getFieldTypes} does not download them again.
    *
    * @param reportType the specified report type
    */
   @VisibleForTesting
   Map<String, String> generateFieldsMapping(final ReportDefinitionReportType reportType)
       throws AlertProcessingException {
+    List<ReportDefinitionField> reportDefinitionFields = downloadReportFields(reportType);
+    putFieldTypes(reportType, toFieldTypes(reportDefinitionFields));
+    return toFieldsMapping(reportDefinitionFields);
+  }
+
+  /**
+   * Downloads fields from ReportDefinitionService and generates (filedName -> fieldType) mapping
+   * for the specified report type. The fields mapping from the same download is kept too.
+   *
+   * @param reportType the specified report type
+   */
+  @VisibleForTesting
+  Map<String, String> generateFieldTypes(final ReportDefinitionReportType reportType)
+      throws AlertProcessingException {
+    List<ReportDefinitionField> reportDefinitionFields = downloadReportFields(reportType);
+    putFieldsMapping(reportType, toFieldsMapping(reportDefinitionFields));
+    return toFieldTypes(reportDefinitionFields);
+  }
+
+  private void putFieldsMapping(
+      ReportDefinitionReportType reportType, Map<String, String> fieldsMapping) {
+    if (fieldsMappingCache != null) {
+      fieldsMappingCache.put(API_VERSION, reportType, fieldsMapping);
+    } else {
+      reportFieldsMappings.put(reportType, fieldsMapping);
+    }
+  }
+
+  private void putFieldTypes(
+      ReportDefinitionReportType reportType, Map<String, String> fieldTypes) {
+    if (fieldsMappingCache != null) {
+      fieldsMappingCache.putFieldTypes(API_VERSION, reportType, fieldTypes);
+    } else {
+      reportFieldTypes.put(reportType, fieldTypes);
+    }
+  }
+
+  private static Map<String, String> toFieldsMapping(
+      List<ReportDefinitionField> reportDefinitionFields) {
+    Map<String, String> fieldsMapping = new HashMap<String, String>(reportDefinitionFields.size());
+    for (ReportDefinitionField field : reportDefinitionFields) {
+      fieldsMapping.put(field.getDisplayFieldName(), field.getFieldName());
+    }
+    return fieldsMapping;
+  }
+
+  private static Map<String, String> toFieldTypes(
+      List<ReportDefinitionField> reportDefinitionFields) {
+    Map<String, String> fieldTypes = new HashMap<String, String>(reportDefinitionFields.size());
+    for (ReportDefinitionField field : reportDefinitionFields) {
+      fieldTypes.put(field.getFieldName(), field.getFieldType());
+    }
+    return fieldTypes;
+  }
+
+  @VisibleForTesting
+  List<ReportDefinitionField> downloadReportFields(ReportDefinitionReportType reportType)
+      throws AlertProcessingException {
     ReportDefinitionServiceInterface reportDefinitionService =
         AdWordsServicesUtil.getService(session, ReportDefinitionServiceInterface.class);
     
@@ -85,13 +200,7 @@ public class AwReportDefinitionDownloader {
           "ApiException_Exception occurred when downloading report definition.", e);
     }
 
-    // Generate the fields mapping.
     LOGGER.info("Successfully downloaded report definition for {}.", reportType.value());
-    Map<String, String> fieldsMapping = new HashMap<String, String>(reportDefinitionFields.size());
-    for (ReportDefinitionField field : reportDefinitionFields) {
-      fieldsMapping.put(field.getDisplayFieldName(), field.getFieldName());
-    }
-
-    return fieldsMapping;
+    return reportDefinitionFields;
   }
 }
@@ -15,36 +15,80 @@
 package com.google.api.ads.adwords.awalerting.sampleimpl.downloader;
 
 import com.google.api.ads.adwords.awalerting.AlertProcessingException;
-import com.google.api.ads.adwords.awalerting.AlertReportDownloader;
+import com.google.api.ads.adwords.awalerting.ReportDownloadContextAware;
+import com.google.api.ads.adwords.awalerting.StreamingAlertReportDownloader;
 import com.google.api.ads.adwords.awalerting.report.AwqlReportQuery;
+import com.google.api.ads.adwords.awalerting.report.ColumnarReportData;
+import com.google.api.ads.adwords.awalerting.report.DictionaryScope;
+import com.google.api.ads.adwords.awalerting.report.DownloadLedger;
+import com.google.api.ads.adwords.awalerting.report.OffHeapReportData;
 import com.google.api.ads.adwords.awalerting.report.ReportData;
 import com.google.api.ads.adwords.awalerting.report.ReportDataLoader;
+import com.google.api.ads.adwords.awalerting.report.ReportDataSink;
+import com.google.api.ads.adwords.awalerting.report.ReportDataStore;
+import com.google.api.ads.adwords.awalerting.report.ReportDownloadContext;
+import com.google.api.ads.adwords.awalerting.report.ReportFieldsMappingCache;
+import com.google.api.ads.adwords.awalerting.report.ReportStorage;
+import com.google.api.ads.adwords.awalerting.report.StringDictionaries;
+import com.google.api.ads.adwords.awalerting.util.AdaptiveConcurrencyLimiter;
+import com.google.api.ads.adwords.awalerting.util.CircuitBreaker;
+import com.google.api.ads.adwords.awalerting.util.Deadline;
+import com.google.api.ads.adwords.awalerting.util.PagedClientCustomerIds;
 import com.google.api.ads.adwords.jaxws.v201705.cm.ReportDefinitionReportType;
 import com.google.api.ads.adwords.lib.client.AdWordsSession.ImmutableAdWordsSession;
 import com.google.api.ads.common.lib.exception.ValidationException;
-import com.google.common.base.Joiner;
 import com.google.common.base.Stopwatch;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Class that concurrently downloads report via the reporting API.
- * 
- * <p>An {@link ExecutorService} is created in order to handle all the threads. To initialize the
- * executor is necessary to call {@code initializeExecutorService}, and to finalize the executor
- * is necessary to call {@code finalizeExecutorService} after all the downloads are done, and the
- * downloader will not be used again.
+ * Class that concurrently downloads report via the reporting API. Each report is handed over as
+ * soon as it's downloaded when used as a {@link StreamingAlertReportDownloader}.
+ *
+ * <p>When a {@link ReportDownloadContext} is set, reports are fetched through its run-scoped
+ * {@link ReportDataStore}, so alerts with the same report query and storage share the downloads,
+ * and the downloads run on its shared thread pool. The API downloads also go through its
+ * {@link AdaptiveConcurrencyLimiter}, which adapts the number of concurrent downloads to the
+ * latency and the rate exceeded errors, and the accounts that keep failing are skipped for the
+ * rest of the run. The report fields mappings are shared through its
+ * {@link ReportFieldsMappingCache}. Without a context, a thread pool is created for each call and
+ * shut down at the end of the call.
+ *
+ * <p>With the {@link DownloadLedger} of the context, the accounts expected to take the longest
+ * (according to the past runs) are downloaded first, and each download is recorded into it.
+ *
+ * <p>The context also sets the deadlines: a download that runs for longer than the download
+ * timeout is cancelled, and so are all downloads still running or waiting when the alert deadline
+ * expires. The cancelled downloads are interrupted, and reported as failures with the
+ * {@code TIMED_OUT} reason; the reports downloaded so far are processed as usual.
  *
  * <p>The JSON config should look like:
  * <pre>
@@ -55,24 +99,126 @@ import org.slf4j.LoggerFactory;
  *     "Fields": "...",
  *     "Conditions": "...",
  *     "DateRange": "..."
- *   }
+ *   },
+ *   "Cache": {
+ *     "Directory": "..."
+ *   },
+ *   "Retry": {
+ *     "MaxAttempts": 3
+ *   },
+ *   "FailuresFile": "...",
+ *   "ReportStorage": "COLUMNAR",
+ *   "DictionaryScope": "REPORT"
  * }
  * </pre>
+ * The "Cache" config is optional, see {@link ReportDiskCache} for details. The "Retry" config is
+ * optional, see {@link DownloadRetryPolicy} for details. If "FailuresFile" is specified, the
+ * downloads that finally failed are appended to this file, one JSON object per line.
+ * "ReportStorage" is "ROWS" by default; with "COLUMNAR", the reports are stored as
+ * {@link ColumnarReportData}, with the numeric fields in primitive arrays, and the string fields
+ * dictionary encoded according to "DictionaryScope" (see {@link DictionaryScope}, "REPORT" by
+ * default). The "RUN" scope shares the dictionaries of the {@link ReportDownloadContext}. With
+ * "OFF_HEAP", the rows are stored outside the Java heap as {@link OffHeapReportData}, and freed
+ * once all alert actions are done with them.
  */
-public class AwqlReportDownloader implements AlertReportDownloader {
+public class AwqlReportDownloader
+    implements StreamingAlertReportDownloader, ReportDownloadContextAware {
   private static final Logger LOGGER = LoggerFactory.getLogger(AwqlReportDownloader.class);
   private static final String SEPARATOR = System.getProperty("line.separator");
 
   private static final String REPORT_QUERY_TAG = "ReportQuery";
+  private static final String CACHE_TAG = "Cache";
+  private static final String RETRY_TAG = "Retry";
+  private static final String FAILURES_FILE_TAG = "FailuresFile";
+  private static final String REPORT_STORAGE_TAG = "ReportStorage";
+  private static final String DICTIONARY_SCOPE_TAG = "DictionaryScope";
 
-  private static final int NUM_THREADS = 20;
-  private int numThreads = NUM_THREADS;
+  private static final String FAILURE_TIME_TAG = "Time";
+  private static final String FAILURE_CID_TAG = "ClientCustomerId";
+  private static final String FAILURE_REPORT_TYPE_TAG = "ReportType";
+  private static final String FAILURE_REASON_TAG = "Reason";
+  private static final String FAILURE_ERROR_TYPE_TAG = "ErrorType";
+  private static final String FAILURE_HTTP_STATUS_TAG = "HttpStatus";
+  private static final String FAILURE_ATTEMPTS_TAG = "Attempts";
+  private static final String FAILURE_MESSAGE_TAG = "Message";
+
+  // The download threads of each call without a shared thread pool nor a download context.
+  private static final int DEFAULT_NUM_THREADS = 20;
+  // How often the running downloads are checked for timeouts, while some have not started yet.
+  private static final long TIMEOUT_CHECK_MILLIS = 1000;
+  // How often the accounts still being retrieved are checked for a new page, while downloading.
+  private static final long PAGE_CHECK_MILLIS = 100;
+  private static final String TIMEOUT_ERROR_TYPE = "Timeout";
 
   private final AwqlReportQuery reportQuery;
-  
+  private final ReportDiskCache reportDiskCache;
+  private final DownloadRetryPolicy retryPolicy;
+  private final Path failuresFile;
+  private final ReportStorage reportStorage;
+  private final DictionaryScope dictionaryScope;
+  private ReportDataStore reportDataStore;
+  private ExecutorService sharedExecutor;
+  private AdaptiveConcurrencyLimiter downloadLimiter;
+  private CircuitBreaker<Long> accountCircuitBreaker;
+  private ReportFieldsMappingCache fieldsMappingCache;
+  private StringDictionaries stringDictionaries;
+  private DownloadLedger downloadLedger;
+  private long downloadTimeoutMillis;
+  private Deadline deadline = Deadline.NONE;
+
   public AwqlReportDownloader(JsonObject config) {
     JsonObject reportQueryConfig = config.getAsJsonObject(REPORT_QUERY_TAG);
     this.reportQuery = new AwqlReportQuery(reportQueryConfig);
+
+    if (config.has(CACHE_TAG)) {
+      JsonObject cacheConfig = config.getAsJsonObject(CACHE_TAG);
+      try {
+        this.reportDiskCache = new ReportDiskCache(cacheConfig);
+      } catch (IOException e) {
+        throw new IllegalArgumentException("Cannot use report cache config: " + cacheConfig, e);
+      }
+    } else {
+      this.reportDiskCache = null;
+    }
+
+    this.retryPolicy = new DownloadRetryPolicy(
+        config.has(RETRY_TAG) ? config.getAsJsonObject(RETRY_TAG) : new JsonObject());
+    this.failuresFile = config.has(FAILURES_FILE_TAG)
+        ? Paths.get(config.get(FAILURES_FILE_TAG).getAsString()) : null;
+
+    String reportStorage = config.has(REPORT_STORAGE_TAG)
+        ? config.get(REPORT_STORAGE_TAG).getAsString() : ReportStorage.ROWS.name();
+    try {
+      this.reportStorage = ReportStorage.valueOf(reportStorage);
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException(
+          String.format("Unknown \"%s\": %s.", REPORT_STORAGE_TAG, reportStorage), e);
+    }
+    this.dictionaryScope = config.has(DICTIONARY_SCOPE_TAG)
+        ? DictionaryScope.valueOf(config.get(DICTIONARY_SCOPE_TAG).getAsString())
+        : DictionaryScope.REPORT;
+  }
+
+  /**
+   * @return the number of download threads of a call without a shared thread pool: as many as the
+   *     run's download limit can go up to (twice {@code aw.alerting.processor.threads}), or
+   *     {@link #DEFAULT_NUM_THREADS} without a download context
+   */
+  private int getNumThreads() {
+    return downloadLimiter != null ? downloadLimiter.getMaxLimit() : DEFAULT_NUM_THREADS;
+  }
+
+  @Override
+  public void setReportDownloadContext(ReportDownloadContext context) {
+    this.reportDataStore = context.getReportDataStore();
+    this.sharedExecutor = context.getDownloadExecutor();
+    this.downloadLimiter = context.getDownloadLimiter();
+    this.accountCircuitBreaker = context.getAccountCircuitBreaker();
+    this.fieldsMappingCache = context.getFieldsMappingCache();
+    this.stringDictionaries = context.getStringDictionaries();
+    this.downloadLedger = context.getDownloadLedger();
+    this.downloadTimeoutMillis = context.getDownloadTimeoutMillis();
+    this.deadline = context.getDeadline();
   }
 
   /**
@@ -86,6 +232,33 @@ public class AwqlReportDownloader implements AlertReportDownloader {
   public List<ReportData> downloadReports(
       ImmutableAdWordsSession protoSession, Set<Long> clientCustomerIds)
       throws AlertProcessingException {
+    return downloadReports(
+        protoSession, newReportDefinitionDownloader(protoSession), clientCustomerIds);
+  }
+
+  /**
+   * Downloads the specified report for all specified CIDs, and hands over each report to the sink
+   * as soon as it's downloaded.
+   *
+   * @param protoSession the prototype adwords session used for downloading reports
+   * @param clientCustomerIds the client customer IDs to download the report for
+   * @param sink the receiver of the downloaded reports
+   */
+  @Override
+  public void downloadReports(
+      ImmutableAdWordsSession protoSession, Set<Long> clientCustomerIds, ReportDataSink sink)
+      throws AlertProcessingException {
+    downloadReports(
+        protoSession, newReportDefinitionDownloader(protoSession), clientCustomerIds, sink);
+  }
+
+  /**
+   * Creates the report definition downloader for getting fields mapping.
+   *
+   * @param protoSession the prototype adwords session used for downloading reports
+   */
+  private AwReportDefinitionDownloader newReportDefinitionDownloader(
+      ImmutableAdWordsSession protoSession) throws AlertProcessingException {
     ImmutableAdWordsSession session = null;
     try {
       // No need to specify clientCustomerId for getting report definition.
@@ -95,9 +268,7 @@ public class AwqlReportDownloader implements AlertReportDownloader {
           "Failed to create valid adwords session for report defintion downloader.", e);
     }
 
-    AwReportDefinitionDownloader reportDefinitionDownloader =
-        new AwReportDefinitionDownloader(session);
-    return downloadReports(protoSession, reportDefinitionDownloader, clientCustomerIds);
+    return new AwReportDefinitionDownloader(session, fieldsMappingCache);
   }
 
   /**
@@ -114,69 +285,380 @@ public class AwqlReportDownloader implements AlertReportDownloader {
       AwReportDefinitionDownloader reportDefinitionDownloader,
       Set<Long> clientCustomerIds)
       throws AlertProcessingException {
-    ExecutorService executorService = Executors.newFixedThreadPool(numThreads);
+    final List<ReportData> results = new ArrayList<>();
+    downloadReports(protoSession, reportDefinitionDownloader, clientCustomerIds,
+        new ReportDataSink() {
+          @Override
+          public void accept(ReportData report) {
+            results.add(report);
+          }
+
+          @Override
+          public int getMaxInFlightReports() {
+            return Integer.MAX_VALUE;
+          }
+        });
+    return results;
+  }
+
+  /**
+   * Downloads the specified report for all specified CIDs, hands over each successful download to
+   * the sink in the order of completion, and prints out the failed CIDs as JSON.
+   *
+   * <p>The downloads that still fail after all retries are downloaded again at the end, with lower
+   * concurrency (see {@link DownloadRetryPolicy}). The sink is always called from the calling
+   * thread, and there are never more downloads running or waiting for the sink than the reports it
+   * holds at a time (see {@link ReportDataSink#getMaxInFlightReports()}), so that the reports do
+   * not pile up while it blocks.
+   *
+   * @param protoSession the prototype adwords session used for downloading reports
+   * @param reportDefinitionDownloader report definition downloader (for getting fields mapping)
+   * @param clientCustomerIds the client customer IDs to download the report for
+   * @param sink the receiver of the downloaded reports
+   */
+  protected void downloadReports(
+      ImmutableAdWordsSession protoSession,
+      AwReportDefinitionDownloader reportDefinitionDownloader,
+      Set<Long> clientCustomerIds,
+      ReportDataSink sink)
+      throws AlertProcessingException {
+    ExecutorService executorService = sharedExecutor != null
+        ? sharedExecutor : Executors.newFixedThreadPool(getNumThreads());
     Stopwatch stopwatch = Stopwatch.createStarted();
     LOGGER.info("Downloading {} reports...", reportQuery.getReportType());
     
     ReportDefinitionReportType reportType = reportQuery.getReportTypeEnum();
     Map<String, String> fieldsMapping = reportDefinitionDownloader.getFieldsMapping(reportType);
-    ReportDataLoader loader = new ReportDataLoader(reportType, fieldsMapping);
-    
-    List<Long> taskIds = new ArrayList<>();
-    List<CallableAwqlReportDownloader> taskJobs = new ArrayList<>();
-    Map<Long, String> failures = new HashMap<>();
-    ImmutableAdWordsSession session = null;
-    for (Long clientCustomerId : clientCustomerIds) {
-      try {
-        session = buildSessionForCid(protoSession, clientCustomerId);
-      } catch (ValidationException e) {
-        LOGGER.error(
-            "Failed to create valid adwords session for CID {}, skipping it.", clientCustomerId);
-        failures.put(clientCustomerId, e.getMessage());
-        continue;
-      }
-      
-      taskIds.add(clientCustomerId);
-      taskJobs.add(genCallableAwqlReportDownloader(session, loader));
-    }
+    ReportDataLoader loader = new ReportDataLoader(reportType, fieldsMapping, reportStorage,
+        reportStorage == ReportStorage.COLUMNAR
+            ? reportDefinitionDownloader.getFieldTypes(reportType) : null,
+        dictionaryScope,
+        stringDictionaries != null ? stringDictionaries : new StringDictionaries());
     
-    List<Future<ReportData>> taskResults;
+    Map<Long, ReportDownloadException> failures = new TreeMap<>();
+    int successes = 0;
     try {
-      //Note that invokeAll() returns results in the same sequence as input tasks.
-      taskResults = executorService.invokeAll(taskJobs);
+      int maxConcurrency = Math.max(sink.getMaxInFlightReports(), 1);
+      successes += downloadPass(protoSession, loader, executorService,
+          orderLongestFirst(clientCustomerIds), maxConcurrency, sink, failures);
+
+      Set<Long> deferredIds = new LinkedHashSet<>();
+      if (retryPolicy.getDeferredPassConcurrency() > 0) {
+        for (ReportDownloadException failure : failures.values()) {
+          if (failure.isRetriable() && (accountCircuitBreaker == null
+              || !accountCircuitBreaker.isOpen(failure.getClientCustomerId()))) {
+            deferredIds.add(failure.getClientCustomerId());
+          }
+        }
+      }
+      if (!deferredIds.isEmpty() && !deadline.isExpired()) {
+        LOGGER.info("Downloading again the reports of {} accounts, {} at a time...",
+            deferredIds.size(), retryPolicy.getDeferredPassConcurrency());
+        failures.keySet().removeAll(deferredIds);
+        successes += downloadPass(protoSession, loader, executorService, deferredIds,
+            Math.min(retryPolicy.getDeferredPassConcurrency(), maxConcurrency), sink, failures);
+      }
     } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
       throw new AlertProcessingException(
-        "AwqlReportDownloader encounters InterruptedException.", e);
-    }
-    
-    List<ReportData> results = new ArrayList<>();
-    for (int i = 0; i < taskResults.size(); i++) {
-      try {
-        results.add(taskResults.get(i).get());
-      } catch (ExecutionException e) {
-        failures.put(taskIds.get(i), e.getMessage());
-      } catch (InterruptedException e) {
-        Thread.currentThread().interrupt();
-        throw new AlertProcessingException(
-            "AwqlReportDownloader encounters InterruptedException.", e);
+          "AwqlReportDownloader encounters InterruptedException.", e);
+    } finally {
+      if (executorService != sharedExecutor) {
+        executorService.shutdown();
       }
     }
 
-    executorService.shutdown();
     stopwatch.stop();
 
     LOGGER.info("Downloaded reports for {} accounts in {} seconds.",
-        clientCustomerIds.size(), stopwatch.elapsed(TimeUnit.SECONDS));
-    LOGGER.info("Result: {} successes, {} failures.", results.size(), failures.size());
+        successes + failures.size(), stopwatch.elapsed(TimeUnit.SECONDS));
+    LOGGER.info("Result: {} successes, {} failures.", successes, failures.size());
+    if (reportDiskCache != null) {
+      LOGGER.info("Report disk cache: {} hits, {} misses.",
+          reportDiskCache.getHits(), reportDiskCache.getMisses());
+    }
+    if (downloadLimiter != null) {
+      LOGGER.info("Download concurrency limit: {}.", downloadLimiter.getLimit());
+    }
 
     if (!failures.isEmpty()) {
-      StringBuilder sb = new StringBuilder("*** Account IDs of download failures ***");
-      sb.append(SEPARATOR);
-      sb.append(Joiner.on(SEPARATOR).withKeyValueSeparator(": ").join(failures));
-      LOGGER.error(sb.toString());
+      reportFailures(failures.values());
     }
+  }
 
-    return results;
+  /**
+   * Downloads the report for the specified CIDs, with at most {@code maxConcurrency} downloads at
+   * a time, and hands over each successful download to the sink. The failed downloads that can be
+   * retried are submitted again once their backoff is over, without holding a download thread in
+   * the meantime. The accounts still being retrieved are downloaded as their pages come, with the
+   * deadline checked while waiting for the next page. The downloads that exceed the download
+   * timeout or the deadline are cancelled, and put into the failures as timed out.
+   *
+   * @param failures the map to put the failed downloads into
+   * @return the number of successful downloads
+   */
+  private int downloadPass(
+      ImmutableAdWordsSession protoSession,
+      ReportDataLoader loader,
+      ExecutorService executorService,
+      Set<Long> clientCustomerIds,
+      int maxConcurrency,
+      ReportDataSink sink,
+      Map<Long, ReportDownloadException> failures)
+      throws InterruptedException {
+    CompletionService<ReportData> completionService =
+        new ExecutorCompletionService<>(executorService);
+    Map<Future<ReportData>, TimedDownload> tasks = new LinkedHashMap<>();
+    Iterator<Long> pendingIds = clientCustomerIds.iterator();
+    // The failed downloads waiting for their backoff to be over (as System.nanoTime), in the order
+    // they failed.
+    Map<TimedDownload, Long> retries = new LinkedHashMap<>();
+    int successes = 0;
+    String queryKey = ReportDataStore.getQueryKey(
+        reportQuery.generateAWQL(), reportStorage, dictionaryScope);
+    try {
+      while (true) {
+        if (deadline.isExpired()) {
+          timeOutAll(tasks, retries, pendingIds, failures);
+          return successes;
+        }
+
+        Iterator<Map.Entry<TimedDownload, Long>> dueRetries = retries.entrySet().iterator();
+        while (tasks.size() < maxConcurrency && dueRetries.hasNext()) {
+          Map.Entry<TimedDownload, Long> retry = dueRetries.next();
+          if (retry.getValue() - System.nanoTime() <= 0) {
+            TimedDownload task = retry.getKey().retry();
+            tasks.put(completionService.submit(task), task);
+            dueRetries.remove();
+          }
+        }
+        while (tasks.size() < maxConcurrency && isNextReady(pendingIds, 0)
+            && pendingIds.hasNext()) {
+          Long clientCustomerId = pendingIds.next();
+          ImmutableAdWordsSession session = null;
+          try {
+            session = buildSessionForCid(protoSession, clientCustomerId);
+          } catch (ValidationException e) {
+            LOGGER.error("Failed to create valid adwords session for CID {}, skipping it.",
+                clientCustomerId);
+            failures.put(clientCustomerId, new ReportDownloadException(e.getMessage(), e,
+                clientCustomerId, ReportDownloadException.Reason.REQUEST_ERROR,
+                e.getClass().getSimpleName(), 0, 0));
+            continue;
+          }
+
+          CallableAwqlReportDownloader download = genCallableAwqlReportDownloader(session, loader);
+          RetryingReportDownloader attempts = new RetryingReportDownloader(
+              clientCustomerId, download, retryPolicy, accountCircuitBreaker);
+          Callable<ReportData> taskJob = attempts;
+          if (reportDataStore != null) {
+            taskJob = reportDataStore.memoize(clientCustomerId, queryKey, taskJob);
+          }
+          TimedDownload task = new TimedDownload(clientCustomerId, taskJob, download, attempts);
+          tasks.put(completionService.submit(task), task);
+        }
+        boolean nextPagePending = !isNextReady(pendingIds, 0);
+        // The due retries wait for a free slot rather than for their time.
+        long waitMillis = getWaitMillis(tasks.values(), tasks.size() < maxConcurrency
+            ? retries.values() : Collections.<Long>emptyList());
+        if (tasks.isEmpty() && retries.isEmpty()) {
+          if (!nextPagePending) {
+            return successes;
+          }
+          // Nothing to do but wait for the next page of accounts, or the deadline.
+          isNextReady(pendingIds, waitMillis);
+          continue;
+        }
+        if (nextPagePending) {
+          waitMillis = Math.min(waitMillis, PAGE_CHECK_MILLIS);
+        }
+        Future<ReportData> taskResult = waitMillis == Long.MAX_VALUE
+            ? completionService.take()
+            : completionService.poll(waitMillis, TimeUnit.MILLISECONDS);
+        if (taskResult == null) {
+          timeOutExpired(tasks, failures);
+          continue;
+        }
+
+        // Null if the download was cancelled after a timeout.
+        TimedDownload task = tasks.remove(taskResult);
+        if (task == null) {
+          continue;
+        }
+        try {
+          sink.accept(taskResult.get());
+          successes++;
+        } catch (ExecutionException e) {
+          ReportDownloadException failure = ReportDownloadException.from(
+              e.getCause().getMessage(), e.getCause(), task.clientCustomerId);
+          long retryMillis = task.attempts.getRetryDelayMillis(failure);
+          if (retryMillis < 0) {
+            failures.put(task.clientCustomerId, failure);
+          } else {
+            LOGGER.info("Download of account {} failed ({}), retrying in {} ms.",
+                task.clientCustomerId, failure.getReason(), retryMillis);
+            retries.put(task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryMillis));
+          }
+        }
+      }
+    } finally {
+      // No-op after all tasks are done; otherwise cancels the remaining downloads.
+      for (Map.Entry<Future<ReportData>, TimedDownload> entry : tasks.entrySet()) {
+        entry.getValue().cancelOrRelease(entry.getKey());
+      }
+    }
+  }
+
+  /**
+   * Waits for at most {@code timeoutMillis} until the next account is known, if the accounts are
+   * still being retrieved, so that the deadline is checked while waiting for the next page.
+   *
+   * @return whether {@code hasNext()} of the pending accounts returns without blocking
+   */
+  private static boolean isNextReady(Iterator<Long> pendingIds, long timeoutMillis) {
+    return !(pendingIds instanceof PagedClientCustomerIds.PagedIterator)
+        || ((PagedClientCustomerIds.PagedIterator) pendingIds).awaitNext(timeoutMillis);
+  }
+
+  /**
+   * Orders the accounts by the expected latency of their downloads, the longest first, if there is
+   * a download ledger. The accounts still being retrieved are downloaded as they come instead.
+   */
+  private Set<Long> orderLongestFirst(Set<Long> clientCustomerIds) {
+    if (downloadLedger == null || (clientCustomerIds instanceof PagedClientCustomerIds
+        && !((PagedClientCustomerIds) clientCustomerIds).isCompleted())) {
+      return clientCustomerIds;
+    }
+    LOGGER.debug("Ordering the downloads by the past downloads of {} accounts.",
+        downloadLedger.getAccountsCount(reportQuery.getReportType()));
+    return downloadLedger.orderLongestFirst(reportQuery.getReportType(), clientCustomerIds);
+  }
+
+  /**
+   * @return how long to wait for the next download to complete before checking the timeouts and
+   *     the retries, or {@code Long.MAX_VALUE} to wait without a timeout
+   */
+  private long getWaitMillis(Collection<TimedDownload> tasks, Collection<Long> retries) {
+    Deadline next = deadline;
+    for (Long retryNanos : retries) {
+      next = next.min(Deadline.after(
+          Math.max(retryNanos - System.nanoTime(), 1), TimeUnit.NANOSECONDS));
+    }
+    if (downloadTimeoutMillis > 0) {
+      for (TimedDownload task : tasks) {
+        Deadline taskDeadline = task.deadline;
+        if (taskDeadline == null) {
+          next = next.min(Deadline.after(TIMEOUT_CHECK_MILLIS, TimeUnit.MILLISECONDS));
+        } else {
+          next = next.min(taskDeadline);
+        }
+      }
+    }
+    return next.isFinite() ? Math.max(next.getRemainingMillis(), 1) : Long.MAX_VALUE;
+  }
+
+  /**
+   * Cancels the running downloads that exceeded the download timeout.
+   */
+  private void timeOutExpired(
+      Map<Future<ReportData>, TimedDownload> tasks, Map<Long, ReportDownloadException> failures) {
+    Iterator<Map.Entry<Future<ReportData>, TimedDownload>> entries = tasks.entrySet().iterator();
+    while (entries.hasNext()) {
+      Map.Entry<Future<ReportData>, TimedDownload> entry = entries.next();
+      Deadline taskDeadline = entry.getValue().deadline;
+      if (taskDeadline != null && taskDeadline.isExpired()
+          && entry.getValue().cancel(entry.getKey())) {
+        Long clientCustomerId = entry.getValue().clientCustomerId;
+        LOGGER.warn("Download of account {} timed out after {} ms, cancelled.",
+            clientCustomerId, downloadTimeoutMillis);
+        failures.put(clientCustomerId, newTimeoutException(clientCustomerId,
+            "Download timed out after " + downloadTimeoutMillis + " ms."));
+        entries.remove();
+      }
+    }
+  }
+
+  /**
+   * Cancels all running downloads once the deadline has expired, and gives up on the downloads
+   * not started or not retried yet, and on the accounts not retrieved yet.
+   */
+  private void timeOutAll(Map<Future<ReportData>, TimedDownload> tasks,
+      Map<TimedDownload, Long> retries, Iterator<Long> pendingIds,
+      Map<Long, ReportDownloadException> failures) {
+    int count = 0;
+    for (Map.Entry<Future<ReportData>, TimedDownload> entry : tasks.entrySet()) {
+      entry.getValue().cancelOrRelease(entry.getKey());
+      Long clientCustomerId = entry.getValue().clientCustomerId;
+      failures.put(clientCustomerId, newTimeoutException(
+          clientCustomerId, "Deadline expired before the download completed."));
+      count++;
+    }
+    tasks.clear();
+    for (TimedDownload retry : retries.keySet()) {
+      failures.put(retry.clientCustomerId, newTimeoutException(
+          retry.clientCustomerId, "Deadline expired before the download was retried."));
+      count++;
+    }
+    retries.clear();
+    // The accounts still being retrieved are not waited for.
+    while (isNextReady(pendingIds, 0) && pendingIds.hasNext()) {
+      Long clientCustomerId = pendingIds.next();
+      failures.put(clientCustomerId, newTimeoutException(
+          clientCustomerId, "Deadline expired before the download started."));
+      count++;
+    }
+    if (count > 0) {
+      LOGGER.warn("Deadline expired, {} {} downloads cancelled.",
+          count, reportQuery.getReportType());
+    }
+  }
+
+  private static ReportDownloadException newTimeoutException(
+      Long clientCustomerId, String message) {
+    return new ReportDownloadException(message, null, clientCustomerId,
+        ReportDownloadException.Reason.TIMED_OUT, TIMEOUT_ERROR_TYPE, 0, 0);
+  }
+
+  /**
+   * Logs the failed downloads as a JSON array, and appends them to the failures file (one JSON
+   * object per line) if there is one.
+   */
+  private void reportFailures(Collection<ReportDownloadException> failures) {
+    String timestamp = DateTime.now().toString();
+    JsonArray failuresJson = new JsonArray();
+    List<String> lines = new ArrayList<>(failures.size());
+    for (ReportDownloadException failure : failures) {
+      JsonObject failureJson = new JsonObject();
+      failureJson.addProperty(FAILURE_TIME_TAG, timestamp);
+      failureJson.addProperty(FAILURE_CID_TAG, failure.getClientCustomerId());
+      failureJson.addProperty(FAILURE_REPORT_TYPE_TAG, reportQuery.getReportType());
+      failureJson.addProperty(FAILURE_REASON_TAG, failure.getReason().name());
+      failureJson.addProperty(FAILURE_ERROR_TYPE_TAG, failure.getErrorType());
+      if (failure.getHttpStatus() > 0) {
+        failureJson.addProperty(FAILURE_HTTP_STATUS_TAG, failure.getHttpStatus());
+      }
+      failureJson.addProperty(FAILURE_ATTEMPTS_TAG, failure.getAttempts());
+      failureJson.addProperty(FAILURE_MESSAGE_TAG, failure.getMessage());
+      failuresJson.add(failureJson);
+      lines.add(failureJson.toString());
+    }
+
+    StringBuilder sb = new StringBuilder("*** Download failures ***");
+    sb.append(SEPARATOR);
+    sb.append(failuresJson);
+    LOGGER.error(sb.toString());
+
+    if (failuresFile != null) {
+      // Alerts may run concurrently.
+      synchronized (AwqlReportDownloader.class) {
+        try {
+          Files.write(failuresFile, lines, StandardCharsets.UTF_8,
+              StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+          LOGGER.error("Failed to write download failures to {}.", failuresFile, e);
+        }
+      }
+    }
   }
 
   /**
@@ -197,6 +679,102 @@ public class AwqlReportDownloader implements AlertReportDownloader {
    */
   protected CallableAwqlReportDownloader genCallableAwqlReportDownloader(
       ImmutableAdWordsSession session, ReportDataLoader loader) {
-    return new CallableAwqlReportDownloader(session, reportQuery, loader);
+    return new CallableAwqlReportDownloader(
+        session, reportQuery, loader, reportDiskCache, downloadLimiter);
+  }
+
+  /**
+   * Download attempt that sets its own deadline when it starts running, as it may wait for a thread
+   * first, and records the download into the download ledger once done. A report loaded after the
+   * download was cancelled is released, as nobody gets it from the cancelled future.
+   */
+  private class TimedDownload implements Callable<ReportData> {
+    private final Long clientCustomerId;
+    private final Callable<ReportData> task;
+    private final CallableAwqlReportDownloader download;
+    private final RetryingReportDownloader attempts;
+    // Null until the download starts, or if it has no timeout.
+    private volatile Deadline deadline;
+    // Guarded by this: whether the download was cancelled, and the report returned by call().
+    private boolean cancelled;
+    private ReportData result;
+
+    TimedDownload(Long clientCustomerId, Callable<ReportData> task,
+        CallableAwqlReportDownloader download, RetryingReportDownloader attempts) {
+      this.clientCustomerId = clientCustomerId;
+      this.task = task;
+      this.download = download;
+      this.attempts = attempts;
+    }
+
+    /**
+     * @return the next attempt of the download, with a deadline of its own
+     */
+    TimedDownload retry() {
+      return new TimedDownload(clientCustomerId, task, download, attempts);
+    }
+
+    /**
+     * Cancels the download, and releases its report if it was loaded but not handed over to the
+     * future yet.
+     *
+     * @param future the future of this download
+     * @return whether the download was cancelled, false if it was done already
+     */
+    boolean cancel(Future<ReportData> future) {
+      ReportData loaded;
+      synchronized (this) {
+        cancelled = true;
+        loaded = result;
+      }
+      if (!future.cancel(true)) {
+        return false;
+      }
+      if (loaded != null) {
+        loaded.release();
+      }
+      return true;
+    }
+
+    /**
+     * Cancels the download, or releases its report if it was done already, as the report will not
+     * be handed over to the sink.
+     *
+     * @param future the future of this download
+     */
+    void cancelOrRelease(Future<ReportData> future) {
+      if (cancel(future)) {
+        return;
+      }
+      try {
+        future.get().release();
+      } catch (ExecutionException | CancellationException e) {
+        // No report to release.
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    @Override
+    public ReportData call() throws Exception {
+      if (downloadTimeoutMillis > 0) {
+        deadline = Deadline.after(downloadTimeoutMillis, TimeUnit.MILLISECONDS);
+      }
+      ReportData report = task.call();
+      // Not recorded if the report was downloaded by another alert, or read from the disk cache.
+      if (downloadLedger != null && download.getCompressedBytes() >= 0
+          && !download.isFromDiskCache()) {
+        downloadLedger.record(reportQuery.getReportType(), clientCustomerId,
+            download.getCompressedBytes(), report.getRowsCount(), download.getLatencyMillis());
+      }
+      synchronized (this) {
+        if (cancelled) {
+          report.release();
+          return null;
+        }
+        result = report;
+      }
+      return report;
+    }
   }
 }
@@ -19,6 +19,7 @@ import com.google.api.ads.adwords.awalerting.report.AwqlReportQuery;
 import com.google.api.ads.adwords.awalerting.report.ReportData;
 import com.google.api.ads.adwords.awalerting.report.ReportDataLoader;
 import com.google.api.ads.adwords.awalerting.util.AdWordsServicesUtil;
+import com.google.api.ads.adwords.awalerting.util.AdaptiveConcurrencyLimiter;
 import com.google.api.ads.adwords.lib.client.AdWordsSession;
 import com.google.api.ads.adwords.lib.jaxb.v201705.DownloadFormat;
 import com.google.api.ads.adwords.lib.utils.ReportDownloadResponse;
@@ -26,9 +27,12 @@ import com.google.api.ads.adwords.lib.utils.ReportDownloadResponseException;
 import com.google.api.ads.adwords.lib.utils.ReportException;
 import com.google.api.ads.adwords.lib.utils.v201705.ReportDownloaderInterface;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+import com.google.common.io.CountingInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -40,9 +44,19 @@ import org.slf4j.LoggerFactory;
 public class CallableAwqlReportDownloader implements Callable<ReportData> {
   private static final Logger LOGGER = LoggerFactory.getLogger(CallableAwqlReportDownloader.class);
 
+  // Size of the compressed input buffer, so that the inflater is fed in large reads.
+  private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+
   private final AdWordsSession session;
   private final AwqlReportQuery reportQuery;
   private final ReportDataLoader reportDataLoader;
+  private final ReportDiskCache reportDiskCache;
+  private final AdaptiveConcurrencyLimiter downloadLimiter;
+
+  // The compressed bytes and the latency of the last successful call, for the download ledger.
+  private volatile long compressedBytes = -1;
+  private volatile long latencyMillis;
+  private volatile boolean fromDiskCache;
 
   /**
    * The constructor takes an adwords session and an AWQL query for downloading report, and a
@@ -52,18 +66,108 @@ public class CallableAwqlReportDownloader implements Callable<ReportData> {
       AdWordsSession session,
       AwqlReportQuery reportQuery,
       ReportDataLoader reportDataLoader) {
+    this(session, reportQuery, reportDataLoader, null);
+  }
+
+  /**
+   * Same as above, and also takes the disk cache to read and store the report (could be null).
+   */
+  public CallableAwqlReportDownloader(
+      AdWordsSession session,
+      AwqlReportQuery reportQuery,
+      ReportDataLoader reportDataLoader,
+      ReportDiskCache reportDiskCache) {
+    this(session, reportQuery, reportDataLoader, reportDiskCache, null);
+  }
+
+  /**
+   * Same as above, and also takes the limiter of concurrent API downloads (could be null). The
+   * limiter is told about the latency of each download, and about rate exceeded and server errors.
+   *
+   * <p>Download errors are thrown as {@link ReportDownloadException}, and are not retried here.
+   */
+  public CallableAwqlReportDownloader(
+      AdWordsSession session,
+      AwqlReportQuery reportQuery,
+      ReportDataLoader reportDataLoader,
+      ReportDiskCache reportDiskCache,
+      AdaptiveConcurrencyLimiter downloadLimiter) {
     this.session = Preconditions.checkNotNull(session, "session cannot be null.");
     this.reportQuery = Preconditions.checkNotNull(reportQuery, "reportQuery cannot be null.");
     this.reportDataLoader =
         Preconditions.checkNotNull(reportDataLoader, "reportDataLoader cannot be null.");
+    this.reportDiskCache = reportDiskCache;
+    this.downloadLimiter = downloadLimiter;
   }
   
   /**
-   * Downloads report from API (with retry logic) and transforms the result into a
-   * {@link ReportData} object.
+   * Downloads report from API and transforms the result into a
+   * {@link ReportData} object. If there is a disk cache, the report is read from the cache when
+   * possible, and stored into the cache after downloading. If there is a download limiter, the
+   * download waits for its turn.
    */
   @Override
   public ReportData call() throws AlertProcessingException {
+    Long clientCustomerId = Long.parseLong(session.getClientCustomerId());
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    if (reportDiskCache != null) {
+      InputStream cachedStream = null;
+      try {
+        cachedStream = reportDiskCache.get(clientCustomerId, reportQuery);
+      } catch (IOException e) {
+        LOGGER.warn("Failed to read cached report of account {}, downloading it.",
+            clientCustomerId, e);
+      }
+      if (cachedStream != null) {
+        LOGGER.debug("Read report of account {} from disk cache.", clientCustomerId);
+        return handleReportStreamResult(cachedStream, stopwatch, true);
+      }
+    }
+
+    if (downloadLimiter == null) {
+      return downloadReport(clientCustomerId, stopwatch, null);
+    }
+
+    AdaptiveConcurrencyLimiter.Permit permit = null;
+    try {
+      permit = downloadLimiter.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new AlertProcessingException(
+          "Interrupted while waiting to download report of account " + clientCustomerId + ".", e);
+    }
+    try {
+      // The wait for the permit is not part of the latency of the account.
+      stopwatch.reset().start();
+      ReportData result = downloadReport(clientCustomerId, stopwatch, permit);
+      downloadLimiter.onSuccess(permit);
+      permit = null;
+      return result;
+    } catch (ReportDownloadException e) {
+      if (e.isOverload()) {
+        downloadLimiter.onOverload(permit, e.getRetryAfterMillis());
+      } else {
+        downloadLimiter.release(permit);
+      }
+      permit = null;
+      throw e;
+    } finally {
+      if (permit != null) {
+        downloadLimiter.release(permit);
+      }
+    }
+  }
+
+  /**
+   * Downloads report from API and transforms the result into a {@link ReportData} object, and
+   * stores the report into the disk cache if there is one. The download limiter, if any, is told
+   * about the response as soon as it starts, so that loading the report is not part of the
+   * latency it adapts to.
+   *
+   * @param permit the permit of the download limiter, or null if there is no limiter
+   */
+  private ReportData downloadReport(Long clientCustomerId, Stopwatch stopwatch,
+      AdaptiveConcurrencyLimiter.Permit permit) throws ReportDownloadException {
     ReportDownloaderInterface reportDownloader =
         AdWordsServicesUtil.getUtility(session, ReportDownloaderInterface.class);
 
@@ -73,45 +177,88 @@ public class CallableAwqlReportDownloader implements Callable<ReportData> {
           reportDownloader.downloadReport(reportQuery.generateAWQL(), DownloadFormat.GZIPPED_CSV);
     } catch (ReportException | ReportDownloadResponseException e) {
       String msg = "Failed to download report account " + session.getClientCustomerId() + ".";
-      LOGGER.error(msg, e);
-      throw new AlertProcessingException(msg, e);
+      LOGGER.warn(msg, e);
+      throw ReportDownloadException.from(msg, e, clientCustomerId);
     }
-    
+    if (permit != null) {
+      downloadLimiter.onResponse(permit);
+    }
+
     InputStream inputStream = reportDownloadResponse.getInputStream();
-    return handleReportStreamResult(inputStream);
+    if (reportDiskCache != null) {
+      try {
+        inputStream = reportDiskCache.put(clientCustomerId, reportQuery, inputStream);
+      } catch (IOException e) {
+        String msg = "Failed to store report of account " + clientCustomerId + " in disk cache.";
+        LOGGER.warn(msg, e);
+        throw ReportDownloadException.from(msg, e, clientCustomerId);
+      }
+    }
+    return handleReportStreamResult(inputStream, stopwatch, false);
   }
 
   /**
    * Transforms the downloaded result into a {@link ReportData} object.
    *
    * @param reportStream the downloaded report stream
+   * @param stopwatch the stopwatch started with the download
+   * @param fromDiskCache whether the stream was read from the disk cache
    * @return the downloaded report data
    */
-  private ReportData handleReportStreamResult(InputStream reportStream)
-      throws AlertProcessingException {
+  private ReportData handleReportStreamResult(
+      InputStream reportStream, Stopwatch stopwatch, boolean fromDiskCache)
+      throws ReportDownloadException {
     Preconditions.checkState(reportStream != null, "Cannot get report data: input stream is NULL.");
 
     // Get clientCustomerId from session and covert to Long type. The string field was set from
     // Long type in AwqlReportDownloader, so it's able to parse back to Long.
     Long clientCustomerId = Long.parseLong(session.getClientCustomerId());
     
-    GZIPInputStream gzipReportStream = null;
     try {
-      gzipReportStream = new GZIPInputStream(reportStream);
-      
+      // Rows are parsed one at a time while the stream is being inflated, and the loader closes
+      // the stream when it's done (or fails).
+      CountingInputStream countingStream = new CountingInputStream(reportStream);
+      GZIPInputStream gzipReportStream = new GZIPInputStream(countingStream, GZIP_BUFFER_SIZE);
+
       // Parse the CSV file into report.
       LOGGER.debug("Starting processing rules of report...");
       ReportData result = reportDataLoader.fromStream(gzipReportStream, clientCustomerId);
       LOGGER.debug("... success.");
-      
-      gzipReportStream.close();
+
+      latencyMillis = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+      compressedBytes = countingStream.getCount();
+      this.fromDiskCache = fromDiskCache;
       return result;
     } catch (IOException e) {
       String errorMsg = String.format(
           "Error when unzipping and loading the %s of account %s from stream.",
           reportQuery.getReportType(), session.getClientCustomerId());
-      LOGGER.error(errorMsg);
-      throw new AlertProcessingException(errorMsg, e);
+      LOGGER.warn(errorMsg);
+      throw ReportDownloadException.from(errorMsg, e, clientCustomerId);
     }
   }
+
+  /**
+   * @return the compressed bytes of the report loaded by the last successful call, or -1 if no
+   *     call succeeded
+   */
+  public long getCompressedBytes() {
+    return compressedBytes;
+  }
+
+  /**
+   * @return the milliseconds taken by the last successful call to download (or read from the
+   *     cache) and load the report, not counting the wait for the download limiter
+   */
+  public long getLatencyMillis() {
+    return latencyMillis;
+  }
+
+  /**
+   * @return whether the last successful call read the report from the disk cache instead of
+   *     downloading it, so that its latency says nothing about the account
+   */
+  public boolean isFromDiskCache() {
+    return fromDiskCache;
+  }
 }
@@ -0,0 +1,104 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.sampleimpl.downloader;
+
+import com.google.common.base.Preconditions;
+import com.google.gson.JsonObject;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How report downloads are retried after retriable errors (see
+ * {@link ReportDownloadException.Reason}).
+ *
+ * <p>A failed download is retried up to {@code MaxAttempts} attempts in total, waiting a random
+ * delay between half and all of {@code InitialBackoffMillis} * 2^(attempt - 1), capped at
+ * {@code MaxBackoffMillis}. The accounts that still fail are downloaded again after all the other
+ * accounts, with at most {@code DeferredPassConcurrency} concurrent downloads.
+ *
+ * <p>The JSON config should look like (all fields are optional):
+ * <pre>
+ * {
+ *   "MaxAttempts": 3,
+ *   "InitialBackoffMillis": 1000,
+ *   "MaxBackoffMillis": 30000,
+ *   "DeferredPassConcurrency": 2
+ * }
+ * </pre>
+ * Set "DeferredPassConcurrency" to 0 to skip the deferred pass.
+ */
+public class DownloadRetryPolicy {
+  private static final String MAX_ATTEMPTS_TAG = "MaxAttempts";
+  private static final String INITIAL_BACKOFF_MILLIS_TAG = "InitialBackoffMillis";
+  private static final String MAX_BACKOFF_MILLIS_TAG = "MaxBackoffMillis";
+  private static final String DEFERRED_PASS_CONCURRENCY_TAG = "DeferredPassConcurrency";
+
+  private static final int DEFAULT_MAX_ATTEMPTS = 3;
+  private static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 1000L;
+  private static final long DEFAULT_MAX_BACKOFF_MILLIS = 30000L;
+  private static final int DEFAULT_DEFERRED_PASS_CONCURRENCY = 2;
+
+  private final int maxAttempts;
+  private final long initialBackoffMillis;
+  private final long maxBackoffMillis;
+  private final int deferredPassConcurrency;
+
+  public DownloadRetryPolicy(JsonObject config) {
+    maxAttempts = config.has(MAX_ATTEMPTS_TAG)
+        ? config.get(MAX_ATTEMPTS_TAG).getAsInt() : DEFAULT_MAX_ATTEMPTS;
+    initialBackoffMillis = config.has(INITIAL_BACKOFF_MILLIS_TAG)
+        ? config.get(INITIAL_BACKOFF_MILLIS_TAG).getAsLong() : DEFAULT_INITIAL_BACKOFF_MILLIS;
+    maxBackoffMillis = config.has(MAX_BACKOFF_MILLIS_TAG)
+        ? config.get(MAX_BACKOFF_MILLIS_TAG).getAsLong() : DEFAULT_MAX_BACKOFF_MILLIS;
+    deferredPassConcurrency = config.has(DEFERRED_PASS_CONCURRENCY_TAG)
+        ? config.get(DEFERRED_PASS_CONCURRENCY_TAG).getAsInt()
+        : DEFAULT_DEFERRED_PASS_CONCURRENCY;
+
+    Preconditions.checkArgument(maxAttempts > 0, "%s must be positive.", MAX_ATTEMPTS_TAG);
+    Preconditions.checkArgument(initialBackoffMillis >= 0 && maxBackoffMillis >= 0,
+        "Backoff delays must not be negative.");
+    Preconditions.checkArgument(deferredPassConcurrency >= 0,
+        "%s must not be negative.", DEFERRED_PASS_CONCURRENCY_TAG);
+  }
+
+  /**
+   * @return the maximum number of attempts of each download, including the first one
+   */
+  public int getMaxAttempts() {
+    return maxAttempts;
+  }
+
+  /**
+   * @param failedAttempts the number of failed attempts so far (at least 1)
+   * @return the random delay before the next attempt
+   */
+  public long getBackoffMillis(int failedAttempts) {
+    // Stop doubling once over the cap, so that it doesn't overflow.
+    long backoff = initialBackoffMillis;
+    for (int i = 1; i < failedAttempts && backoff < maxBackoffMillis; i++) {
+      backoff *= 2;
+    }
+    backoff = Math.min(backoff, maxBackoffMillis);
+    return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+  }
+
+  /**
+   * @return the maximum number of concurrent downloads of the deferred pass, or 0 if there is no
+   *     deferred pass
+   */
+  public int getDeferredPassConcurrency() {
+    return deferredPassConcurrency;
+  }
+}
@@ -0,0 +1,358 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.sampleimpl.downloader;
+
+import com.google.api.ads.adwords.awalerting.report.AwqlReportQuery;
+import com.google.api.ads.adwords.awalerting.util.DateRange;
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.hash.Hashing;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Disk cache of the downloaded reports, stored as the gzipped CSV returned by the reporting API.
+ *
+ * <p>A report is keyed by the client customer ID, the normalized AWQL query and the absolute
+ * dates its date range resolves to, so e.g. a "LAST_MONTH" report is downloaded again once the
+ * month has changed. Reports without a date range, or with a date range that cannot be resolved
+ * by {@link DateRange}, are not cached.
+ *
+ * <p>Each entry expires after the TTL of its date range type. By default, date ranges including
+ * today (whose data is still changing, e.g. "TODAY" or "THIS_MONTH") are not cached, and closed
+ * date ranges are kept for a week. When the total size exceeds the limit, the least recently used
+ * entries are evicted.
+ *
+ * <p>The JSON config should look like:
+ * <pre>
+ * {
+ *   "Directory": "/tmp/aw-alerting-cache",
+ *   "MaxSizeMB": 1024,
+ *   "TtlSeconds": {
+ *     "OpenDateRange": 3600,
+ *     "ClosedDateRange": 604800,
+ *     "YESTERDAY": 21600
+ *   }
+ * }
+ * </pre>
+ * Only "Directory" is required. "TtlSeconds" may also contain any date range type (or
+ * "CUSTOM_DATE" for "yyyyMMdd,yyyyMMdd" date ranges), and a TTL of 0 disables caching.
+ *
+ * <p>This class is thread safe, and the directory can be shared by multiple instances.
+ */
+public class ReportDiskCache {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ReportDiskCache.class);
+
+  private static final String DIRECTORY_TAG = "Directory";
+  private static final String MAX_SIZE_MB_TAG = "MaxSizeMB";
+  private static final String TTL_SECONDS_TAG = "TtlSeconds";
+  private static final String OPEN_DATE_RANGE_TTL_TAG = "OpenDateRange";
+  private static final String CLOSED_DATE_RANGE_TTL_TAG = "ClosedDateRange";
+  private static final String CUSTOM_DATE_RANGE_TYPE = "CUSTOM_DATE";
+
+  private static final double DEFAULT_MAX_SIZE_MB = 1024;
+  private static final long DEFAULT_OPEN_DATE_RANGE_TTL_SECONDS = 0;
+  private static final long DEFAULT_CLOSED_DATE_RANGE_TTL_SECONDS = TimeUnit.DAYS.toSeconds(7);
+
+  // Evict down to this ratio of the max size, so that the directory is not scanned on every put.
+  private static final double EVICTION_TARGET_RATIO = 0.9;
+
+  private static final String FILE_SUFFIX = ".csv.gz";
+  private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+  private final Path directory;
+  private final long maxSizeBytes;
+  private final long openDateRangeTtlSeconds;
+  private final long closedDateRangeTtlSeconds;
+  private final Map<String, Long> ttlSecondsByType = new HashMap<String, Long>();
+
+  // Estimated total size of the entries, recomputed on every eviction.
+  private final AtomicLong totalSizeBytes = new AtomicLong();
+
+  private final AtomicInteger hits = new AtomicInteger();
+  private final AtomicInteger misses = new AtomicInteger();
+
+  /**
+   * @param config the JSON configuration of the cache
+   * @throws IOException if the cache directory cannot be created or read
+   */
+  public ReportDiskCache(JsonObject config) throws IOException {
+    Preconditions.checkArgument(
+        config.has(DIRECTORY_TAG), "Missing \"%s\" in report cache config.", DIRECTORY_TAG);
+    directory = Files.createDirectories(Paths.get(config.get(DIRECTORY_TAG).getAsString()));
+
+    double maxSizeMb = config.has(MAX_SIZE_MB_TAG)
+        ? config.get(MAX_SIZE_MB_TAG).getAsDouble()
+        : DEFAULT_MAX_SIZE_MB;
+    maxSizeBytes = (long) (maxSizeMb * 1024 * 1024);
+
+    long openTtl = DEFAULT_OPEN_DATE_RANGE_TTL_SECONDS;
+    long closedTtl = DEFAULT_CLOSED_DATE_RANGE_TTL_SECONDS;
+    if (config.has(TTL_SECONDS_TAG)) {
+      for (Entry<String, JsonElement> ttl : config.getAsJsonObject(TTL_SECONDS_TAG).entrySet()) {
+        long ttlSeconds = ttl.getValue().getAsLong();
+        if (OPEN_DATE_RANGE_TTL_TAG.equals(ttl.getKey())) {
+          openTtl = ttlSeconds;
+        } else if (CLOSED_DATE_RANGE_TTL_TAG.equals(ttl.getKey())) {
+          closedTtl = ttlSeconds;
+        } else {
+          ttlSecondsByType.put(ttl.getKey(), ttlSeconds);
+        }
+      }
+    }
+    openDateRangeTtlSeconds = openTtl;
+    closedDateRangeTtlSeconds = closedTtl;
+
+    long totalSize = 0;
+    for (CachedFile file : listCachedFiles()) {
+      totalSize += file.size;
+    }
+    totalSizeBytes.set(totalSize);
+  }
+
+  /**
+   * Opens the cached report, if it's in the cache and not expired.
+   *
+   * @param clientCustomerId the client customer ID of the report
+   * @param reportQuery the query of the report
+   * @return the gzipped CSV stream of the cached report, or null if it's not cached
+   */
+  public InputStream get(Long clientCustomerId, AwqlReportQuery reportQuery) throws IOException {
+    CacheKey key = getCacheKey(clientCustomerId, reportQuery);
+    if (key == null) {
+      return null;
+    }
+
+    try {
+      BasicFileAttributes attributes = Files.readAttributes(key.path, BasicFileAttributes.class);
+      long ageMillis = System.currentTimeMillis() - attributes.lastModifiedTime().toMillis();
+      if (ageMillis > TimeUnit.SECONDS.toMillis(key.ttlSeconds)) {
+        if (Files.deleteIfExists(key.path)) {
+          totalSizeBytes.addAndGet(-attributes.size());
+        }
+        misses.incrementAndGet();
+        return null;
+      }
+
+      InputStream inputStream = Files.newInputStream(key.path);
+      Files.getFileAttributeView(key.path, BasicFileAttributeView.class)
+          .setTimes(null, FileTime.fromMillis(System.currentTimeMillis()), null);
+      hits.incrementAndGet();
+      return inputStream;
+    } catch (NoSuchFileException e) {
+      misses.incrementAndGet();
+      return null;
+    }
+  }
+
+  /**
+   * Stores the downloaded report in the cache, if it's cacheable. The report stream is consumed
+   * and closed.
+   *
+   * @param clientCustomerId the client customer ID of the report
+   * @param reportQuery the query of the report
+   * @param reportStream the gzipped CSV stream of the downloaded report
+   * @return the gzipped CSV stream to read the report from
+   */
+  public InputStream put(
+      Long clientCustomerId, AwqlReportQuery reportQuery, InputStream reportStream)
+      throws IOException {
+    CacheKey key = getCacheKey(clientCustomerId, reportQuery);
+    if (key == null) {
+      return reportStream;
+    }
+
+    // Write into a temporary file first, so that readers never see a partial report.
+    Path tempFile = Files.createTempFile(directory, key.path.getFileName().toString(),
+        TEMP_FILE_SUFFIX);
+    try {
+      try {
+        Files.copy(reportStream, tempFile, StandardCopyOption.REPLACE_EXISTING);
+      } finally {
+        reportStream.close();
+      }
+      long size = Files.size(tempFile);
+      Files.move(tempFile, key.path,
+          StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      totalSizeBytes.addAndGet(size);
+    } finally {
+      Files.deleteIfExists(tempFile);
+    }
+
+    InputStream inputStream = Files.newInputStream(key.path);
+    if (totalSizeBytes.get() > maxSizeBytes) {
+      evict();
+    }
+    return inputStream;
+  }
+
+  /**
+   * Evicts the least recently used entries, until the total size is under the target size.
+   */
+  private synchronized void evict() throws IOException {
+    List<CachedFile> files = listCachedFiles();
+    long totalSize = 0;
+    for (CachedFile file : files) {
+      totalSize += file.size;
+    }
+    if (totalSize <= maxSizeBytes) {
+      totalSizeBytes.set(totalSize);
+      return;
+    }
+
+    Collections.sort(files, new Comparator<CachedFile>() {
+      @Override
+      public int compare(CachedFile file1, CachedFile file2) {
+        return file1.lastAccessTime.compareTo(file2.lastAccessTime);
+      }
+    });
+
+    long targetSize = (long) (maxSizeBytes * EVICTION_TARGET_RATIO);
+    int evicted = 0;
+    for (CachedFile file : files) {
+      if (totalSize <= targetSize) {
+        break;
+      }
+      if (Files.deleteIfExists(file.path)) {
+        evicted++;
+      }
+      totalSize -= file.size;
+    }
+    totalSizeBytes.set(totalSize);
+    LOGGER.debug("Evicted {} reports from the report cache in {}.", evicted, directory);
+  }
+
+  /**
+   * Lists the cached reports in the cache directory.
+   */
+  private List<CachedFile> listCachedFiles() throws IOException {
+    List<CachedFile> files = new ArrayList<CachedFile>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + FILE_SUFFIX)) {
+      for (Path path : stream) {
+        try {
+          BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+          files.add(new CachedFile(path, attributes.size(), attributes.lastAccessTime()));
+        } catch (NoSuchFileException e) {
+          // Removed by another thread or process in the meantime.
+        }
+      }
+    }
+    return files;
+  }
+
+  /**
+   * Gets the cache key of the report.
+   *
+   * @return the cache key, or null if the report is not cacheable
+   */
+  private CacheKey getCacheKey(Long clientCustomerId, AwqlReportQuery reportQuery) {
+    String dateRangeStr = reportQuery.getDateRange();
+    if (dateRangeStr == null) {
+      return null;
+    }
+
+    DateRange dateRange;
+    try {
+      dateRange = DateRange.fromString(dateRangeStr);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+
+    String dateRangeType = dateRangeStr.contains(",") ? CUSTOM_DATE_RANGE_TYPE : dateRangeStr;
+    Long ttlSeconds = ttlSecondsByType.get(dateRangeType);
+    if (ttlSeconds == null) {
+      ttlSeconds = dateRange.isClosed() ? closedDateRangeTtlSeconds : openDateRangeTtlSeconds;
+    }
+    if (ttlSeconds <= 0) {
+      return null;
+    }
+
+    String key = Joiner.on('|').join(clientCustomerId,
+        AwqlReportQuery.normalize(reportQuery.generateAWQL()),
+        dateRange.getStartDate(),
+        dateRange.getEndDate());
+    String fileName = clientCustomerId + "-"
+        + Hashing.sha256().hashString(key, StandardCharsets.UTF_8) + FILE_SUFFIX;
+    return new CacheKey(directory.resolve(fileName), ttlSeconds);
+  }
+
+  /**
+   * @return the number of reports read from the cache
+   */
+  public int getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return the number of cacheable reports not found in the cache (or expired)
+   */
+  public int getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * The file and TTL of a cacheable report.
+   */
+  private static class CacheKey {
+    private final Path path;
+    private final long ttlSeconds;
+
+    CacheKey(Path path, long ttlSeconds) {
+      this.path = path;
+      this.ttlSeconds = ttlSeconds;
+    }
+  }
+
+  /**
+   * A report file in the cache directory.
+   */
+  private static class CachedFile {
+    private final Path path;
+    private final long size;
+    private final FileTime lastAccessTime;
+
+    CachedFile(Path path, long size, FileTime lastAccessTime) {
+      this.path = path;
+      this.size = size;
+      this.lastAccessTime = lastAccessTime;
+    }
+  }
+}
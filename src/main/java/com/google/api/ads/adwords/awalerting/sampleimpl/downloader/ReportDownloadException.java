@@ -0,0 +1,202 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.sampleimpl.downloader;
+
+import com.google.api.ads.adwords.awalerting.AlertProcessingException;
+import com.google.api.ads.adwords.lib.utils.DetailedReportDownloadResponseException;
+import com.google.api.ads.adwords.lib.utils.ReportDownloadResponseException;
+import com.google.api.ads.adwords.lib.utils.ReportException;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Exception thrown when the report of an account could not be downloaded, with the details needed
+ * to decide whether to retry it.
+ */
+public class ReportDownloadException extends AlertProcessingException {
+  private static final int HTTP_TOO_MANY_REQUESTS = 429;
+  private static final int HTTP_SERVER_ERROR = 500;
+  private static final String RATE_EXCEEDED_ERROR_TYPE = "RateExceededError";
+  // The delay recommended for rate exceeded errors that don't tell how long to wait.
+  private static final long DEFAULT_RETRY_AFTER_SECONDS = 30;
+  private static final Pattern RETRY_AFTER_PATTERN =
+      Pattern.compile("retry.?after\\D{0,16}(\\d+)", Pattern.CASE_INSENSITIVE);
+
+  /**
+   * Why the download failed.
+   */
+  public enum Reason {
+    /** Too many requests, the download can be retried later. */
+    RATE_EXCEEDED(true),
+    /** HTTP 5xx response, the download can be retried. */
+    SERVER_ERROR(true),
+    /** Failed to connect or to read the response, the download can be retried. */
+    NETWORK_ERROR(true),
+    /** The request was rejected, retrying it would fail again. */
+    REQUEST_ERROR(false),
+    /** The account failed too many times, the download was not attempted. */
+    CIRCUIT_OPEN(false),
+    /** The download did not finish before its deadline, and was cancelled. */
+    TIMED_OUT(false);
+
+    private final boolean retriable;
+
+    private Reason(boolean retriable) {
+      this.retriable = retriable;
+    }
+
+    public boolean isRetriable() {
+      return retriable;
+    }
+  }
+
+  private final Long clientCustomerId;
+  private final Reason reason;
+  private final String errorType;
+  private final int httpStatus;
+  private final long retryAfterMillis;
+  private int attempts = 1;
+
+  public ReportDownloadException(
+      String message,
+      Throwable cause,
+      Long clientCustomerId,
+      Reason reason,
+      String errorType,
+      int httpStatus,
+      long retryAfterMillis) {
+    super(message, cause);
+    this.clientCustomerId = clientCustomerId;
+    this.reason = reason;
+    this.errorType = errorType;
+    this.httpStatus = httpStatus;
+    this.retryAfterMillis = retryAfterMillis;
+  }
+
+  /**
+   * Creates the exception for the given download error.
+   *
+   * @param message the error message
+   * @param cause the error thrown by the download
+   * @param clientCustomerId the client customer ID of the report
+   */
+  public static ReportDownloadException from(
+      String message, Throwable cause, Long clientCustomerId) {
+    if (cause instanceof ReportDownloadException) {
+      return (ReportDownloadException) cause;
+    }
+
+    if (cause instanceof ReportDownloadResponseException) {
+      ReportDownloadResponseException e = (ReportDownloadResponseException) cause;
+      String errorType = e instanceof DetailedReportDownloadResponseException
+          ? ((DetailedReportDownloadResponseException) e).getType() : null;
+      if (errorType == null) {
+        errorType = "HTTP_" + e.getHttpStatus();
+      }
+
+      Reason reason;
+      long retryAfterMillis = 0;
+      if (e.getHttpStatus() == HTTP_TOO_MANY_REQUESTS
+          || errorType.startsWith(RATE_EXCEEDED_ERROR_TYPE)) {
+        reason = Reason.RATE_EXCEEDED;
+        retryAfterMillis = TimeUnit.SECONDS.toMillis(getRetryAfterSeconds(e));
+      } else if (e.getHttpStatus() >= HTTP_SERVER_ERROR) {
+        reason = Reason.SERVER_ERROR;
+      } else {
+        reason = Reason.REQUEST_ERROR;
+      }
+      return new ReportDownloadException(
+          message, e, clientCustomerId, reason, errorType, e.getHttpStatus(), retryAfterMillis);
+    }
+
+    Reason reason = cause instanceof ReportException || cause instanceof IOException
+        ? Reason.NETWORK_ERROR : Reason.REQUEST_ERROR;
+    String errorType = cause == null ? null : cause.getClass().getSimpleName();
+    return new ReportDownloadException(message, cause, clientCustomerId, reason, errorType, 0, 0);
+  }
+
+  /**
+   * Gets the retry-after hint from the error details, or the default delay if there is none.
+   */
+  private static long getRetryAfterSeconds(ReportDownloadResponseException e) {
+    if (e instanceof DetailedReportDownloadResponseException) {
+      DetailedReportDownloadResponseException detailed = (DetailedReportDownloadResponseException) e;
+      for (String text : new String[] {detailed.getTrigger(), detailed.getErrorText()}) {
+        if (text != null) {
+          Matcher matcher = RETRY_AFTER_PATTERN.matcher(text);
+          if (matcher.find()) {
+            return Long.parseLong(matcher.group(1));
+          }
+        }
+      }
+    }
+    return DEFAULT_RETRY_AFTER_SECONDS;
+  }
+
+  public Long getClientCustomerId() {
+    return clientCustomerId;
+  }
+
+  public Reason getReason() {
+    return reason;
+  }
+
+  /**
+   * @return the API error type (e.g. "RateExceededError.RATE_EXCEEDED"), or the exception class
+   *     name if there is no API error
+   */
+  public String getErrorType() {
+    return errorType;
+  }
+
+  /**
+   * @return the HTTP status of the response, or 0 if there was no response
+   */
+  public int getHttpStatus() {
+    return httpStatus;
+  }
+
+  /**
+   * @return the delay before retrying, or 0 if there is no required delay
+   */
+  public long getRetryAfterMillis() {
+    return retryAfterMillis;
+  }
+
+  /**
+   * @return whether the server is overloaded, so that fewer requests should be sent
+   */
+  public boolean isOverload() {
+    return reason == Reason.RATE_EXCEEDED || reason == Reason.SERVER_ERROR;
+  }
+
+  public boolean isRetriable() {
+    return reason.isRetriable();
+  }
+
+  /**
+   * @return the number of download attempts before giving up
+   */
+  public int getAttempts() {
+    return attempts;
+  }
+
+  void setAttempts(int attempts) {
+    this.attempts = attempts;
+  }
+}
@@ -0,0 +1,114 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.sampleimpl.downloader;
+
+import com.google.api.ads.adwords.awalerting.AlertProcessingException;
+import com.google.api.ads.adwords.awalerting.report.ReportData;
+import com.google.api.ads.adwords.awalerting.util.CircuitBreaker;
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Runs the attempts of a report download, one attempt per call, and tells when to retry it after
+ * retriable errors as specified by the {@link DownloadRetryPolicy}. The caller schedules the retry,
+ * so that no download thread waits for the backoff. If there is a circuit breaker, the account's
+ * failures are recorded in it, and no attempt is made while the account's circuit is open.
+ */
+class RetryingReportDownloader implements Callable<ReportData> {
+  private final Long clientCustomerId;
+  private final Callable<ReportData> downloader;
+  private final DownloadRetryPolicy retryPolicy;
+  private final CircuitBreaker<Long> circuitBreaker;
+  // The attempts never run concurrently, each one is submitted once the previous one is done.
+  private int attempts;
+
+  /**
+   * @param clientCustomerId the client customer ID of the report
+   * @param downloader the single attempt download
+   * @param retryPolicy the retry policy
+   * @param circuitBreaker the circuit breaker of the accounts, could be null
+   */
+  RetryingReportDownloader(
+      Long clientCustomerId,
+      Callable<ReportData> downloader,
+      DownloadRetryPolicy retryPolicy,
+      CircuitBreaker<Long> circuitBreaker) {
+    this.clientCustomerId = clientCustomerId;
+    this.downloader = Preconditions.checkNotNull(downloader, "downloader cannot be null.");
+    this.retryPolicy = Preconditions.checkNotNull(retryPolicy, "retryPolicy cannot be null.");
+    this.circuitBreaker = circuitBreaker;
+  }
+
+  /**
+   * Runs the next attempt of the download.
+   *
+   * @throws ReportDownloadException if the attempt failed, with the number of attempts so far
+   */
+  @Override
+  public ReportData call() throws AlertProcessingException {
+    if (circuitBreaker != null && !circuitBreaker.allowRequest(clientCustomerId)) {
+      ReportDownloadException e = new ReportDownloadException(
+          "Too many failures for account " + clientCustomerId + ", not downloading report.",
+          null, clientCustomerId, ReportDownloadException.Reason.CIRCUIT_OPEN, null, 0, 0);
+      e.setAttempts(attempts);
+      throw e;
+    }
+
+    attempts++;
+    // Whether the outcome of the request was recorded in the circuit breaker.
+    boolean recorded = false;
+    try {
+      ReportData result = downloader.call();
+      if (circuitBreaker != null) {
+        circuitBreaker.onSuccess(clientCustomerId);
+        recorded = true;
+      }
+      return result;
+    } catch (Exception e) {
+      if (Thread.currentThread().isInterrupted()) {
+        // Cancelled (e.g. timed out), which says nothing about the account.
+        throw new AlertProcessingException(
+            "Download of report of account " + clientCustomerId + " was cancelled.", e);
+      }
+      ReportDownloadException failure =
+          ReportDownloadException.from(e.getMessage(), e, clientCustomerId);
+      failure.setAttempts(attempts);
+      // A rejected request would fail for any account, it says nothing about this one.
+      if (circuitBreaker != null && failure.isRetriable()) {
+        circuitBreaker.onFailure(clientCustomerId);
+        recorded = true;
+      }
+      throw failure;
+    } finally {
+      if (circuitBreaker != null && !recorded) {
+        circuitBreaker.onIgnored(clientCustomerId);
+      }
+    }
+  }
+
+  /**
+   * @param failure the failure of the last attempt, made by this download or by another alert
+   *     sharing it
+   * @return how long to wait before the next attempt, or -1 if the download should not be retried
+   */
+  long getRetryDelayMillis(ReportDownloadException failure) {
+    if (!failure.isRetriable() || failure.getAttempts() >= retryPolicy.getMaxAttempts()) {
+      return -1;
+    }
+    return Math.max(retryPolicy.getBackoffMillis(Math.max(failure.getAttempts(), 1)),
+        failure.getRetryAfterMillis());
+  }
+}
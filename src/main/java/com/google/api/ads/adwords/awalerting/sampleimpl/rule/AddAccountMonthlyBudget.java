@@ -77,7 +77,7 @@ public class AddAccountMonthlyBudget implements AlertRule {
    */
   @Override
   public boolean shouldRemoveReportEntry(ReportRow entry) {
-    double budget = Double.parseDouble(entry.getFieldValue("AccountMonthlyBudget"));
+    double budget = entry.getDoubleValue("AccountMonthlyBudget");
 
     // If budget is unlimited, don't alert.
     if (0 == budget) {
@@ -93,7 +93,7 @@ public class AddAccountMonthlyBudget implements AlertRule {
     }
 
     // If average daily spend is more than 60% of available budget, don't alert
-    double cost = Double.parseDouble(entry.getFieldValue("Cost"));
+    double cost = entry.getDoubleValue("Cost");
     int daysInMonth = cal.getActualMaximum(Calendar.DAY_OF_MONTH);
 
     if (cost / day > 0.6 * budget / daysInMonth) {
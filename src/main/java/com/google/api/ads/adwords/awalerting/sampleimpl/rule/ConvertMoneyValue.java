@@ -86,7 +86,7 @@ public class ConvertMoneyValue implements AlertRule {
   @Override
   public void transformReportEntry(ReportRow entry) {
     for (String moneyField : moneyFields) {
-      long microAmount = Long.parseLong(entry.getFieldValue(moneyField));
+      long microAmount = entry.getLongValue(moneyField);
       entry.setFieldValue(moneyField, MoneyUtil.toCurrencyAmountStr(microAmount));
     }
   }
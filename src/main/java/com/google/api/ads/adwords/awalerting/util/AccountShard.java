@@ -0,0 +1,122 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.util;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * One of {@code count} disjoint slices of the accounts, so that several machines can each process
+ * a slice. An account belongs to the shard {@code hash(clientCustomerId) mod count}, with a hash
+ * function that gives the same result on every machine and JVM, whatever the order or the source
+ * of the accounts.
+ *
+ * <p>Shards are written as "index/count", with the index from 0 to count - 1.
+ *
+ * <p>This class is immutable.
+ */
+public final class AccountShard implements Predicate<Long> {
+  private static final HashFunction HASH_FUNCTION = Hashing.murmur3_32();
+
+  private final int index;
+  private final int count;
+
+  /**
+   * @param index the index of this shard, from 0 to count - 1
+   * @param count the number of shards
+   */
+  public AccountShard(int index, int count) {
+    Preconditions.checkArgument(count > 0, "The shards count must be positive.");
+    Preconditions.checkArgument(index >= 0 && index < count,
+        "The shard index must be from 0 to %s.", count - 1);
+    this.index = index;
+    this.count = count;
+  }
+
+  /**
+   * @param shard the shard as "index/count", e.g. "0/4"
+   * @throws IllegalArgumentException if the shard is malformed
+   */
+  public static AccountShard parse(String shard) {
+    String[] parts = shard.trim().split("/");
+    Preconditions.checkArgument(parts.length == 2, "Shard must be \"index/count\": %s", shard);
+    try {
+      return new AccountShard(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()));
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Shard must be \"index/count\": " + shard, e);
+    }
+  }
+
+  public int getIndex() {
+    return index;
+  }
+
+  public int getCount() {
+    return count;
+  }
+
+  /**
+   * @return whether the account belongs to this shard
+   */
+  @Override
+  public boolean apply(Long clientCustomerId) {
+    int hash = HASH_FUNCTION.hashLong(clientCustomerId).asInt();
+    return ((hash % count) + count) % count == index;
+  }
+
+  /**
+   * Keeps the accounts of this shard. Accounts still being retrieved keep streaming in.
+   *
+   * @param clientCustomerIds all the accounts
+   * @return the accounts of this shard, in the same order
+   */
+  public Set<Long> filter(Set<Long> clientCustomerIds) {
+    if (clientCustomerIds instanceof PagedClientCustomerIds) {
+      return ((PagedClientCustomerIds) clientCustomerIds).filter(this);
+    }
+
+    Set<Long> shardIds = new LinkedHashSet<Long>();
+    for (Long clientCustomerId : clientCustomerIds) {
+      if (apply(clientCustomerId)) {
+        shardIds.add(clientCustomerId);
+      }
+    }
+    return shardIds;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof AccountShard)) {
+      return false;
+    }
+    AccountShard other = (AccountShard) obj;
+    return index == other.index && count == other.count;
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * index + count;
+  }
+
+  @Override
+  public String toString() {
+    return index + "/" + count;
+  }
+}
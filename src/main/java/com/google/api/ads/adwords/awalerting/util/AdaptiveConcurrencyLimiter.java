@@ -0,0 +1,254 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.util;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the number of concurrent requests, and adapts the limit with AIMD (additive increase,
+ * multiplicative decrease):
+ * <ul>
+ * <li>after each round of {@code limit} successful requests, the limit is increased by one if it
+ * was fully used, the 95th percentile latency of the recent requests is within twice the best one
+ * seen so far, and less than 5% of them were overloaded;</li>
+ * <li>when a request is overloaded (e.g. rate exceeded or server error), the limit is halved, at
+ * most once for all the requests started before the decrease, and new requests are held back for
+ * the retry-after delay if there is one.</li>
+ * </ul>
+ *
+ * <p>Each {@link #acquire()} must be followed by exactly one of {@link #onSuccess(Permit)},
+ * {@link #onOverload(Permit, long)} or {@link #release(Permit)}. The latency of a request runs
+ * until {@link #onResponse(Permit)} if it's called, so that reading the response (e.g. parsing a
+ * report as it's streamed) is not taken for server latency. The limit is exposed through JMX by
+ * {@link AdaptiveConcurrencyLimiterMXBean}. This class is thread safe.
+ */
+public class AdaptiveConcurrencyLimiter implements AdaptiveConcurrencyLimiterMXBean {
+  private static final Logger LOGGER = LoggerFactory.getLogger(AdaptiveConcurrencyLimiter.class);
+
+  private static final int WINDOW_SIZE = 100;
+  private static final int MIN_SAMPLES = 10;
+  private static final double LATENCY_TOLERANCE = 2.0;
+  private static final double MAX_OVERLOAD_RATE = 0.05;
+  private static final double DECREASE_FACTOR = 0.5;
+
+  // Marks an overloaded request in the latency window.
+  private static final long OVERLOADED = -1L;
+
+  private final int minLimit;
+  private final int maxLimit;
+  private final Ticker ticker;
+
+  // Latencies in nanoseconds of the most recent requests, as a ring buffer.
+  private final long[] window = new long[WINDOW_SIZE];
+  private int samples;
+  private int nextSample;
+  private long bestP95Nanos = Long.MAX_VALUE;
+
+  private int limit;
+  private int inFlight;
+  private int peakInFlight;
+  private int roundSuccesses;
+  private long generation;
+  private long pausedUntilNanos;
+
+  /**
+   * @param minLimit the minimum number of concurrent requests
+   * @param maxLimit the maximum number of concurrent requests
+   * @param initialLimit the initial number of concurrent requests
+   */
+  public AdaptiveConcurrencyLimiter(int minLimit, int maxLimit, int initialLimit) {
+    this(minLimit, maxLimit, initialLimit, Ticker.systemTicker());
+  }
+
+  AdaptiveConcurrencyLimiter(int minLimit, int maxLimit, int initialLimit, Ticker ticker) {
+    Preconditions.checkArgument(minLimit > 0, "minLimit must be positive.");
+    Preconditions.checkArgument(maxLimit >= minLimit, "maxLimit must not be less than minLimit.");
+    Preconditions.checkArgument(initialLimit >= minLimit && initialLimit <= maxLimit,
+        "initialLimit must be between minLimit and maxLimit.");
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.limit = initialLimit;
+    this.ticker = Preconditions.checkNotNull(ticker, "ticker cannot be null.");
+    this.pausedUntilNanos = ticker.read();
+  }
+
+  /**
+   * Waits until a request can be started.
+   *
+   * @return the permit to hand back when the request is done
+   */
+  public synchronized Permit acquire() throws InterruptedException {
+    while (true) {
+      long pauseNanos = pausedUntilNanos - ticker.read();
+      if (pauseNanos > 0) {
+        TimeUnit.NANOSECONDS.timedWait(this, pauseNanos);
+      } else if (inFlight >= limit) {
+        wait();
+      } else {
+        break;
+      }
+    }
+
+    inFlight++;
+    peakInFlight = Math.max(peakInFlight, inFlight);
+    return new Permit(ticker.read(), generation);
+  }
+
+  /**
+   * Ends the latency of the request once the server responded, before the response is read. The
+   * permit is still held until the request is done.
+   */
+  public synchronized void onResponse(Permit permit) {
+    Preconditions.checkState(!permit.released, "Permit already released.");
+    if (permit.responseNanos < 0) {
+      permit.responseNanos = ticker.read() - permit.startNanos;
+    }
+  }
+
+  /**
+   * Hands back the permit of a successful request, and records its latency.
+   */
+  public synchronized void onSuccess(Permit permit) {
+    doRelease(permit);
+    record(permit.responseNanos >= 0 ? permit.responseNanos : ticker.read() - permit.startNanos);
+
+    if (++roundSuccesses >= limit) {
+      roundSuccesses = 0;
+      maybeIncrease();
+    }
+  }
+
+  /**
+   * Hands back the permit of a request rejected because the server is overloaded, and decreases
+   * the limit.
+   *
+   * @param retryAfterMillis the delay before starting new requests, or 0 if no delay is needed
+   */
+  public synchronized void onOverload(Permit permit, long retryAfterMillis) {
+    doRelease(permit);
+    record(OVERLOADED);
+
+    // Requests started before the last decrease were sent at the former limit.
+    if (permit.generation == generation) {
+      generation++;
+      roundSuccesses = 0;
+      int newLimit = Math.max(minLimit, (int) (limit * DECREASE_FACTOR));
+      if (newLimit != limit) {
+        LOGGER.info("Server overloaded, decreasing concurrency limit from {} to {}.",
+            limit, newLimit);
+        limit = newLimit;
+      }
+    }
+
+    if (retryAfterMillis > 0) {
+      LOGGER.info("Holding new requests for {} ms.", retryAfterMillis);
+      pausedUntilNanos = Math.max(pausedUntilNanos,
+          ticker.read() + TimeUnit.MILLISECONDS.toNanos(retryAfterMillis));
+    }
+  }
+
+  /**
+   * Hands back the permit of a request that should not affect the limit (e.g. it failed for
+   * reasons unrelated to the server load).
+   */
+  public synchronized void release(Permit permit) {
+    doRelease(permit);
+  }
+
+  @Override
+  public synchronized int getLimit() {
+    return limit;
+  }
+
+  @Override
+  public synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  @Override
+  public int getMinLimit() {
+    return minLimit;
+  }
+
+  @Override
+  public int getMaxLimit() {
+    return maxLimit;
+  }
+
+  private void doRelease(Permit permit) {
+    Preconditions.checkState(!permit.released, "Permit already released.");
+    permit.released = true;
+    inFlight--;
+    notifyAll();
+  }
+
+  private void record(long latencyNanos) {
+    window[nextSample] = latencyNanos;
+    nextSample = (nextSample + 1) % WINDOW_SIZE;
+    samples = Math.min(samples + 1, WINDOW_SIZE);
+  }
+
+  private void maybeIncrease() {
+    boolean limitUsed = peakInFlight >= limit;
+    peakInFlight = inFlight;
+    if (samples < MIN_SAMPLES) {
+      return;
+    }
+
+    long[] latencies = new long[samples];
+    int count = 0;
+    for (int i = 0; i < samples; i++) {
+      if (window[i] != OVERLOADED) {
+        latencies[count++] = window[i];
+      }
+    }
+    if ((double) (samples - count) / samples > MAX_OVERLOAD_RATE || count == 0) {
+      return;
+    }
+
+    Arrays.sort(latencies, 0, count);
+    long p95Nanos = latencies[(int) Math.ceil(0.95 * count) - 1];
+    bestP95Nanos = Math.min(bestP95Nanos, p95Nanos);
+    if (limitUsed && limit < maxLimit && p95Nanos <= bestP95Nanos * LATENCY_TOLERANCE) {
+      limit++;
+      LOGGER.debug("Increasing concurrency limit to {} (p95 latency {} ms).",
+          limit, TimeUnit.NANOSECONDS.toMillis(p95Nanos));
+      notifyAll();
+    }
+  }
+
+  /**
+   * Handed out by {@link AdaptiveConcurrencyLimiter#acquire()} for each request.
+   */
+  public static final class Permit {
+    private final long startNanos;
+    private final long generation;
+    // Guarded by the limiter: the latency until the response, or -1 if not responded yet.
+    private long responseNanos = -1;
+    private boolean released;
+
+    private Permit(long startNanos, long generation) {
+      this.startNanos = startNanos;
+      this.generation = generation;
+    }
+  }
+}
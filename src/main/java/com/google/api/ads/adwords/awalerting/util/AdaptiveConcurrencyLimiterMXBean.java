@@ -0,0 +1,40 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.util;
+
+/**
+ * JMX view of an {@link AdaptiveConcurrencyLimiter}, to monitor its limit while it adapts.
+ */
+public interface AdaptiveConcurrencyLimiterMXBean {
+  /**
+   * @return the current maximum number of concurrent requests
+   */
+  int getLimit();
+
+  /**
+   * @return the number of requests currently running
+   */
+  int getInFlight();
+
+  /**
+   * @return the lowest the limit can go
+   */
+  int getMinLimit();
+
+  /**
+   * @return the highest the limit can go
+   */
+  int getMaxLimit();
+}
@@ -0,0 +1,148 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.util;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Circuit breaker with a separate circuit for each key (e.g. each account). A circuit opens after
+ * {@code failureThreshold} consecutive failures, and then rejects all requests for
+ * {@code openMillis}. After that, a single trial request is let through: the circuit closes if it
+ * succeeds, and opens again if it fails. Every request let through must end with
+ * {@link #onSuccess}, {@link #onFailure} or {@link #onIgnored}, or the circuit stays in its trial.
+ *
+ * <p>This class is thread safe.
+ *
+ * @param <K> the type of the keys
+ */
+public class CircuitBreaker<K> {
+  private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class);
+
+  private final int failureThreshold;
+  private final long openNanos;
+  private final Ticker ticker;
+
+  private final Map<K, Circuit> circuits = new HashMap<K, Circuit>();
+
+  /**
+   * @param failureThreshold the number of consecutive failures that opens a circuit
+   * @param openMillis how long an open circuit rejects requests
+   */
+  public CircuitBreaker(int failureThreshold, long openMillis) {
+    this(failureThreshold, openMillis, Ticker.systemTicker());
+  }
+
+  CircuitBreaker(int failureThreshold, long openMillis, Ticker ticker) {
+    Preconditions.checkArgument(failureThreshold > 0, "failureThreshold must be positive.");
+    Preconditions.checkArgument(openMillis >= 0, "openMillis must not be negative.");
+    this.failureThreshold = failureThreshold;
+    this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+    this.ticker = Preconditions.checkNotNull(ticker, "ticker cannot be null.");
+  }
+
+  /**
+   * @return whether a request for the key can be sent now
+   */
+  public synchronized boolean allowRequest(K key) {
+    Circuit circuit = circuits.get(key);
+    if (circuit == null || circuit.failures < failureThreshold) {
+      return true;
+    }
+    if (circuit.trialInProgress || ticker.read() - circuit.openedNanos < openNanos) {
+      return false;
+    }
+    circuit.trialInProgress = true;
+    return true;
+  }
+
+  /**
+   * Closes the circuit of the key.
+   */
+  public synchronized void onSuccess(K key) {
+    Circuit circuit = circuits.remove(key);
+    if (circuit != null && circuit.failures >= failureThreshold) {
+      LOGGER.info("Circuit of {} closed.", key);
+    }
+  }
+
+  /**
+   * Records a failure for the key, and opens its circuit after too many consecutive failures.
+   */
+  public synchronized void onFailure(K key) {
+    Circuit circuit = circuits.get(key);
+    if (circuit == null) {
+      circuit = new Circuit();
+      circuits.put(key, circuit);
+    }
+    circuit.failures++;
+    if (circuit.failures >= failureThreshold) {
+      if (!circuit.trialInProgress && circuit.failures == failureThreshold) {
+        LOGGER.warn("Circuit of {} opened after {} consecutive failures.", key, failureThreshold);
+      }
+      circuit.openedNanos = ticker.read();
+      circuit.trialInProgress = false;
+    }
+  }
+
+  /**
+   * Ends a request for the key whose outcome says nothing about the key (e.g. it was cancelled, or
+   * rejected as invalid), without recording a success or a failure. If it was the trial request,
+   * another trial request is let through.
+   */
+  public synchronized void onIgnored(K key) {
+    Circuit circuit = circuits.get(key);
+    if (circuit != null) {
+      circuit.trialInProgress = false;
+    }
+  }
+
+  /**
+   * @return whether the circuit of the key is open, i.e. it failed too many times since its last
+   *     success (trial requests may still be let through)
+   */
+  public synchronized boolean isOpen(K key) {
+    Circuit circuit = circuits.get(key);
+    return circuit != null && circuit.failures >= failureThreshold;
+  }
+
+  /**
+   * @return the keys with an open circuit
+   */
+  public synchronized Set<K> getOpenKeys() {
+    Set<K> openKeys = new HashSet<K>();
+    for (Map.Entry<K, Circuit> entry : circuits.entrySet()) {
+      if (entry.getValue().failures >= failureThreshold) {
+        openKeys.add(entry.getKey());
+      }
+    }
+    return openKeys;
+  }
+
+  private static class Circuit {
+    private int failures;
+    private long openedNanos;
+    private boolean trialInProgress;
+  }
+}
@@ -0,0 +1,25 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.util;
+
+/**
+ * Exception thrown by the {@link PagedClientCustomerIds} still being retrieved when the retrieval
+ * failed, or was interrupted, before the IDs asked for were published.
+ */
+public class ClientCustomerIdsRetrievalException extends RuntimeException {
+  public ClientCustomerIdsRetrievalException(String message, Throwable cause) {
+    super(message, cause);
+  }
+}
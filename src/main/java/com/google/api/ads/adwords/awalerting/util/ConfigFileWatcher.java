@@ -0,0 +1,129 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.util;
+
+import com.google.common.base.Preconditions;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a config file, and calls the listener once the file has been written. The events of a
+ * write (and of an editor replacing the file) come in bursts, so the listener is only called once
+ * no event has come for {@code quietMillis}.
+ *
+ * <p>The directory of the file is watched, as files cannot be watched on their own. The listener
+ * is called on the watcher thread, which is a daemon thread stopped by {@link #close()}.
+ */
+public final class ConfigFileWatcher implements Closeable {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ConfigFileWatcher.class);
+
+  /**
+   * Listener called when the watched file has changed.
+   */
+  public interface Listener {
+    /**
+     * @param file the changed file
+     */
+    void onChange(Path file);
+  }
+
+  private final Path file;
+  private final Listener listener;
+  private final long quietMillis;
+  private final WatchService watchService;
+  private final Thread thread;
+
+  /**
+   * Starts watching the file.
+   *
+   * @param file the file to watch
+   * @param listener the listener to call when the file has changed
+   * @param quietMillis the time without events before calling the listener
+   */
+  public ConfigFileWatcher(Path file, Listener listener, long quietMillis) throws IOException {
+    this.file = Preconditions.checkNotNull(file, "file cannot be null.").toAbsolutePath();
+    this.listener = Preconditions.checkNotNull(listener, "listener cannot be null.");
+    this.quietMillis = quietMillis;
+
+    watchService = FileSystems.getDefault().newWatchService();
+    this.file.getParent().register(watchService,
+        StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+    thread = new Thread("config-watcher-" + this.file.getFileName()) {
+      @Override
+      public void run() {
+        watch();
+      }
+    };
+    thread.setDaemon(true);
+    thread.start();
+    LOGGER.info("Watching {} for changes.", this.file);
+  }
+
+  private void watch() {
+    try {
+      boolean changed = false;
+      while (true) {
+        // Waits for the first event, then until the events stop.
+        WatchKey key = changed
+            ? watchService.poll(quietMillis, TimeUnit.MILLISECONDS) : watchService.take();
+        if (key == null) {
+          changed = false;
+          notifyListener();
+          continue;
+        }
+        for (WatchEvent<?> event : key.pollEvents()) {
+          if (event.kind() == StandardWatchEventKinds.OVERFLOW
+              || file.getFileName().equals(event.context())) {
+            changed = true;
+          }
+        }
+        key.reset();
+      }
+    } catch (InterruptedException | ClosedWatchServiceException e) {
+      // Closed.
+    }
+  }
+
+  private void notifyListener() {
+    LOGGER.info("{} has changed.", file);
+    try {
+      listener.onChange(file);
+    } catch (RuntimeException e) {
+      LOGGER.error("Failed to handle the change of {}.", file, e);
+    }
+  }
+
+  /**
+   * Stops watching the file.
+   */
+  @Override
+  public void close() throws IOException {
+    thread.interrupt();
+    watchService.close();
+  }
+}
@@ -27,6 +27,10 @@ public final class ConfigTags {
   public static final String ALERT_MESSAGE = "AlertMessage";
   public static final String ACTIONS = "Actions";
   public static final String CLASS_NAME = "ClassName";
+  public static final String EXECUTION_MODE = "ExecutionMode";
+  public static final String LEASE_QUEUE = "LeaseQueue";
+  public static final String SCHEDULE = "Schedule";
+  public static final String PRIORITY = "Priority";
   
   // Regular expression for placeholders in alert message template
   public static final String ALERT_MESSAGE_PLACEHOLDER_REGEX = "\\{\\w+\\}";
@@ -0,0 +1,196 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.util;
+
+import com.google.common.base.Preconditions;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.util.BitSet;
+
+/**
+ * Cron-like schedule of the times to run something at, with a minute precision. It has five fields
+ * separated by spaces: minute (0-59), hour (0-23), day of month (1-31), month (1-12) and day of
+ * week (0-7, where both 0 and 7 are Sunday). Each field is "*", a value, a range "a-b", or a list
+ * of them separated by commas, each optionally followed by a step "/n". As with cron, if both the
+ * day of month and the day of week are restricted, either of them matches. The shortcuts
+ * "@hourly", "@daily", "@weekly" and "@monthly" are also supported.
+ *
+ * <p>Examples: "0 * * * *" (every hour), "*&#47;15 8-18 * * 1-5" (every 15 minutes during
+ * office hours), "30 6 1 * *" (6:30 on the first day of each month).
+ *
+ * <p>This class is immutable.
+ */
+public final class CronSchedule {
+  // Far enough to find the next time of any valid schedule, e.g. February 29th on a Monday.
+  private static final int MAX_YEARS_AHEAD = 30;
+  // The days in each month from 1, with February 29th.
+  private static final int[] MAX_DAYS_OF_MONTH =
+      {0, 31, 29, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31};
+
+  private final String expression;
+  private final BitSet minutes;
+  private final BitSet hours;
+  private final BitSet daysOfMonth;
+  private final BitSet months;
+  private final BitSet daysOfWeek;
+  private final boolean anyDayOfMonth;
+  private final boolean anyDayOfWeek;
+
+  private CronSchedule(String expression, String[] fields) {
+    this.expression = expression;
+    this.minutes = parseField(fields[0], 0, 59);
+    this.hours = parseField(fields[1], 0, 23);
+    this.daysOfMonth = parseField(fields[2], 1, 31);
+    this.months = parseField(fields[3], 1, 12);
+    this.daysOfWeek = parseField(fields[4], 0, 7);
+    if (daysOfWeek.get(7)) {
+      daysOfWeek.set(0);
+    }
+    this.anyDayOfMonth = fields[2].startsWith("*");
+    this.anyDayOfWeek = fields[4].startsWith("*");
+    Preconditions.checkArgument(matchesSomeDay(), "No day matches the days of month and months.");
+  }
+
+  /**
+   * @return whether some day matches the schedule, e.g. not "0 0 30 2 *", so that
+   *     {@link #next(long, DateTimeZone)} always finds a time
+   */
+  private boolean matchesSomeDay() {
+    if (!anyDayOfMonth && !anyDayOfWeek) {
+      // Either of them matches, and each month has all the days of week.
+      return true;
+    }
+    int firstDayOfMonth = daysOfMonth.nextSetBit(1);
+    for (int month = months.nextSetBit(1); month >= 0; month = months.nextSetBit(month + 1)) {
+      if (firstDayOfMonth <= MAX_DAYS_OF_MONTH[month]) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @param expression the cron expression, e.g. "0 * * * *"
+   * @throws IllegalArgumentException if the expression is malformed, or never matches
+   */
+  public static CronSchedule parse(String expression) {
+    Preconditions.checkNotNull(expression, "expression cannot be null.");
+    String trimmed = expression.trim();
+    String expanded;
+    switch (trimmed) {
+      case "@hourly":
+        expanded = "0 * * * *";
+        break;
+      case "@daily":
+        expanded = "0 0 * * *";
+        break;
+      case "@weekly":
+        expanded = "0 0 * * 0";
+        break;
+      case "@monthly":
+        expanded = "0 0 1 * *";
+        break;
+      default:
+        expanded = trimmed;
+    }
+
+    String[] fields = expanded.split("\\s+");
+    Preconditions.checkArgument(
+        fields.length == 5, "Cron expression must have 5 fields: %s", expression);
+    try {
+      return new CronSchedule(trimmed, fields);
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Invalid cron expression: " + expression, e);
+    }
+  }
+
+  private static BitSet parseField(String field, int min, int max) {
+    BitSet values = new BitSet(max + 1);
+    for (String part : field.split(",")) {
+      int step = 1;
+      int slash = part.indexOf('/');
+      if (slash >= 0) {
+        step = Integer.parseInt(part.substring(slash + 1));
+        Preconditions.checkArgument(step > 0, "Step must be positive: %s", part);
+        part = part.substring(0, slash);
+      }
+
+      int from;
+      int to;
+      if (part.equals("*")) {
+        from = min;
+        to = max;
+      } else {
+        int dash = part.indexOf('-');
+        if (dash >= 0) {
+          from = Integer.parseInt(part.substring(0, dash));
+          to = Integer.parseInt(part.substring(dash + 1));
+        } else {
+          from = Integer.parseInt(part);
+          to = slash >= 0 ? max : from;
+        }
+      }
+      Preconditions.checkArgument(min <= from && from <= to && to <= max,
+          "Values must be from %s to %s: %s", min, max, part);
+      for (int value = from; value <= to; value += step) {
+        values.set(value);
+      }
+    }
+    return values;
+  }
+
+  /**
+   * @param after the time after which to look for the next time
+   * @param zone the time zone of the schedule
+   * @return the first time strictly after the given one, in milliseconds, that matches the
+   *     schedule
+   */
+  public long next(long after, DateTimeZone zone) {
+    DateTime time = new DateTime(after, zone)
+        .withSecondOfMinute(0).withMillisOfSecond(0).plusMinutes(1);
+    DateTime limit = time.plusYears(MAX_YEARS_AHEAD);
+    while (time.isBefore(limit)) {
+      if (!months.get(time.getMonthOfYear())) {
+        time = time.withDayOfMonth(1).withTimeAtStartOfDay().plusMonths(1);
+      } else if (!matchesDay(time)) {
+        time = time.withTimeAtStartOfDay().plusDays(1);
+      } else if (!hours.get(time.getHourOfDay())) {
+        time = time.withMinuteOfHour(0).plusHours(1);
+      } else if (!minutes.get(time.getMinuteOfHour())) {
+        time = time.plusMinutes(1);
+      } else {
+        return time.getMillis();
+      }
+    }
+    throw new IllegalStateException("No time matches the cron expression: " + expression);
+  }
+
+  private boolean matchesDay(DateTime time) {
+    boolean dayOfMonth = daysOfMonth.get(time.getDayOfMonth());
+    // Joda-Time days of week are 1 (Monday) to 7 (Sunday), cron's are 0 (Sunday) to 6.
+    boolean dayOfWeek = daysOfWeek.get(time.getDayOfWeek() % 7);
+    if (anyDayOfMonth || anyDayOfWeek) {
+      return dayOfMonth && dayOfWeek;
+    }
+    return dayOfMonth || dayOfWeek;
+  }
+
+  @Override
+  public String toString() {
+    return expression;
+  }
+}
@@ -45,6 +45,13 @@ public class DateRange {
     return endDate.toString(formatter);
   }
 
+  /**
+   * @return true if the date range ends before today, so its report data is no longer changing
+   */
+  public boolean isClosed() {
+    return endDate.isBefore(LocalDate.now());
+  }
+
   /**
    * Factory method to create a DataRange instance.
    * @param dateRange the date range string, either in "yyyyMMdd,yyyyMMdd" format, or some
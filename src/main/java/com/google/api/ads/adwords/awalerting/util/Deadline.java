@@ -0,0 +1,149 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.util;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Point in time by which some work should be done, e.g. a download, an alert or a whole run.
+ * Deadlines are measured on a monotonic clock, so they are not affected by changes of the system
+ * time. {@link #NONE} never expires.
+ *
+ * <p>This class is immutable.
+ */
+public final class Deadline {
+  /** The deadline that never expires. */
+  public static final Deadline NONE = new Deadline(Ticker.systemTicker(), 0, false);
+
+  private final Ticker ticker;
+  private final long deadlineNanos;
+  private final boolean finite;
+
+  private Deadline(Ticker ticker, long deadlineNanos, boolean finite) {
+    this.ticker = ticker;
+    this.deadlineNanos = deadlineNanos;
+    this.finite = finite;
+  }
+
+  /**
+   * @param timeout the time left from now, or {@link #NONE} if not positive
+   * @param unit the unit of the timeout
+   */
+  public static Deadline after(long timeout, TimeUnit unit) {
+    return after(timeout, unit, Ticker.systemTicker());
+  }
+
+  static Deadline after(long timeout, TimeUnit unit, Ticker ticker) {
+    Preconditions.checkNotNull(unit, "unit cannot be null.");
+    Preconditions.checkNotNull(ticker, "ticker cannot be null.");
+    if (timeout <= 0) {
+      return NONE;
+    }
+    return new Deadline(ticker, ticker.read() + unit.toNanos(timeout), true);
+  }
+
+  /**
+   * @return whether this deadline can expire, i.e. it's not {@link #NONE}
+   */
+  public boolean isFinite() {
+    return finite;
+  }
+
+  /**
+   * @return whether this deadline has passed
+   */
+  public boolean isExpired() {
+    return finite && deadlineNanos - ticker.read() <= 0;
+  }
+
+  /**
+   * @return the milliseconds left (rounded up), 0 if expired, or {@code Long.MAX_VALUE} if this
+   *     deadline never expires
+   */
+  public long getRemainingMillis() {
+    if (!finite) {
+      return Long.MAX_VALUE;
+    }
+    long remainingNanos = deadlineNanos - ticker.read();
+    if (remainingNanos <= 0) {
+      return 0;
+    }
+    return TimeUnit.NANOSECONDS.toMillis(remainingNanos + TimeUnit.MILLISECONDS.toNanos(1) - 1);
+  }
+
+  /**
+   * @return the earlier of this deadline and the other one
+   */
+  public Deadline min(Deadline other) {
+    if (!other.finite) {
+      return this;
+    }
+    if (!finite) {
+      return other;
+    }
+    return deadlineNanos - other.deadlineNanos <= 0 ? this : other;
+  }
+
+  /**
+   * @param amount the time to move this deadline earlier by, not negative
+   * @param unit the unit of the amount
+   * @return the deadline that expires the given time before this one, or {@link #NONE} if this
+   *     deadline never expires
+   */
+  public Deadline before(long amount, TimeUnit unit) {
+    Preconditions.checkArgument(amount >= 0, "amount cannot be negative.");
+    Preconditions.checkNotNull(unit, "unit cannot be null.");
+    if (!finite) {
+      return this;
+    }
+    return new Deadline(ticker, deadlineNanos - unit.toNanos(amount), true);
+  }
+
+  /**
+   * Waits for the latch to count down to zero, or for this deadline to expire.
+   *
+   * @return whether the latch reached zero in time
+   */
+  public boolean await(CountDownLatch latch) throws InterruptedException {
+    if (!finite) {
+      latch.await();
+      return true;
+    }
+    return latch.await(getRemainingMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Acquires the permits from the semaphore, unless this deadline expires first.
+   *
+   * @return whether the permits were acquired
+   */
+  public boolean tryAcquire(Semaphore semaphore, int permits) throws InterruptedException {
+    if (!finite) {
+      semaphore.acquire(permits);
+      return true;
+    }
+    return semaphore.tryAcquire(permits, getRemainingMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public String toString() {
+    return finite ? "Deadline in " + getRemainingMillis() + " ms" : "No deadline";
+  }
+}
@@ -22,9 +22,15 @@ import com.google.api.ads.adwords.jaxws.v201705.mcm.ManagedCustomerPage;
 import com.google.api.ads.adwords.jaxws.v201705.mcm.ManagedCustomerServiceInterface;
 import com.google.api.ads.adwords.lib.client.AdWordsSession;
 import com.google.api.ads.adwords.lib.selectorfields.v201609.cm.ManagedCustomerField;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.ArrayList;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 import javax.annotation.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -42,75 +48,171 @@ public class ManagedCustomerDelegate {
    */
   private static final int NUMBER_OF_RESULTS = 1000;
 
+  /**
+   * The number of attempts to get each page, and the delay before the first retry (doubled for
+   * each further retry).
+   */
+  private static final int MAX_ATTEMPTS = 3;
+  private static final long INITIAL_BACKOFF_MILLIS = 1000L;
+
+  private final AdWordsSession adWordsSession;
   private ManagedCustomerServiceInterface managedCustomerService;
 
   /**
    * @param adWordsSession the {@code adWordsSession} to use with the delegate/service
    */
   public ManagedCustomerDelegate(AdWordsSession adWordsSession) {
+    this.adWordsSession = adWordsSession;
     this.managedCustomerService =
         AdWordsServicesUtil.getService(adWordsSession, ManagedCustomerServiceInterface.class);
   }
 
   /**
-   * Gets all the client customer IDs for the {@link AdWordsSession}.
-   *
-   * <p>The accounts are read in complete, and after all accounts have been retrieved, their IDs
-   * are extracted and returned in a {@code Set}.
+   * Gets all the client customer IDs for the {@link AdWordsSession}, one page after another.
    *
    * @return the {@link Set} with the IDs of the found accounts
    * @throws ApiException error from the API when retrieving the accounts
    */
   public Set<Long> getClientCustomerIds() throws ApiException {
-    Set<Long> clientCustomerIdsSet = new LinkedHashSet<Long>();
-    ManagedCustomerPage managedCustomerPage;
-    int offset = 0;
+    return getClientCustomerIds(MoreExecutors.directExecutor());
+  }
 
-    SelectorBuilder builder = new SelectorBuilder();
+  /**
+   * Gets all the client customer IDs for the {@link AdWordsSession}.
+   *
+   * @param executor the executor to retrieve the pages on
+   * @return the {@link Set} with the IDs of the found accounts
+   * @throws ApiException error from the API when retrieving the accounts
+   * @see #getClientCustomerIds(Executor, PagedClientCustomerIds)
+   */
+  public Set<Long> getClientCustomerIds(Executor executor) throws ApiException {
+    PagedClientCustomerIds clientCustomerIds = new PagedClientCustomerIds();
+    getClientCustomerIds(executor, clientCustomerIds);
+    return new LinkedHashSet<Long>(clientCustomerIds);
+  }
+
+  /**
+   * Gets all the client customer IDs for the {@link AdWordsSession}, and publishes them page by
+   * page into {@code clientCustomerIds} so that they can be used before all pages are retrieved.
+   *
+   * <p>The first page tells the total number of accounts, then the other pages are retrieved
+   * concurrently on the executor. Each page is retried with exponential backoff. The IDs are
+   * published in the order of the pages, and {@code clientCustomerIds} is completed or failed
+   * before this method returns.
+   *
+   * @param executor the executor to retrieve the pages on
+   * @param clientCustomerIds the set to publish the IDs into
+   * @throws ApiException error from the API when retrieving the accounts
+   */
+  public void getClientCustomerIds(Executor executor, PagedClientCustomerIds clientCustomerIds)
+      throws ApiException {
+    List<FutureTask<ManagedCustomerPage>> pages = new ArrayList<FutureTask<ManagedCustomerPage>>();
+    try {
+      LOGGER.info("Retrieving first {} accounts.", NUMBER_OF_RESULTS);
+      ManagedCustomerPage firstPage = getPage(managedCustomerService, 0);
+
+      int totalNumEntries = firstPage == null || firstPage.getTotalNumEntries() == null
+          ? 0 : firstPage.getTotalNumEntries();
+      for (int offset = NUMBER_OF_RESULTS; offset < totalNumEntries; offset += NUMBER_OF_RESULTS) {
+        final int pageOffset = offset;
+        FutureTask<ManagedCustomerPage> page =
+            new FutureTask<ManagedCustomerPage>(new Callable<ManagedCustomerPage>() {
+              @Override
+              public ManagedCustomerPage call() throws ApiException {
+                // Services are not thread safe, so each page gets its own.
+                return getPage(AdWordsServicesUtil.getService(
+                    adWordsSession, ManagedCustomerServiceInterface.class), pageOffset);
+              }
+            });
+        pages.add(page);
+        executor.execute(page);
+      }
+      if (!pages.isEmpty()) {
+        LOGGER.info("Retrieving {} more pages of {} accounts.", pages.size(), NUMBER_OF_RESULTS);
+      }
+
+      // The other pages are scheduled first, so that they are not queued behind the work started
+      // for the accounts of the first page when the executor is shared.
+      publishClientCustomerIds(firstPage, clientCustomerIds);
+      for (FutureTask<ManagedCustomerPage> page : pages) {
+        publishClientCustomerIds(page.get(), clientCustomerIds);
+        LOGGER.info("{} accounts retrieved.", clientCustomerIds.getPublishedCount());
+      }
+      clientCustomerIds.complete();
+    } catch (ApiException | RuntimeException e) {
+      clientCustomerIds.fail(e);
+      throw e;
+    } catch (ExecutionException e) {
+      clientCustomerIds.fail(e.getCause());
+      if (e.getCause() instanceof ApiException) {
+        throw (ApiException) e.getCause();
+      }
+      throw new IllegalStateException("Failed to retrieve accounts.", e.getCause());
+    } catch (InterruptedException e) {
+      clientCustomerIds.fail(e);
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while retrieving accounts.", e);
+    } finally {
+      for (FutureTask<ManagedCustomerPage> page : pages) {
+        page.cancel(true);
+      }
+    }
+  }
+
+  /**
+   * Gets the page of accounts at the offset, with retries.
+   */
+  private static ManagedCustomerPage getPage(
+      ManagedCustomerServiceInterface service, int offset) throws ApiException {
     Selector selector =
-        builder.fields(ManagedCustomerField.CustomerId)
+        new SelectorBuilder().fields(ManagedCustomerField.CustomerId)
             .offset(offset)
             .limit(NUMBER_OF_RESULTS)
             .equals(ManagedCustomerField.CanManageClients, String.valueOf(false))
             .build();
 
-    do {
-      LOGGER.info("Retrieving next {} accounts.", NUMBER_OF_RESULTS);
-
+    long backoffMillis = INITIAL_BACKOFF_MILLIS;
+    for (int attempt = 1; ; attempt++) {
       try {
-        managedCustomerPage = managedCustomerService.get(selector);
-        addClientCustomerIds(managedCustomerPage, clientCustomerIdsSet);
+        return service.get(selector);
       } catch (ApiException e) {
-        // Retry once.
-        managedCustomerPage = managedCustomerService.get(selector);
-        addClientCustomerIds(managedCustomerPage, clientCustomerIdsSet);
+        if (attempt >= MAX_ATTEMPTS) {
+          throw e;
+        }
+        LOGGER.warn("Failed to retrieve accounts at offset {}, retrying in {} ms.",
+            offset, backoffMillis, e);
       }
 
-      LOGGER.info("{} accounts retrieved.", clientCustomerIdsSet.size());
-      offset += NUMBER_OF_RESULTS;
-      selector = builder.increaseOffsetBy(NUMBER_OF_RESULTS).build();
-    } while (managedCustomerPage.getTotalNumEntries() > offset);
-
-    return clientCustomerIdsSet;
+      try {
+        Thread.sleep(backoffMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while retrieving accounts.", e);
+      }
+      backoffMillis *= 2;
+    }
   }
 
   /**
-   * Add client customer IDs into the result set.
+   * Publish the client customer IDs of the page.
    *
    * @param managedCustomerPage the page of managed customers
-   * @param clientCustomerIdsSet the result set of client customer IDs
+   * @param clientCustomerIds the set to publish the client customer IDs into
    */
-  private static void addClientCustomerIds(
-      @Nullable ManagedCustomerPage managedCustomerPage, Set<Long> clientCustomerIdsSet) {
+  private static void publishClientCustomerIds(
+      @Nullable ManagedCustomerPage managedCustomerPage,
+      PagedClientCustomerIds clientCustomerIds) {
+    List<Long> pageIds = new ArrayList<Long>();
     if (managedCustomerPage != null) {
       List<ManagedCustomer> managedCustomers = managedCustomerPage.getEntries();
       
       // ManagedCustomerPage.getEntries() could return null.
       if (managedCustomers != null) {
         for (ManagedCustomer managedCustomer : managedCustomers) {
-          clientCustomerIdsSet.add(managedCustomer.getCustomerId());
+          pageIds.add(managedCustomer.getCustomerId());
         }
       }
     }
+    clientCustomerIds.publish(pageIds);
   }
 }
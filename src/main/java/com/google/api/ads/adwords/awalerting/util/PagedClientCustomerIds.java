@@ -0,0 +1,263 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.util;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Set of client customer IDs which are published page by page while the accounts are still being
+ * retrieved, so that reports can be downloaded for the first accounts in the meantime.
+ *
+ * <p>Iterators return the IDs in the order they were published, and block in {@code hasNext()}
+ * until more IDs are published or the retrieval is completed, unless the caller waits for them
+ * with a timeout first (see {@link PagedIterator#awaitNext(long)}). {@link #size()} and
+ * {@link #contains(Object)} of an unknown ID block until the retrieval is completed. If the
+ * retrieval failed, they throw a {@link ClientCustomerIdsRetrievalException} with the failure as
+ * cause. Once completed, the set can be iterated any number of times without blocking.
+ *
+ * <p>This class is thread safe; the set cannot be modified other than by publishing.
+ */
+public class PagedClientCustomerIds extends AbstractSet<Long> {
+  /**
+   * Iterator that can wait for the next ID with a timeout.
+   */
+  public interface PagedIterator extends Iterator<Long> {
+    /**
+     * Waits for at most {@code timeoutMillis} until the next ID is published or the retrieval is
+     * finished, so that {@link #hasNext()} returns without blocking.
+     *
+     * @param timeoutMillis the maximum time to wait, 0 to check without waiting
+     * @return whether {@link #hasNext()} returns without blocking
+     */
+    boolean awaitNext(long timeoutMillis);
+  }
+
+  private final List<Long> ids = new ArrayList<Long>();
+  private final Set<Long> idsSet = new HashSet<Long>();
+  private boolean completed;
+  private Throwable failure;
+
+  // The filtered views of this set (see #filter(Predicate)), and their filters.
+  private final List<PagedClientCustomerIds> views = new ArrayList<PagedClientCustomerIds>();
+  private final List<Predicate<Long>> viewFilters = new ArrayList<Predicate<Long>>();
+
+  /**
+   * Publishes a page of client customer IDs, ignoring the ones already published.
+   *
+   * @param clientCustomerIds the client customer IDs of the page
+   */
+  public synchronized void publish(Collection<Long> clientCustomerIds) {
+    Preconditions.checkState(!completed && failure == null, "Retrieval is already finished.");
+    List<Long> page = new ArrayList<Long>(clientCustomerIds.size());
+    for (Long clientCustomerId : clientCustomerIds) {
+      if (idsSet.add(clientCustomerId)) {
+        ids.add(clientCustomerId);
+        page.add(clientCustomerId);
+      }
+    }
+    for (int i = 0; i < views.size(); i++) {
+      views.get(i).publish(filter(page, viewFilters.get(i)));
+    }
+    notifyAll();
+  }
+
+  /**
+   * Creates a view of the IDs accepted by the filter, which are published in the view as soon as
+   * they are published in this set. The view is completed or failed along with this set.
+   *
+   * @param filter the filter of the IDs
+   * @return the filtered view
+   */
+  public synchronized PagedClientCustomerIds filter(Predicate<Long> filter) {
+    Preconditions.checkNotNull(filter, "filter cannot be null.");
+    PagedClientCustomerIds view = new PagedClientCustomerIds();
+    view.publish(filter(ids, filter));
+    if (completed) {
+      view.complete();
+    } else if (failure != null) {
+      view.fail(failure);
+    } else {
+      views.add(view);
+      viewFilters.add(filter);
+    }
+    return view;
+  }
+
+  private static List<Long> filter(List<Long> clientCustomerIds, Predicate<Long> filter) {
+    List<Long> filteredIds = new ArrayList<Long>();
+    for (Long clientCustomerId : clientCustomerIds) {
+      if (filter.apply(clientCustomerId)) {
+        filteredIds.add(clientCustomerId);
+      }
+    }
+    return filteredIds;
+  }
+
+  /**
+   * Marks the retrieval as completed, no more IDs will be published.
+   */
+  public synchronized void complete() {
+    completed = true;
+    for (PagedClientCustomerIds view : views) {
+      view.complete();
+    }
+    notifyAll();
+  }
+
+  /**
+   * Marks the retrieval as failed, the IDs published so far are still returned by the iterators
+   * before they throw.
+   *
+   * @param cause the failure of the retrieval
+   */
+  public synchronized void fail(Throwable cause) {
+    if (!completed && failure == null) {
+      failure = Preconditions.checkNotNull(cause, "cause cannot be null.");
+      for (PagedClientCustomerIds view : views) {
+        view.fail(cause);
+      }
+      notifyAll();
+    }
+  }
+
+  /**
+   * @return whether all the IDs have been published
+   */
+  public synchronized boolean isCompleted() {
+    return completed;
+  }
+
+  /**
+   * @return the failure of the retrieval, or null if it did not fail (yet)
+   */
+  public synchronized Throwable getFailure() {
+    return failure;
+  }
+
+  /**
+   * @return the number of IDs published so far
+   */
+  public synchronized int getPublishedCount() {
+    return ids.size();
+  }
+
+  /**
+   * Waits until the retrieval is completed.
+   */
+  public synchronized void awaitCompletion() {
+    awaitPublished(Integer.MAX_VALUE);
+  }
+
+  /**
+   * Waits until more than {@code count} IDs are published or the retrieval is finished.
+   *
+   * @return whether more than {@code count} IDs are published
+   * @throws ClientCustomerIdsRetrievalException if the retrieval failed first
+   */
+  private synchronized boolean awaitPublished(int count) {
+    awaitPublishedOrFinished(count, Long.MAX_VALUE);
+    if (ids.size() > count) {
+      return true;
+    }
+    if (failure != null) {
+      throw new ClientCustomerIdsRetrievalException(
+          "Failed to retrieve client customer IDs.", failure);
+    }
+    return false;
+  }
+
+  /**
+   * Waits for at most {@code timeoutMillis} until more than {@code count} IDs are published or the
+   * retrieval is finished (completed or failed).
+   *
+   * @return whether more than {@code count} IDs are published or the retrieval is finished
+   */
+  private synchronized boolean awaitPublishedOrFinished(int count, long timeoutMillis) {
+    long startNanos = System.nanoTime();
+    long remainingMillis = timeoutMillis;
+    while (ids.size() <= count && !completed && failure == null && remainingMillis > 0) {
+      try {
+        wait(remainingMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new ClientCustomerIdsRetrievalException(
+            "Interrupted while retrieving client customer IDs.", e);
+      }
+      remainingMillis =
+          timeoutMillis - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+    return ids.size() > count || completed || failure != null;
+  }
+
+  private synchronized Long get(int index) {
+    return ids.get(index);
+  }
+
+  @Override
+  public PagedIterator iterator() {
+    return new PagedIterator() {
+      private int index;
+
+      @Override
+      public boolean awaitNext(long timeoutMillis) {
+        return awaitPublishedOrFinished(index, timeoutMillis);
+      }
+
+      @Override
+      public boolean hasNext() {
+        return awaitPublished(index);
+      }
+
+      @Override
+      public Long next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return get(index++);
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  @Override
+  public synchronized int size() {
+    awaitCompletion();
+    return ids.size();
+  }
+
+  @Override
+  public synchronized boolean contains(Object o) {
+    if (idsSet.contains(o)) {
+      return true;
+    }
+    awaitCompletion();
+    return idsSet.contains(o);
+  }
+}
@@ -0,0 +1,104 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Test case for the {@link AccountLeaseQueue} class, on an in-memory H2 database.
+ */
+@RunWith(JUnit4.class)
+public class AccountLeaseQueueTest {
+  private static final String TABLE = "ACCOUNT_LEASES";
+
+  private JdbcTemplate jdbcTemplate;
+
+  @Before
+  public void setUp() {
+    DriverManagerDataSource dataSource = new DriverManagerDataSource();
+    dataSource.setDriverClassName("org.h2.Driver");
+    dataSource.setUrl("jdbc:h2:mem:" + System.nanoTime() + ";DB_CLOSE_DELAY=-1");
+    jdbcTemplate = new JdbcTemplate(dataSource);
+  }
+
+  private AccountLeaseQueue newQueue(String workerId, int batchSize, long leaseMillis) {
+    AccountLeaseQueue queue =
+        new AccountLeaseQueue(jdbcTemplate, TABLE, "run1", workerId, batchSize, leaseMillis);
+    queue.createTableIfMissing();
+    return queue;
+  }
+
+  @Test
+  public void testWorkersClaimDisjointBatches() {
+    AccountLeaseQueue worker1 = newQueue("worker1", 3, 60000);
+    AccountLeaseQueue worker2 = newQueue("worker2", 3, 60000);
+
+    assertEquals("Verify the accounts are enqueued",
+        5, worker1.enqueue(Arrays.asList(1L, 2L, 3L, 4L, 5L)));
+    assertEquals("Verify the accounts already enqueued are ignored",
+        1, worker2.enqueue(Arrays.asList(4L, 5L, 6L)));
+
+    Set<Long> batch1 = worker1.claim();
+    Set<Long> batch2 = worker2.claim();
+    assertEquals("Verify the first batch is full", 3, batch1.size());
+    assertEquals("Verify the second batch is full", 3, batch2.size());
+    Set<Long> allIds = new HashSet<Long>(batch1);
+    allIds.addAll(batch2);
+    assertEquals("Verify the batches are disjoint", 6, allIds.size());
+    assertTrue("Verify nothing is left to claim", worker1.claim().isEmpty());
+
+    assertEquals("Verify the leases are renewed", 3, worker1.renewLeases());
+    worker1.complete(batch1);
+    worker2.complete(batch2);
+    assertEquals("Verify all accounts are done", 0, worker1.getRemainingCount());
+  }
+
+  @Test
+  public void testExpiredAndReleasedLeasesAreClaimedAgain() throws Exception {
+    AccountLeaseQueue crashed = newQueue("crashed", 10, 50);
+    AccountLeaseQueue worker = newQueue("worker", 10, 60000);
+    crashed.enqueue(Arrays.asList(1L, 2L));
+
+    assertEquals("Verify the crashed worker claims all accounts", 2, crashed.claim().size());
+    assertTrue("Verify the leased accounts are not claimed", worker.claim().isEmpty());
+    Thread.sleep(100);
+    Set<Long> batch = worker.claim();
+    assertEquals("Verify the expired leases are claimed",
+        new HashSet<Long>(Arrays.asList(1L, 2L)), batch);
+    assertEquals("Verify the lost leases are not completed",
+        0, crashed.complete(Arrays.asList(1L, 2L)));
+    assertEquals("Verify the lost leases remain", 2, worker.getRemainingCount());
+
+    worker.release(Collections.singleton(1L));
+    assertEquals("Verify the leased account is completed",
+        1, worker.complete(Collections.singleton(2L)));
+    assertEquals("Verify the released account is claimed again",
+        Collections.singleton(1L), newQueue("other", 10, 60000).claim());
+    assertEquals("Verify one account remains", 1, worker.getRemainingCount());
+  }
+}
@@ -0,0 +1,130 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anySetOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+import com.google.api.ads.adwords.awalerting.AlertAction;
+import com.google.api.ads.adwords.awalerting.report.UnmodifiableReportRow;
+import com.google.api.ads.adwords.awalerting.util.ConfigTags;
+import com.google.common.io.CharStreams;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * Test case for the {@link AlertCheckServer} class.
+ */
+@RunWith(JUnit4.class)
+public class AlertCheckServerTest {
+  private static final String ALERT_NAME = "Low CTR";
+
+  private AlertProcessor processor;
+  private AlertCheckServer server;
+
+  @Before
+  public void setUp() throws Exception {
+    JsonObject alertConfig = new JsonObject();
+    alertConfig.addProperty(ConfigTags.ALERT_NAME, ALERT_NAME);
+    JsonArray alerts = new JsonArray();
+    alerts.add(alertConfig);
+    JsonObject alertsConfig = new JsonObject();
+    alertsConfig.add(ConfigTags.ALERTS, alerts);
+
+    processor = mock(AlertProcessor.class);
+    server = new AlertCheckServer(processor, alertsConfig, new InetSocketAddress("localhost", 0));
+    server.start();
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+  }
+
+  @Test(timeout = 10000)
+  public void testCheckStreamsAlertEntries() throws Exception {
+    final Map<String, Integer> mapping = new HashMap<String, Integer>();
+    mapping.put("ExternalCustomerId", 0);
+    mapping.put(ConfigTags.ALERT_MESSAGE, 1);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        assertEquals("Verify the client customer IDs",
+            new LinkedHashSet<Long>(Arrays.asList(1234567890L, 42L)),
+            invocation.getArguments()[1]);
+        AlertAction action = (AlertAction) invocation.getArguments()[3];
+        action.initializeAction();
+        action.processReportEntry(
+            new UnmodifiableReportRow(Arrays.asList("1234567890", "Low CTR"), mapping));
+        action.finalizeAction();
+        return null;
+      }
+    }).when(processor).checkAlert(eq(ALERT_NAME), anySetOf(Long.class), any(JsonObject.class),
+        any(AlertAction.class));
+
+    HttpURLConnection connection =
+        open("/check?alert=Low%20CTR&clientCustomerIds=123-456-7890,42");
+    assertEquals("Verify the status", 200, connection.getResponseCode());
+    assertEquals("Verify the entries and the summary",
+        "{\"ExternalCustomerId\":\"1234567890\",\"AlertMessage\":\"Low CTR\"}\n"
+            + "{\"Entries\":1}\n",
+        read(connection.getInputStream()));
+  }
+
+  @Test(timeout = 10000)
+  public void testBadRequests() throws Exception {
+    assertEquals("Verify missing parameters are rejected",
+        400, open("/check?alert=Low%20CTR").getResponseCode());
+    assertEquals("Verify invalid IDs are rejected",
+        400, open("/check?alert=Low%20CTR&clientCustomerIds=abc").getResponseCode());
+    assertEquals("Verify unknown alerts are rejected",
+        404, open("/check?alert=Other&clientCustomerIds=1").getResponseCode());
+  }
+
+  private HttpURLConnection open(String path) throws IOException {
+    return (HttpURLConnection)
+        new URL("http://localhost:" + server.getPort() + path).openConnection();
+  }
+
+  private static String read(InputStream stream) throws IOException {
+    try (InputStreamReader reader = new InputStreamReader(stream, StandardCharsets.UTF_8)) {
+      return CharStreams.toString(reader);
+    }
+  }
+}
@@ -0,0 +1,207 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.api.ads.adwords.awalerting.AlertConfigLoadException;
+import com.google.api.ads.adwords.awalerting.util.ConfigTags;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import org.joda.time.DateTimeZone;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test case for the {@link AlertDaemon} class.
+ */
+@RunWith(JUnit4.class)
+public class AlertDaemonTest {
+  private static final String EVERY_MINUTE = "* * * * *";
+  private static final String ONCE_A_YEAR = "0 0 1 1 *";
+  private static final long MINUTE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+  // The alerts configs of the runs, in order.
+  private BlockingQueue<JsonObject> runs;
+  private AlertProcessor processor;
+  private AlertDaemon daemon;
+
+  @Before
+  public void setUp() {
+    runs = new LinkedBlockingQueue<JsonObject>();
+    processor = new AlertProcessor(1) {
+      @Override
+      public void generateAlerts(Set<Long> clientCustomerIds, JsonObject alertsConfig) {
+        runs.add(alertsConfig);
+      }
+    };
+  }
+
+  @After
+  public void tearDown() throws InterruptedException {
+    if (daemon != null) {
+      daemon.shutdown();
+      daemon.awaitTermination(10, TimeUnit.SECONDS);
+    }
+  }
+
+  @Test(timeout = 20000)
+  public void testRunsDueAlertsOnSchedule() throws Exception {
+    JsonObject alertsConfig = newAlertsConfig(newAlert("Minutely", EVERY_MINUTE),
+        newAlert("Yearly", ONCE_A_YEAR), newAlert("Manual", null));
+    startDaemon(alertsConfig, zoneWithMinuteStartingIn(500));
+
+    JsonObject run = runs.poll(10, TimeUnit.SECONDS);
+    assertNotNull("Verify the alert due is run", run);
+    assertEquals("Verify only the alert due is run", "[Minutely]", getAlertNames(run));
+    assertTrue("Verify the rest of the config is kept", run.has("Key"));
+    assertNull("Verify no other run before the next minute",
+        runs.poll(200, TimeUnit.MILLISECONDS));
+  }
+
+  @Test(timeout = 20000)
+  public void testReloadReschedulesAlerts() throws Exception {
+    DateTimeZone zone = zoneWithMinuteStartingIn(1000);
+    startDaemon(newAlertsConfig(newAlert("Yearly", ONCE_A_YEAR)), zone);
+
+    try {
+      daemon.updateAlertsConfig(newAlertsConfig(newAlert("Invalid", "60 * * * *")));
+      fail("Verify an invalid schedule is rejected");
+    } catch (AlertConfigLoadException e) {
+      // Expected.
+    }
+    try {
+      daemon.updateAlertsConfig(newAlertsConfig(newAlert("Manual", null)));
+      fail("Verify a config without schedules is rejected");
+    } catch (AlertConfigLoadException e) {
+      // Expected.
+    }
+    daemon.updateAlertsConfig(
+        newAlertsConfig(newAlert("Yearly", ONCE_A_YEAR), newAlert("Minutely", EVERY_MINUTE)));
+
+    JsonObject run = runs.poll(10, TimeUnit.SECONDS);
+    assertNotNull("Verify the reloaded alert is run", run);
+    assertEquals("Verify only the reloaded alert due is run", "[Minutely]", getAlertNames(run));
+  }
+
+  @Test(timeout = 20000)
+  public void testShutdownLetsCurrentRunFinish() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch finish = new CountDownLatch(1);
+    processor = new AlertProcessor(1) {
+      @Override
+      public void generateAlerts(Set<Long> clientCustomerIds, JsonObject alertsConfig) {
+        runs.add(alertsConfig);
+        started.countDown();
+        try {
+          finish.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+    startDaemon(newAlertsConfig(newAlert("Minutely", EVERY_MINUTE)), zoneWithMinuteStartingIn(500));
+
+    assertTrue("Verify the run started", started.await(10, TimeUnit.SECONDS));
+    daemon.shutdown();
+    assertFalse("Verify the daemon waits for the current run",
+        daemon.awaitTermination(200, TimeUnit.MILLISECONDS));
+
+    finish.countDown();
+    assertTrue("Verify the daemon stops after the run",
+        daemon.awaitTermination(10, TimeUnit.SECONDS));
+    assertEquals("Verify no run after the shutdown", 1, runs.size());
+  }
+
+  @Test(timeout = 20000)
+  public void testShutdownWhileWaiting() throws Exception {
+    startDaemon(newAlertsConfig(newAlert("Yearly", ONCE_A_YEAR)), DateTimeZone.UTC);
+
+    daemon.shutdown();
+    assertTrue("Verify the daemon stops without waiting for the next run",
+        daemon.awaitTermination(10, TimeUnit.SECONDS));
+    assertTrue("Verify no run", runs.isEmpty());
+  }
+
+  private void startDaemon(JsonObject alertsConfig, DateTimeZone zone)
+      throws AlertConfigLoadException {
+    daemon = new AlertDaemon(processor, alertsConfig, null, zone);
+    Thread daemonThread = new Thread("alert-daemon-test") {
+      @Override
+      public void run() {
+        daemon.run();
+      }
+    };
+    daemonThread.setDaemon(true);
+    daemonThread.start();
+  }
+
+  /**
+   * Returns a time zone in which the next minute starts in the given time, so that the alerts
+   * scheduled every minute are soon due.
+   */
+  private static DateTimeZone zoneWithMinuteStartingIn(long delayMillis) {
+    long now = System.currentTimeMillis();
+    long offsetMillis = (2 * MINUTE_MILLIS - delayMillis - now % MINUTE_MILLIS) % MINUTE_MILLIS;
+    return DateTimeZone.forOffsetMillis((int) offsetMillis);
+  }
+
+  private static JsonObject newAlert(String alertName, String schedule) {
+    JsonObject alert = new JsonObject();
+    alert.addProperty(ConfigTags.ALERT_NAME, alertName);
+    if (schedule != null) {
+      alert.addProperty(ConfigTags.SCHEDULE, schedule);
+    }
+    return alert;
+  }
+
+  private static JsonObject newAlertsConfig(JsonObject... alerts) {
+    JsonArray alertsArray = new JsonArray();
+    for (JsonObject alert : alerts) {
+      alertsArray.add(alert);
+    }
+    JsonObject alertsConfig = new JsonObject();
+    alertsConfig.addProperty("Key", "Value");
+    alertsConfig.add(ConfigTags.ALERTS, alertsArray);
+    return alertsConfig;
+  }
+
+  private static String getAlertNames(JsonObject alertsConfig) {
+    StringBuilder names = new StringBuilder("[");
+    for (int i = 0; i < alertsConfig.getAsJsonArray(ConfigTags.ALERTS).size(); i++) {
+      if (i > 0) {
+        names.append(", ");
+      }
+      names.append(alertsConfig.getAsJsonArray(ConfigTags.ALERTS).get(i).getAsJsonObject()
+          .get(ConfigTags.ALERT_NAME).getAsString());
+    }
+    return names.append("]").toString();
+  }
+}
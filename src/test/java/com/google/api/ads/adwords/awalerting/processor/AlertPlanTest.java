@@ -0,0 +1,162 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.api.ads.adwords.awalerting.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.api.ads.adwords.awalerting.AlertConfigLoadException;
+import com.google.api.ads.adwords.awalerting.util.ConfigTags;
+import com.google.api.ads.adwords.awalerting.util.TestEntitiesGenerator;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test case for the {@link AlertPlan} class.
+ */
+@RunWith(JUnit4.class)
+public class AlertPlanTest {
+
+  private static JsonObject getAlertConfig(String alertName, String alertMessage) {
+    JsonObject ruleConfig = new JsonObject();
+    ruleConfig.addProperty(ConfigTags.CLASS_NAME, "AddAccountManager");
+    JsonArray rules = new JsonArray();
+    rules.add(ruleConfig);
+    JsonObject actionConfig = new JsonObject();
+    actionConfig.addProperty(ConfigTags.CLASS_NAME, "NoOpAlertAction");
+    JsonArray actions = new JsonArray();
+    actions.add(actionConfig);
+
+    JsonObject alertConfig = new JsonObject();
+    alertConfig.addProperty(ConfigTags.ALERT_NAME, alertName);
+    alertConfig.add(
+        ConfigTags.REPORT_DOWNLOADER, TestEntitiesGenerator.getTestReportDownloaderConfig());
+    alertConfig.add(ConfigTags.RULES, rules);
+    if (alertMessage != null) {
+      alertConfig.addProperty(ConfigTags.ALERT_MESSAGE, alertMessage);
+    }
+    alertConfig.add(ConfigTags.ACTIONS, actions);
+    return alertConfig;
+  }
+
+  private static JsonObject getAlertsConfig(JsonObject... alertConfigs) {
+    JsonArray alerts = new JsonArray();
+    for (JsonObject alertConfig : alertConfigs) {
+      alerts.add(alertConfig);
+    }
+    JsonObject alertsConfig = new JsonObject();
+    alertsConfig.add(ConfigTags.ALERTS, alerts);
+    return alertsConfig;
+  }
+
+  /**
+   * Tests that the sample alerts config compiles, with its placeholders resolved.
+   */
+  @Test
+  public void testCompileSampleConfig() throws AlertConfigLoadException, IOException {
+    JsonObject alertsConfig;
+    try (Reader reader = new InputStreamReader(
+        AlertPlanTest.class.getResourceAsStream("/aw-alerting-alerts-sample.json"),
+        StandardCharsets.UTF_8)) {
+      alertsConfig = new JsonParser().parse(reader).getAsJsonObject();
+    }
+
+    AlertPlan plan = AlertPlan.compile(alertsConfig);
+
+    assertEquals("Verify the alerts count", 3, plan.getAlerts().size());
+    AlertPlan.PlannedAlert alert = plan.getAlerts().get(1);
+    assertEquals("Verify the report type", "CAMPAIGN_PERFORMANCE_REPORT", alert.getReportType());
+    assertEquals("Verify the placeholders",
+        Arrays.asList("CampaignName", "CampaignId", "Impressions"), alert.getPlaceholders());
+    assertEquals("Verify the execution mode", ExecutionMode.BATCH, alert.getExecutionMode());
+  }
+
+  /**
+   * Tests that all the mistakes of the alerts config are reported at once.
+   */
+  @Test
+  public void testCompileReportsAllErrors() {
+    try {
+      AlertPlan.compile(getAlertsConfig(
+          getAlertConfig("Valid", "{AccountDescriptiveName} by {AccountManagerName}"),
+          getAlertConfig("No message", null),
+          getAlertConfig("Unknown placeholder", "{Clicks}"),
+          getAlertConfig("Valid", "Duplicate name")));
+      fail("Verify the invalid alerts config is rejected");
+    } catch (AlertConfigLoadException e) {
+      String message = e.getMessage();
+      assertTrue("Verify the missing message is reported", message.contains("\"No message\""));
+      assertTrue("Verify the unknown placeholder is reported", message.contains("[Clicks]"));
+      assertTrue("Verify the duplicate name is reported", message.contains("duplicate name"));
+      assertFalse("Verify the valid alert is not reported", message.contains("Alert #1"));
+    }
+  }
+
+  /**
+   * Tests that the plan explains the queries shared by several alerts.
+   */
+  @Test
+  public void testExplain() throws AlertConfigLoadException {
+    AlertPlan plan = AlertPlan.compile(getAlertsConfig(
+        getAlertConfig("First", "{Cost}"),
+        getAlertConfig("Second", "{AccountManagerEmail}")));
+
+    String explanation = plan.explain(10);
+    assertTrue("Verify the shared query", explanation.contains("Shared by alerts #1, #2"));
+    assertTrue("Verify the downloads count",
+        explanation.contains("up to 10 report downloads for 10 accounts"));
+  }
+
+  /**
+   * Tests that the alerts of higher priority come first, and keep their order otherwise.
+   */
+  @Test
+  public void testAlertsByPriority() throws AlertConfigLoadException {
+    JsonObject urgentAlertConfig = getAlertConfig("Urgent", "{Cost}");
+    urgentAlertConfig.addProperty(ConfigTags.PRIORITY, 10);
+    JsonObject backgroundAlertConfig = getAlertConfig("Background", "{Cost}");
+    backgroundAlertConfig.addProperty(ConfigTags.PRIORITY, -1);
+    AlertPlan plan = AlertPlan.compile(getAlertsConfig(
+        backgroundAlertConfig,
+        getAlertConfig("First", "{Cost}"),
+        urgentAlertConfig,
+        getAlertConfig("Second", "{Cost}")));
+
+    List<String> names = new ArrayList<String>();
+    for (AlertPlan.PlannedAlert alert : plan.getAlertsByPriority()) {
+      names.add(alert.getName());
+    }
+    assertEquals("Verify the alerts by priority",
+        Arrays.asList("Urgent", "First", "Second", "Background"), names);
+    assertEquals("Verify the order of the config is kept", "Background",
+        plan.getAlerts().get(0).getName());
+  }
+}
@@ -14,9 +14,12 @@
 
 package com.google.api.ads.adwords.awalerting.processor;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
+import com.google.api.ads.adwords.awalerting.AlertAction;
 import com.google.api.ads.adwords.awalerting.authentication.Authenticator;
 import com.google.api.ads.adwords.awalerting.report.ReportData;
 import com.google.api.ads.adwords.awalerting.util.ConfigTags;
@@ -24,6 +27,7 @@ import com.google.api.ads.adwords.awalerting.util.TestEntitiesGenerator;
 import com.google.api.ads.adwords.lib.client.AdWordsSession.ImmutableAdWordsSession;
 import com.google.api.ads.common.lib.exception.OAuthException;
 import com.google.api.ads.common.lib.exception.ValidationException;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
@@ -40,9 +44,16 @@ import org.mockito.MockitoAnnotations;
 import org.mockito.Spy;
 
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Test case for the {@link AlertProcessor} class.
@@ -104,4 +115,112 @@ public class AlertProcessorTest {
         Mockito.anyString(),
         Mockito.<JsonArray>anyObject());
   }
+
+  @Test(timeout = 10000)
+  public void testGenerateAlertsConcurrently() throws Exception {
+    // Three alerts, the last one in the config with the highest priority.
+    JsonObject alertsConfig;
+    InputStreamReader alertsConfigReader =
+        new InputStreamReader(TestEntitiesGenerator.getTestAlertsConfigStream());
+    try {
+      alertsConfig = new JsonParser().parse(alertsConfigReader).getAsJsonObject();
+    } finally {
+      alertsConfigReader.close();
+    }
+    JsonArray alerts = alertsConfig.getAsJsonArray(ConfigTags.ALERTS);
+    JsonObject thirdAlert =
+        new JsonParser().parse(alerts.get(0).toString()).getAsJsonObject();
+    thirdAlert.addProperty(ConfigTags.ALERT_NAME, "Alert #3");
+    alerts.add(thirdAlert);
+    alerts.get(1).getAsJsonObject().addProperty(ConfigTags.PRIORITY, 5);
+    thirdAlert.addProperty(ConfigTags.PRIORITY, 10);
+
+    // Each alert waits for a second one to be processed at the same time. Not a Mockito stub, as
+    // stubbed answers are not run concurrently.
+    final CountDownLatch bothStarted = new CountDownLatch(2);
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger maxRunning = new AtomicInteger();
+    final List<String> started = Collections.synchronizedList(new ArrayList<String>());
+    alertProcessor = new AlertProcessor(10) {
+      @Override
+      protected void processAlert(Set<Long> clientCustomerIds,
+          ImmutableAdWordsSession protoSession, JsonObject alertConfig, int count) {
+        started.add(alertConfig.get(ConfigTags.ALERT_NAME).getAsString());
+        int nowRunning = running.incrementAndGet();
+        synchronized (maxRunning) {
+          maxRunning.set(Math.max(maxRunning.get(), nowRunning));
+        }
+        bothStarted.countDown();
+        Uninterruptibles.awaitUninterruptibly(bothStarted, 5, TimeUnit.SECONDS);
+        running.decrementAndGet();
+      }
+    };
+    ProcessorExecutors executors = new ProcessorExecutors(4, null, null, null, 2);
+    alertProcessor.setAlertsConcurrency(2);
+    alertProcessor.setAuthentication(authenticator);
+    alertProcessor.setProcessorExecutors(executors);
+
+    try {
+      alertProcessor.generateAlerts(new HashSet<Long>(), alertsConfig);
+    } finally {
+      executors.destroy();
+    }
+
+    assertEquals("Verify all the alerts are processed", 3, started.size());
+    assertEquals("Verify two alerts are processed at the same time", 2, maxRunning.get());
+    assertEquals("Verify the two highest priority alerts start first",
+        new HashSet<String>(Arrays.asList("Alert #3", "Alert #2")),
+        new HashSet<String>(started.subList(0, 2)));
+    assertEquals("Verify the lowest priority alert starts last", "Alert #1", started.get(2));
+  }
+
+  @Test(timeout = 10000)
+  public void testCheckAlertDoesNotWaitForRun() throws Exception {
+    InputStreamReader alertsConfigReader =
+        new InputStreamReader(TestEntitiesGenerator.getTestAlertsConfigStream());
+    final JsonObject alertsConfig;
+    try {
+      alertsConfig = new JsonParser().parse(alertsConfigReader).getAsJsonObject();
+    } finally {
+      alertsConfigReader.close();
+    }
+
+    // The run is held while counting its accounts, until the check is done.
+    final CountDownLatch runStarted = new CountDownLatch(1);
+    final CountDownLatch checkDone = new CountDownLatch(1);
+    final Set<Long> heldAccounts = new HashSet<Long>() {
+      @Override
+      public int size() {
+        runStarted.countDown();
+        try {
+          checkDone.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return super.size();
+      }
+    };
+    final AtomicReference<Exception> runFailure = new AtomicReference<Exception>();
+    Thread runThread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          alertProcessor.generateAlerts(heldAccounts, alertsConfig);
+        } catch (Exception e) {
+          runFailure.set(e);
+        }
+      }
+    };
+
+    runThread.start();
+    runStarted.await();
+    String alertName = alertsConfig.getAsJsonArray(ConfigTags.ALERTS).get(0).getAsJsonObject()
+        .get(ConfigTags.ALERT_NAME).getAsString();
+    alertProcessor.checkAlert(alertName, new HashSet<Long>(), alertsConfig,
+        Mockito.mock(AlertAction.class));
+    checkDone.countDown();
+    runThread.join();
+
+    assertNull("Verify the run succeeds", runFailure.get());
+  }
 }
@@ -0,0 +1,143 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.api.ads.adwords.awalerting.util.PagedClientCustomerIds;
+import com.google.api.ads.adwords.lib.client.AdWordsSession;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test case for the {@link ClientCustomerIdsRetriever} class.
+ */
+@RunWith(JUnit4.class)
+public class ClientCustomerIdsRetrieverTest {
+
+  private static final String MANAGER_CUSTOMER_ID = "123-456-7890";
+  private static final long ONE_HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+  private static final long ONE_DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private Path file;
+  private AdWordsSession session;
+  private int retrievals;
+
+  @Before
+  public void setUp() {
+    file = temporaryFolder.getRoot().toPath().resolve("accounts.json");
+    session = mock(AdWordsSession.class);
+    when(session.getClientCustomerId()).thenReturn(MANAGER_CUSTOMER_ID);
+    retrievals = 0;
+  }
+
+  @Test
+  public void testRetrievesOnceAndPersists() throws Exception {
+    Set<Long> clientCustomerIds =
+        newRetriever(ONE_HOUR_MILLIS, ONE_DAY_MILLIS).getClientCustomerIds(session);
+    assertEquals("Verify the accounts are retrieved", 1, retrievals);
+    assertEquals("Verify the client customer IDs",
+        new LinkedHashSet<Long>(Arrays.asList(1L, 2L)), clientCustomerIds);
+
+    assertEquals("Verify the client customer IDs are loaded from the snapshot",
+        clientCustomerIds,
+        newRetriever(ONE_HOUR_MILLIS, ONE_DAY_MILLIS).getClientCustomerIds(session));
+    assertEquals("Verify no retrieval with a recent snapshot", 1, retrievals);
+  }
+
+  @Test
+  public void testStaleSnapshotRefreshedInBackground() throws Exception {
+    writeSnapshot(MANAGER_CUSTOMER_ID, System.currentTimeMillis() - 2 * ONE_HOUR_MILLIS, 7L);
+    ClientCustomerIdsRetriever retriever = newRetriever(ONE_HOUR_MILLIS, ONE_DAY_MILLIS);
+
+    assertEquals("Verify the stale snapshot is used",
+        Collections.singleton(7L), retriever.getClientCustomerIds(session));
+    assertEquals("Verify the stale snapshot is refreshed", 1, retrievals);
+    assertEquals("Verify the refreshed snapshot is used",
+        new LinkedHashSet<Long>(Arrays.asList(1L, 2L)), retriever.getClientCustomerIds(session));
+  }
+
+  @Test
+  public void testExpiredOrForeignSnapshotIgnored() throws Exception {
+    writeSnapshot(MANAGER_CUSTOMER_ID, System.currentTimeMillis() - 2 * ONE_DAY_MILLIS, 7L);
+    newRetriever(ONE_HOUR_MILLIS, ONE_DAY_MILLIS).getClientCustomerIds(session);
+    assertEquals("Verify an expired snapshot is ignored", 1, retrievals);
+
+    writeSnapshot("098-765-4321", System.currentTimeMillis(), 7L);
+    newRetriever(ONE_HOUR_MILLIS, ONE_DAY_MILLIS).getClientCustomerIds(session);
+    assertEquals("Verify a snapshot of another manager is ignored", 2, retrievals);
+
+    Files.write(file, Collections.singletonList("{not json"), StandardCharsets.UTF_8);
+    newRetriever(ONE_HOUR_MILLIS, ONE_DAY_MILLIS).getClientCustomerIds(session);
+    assertEquals("Verify an invalid snapshot is ignored", 3, retrievals);
+  }
+
+  @Test
+  public void testLatestIdsKeptInMemory() throws Exception {
+    file = null;
+    ClientCustomerIdsRetriever retriever = newRetriever(ONE_HOUR_MILLIS, ONE_DAY_MILLIS);
+    retriever.getClientCustomerIds(session);
+    assertEquals("Verify the client customer IDs are reused without a snapshot file",
+        new LinkedHashSet<Long>(Arrays.asList(1L, 2L)), retriever.getClientCustomerIds(session));
+    assertEquals("Verify the accounts are retrieved once", 1, retrievals);
+
+    retriever = newRetriever(0, 0);
+    retriever.getClientCustomerIds(session);
+    retriever.getClientCustomerIds(session);
+    assertEquals("Verify expired client customer IDs are retrieved again", 3, retrievals);
+  }
+
+  private ClientCustomerIdsRetriever newRetriever(long refreshAfterMillis, long maxAgeMillis) {
+    return new ClientCustomerIdsRetriever(MoreExecutors.directExecutor(), file,
+        refreshAfterMillis, maxAgeMillis, MoreExecutors.directExecutor()) {
+      @Override
+      protected void retrieveClientCustomerIds(AdWordsSession session, Executor executor,
+          PagedClientCustomerIds clientCustomerIds) {
+        retrievals++;
+        clientCustomerIds.publish(Arrays.asList(1L, 2L));
+        clientCustomerIds.complete();
+      }
+    };
+  }
+
+  private void writeSnapshot(String managerCustomerId, long createdAtMillis, long clientCustomerId)
+      throws Exception {
+    String json = String.format(
+        "{\"ManagerCustomerId\":\"%s\",\"CreatedAt\":%d,\"ClientCustomerIds\":[%d]}",
+        managerCustomerId, createdAtMillis, clientCustomerId);
+    Files.write(file, Collections.singletonList(json), StandardCharsets.UTF_8);
+  }
+}
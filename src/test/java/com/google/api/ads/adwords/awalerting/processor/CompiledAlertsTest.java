@@ -0,0 +1,127 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.api.ads.adwords.awalerting.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import com.google.api.ads.adwords.awalerting.AlertConfigLoadException;
+import com.google.api.ads.adwords.awalerting.util.ConfigTags;
+import com.google.api.ads.adwords.awalerting.util.TestEntitiesGenerator;
+import com.google.common.collect.ImmutableSet;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Test case for the {@link CompiledAlerts} class.
+ */
+@RunWith(JUnit4.class)
+public class CompiledAlertsTest {
+
+  private static JsonObject getAlertConfig(String alertName, String ruleClassName) {
+    JsonObject ruleConfig = new JsonObject();
+    ruleConfig.addProperty(ConfigTags.CLASS_NAME, ruleClassName);
+    JsonArray rules = new JsonArray();
+    rules.add(ruleConfig);
+
+    JsonObject downloaderConfig = new JsonObject();
+    downloaderConfig.addProperty(ConfigTags.CLASS_NAME, "NoOpAlertReportDownloader");
+
+    JsonObject alertConfig = new JsonObject();
+    alertConfig.addProperty(ConfigTags.ALERT_NAME, alertName);
+    alertConfig.add(ConfigTags.REPORT_DOWNLOADER, downloaderConfig);
+    alertConfig.add(ConfigTags.RULES, rules);
+    return alertConfig;
+  }
+
+  private static JsonObject getAlertsConfig(JsonObject... alertConfigs) {
+    JsonArray alerts = new JsonArray();
+    for (JsonObject alertConfig : alertConfigs) {
+      alerts.add(alertConfig);
+    }
+    JsonObject alertsConfig = new JsonObject();
+    alertsConfig.add(ConfigTags.ALERTS, alerts);
+    return alertsConfig;
+  }
+
+  /**
+   * Tests that a reload only compiles the new and changed alerts again.
+   */
+  @Test
+  public void testUpdate() throws AlertConfigLoadException {
+    CompiledAlerts compiledAlerts = new CompiledAlerts();
+    compiledAlerts.update(getAlertsConfig(
+        getAlertConfig("Unchanged", "NoOpAlertRule"),
+        getAlertConfig("Changed", "NoOpAlertRule"),
+        getAlertConfig("Removed", "NoOpAlertRule")));
+    CompiledAlerts.CompiledAlert unchanged =
+        compiledAlerts.get(getAlertConfig("Unchanged", "NoOpAlertRule"));
+    CompiledAlerts.CompiledAlert changed =
+        compiledAlerts.get(getAlertConfig("Changed", "NoOpAlertRule"));
+
+    compiledAlerts.update(getAlertsConfig(
+        getAlertConfig("Unchanged", "NoOpAlertRule"),
+        getAlertConfig("Changed", "ConvertMoneyValue"),
+        getAlertConfig("Added", "NoOpAlertRule")));
+
+    assertEquals("Verify the removed alert is dropped",
+        ImmutableSet.of("Unchanged", "Changed", "Added"), compiledAlerts.getAlertNames());
+    CompiledAlerts.CompiledAlert reloadedUnchanged =
+        compiledAlerts.get(getAlertConfig("Unchanged", "NoOpAlertRule"));
+    assertNotNull("Verify the report downloader is kept", unchanged.getReportDownloader());
+    assertSame("Verify the unchanged alert keeps its report downloader",
+        unchanged.getReportDownloader(), reloadedUnchanged.getReportDownloader());
+    assertSame("Verify the unchanged alert keeps its rules",
+        unchanged.getRules().get(0), reloadedUnchanged.getRules().get(0));
+    assertNotSame("Verify the changed alert is compiled again",
+        changed, compiledAlerts.get(getAlertConfig("Changed", "ConvertMoneyValue")));
+  }
+
+  /**
+   * Tests that an alert run with a config different from the compiled one is compiled again.
+   */
+  @Test
+  public void testGetChangedConfig() throws AlertConfigLoadException {
+    CompiledAlerts compiledAlerts = new CompiledAlerts();
+    CompiledAlerts.CompiledAlert compiled =
+        compiledAlerts.get(getAlertConfig("Alert", "NoOpAlertRule"));
+
+    assertSame("Verify the same config reuses the compiled alert",
+        compiled, compiledAlerts.get(getAlertConfig("Alert", "NoOpAlertRule")));
+    assertNotSame("Verify a changed config is compiled again",
+        compiled, compiledAlerts.get(getAlertConfig("Alert", "ConvertMoneyValue")));
+  }
+
+  /**
+   * Tests that the report downloaders holding the download context of a run are not kept.
+   */
+  @Test
+  public void testContextAwareDownloaderIsNotKept() throws AlertConfigLoadException {
+    JsonObject alertConfig = getAlertConfig("Alert", "NoOpAlertRule");
+    alertConfig.add(
+        ConfigTags.REPORT_DOWNLOADER, TestEntitiesGenerator.getTestReportDownloaderConfig());
+
+    assertNull("Verify the AWQL report downloader is constructed for each run",
+        new CompiledAlerts().get(alertConfig).getReportDownloader());
+  }
+}
@@ -0,0 +1,262 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.api.ads.adwords.awalerting.AlertAction;
+import com.google.api.ads.adwords.awalerting.AlertConfigLoadException;
+import com.google.api.ads.adwords.awalerting.AlertProcessingException;
+import com.google.api.ads.adwords.awalerting.report.ReportData;
+import com.google.api.ads.adwords.awalerting.report.ReportDataSink;
+import com.google.api.ads.adwords.awalerting.report.UnmodifiableReportRow;
+import com.google.api.ads.adwords.awalerting.util.ConfigTags;
+import com.google.api.ads.adwords.awalerting.util.TestEntitiesGenerator;
+import com.google.api.ads.adwords.lib.client.AdWordsSession.ImmutableAdWordsSession;
+import com.google.api.ads.common.lib.exception.ValidationException;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test case for the {@link PipelinedAlertProcessor} class.
+ */
+@RunWith(JUnit4.class)
+public class PipelinedAlertProcessorTest {
+
+  private static final int NUMBER_OF_REPORTS = 30;
+  private static final int MAX_IN_FLIGHT_REPORTS = 2;
+
+  private AlertReportDownloaderProcessor downloaderProcessor;
+  private AlertRulesProcessor rulesProcessor;
+  private int rowsPerReport;
+  private AtomicInteger processedEntries;
+  private AtomicInteger maxReportsInFlight;
+
+  @Before
+  public void setUp() throws AlertConfigLoadException {
+    rowsPerReport = TestEntitiesGenerator.getTestReportDataRows();
+    processedEntries = new AtomicInteger();
+    maxReportsInFlight = new AtomicInteger();
+
+    // Create a test downloader processor that streams test reports. After each hand over, the
+    // reports not fully processed yet are an upper bound of the reports held by the pipeline.
+    JsonObject downloaderConfig = new JsonObject();
+    downloaderConfig.addProperty(ConfigTags.CLASS_NAME, "NoOpAlertReportDownloader");
+    downloaderProcessor = new AlertReportDownloaderProcessor(downloaderConfig) {
+      @Override
+      public void downloadReports(
+          ImmutableAdWordsSession protoSession, Set<Long> clientCustomerIds, ReportDataSink sink)
+          throws AlertProcessingException {
+        try {
+          for (int i = 1; i <= NUMBER_OF_REPORTS; i++) {
+            sink.accept(TestEntitiesGenerator.getTestReportData());
+            int inFlight = i - processedEntries.get() / rowsPerReport;
+            if (inFlight > maxReportsInFlight.get()) {
+              maxReportsInFlight.set(inFlight);
+            }
+          }
+        } catch (IOException | InterruptedException e) {
+          throw new AlertProcessingException("Failed to stream test reports.", e);
+        }
+      }
+    };
+
+    rulesProcessor =
+        new AlertRulesProcessor(null, TestEntitiesGenerator.getTestAlertMessageTemplate(), 2);
+  }
+
+  @Test
+  public void testProcessReports()
+      throws AlertProcessingException, ValidationException {
+    RecordingAlertAction action1 = new RecordingAlertAction(false);
+    RecordingAlertAction action2 = new RecordingAlertAction(false);
+
+    PipelinedAlertProcessor processor = new PipelinedAlertProcessor(downloaderProcessor,
+        rulesProcessor, getActionsProcessor(action1, action2), 4, MAX_IN_FLIGHT_REPORTS);
+    processor.processReports(TestEntitiesGenerator.getTestAdWordsSession(), null);
+
+    int expectedEntries = NUMBER_OF_REPORTS * rowsPerReport;
+    for (RecordingAlertAction action : new RecordingAlertAction[] {action1, action2}) {
+      assertEquals("Verify the action is initialized first", "init", action.events.get(0));
+      assertEquals("Verify the action is finalized last",
+          "finalize", action.events.get(action.events.size() - 1));
+      assertEquals("Verify all report entries are processed",
+          expectedEntries + 2, action.events.size());
+      assertEquals("Verify the action is never run concurrently", 1, action.maxConcurrency);
+    }
+  }
+
+  @Test
+  public void testInFlightReportsAreBounded()
+      throws AlertProcessingException, ValidationException {
+    RecordingAlertAction action = new RecordingAlertAction(false);
+
+    PipelinedAlertProcessor processor = new PipelinedAlertProcessor(downloaderProcessor,
+        rulesProcessor, getActionsProcessor(action), 4, MAX_IN_FLIGHT_REPORTS);
+    processor.processReports(TestEntitiesGenerator.getTestAdWordsSession(), null);
+
+    assertTrue("Verify the number of reports in flight is bounded",
+        maxReportsInFlight.get() <= MAX_IN_FLIGHT_REPORTS);
+  }
+
+  @Test
+  public void testFailedActionDoesNotBlockOthers()
+      throws AlertProcessingException, ValidationException {
+    RecordingAlertAction failingAction = new RecordingAlertAction(true);
+    RecordingAlertAction action = new RecordingAlertAction(false);
+
+    PipelinedAlertProcessor processor = new PipelinedAlertProcessor(downloaderProcessor,
+        rulesProcessor, getActionsProcessor(failingAction, action), 4, MAX_IN_FLIGHT_REPORTS);
+    processor.processReports(TestEntitiesGenerator.getTestAdWordsSession(), null);
+
+    assertEquals("Verify the failing action stops after its first entry",
+        2, failingAction.events.size());
+    assertEquals("Verify the other action processes all report entries",
+        NUMBER_OF_REPORTS * rowsPerReport + 2,
+        action.events.size());
+  }
+
+  @Test(timeout = 10000)
+  public void testRulesErrorReleasesReports()
+      throws AlertProcessingException, ValidationException {
+    RecordingAlertAction action = new RecordingAlertAction(false);
+    AlertRulesProcessor failingRulesProcessor =
+        new AlertRulesProcessor(null, TestEntitiesGenerator.getTestAlertMessageTemplate(), 2) {
+          @Override
+          RunnableAlertRulesProcessor newRunnableAlertRulesProcessor(ReportData report) {
+            throw new AssertionError("Test failure.");
+          }
+        };
+
+    PipelinedAlertProcessor processor = new PipelinedAlertProcessor(downloaderProcessor,
+        failingRulesProcessor, getActionsProcessor(action), 4, MAX_IN_FLIGHT_REPORTS);
+    processor.processReports(TestEntitiesGenerator.getTestAdWordsSession(), null);
+
+    assertEquals("Verify the reports are skipped but the action is finalized",
+        Arrays.asList("init", "finalize"), action.events);
+  }
+
+  @Test
+  public void testDownloadFailureFinalizesActions()
+      throws AlertConfigLoadException, ValidationException {
+    final AlertProcessingException failure =
+        new AlertProcessingException("Test failure.", null);
+    JsonObject downloaderConfig = new JsonObject();
+    downloaderConfig.addProperty(ConfigTags.CLASS_NAME, "NoOpAlertReportDownloader");
+    AlertReportDownloaderProcessor failingDownloaderProcessor =
+        new AlertReportDownloaderProcessor(downloaderConfig) {
+          @Override
+          public void downloadReports(ImmutableAdWordsSession protoSession,
+              Set<Long> clientCustomerIds, ReportDataSink sink) throws AlertProcessingException {
+            try {
+              sink.accept(TestEntitiesGenerator.getTestReportData());
+            } catch (IOException | InterruptedException e) {
+              throw new AlertProcessingException("Failed to stream test reports.", e);
+            }
+            throw failure;
+          }
+        };
+    RecordingAlertAction action = new RecordingAlertAction(false);
+
+    PipelinedAlertProcessor processor = new PipelinedAlertProcessor(failingDownloaderProcessor,
+        rulesProcessor, getActionsProcessor(action), 4, MAX_IN_FLIGHT_REPORTS);
+    try {
+      processor.processReports(TestEntitiesGenerator.getTestAdWordsSession(), null);
+      fail("Verify the download failure is thrown");
+    } catch (AlertProcessingException e) {
+      assertSame("Verify the download failure", failure, e);
+    }
+
+    assertEquals("Verify the action is finalized", "finalize",
+        action.events.get(action.events.size() - 1));
+    assertEquals("Verify the downloaded report is processed",
+        rowsPerReport + 2, action.events.size());
+  }
+
+  /**
+   * Creates an actions processor holding the given actions.
+   */
+  private AlertActionsProcessor getActionsProcessor(final AlertAction... actions) {
+    JsonObject actionConfig = new JsonObject();
+    actionConfig.addProperty(ConfigTags.CLASS_NAME, "NoOpAlertAction");
+    JsonArray configs = new JsonArray();
+    for (int i = 0; i < actions.length; i++) {
+      configs.add(actionConfig);
+    }
+
+    final AtomicInteger index = new AtomicInteger();
+    return new AlertActionsProcessor(configs, 1) {
+      @Override
+      protected AlertAction getActionObject(JsonObject config) {
+        return actions[index.getAndIncrement()];
+      }
+    };
+  }
+
+  /**
+   * Alert action that records the calls it receives, and checks they never overlap.
+   */
+  private class RecordingAlertAction implements AlertAction {
+    private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+    private final AtomicInteger concurrency = new AtomicInteger();
+    private final boolean failOnEntry;
+    private volatile int maxConcurrency;
+
+    RecordingAlertAction(boolean failOnEntry) {
+      this.failOnEntry = failOnEntry;
+    }
+
+    @Override
+    public void initializeAction() throws AlertProcessingException {
+      events.add("init");
+    }
+
+    @Override
+    public void processReportEntry(UnmodifiableReportRow entry) throws AlertProcessingException {
+      int current = concurrency.incrementAndGet();
+      maxConcurrency = Math.max(maxConcurrency, current);
+      try {
+        events.add("entry");
+        if (failOnEntry) {
+          throw new AlertProcessingException("Test failure.", null);
+        }
+        processedEntries.incrementAndGet();
+      } finally {
+        concurrency.decrementAndGet();
+      }
+    }
+
+    @Override
+    public void finalizeAction() throws AlertProcessingException {
+      events.add("finalize");
+    }
+  }
+}
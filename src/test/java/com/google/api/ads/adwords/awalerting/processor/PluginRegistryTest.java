@@ -0,0 +1,110 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.api.ads.adwords.awalerting.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.api.ads.adwords.awalerting.AlertAction;
+import com.google.api.ads.adwords.awalerting.AlertConfigLoadException;
+import com.google.api.ads.adwords.awalerting.AlertRule;
+import com.google.api.ads.adwords.awalerting.sampleimpl.downloader.NoOpAlertReportDownloader;
+import com.google.api.ads.adwords.awalerting.sampleimpl.rule.NoOpAlertRule;
+import com.google.api.ads.adwords.awalerting.util.ConfigTags;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Test case for the {@link PluginRegistry} class.
+ */
+@RunWith(JUnit4.class)
+public class PluginRegistryTest {
+
+  private static JsonObject getPluginConfig(String className) {
+    JsonObject config = new JsonObject();
+    config.addProperty(ConfigTags.CLASS_NAME, className);
+    return config;
+  }
+
+  private static JsonObject getAlertsConfig(
+      String downloaderClassName, String ruleClassName, String actionClassName) {
+    JsonArray rules = new JsonArray();
+    rules.add(getPluginConfig(ruleClassName));
+    JsonArray actions = new JsonArray();
+    actions.add(getPluginConfig(actionClassName));
+
+    JsonObject alertConfig = new JsonObject();
+    alertConfig.addProperty(ConfigTags.ALERT_NAME, "Alert");
+    alertConfig.add(ConfigTags.REPORT_DOWNLOADER, getPluginConfig(downloaderClassName));
+    alertConfig.add(ConfigTags.RULES, rules);
+    alertConfig.add(ConfigTags.ACTIONS, actions);
+
+    JsonArray alerts = new JsonArray();
+    alerts.add(alertConfig);
+    JsonObject alertsConfig = new JsonObject();
+    alertsConfig.add(ConfigTags.ALERTS, alerts);
+    return alertsConfig;
+  }
+
+  /**
+   * Tests that the provided plugins are constructed by their simple name, and the others by their
+   * fully qualified name.
+   */
+  @Test
+  public void testNewInstance() throws AlertConfigLoadException {
+    PluginRegistry registry = PluginRegistry.getDefault();
+
+    assertTrue("Verify the plugin constructed by simple name",
+        registry.newInstance(AlertRule.class, getPluginConfig("NoOpAlertRule"))
+            instanceof NoOpAlertRule);
+    assertTrue("Verify the plugin constructed by fully qualified name",
+        registry.newInstance(AlertRule.class, getPluginConfig(NoOpAlertRule.class.getName()))
+            instanceof NoOpAlertRule);
+
+    try {
+      registry.newInstance(AlertAction.class, getPluginConfig("NoOpAlertRule"));
+      fail("Verify a plugin of another type is rejected");
+    } catch (AlertConfigLoadException e) {
+      // Expected.
+    }
+  }
+
+  /**
+   * Tests that all the invalid class names of an alerts config are reported at once.
+   */
+  @Test
+  public void testValidate() throws AlertConfigLoadException {
+    PluginRegistry registry = PluginRegistry.getDefault();
+    registry.validate(getAlertsConfig(
+        "NoOpAlertReportDownloader", "NoOpAlertRule", "NoOpAlertAction"));
+    registry.validate(getAlertsConfig(
+        NoOpAlertReportDownloader.class.getName(), "ConvertMoneyValue", "SimpleConsoleWriter"));
+
+    try {
+      registry.validate(getAlertsConfig(
+          "NoOpAlertReportDownloader", "NoOpAlertRul", "com.example.MissingAction"));
+      fail("Verify the invalid class names are rejected");
+    } catch (AlertConfigLoadException e) {
+      assertEquals("Verify all the invalid class names are reported",
+          3, e.getMessage().split("\n").length);
+    }
+  }
+}
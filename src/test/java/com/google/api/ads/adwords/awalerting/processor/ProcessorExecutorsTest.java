@@ -0,0 +1,87 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.ads.adwords.awalerting.processor.ProcessorExecutors.Stage;
+import com.google.api.ads.adwords.awalerting.report.ReportData;
+import com.google.api.ads.adwords.awalerting.util.TestEntitiesGenerator;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test case for the {@link ProcessorExecutors} class.
+ */
+@RunWith(JUnit4.class)
+public class ProcessorExecutorsTest {
+
+  @Test
+  public void testPoolSizes() throws Exception {
+    ProcessorExecutors executors = new ProcessorExecutors(5, null, 2, null);
+    try {
+      assertEquals("Verify download pool defaults to twice the general threads",
+          10, executors.getPoolSize(Stage.DOWNLOAD));
+      assertEquals("Verify rules pool size", 2, executors.getPoolSize(Stage.RULES));
+      assertEquals("Verify actions pool defaults to general threads",
+          5, executors.getPoolSize(Stage.ACTIONS));
+      assertEquals("Verify alerts pool defaults to one thread",
+          1, executors.getPoolSize(Stage.ALERTS));
+      assertEquals("Verify nothing is queued", 0, executors.getQueueDepth(Stage.DOWNLOAD));
+      assertEquals("Verify nothing is running", 0, executors.getActiveCount(Stage.RULES));
+    } finally {
+      executors.destroy();
+    }
+
+    executors = new ProcessorExecutors(null, 3, null, null, 2);
+    try {
+      assertEquals("Verify download pool size", 3, executors.getPoolSize(Stage.DOWNLOAD));
+      assertEquals("Verify alerts pool size", 2, executors.getPoolSize(Stage.ALERTS));
+      assertEquals("Verify rules pool defaults to number of processors",
+          Runtime.getRuntime().availableProcessors(), executors.getPoolSize(Stage.RULES));
+    } finally {
+      executors.destroy();
+    }
+  }
+
+  @Test
+  public void testSharedPoolIsNotShutDownByProcessors() throws Exception {
+    ProcessorExecutors executors = new ProcessorExecutors(2, null, null, null);
+    try {
+      for (int i = 0; i < 2; i++) {
+        List<ReportData> reports = new ArrayList<ReportData>();
+        reports.add(TestEntitiesGenerator.getTestReportData());
+        new AlertRulesProcessor(null, TestEntitiesGenerator.getTestAlertMessageTemplate(),
+            executors.getRulesExecutor()).processReports(reports);
+      }
+
+      assertFalse("Verify the shared pool is still running",
+          executors.getRulesExecutor().isShutdown());
+    } finally {
+      executors.destroy();
+    }
+
+    for (Stage stage : Stage.values()) {
+      assertTrue("Verify the pools are shut down", executors.getExecutor(stage).isTerminated());
+    }
+  }
+}
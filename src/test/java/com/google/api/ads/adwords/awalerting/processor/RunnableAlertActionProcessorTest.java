@@ -14,6 +14,8 @@
 
 package com.google.api.ads.adwords.awalerting.processor;
 
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
@@ -72,4 +74,20 @@ public class RunnableAlertActionProcessorTest {
         .processReportEntry(Mockito.<UnmodifiableReportRow>anyObject());
     verify(mockedAlertAction, times(1)).finalizeAction();
   }
+
+  @Test
+  public void testInterruptedRunFinalizesAction() throws AlertProcessingException {
+    Thread.currentThread().interrupt();
+    try {
+      runnableAlertActionProcessor.run();
+      assertTrue("Verify the interrupt is kept", Thread.currentThread().isInterrupted());
+    } finally {
+      Thread.interrupted();
+    }
+
+    verify(mockedAlertAction, times(1)).initializeAction();
+    verify(mockedAlertAction, never())
+        .processReportEntry(Mockito.<UnmodifiableReportRow>anyObject());
+    verify(mockedAlertAction, times(1)).finalizeAction();
+  }
 }
@@ -0,0 +1,123 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import com.google.api.ads.adwords.awalerting.AlertProcessingException;
+import com.google.api.ads.adwords.awalerting.report.UnmodifiableReportRow;
+import com.google.api.ads.adwords.awalerting.sampleimpl.action.PerAccountManagerEmailSender;
+import com.google.api.ads.adwords.awalerting.util.AccountShard;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Test case for the {@link ShardPartialStates} class.
+ */
+@RunWith(JUnit4.class)
+public class ShardPartialStatesTest {
+  private static final String RUN_ID = "2017-07-01";
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private static PerAccountManagerEmailSender newEmailSender() {
+    JsonObject config = new JsonObject();
+    config.addProperty("Subject", "Test");
+    return new PerAccountManagerEmailSender(config);
+  }
+
+  private static UnmodifiableReportRow newEntry(String to, String cid, String message) {
+    Map<String, Integer> mapping = new HashMap<String, Integer>();
+    mapping.put("AccountManagerEmail", 0);
+    mapping.put("ExternalCustomerId", 1);
+    mapping.put("AlertMessage", 2);
+    return new UnmodifiableReportRow(Arrays.asList(to, cid, message), mapping);
+  }
+
+  @Test
+  public void testSaveAndMergePartialStates() throws Exception {
+    Path directory = temporaryFolder.getRoot().toPath();
+
+    PartialStateAlertAction shard0 = new PartialStateAlertAction(newEmailSender(),
+        ShardPartialStates.getFile(directory, RUN_ID, 1, 2, new AccountShard(0, 2)));
+    shard0.initializeAction();
+    shard0.processReportEntry(newEntry("a@example.com", "1", "m1"));
+    shard0.processReportEntry(newEntry("b@example.com", "2", "m2"));
+    shard0.finalizeAction();
+
+    PartialStateAlertAction shard1 = new PartialStateAlertAction(newEmailSender(),
+        ShardPartialStates.getFile(directory, RUN_ID, 1, 2, new AccountShard(1, 2)));
+    shard1.initializeAction();
+    shard1.processReportEntry(newEntry("a@example.com", "3", "m3"));
+    shard1.finalizeAction();
+
+    List<JsonObject> partialStates = ShardPartialStates.readAll(directory, RUN_ID, 1, 2);
+    assertEquals("Verify the partial states of both shards", 2, partialStates.size());
+
+    PerAccountManagerEmailSender merged = newEmailSender();
+    merged.initializeAction();
+    for (JsonObject partialState : partialStates) {
+      merged.mergePartialState(partialState);
+    }
+    assertEquals("Verify the merged emails",
+        new JsonParser().parse("{\"Emails\":{"
+            + "\"a@example.com\":{\"1\":[\"m1\"],\"3\":[\"m3\"]},"
+            + "\"b@example.com\":{\"2\":[\"m2\"]}}}"),
+        merged.getPartialState());
+  }
+
+  @Test
+  public void testIncompleteShardsFailTheMerge() throws Exception {
+    Path directory = temporaryFolder.getRoot().toPath();
+    JsonObject partialState = newEmailSender().getPartialState();
+    ShardPartialStates.write(
+        ShardPartialStates.getFile(directory, RUN_ID, 1, 1, new AccountShard(0, 2)), partialState);
+    ShardPartialStates.write(
+        ShardPartialStates.getFile(directory, "previous", 1, 1, new AccountShard(1, 2)),
+        partialState);
+
+    assertReadFails("Verify the other actions have no partial states", directory, 1, 2);
+    assertReadFails("Verify the shards of other runs are ignored", directory, 1, 1);
+
+    ShardPartialStates.write(
+        ShardPartialStates.getFile(directory, RUN_ID, 1, 1, new AccountShard(1, 3)), partialState);
+    assertReadFails("Verify the number of shards must agree", directory, 1, 1);
+  }
+
+  private static void assertReadFails(String message, Path directory, int alertNumber,
+      int actionNumber) throws IOException {
+    try {
+      ShardPartialStates.readAll(directory, RUN_ID, alertNumber, actionNumber);
+      fail(message);
+    } catch (AlertProcessingException e) {
+      // Expected.
+    }
+  }
+}
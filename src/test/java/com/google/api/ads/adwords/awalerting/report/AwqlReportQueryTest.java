@@ -66,4 +66,15 @@ public class AwqlReportQueryTest {
         "Verify report type of case 3", "ACCOUNT_PERFORMANCE_REPORT", reportQuery3.getReportType());
     assertEquals("Verify AWQL query of case 3", expectedAwqlStr3, reportQuery3.generateAWQL());
   }
+
+  @Test
+  public void testNormalize() {
+    assertEquals("Verify whitespaces are collapsed",
+        "SELECT Id FROM KEYWORDS_PERFORMANCE_REPORT",
+        AwqlReportQuery.normalize("  SELECT Id\n\tFROM   KEYWORDS_PERFORMANCE_REPORT "));
+    assertEquals("Verify quoted literals are kept as is",
+        "SELECT Id FROM CAMPAIGN_PERFORMANCE_REPORT WHERE CampaignName = 'a  b'",
+        AwqlReportQuery.normalize(
+            "SELECT Id FROM CAMPAIGN_PERFORMANCE_REPORT  WHERE CampaignName = 'a  b'"));
+  }
 }
@@ -0,0 +1,162 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.report;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.ads.adwords.jaxws.v201705.cm.ReportDefinitionReportType;
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Test case for the {@link ColumnarReportData} class.
+ */
+@RunWith(JUnit4.class)
+public class ColumnarReportDataTest {
+
+  private static final String CSV =
+      "Customer ID,Account,Cost,Ctr\n"
+      + "123,First,1000000,0.5\n"
+      + "456,Second,2500000,0.25\n"
+      + "789,Third,0,1.50\n";
+
+  private ReportData report;
+
+  @Before
+  public void setUp() throws IOException {
+    report = newLoader(DictionaryScope.REPORT, null).fromStream(toStream(CSV), 1L);
+  }
+
+  private static ReportDataLoader newLoader(
+      DictionaryScope dictionaryScope, StringDictionaries runDictionaries) {
+    return new ReportDataLoader(
+        ReportDefinitionReportType.ACCOUNT_PERFORMANCE_REPORT,
+        ImmutableMap.of("Customer ID", "ExternalCustomerId", "Account", "AccountDescriptiveName",
+            "Cost", "Cost", "Ctr", "Ctr"),
+        ImmutableMap.of("ExternalCustomerId", "Long", "AccountDescriptiveName", "String",
+            "Cost", "Money", "Ctr", "Double"),
+        dictionaryScope,
+        runDictionaries);
+  }
+
+  private static InputStream toStream(String csv) {
+    return new ByteArrayInputStream(csv.getBytes(Charset.defaultCharset()));
+  }
+
+  @Test
+  public void testTypedColumns() {
+    ColumnarReportData columnarReport = (ColumnarReportData) report;
+    assertEquals("Verify long column",
+        ColumnType.LONG, columnarReport.getColumnType("Cost"));
+    assertEquals("Verify string column",
+        ColumnType.STRING, columnarReport.getColumnType("AccountDescriptiveName"));
+    assertEquals("Verify double column with a value not read back as is is stored as strings",
+        ColumnType.STRING, columnarReport.getColumnType("Ctr"));
+
+    assertEquals("Verify rows count", 3, report.getRowsCount());
+    assertEquals("Verify the row view", Arrays.asList("456", "Second", "2500000", "0.25"),
+        report.getRow(1));
+    assertEquals("Verify typed accessor", 2500000L, report.getReportRow(1).getLongValue("Cost"));
+    assertEquals("Verify typed accessor of string column",
+        1.5, report.getReportRow(2).getDoubleValue("Ctr"), 0);
+  }
+
+  @Test
+  public void testModifyAppendAndRemove() {
+    ReportRow row = report.getReportRow(0);
+    row.setFieldValue("Cost", "1.00");
+    assertEquals("Verify the modified value", "1.00", report.getRow(0).get(2));
+    assertEquals("Verify the other values", "2500000", report.getRow(1).get(2));
+
+    report.appendNewColumn("Extra");
+    assertEquals("Verify the row without appended value", 4, report.getRow(0).size());
+    row.appendFieldValue("extra value");
+    assertEquals("Verify the extended row", 5, report.getRow(0).size());
+    assertEquals("Verify the other row is untouched", 4, report.getRow(1).size());
+
+    BitSet removedRows = new BitSet();
+    removedRows.set(1);
+    report.removeRows(removedRows);
+    assertEquals("Verify rows count after removal", 2, report.getRowsCount());
+    assertEquals("Verify the remaining rows", Arrays.asList("789", "Third", "0", "1.50"),
+        report.getRow(1));
+    assertEquals("Verify the appended value is kept", "extra value", report.getRow(0).get(4));
+  }
+
+  @Test
+  public void testCopyOnWriteView() {
+    ReportData view = report.newCopyOnWriteView();
+    view.getReportRow(0).setFieldValue("ExternalCustomerId", "1");
+    view.appendNewColumn("Extra");
+
+    assertEquals("Verify the view is modified", "1", view.getRow(0).get(0));
+    assertEquals("Verify the report is unchanged", "123", report.getRow(0).get(0));
+    assertEquals("Verify the report columns", 4, report.getColumnNames().size());
+  }
+
+  @Test
+  public void testDictionaryEncoding() throws IOException {
+    StringDictionaries runDictionaries = new StringDictionaries();
+    String csv = "Customer ID,Account,Cost,Ctr\n"
+        + "1,Shared,0,0.5\n"
+        + "2,Shared,0,0.5\n";
+    ReportData report1 = newLoader(DictionaryScope.RUN, runDictionaries)
+        .fromStream(toStream(csv), 1L);
+    ReportData report2 = newLoader(DictionaryScope.RUN, runDictionaries)
+        .fromStream(toStream(csv), 2L);
+
+    assertTrue("Verify the string column is dictionary encoded",
+        ((ColumnarReportData) report1).isDictionaryEncoded("AccountDescriptiveName"));
+    assertSame("Verify the value is shared within the report",
+        report1.getRow(0).get(1), report1.getRow(1).get(1));
+    assertSame("Verify the value is shared across the reports",
+        report1.getRow(0).get(1), report2.getRow(0).get(1));
+    assertEquals("Verify the distinct values", 1, runDictionaries.getValuesCount());
+    assertEquals("Verify the value is read through ReportRow",
+        "Shared", report2.getReportRow(1).getFieldValue("AccountDescriptiveName"));
+
+    ReportData report3 = newLoader(DictionaryScope.NONE, null).fromStream(toStream(csv), 3L);
+    assertFalse("Verify no dictionary encoding",
+        ((ColumnarReportData) report3).isDictionaryEncoded("AccountDescriptiveName"));
+  }
+
+  @Test
+  public void testHighCardinalityColumnStoredAsStrings() throws IOException {
+    StringBuilder csv = new StringBuilder("Customer ID,Account,Cost,Ctr\n");
+    for (int i = 0; i < 1000; i++) {
+      csv.append(i).append(",Account ").append(i).append(",0,0.5\n");
+    }
+    ColumnarReportData report = (ColumnarReportData)
+        newLoader(DictionaryScope.REPORT, null).fromStream(toStream(csv.toString()), 1L);
+
+    assertFalse("Verify the distinct values are not dictionary encoded",
+        report.isDictionaryEncoded("AccountDescriptiveName"));
+    assertEquals("Verify the values", "Account 999", report.getRow(999).get(1));
+  }
+}
@@ -0,0 +1,105 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.report;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.google.common.base.Strings;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test case for the {@link CsvRowReader} class.
+ */
+@RunWith(JUnit4.class)
+public class CsvRowReaderTest {
+
+  private static List<List<String>> readAll(InputStream stream) throws IOException {
+    List<List<String>> rows = new ArrayList<List<String>>();
+    try (CsvRowReader reader = new CsvRowReader(stream)) {
+      List<String> row;
+      while ((row = reader.readNext()) != null) {
+        rows.add(new ArrayList<String>(row));
+      }
+    }
+    return rows;
+  }
+
+  private static InputStream toStream(String csv) {
+    return new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Returns the bytes one at a time, so that every record spans several reads.
+   */
+  private static InputStream toSlowStream(String csv) {
+    return new FilterInputStream(toStream(csv)) {
+      @Override
+      public int read(byte[] bytes, int offset, int length) throws IOException {
+        return super.read(bytes, offset, Math.min(length, 1));
+      }
+    };
+  }
+
+  @Test
+  public void testRecords() throws IOException {
+    String csv = "a,b,c\r\n"
+        + "1,,\"quoted, \"\"value\"\"\"\n"
+        + "\"multi\nline\",caf\u00e9,\u65e5\u672c\n"
+        + "\n"
+        + "last,row";
+    List<List<String>> expected = Arrays.asList(
+        Arrays.asList("a", "b", "c"),
+        Arrays.asList("1", "", "quoted, \"value\""),
+        Arrays.asList("multi\nline", "caf\u00e9", "\u65e5\u672c"),
+        Arrays.asList(""),
+        Arrays.asList("last", "row"));
+
+    assertEquals("Verify the records", expected, readAll(toStream(csv)));
+    assertEquals("Verify the records read byte by byte", expected, readAll(toSlowStream(csv)));
+  }
+
+  @Test
+  public void testByteOrderMarkAndEmptyStream() throws IOException {
+    assertEquals("Verify the byte order mark is skipped",
+        Arrays.asList(Arrays.asList("a", "b")), readAll(toStream("\ufeffa,b\n")));
+
+    try (CsvRowReader reader = new CsvRowReader(toStream(""))) {
+      assertNull("Verify the empty stream", reader.readNext());
+    }
+  }
+
+  @Test
+  public void testRecordLargerThanBuffer() throws IOException {
+    String largeValue = Strings.repeat("x", 200 * 1024);
+    List<List<String>> rows = readAll(toStream("1," + largeValue + "\n2,small\n"));
+
+    assertEquals("Verify the records count", 2, rows.size());
+    assertEquals("Verify the large value", largeValue, rows.get(0).get(1));
+    assertEquals("Verify the next record", Arrays.asList("2", "small"), rows.get(1));
+  }
+}
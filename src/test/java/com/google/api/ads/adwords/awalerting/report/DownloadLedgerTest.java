@@ -0,0 +1,85 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.report;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test case for the {@link DownloadLedger} class.
+ */
+@RunWith(JUnit4.class)
+public class DownloadLedgerTest {
+
+  private static final String REPORT_TYPE = "ACCOUNT_PERFORMANCE_REPORT";
+  private static final List<Long> ACCOUNTS = Arrays.asList(1L, 2L, 3L, 4L);
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testOrderLongestFirst() {
+    DownloadLedger ledger = new DownloadLedger(null);
+    assertEquals("Verify the order is kept without past downloads",
+        ACCOUNTS, new ArrayList<Long>(ledger.orderLongestFirst(REPORT_TYPE, ACCOUNTS)));
+
+    ledger.record(REPORT_TYPE, 1L, 100, 10, 100);
+    ledger.record(REPORT_TYPE, 3L, 10000, 1000, 900);
+    ledger.record("OTHER_REPORT", 2L, 100000, 10000, 10000);
+    assertEquals("Verify the current run is not taken into account",
+        ACCOUNTS, new ArrayList<Long>(ledger.orderLongestFirst(REPORT_TYPE, ACCOUNTS)));
+
+    ledger.commitRun();
+    // Accounts 2 and 4 are expected to take the average latency of 500 ms.
+    assertEquals("Verify the longest download comes first",
+        Arrays.asList(3L, 2L, 4L, 1L),
+        new ArrayList<Long>(ledger.orderLongestFirst(REPORT_TYPE, ACCOUNTS)));
+  }
+
+  @Test
+  public void testAverageAndPersistence() {
+    Path file = folder.getRoot().toPath().resolve("ledger.json");
+    DownloadLedger ledger = new DownloadLedger(file);
+    ledger.record(REPORT_TYPE, 1L, 100, 10, 1000);
+    ledger.record(REPORT_TYPE, 2L, 100, 10, 500);
+    ledger.commitRun();
+
+    // Account 1 got faster: (1000 + 100) / 2 = 550 ms, slower than account 2 now.
+    ledger.record(REPORT_TYPE, 1L, 100, 10, 100);
+    ledger.record(REPORT_TYPE, 2L, 100, 10, 500);
+    ledger.commitRun();
+
+    DownloadLedger loadedLedger = new DownloadLedger(file);
+    assertEquals("Verify the accounts are loaded", 2, loadedLedger.getAccountsCount(REPORT_TYPE));
+    assertEquals("Verify the averaged latency order", Arrays.asList(1L, 2L),
+        new ArrayList<Long>(loadedLedger.orderLongestFirst(REPORT_TYPE, Arrays.asList(2L, 1L))));
+
+    ledger.record(REPORT_TYPE, 1L, 100, 10, 100);
+    ledger.commitRun();
+    assertEquals("Verify the next run changes the order", Arrays.asList(2L, 1L),
+        new ArrayList<Long>(new DownloadLedger(file)
+            .orderLongestFirst(REPORT_TYPE, Arrays.asList(1L, 2L))));
+  }
+}
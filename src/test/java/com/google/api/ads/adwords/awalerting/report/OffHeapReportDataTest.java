@@ -0,0 +1,130 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.report;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.api.ads.adwords.jaxws.v201705.cm.ReportDefinitionReportType;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Test case for the {@link OffHeapReportData} class.
+ */
+@RunWith(JUnit4.class)
+public class OffHeapReportDataTest {
+
+  private static final String CSV =
+      "Customer ID,Account,Cost\n"
+      + "123,First,1000000\n"
+      + "456,Second,2500000\n"
+      + "789,Third,0\n";
+
+  private ReportData report;
+
+  @Before
+  public void setUp() throws IOException {
+    ReportDataLoader loader = new ReportDataLoader(
+        ReportDefinitionReportType.ACCOUNT_PERFORMANCE_REPORT,
+        ImmutableMap.of("Customer ID", "ExternalCustomerId", "Account", "AccountDescriptiveName",
+            "Cost", "Cost"),
+        ReportStorage.OFF_HEAP, null, DictionaryScope.NONE, null);
+    report = loader.fromStream(
+        new ByteArrayInputStream(CSV.getBytes(Charset.defaultCharset())), 1L);
+  }
+
+  @Test
+  public void testRows() {
+    assertTrue("Verify the storage", report instanceof OffHeapReportData);
+    assertEquals("Verify rows count", 3, report.getRowsCount());
+    assertEquals("Verify the row", Arrays.asList("456", "Second", "2500000"), report.getRow(1));
+    assertEquals("Verify typed accessor", 2500000L, report.getReportRow(1).getLongValue("Cost"));
+
+    report.addRow(Arrays.asList("1", null, ""));
+    assertNull("Verify null value", report.getRow(3).get(1));
+    assertEquals("Verify empty value", "", report.getRow(3).get(2));
+    report.addRow(Arrays.asList("2", "S\u00e9cond \u65e5\u672c", "0"));
+    assertEquals("Verify non-ASCII value", "S\u00e9cond \u65e5\u672c", report.getRow(4).get(1));
+  }
+
+  @Test
+  public void testModifyAppendAndRemove() {
+    ReportRow row = report.getReportRow(0);
+    row.setFieldValue("Cost", "1.00");
+    report.appendNewColumn("Extra");
+    row.appendFieldValue("extra value");
+
+    assertEquals("Verify the modified row", Arrays.asList("123", "First", "1.00", "extra value"),
+        report.getRow(0));
+    assertEquals("Verify the other row is untouched", 3, report.getRow(1).size());
+
+    BitSet removedRows = new BitSet();
+    removedRows.set(1);
+    report.removeRows(removedRows);
+    assertEquals("Verify rows count after removal", 2, report.getRowsCount());
+    assertEquals("Verify the remaining row", "Third", report.getRow(1).get(1));
+  }
+
+  @Test
+  public void testLargeRow() {
+    String largeValue = Strings.repeat("x", OffHeapArena.CHUNK_SIZE + 1);
+    report.addRow(Arrays.asList("1", largeValue, "0"));
+    report.addRow(Arrays.asList("2", "After", "0"));
+
+    assertEquals("Verify the large value", largeValue, report.getRow(3).get(1));
+    assertEquals("Verify the next row", "After", report.getRow(4).get(1));
+  }
+
+  @Test
+  public void testCopyOnWriteViewAndRelease() {
+    ReportData view = report.newCopyOnWriteView();
+    view.getReportRow(0).setFieldValue("ExternalCustomerId", "1");
+    assertEquals("Verify the view is modified", "1", view.getRow(0).get(0));
+    assertEquals("Verify the report is unchanged", "123", report.getRow(0).get(0));
+
+    report.release();
+    report.release();
+    assertEquals("Verify the view is still usable", "Second", view.getRow(1).get(1));
+
+    try {
+      report.getRow(0);
+      fail("Released report should not be readable.");
+    } catch (IndexOutOfBoundsException | IllegalStateException e) {
+      // Expected.
+    }
+
+    view.release();
+    try {
+      view.newCopyOnWriteView();
+      fail("Released view should not be usable.");
+    } catch (IllegalStateException e) {
+      // Expected.
+    }
+  }
+}
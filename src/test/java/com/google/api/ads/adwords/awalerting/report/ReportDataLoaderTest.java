@@ -0,0 +1,94 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.report;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import com.google.api.ads.adwords.awalerting.util.TestEntitiesGenerator;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Test case for the {@link ReportDataLoader} class.
+ */
+@RunWith(JUnit4.class)
+public class ReportDataLoaderTest {
+
+  private static InputStream toStream(String csv) {
+    return new ByteArrayInputStream(csv.getBytes(Charset.defaultCharset()));
+  }
+
+  /**
+   * Test that a report with only the header row is loaded as an empty report.
+   */
+  @Test
+  public void testLoadHeaderOnly() throws IOException {
+    ReportData report =
+        TestEntitiesGenerator.getTestReportDataLoader()
+            .fromStream(toStream("Customer ID,Impressions\n"), 1L);
+
+    assertEquals("Verify number of columns", 2, report.getColumnNames().size());
+    assertEquals("Verify number of rows", 0, report.getRows().size());
+  }
+
+  /**
+   * Test that the loaded rows are independent and can be extended by alert rules.
+   */
+  @Test
+  public void testRowsAreExtendible() throws IOException {
+    ReportData report =
+        TestEntitiesGenerator.getTestReportDataLoader()
+            .fromStream(toStream("Customer ID,Impressions\n123,10\n456,20\n"), 1L);
+
+    report.appendNewColumn("Extra");
+    List<String> firstRow = report.getRow(0);
+    firstRow.add("extra value");
+
+    assertEquals("Verify the extended row", 3, firstRow.size());
+    assertEquals("Verify the other row is untouched", 2, report.getRow(1).size());
+    assertEquals("Verify the extended value", "extra value", firstRow.get(2));
+    assertEquals("Verify the original value", "456", report.getRow(1).get(0));
+  }
+
+  /**
+   * Test that an unknown header is reported with its display name.
+   */
+  @Test
+  public void testUnknownHeader() throws IOException {
+    try {
+      TestEntitiesGenerator.getTestReportDataLoader()
+          .fromStream(toStream("Customer ID,Unknown column\n123,10\n"), 1L);
+      fail("Verify the unknown header is rejected");
+    } catch (NullPointerException e) {
+      assertEquals("Verify the error message",
+          "Unknown field name: Unknown column.", e.getMessage());
+    }
+  }
+
+  /**
+   * Test that an empty stream is rejected.
+   */
+  @Test(expected = IOException.class)
+  public void testEmptyStream() throws IOException {
+    TestEntitiesGenerator.getTestReportDataLoader().fromStream(toStream(""), 1L);
+  }
+}
@@ -0,0 +1,329 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.report;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.api.ads.adwords.awalerting.AlertProcessingException;
+import com.google.api.ads.adwords.awalerting.util.TestEntitiesGenerator;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test case for the {@link ReportDataStore} class.
+ */
+@RunWith(JUnit4.class)
+public class ReportDataStoreTest {
+
+  private static final String AWQL =
+      "SELECT ExternalCustomerId,Cost FROM ACCOUNT_PERFORMANCE_REPORT DURING YESTERDAY";
+  private static final String QUERY_KEY =
+      ReportDataStore.getQueryKey(AWQL, ReportStorage.ROWS, DictionaryScope.REPORT);
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private ReportDataStore store;
+  private AtomicInteger downloads;
+
+  @Before
+  public void setUp() {
+    store = new ReportDataStore();
+    downloads = new AtomicInteger();
+  }
+
+  @Test
+  public void testSameKeyDownloadsOnce() throws Exception {
+    store.addConsumer(QUERY_KEY);
+    store.addConsumer(QUERY_KEY);
+    ReportData view1 = store.get(1L, QUERY_KEY, newLoader());
+    ReportData view2 = store.get(1L, ReportDataStore.getQueryKey(
+        "  " + AWQL.replace(" ", "\n  "), ReportStorage.ROWS, DictionaryScope.REPORT),
+        newLoader());
+    store.get(2L, QUERY_KEY, newLoader());
+
+    assertEquals("Verify one download per account", 2, downloads.get());
+    assertEquals("Verify hits count", 1, store.getHits());
+    assertEquals("Verify misses count", 2, store.getMisses());
+    assertNotSame("Verify each request gets its own view", view1, view2);
+  }
+
+  @Test
+  public void testConcurrentRequestsWaitForInFlightDownload() throws Exception {
+    final CountDownLatch downloadStarted = new CountDownLatch(1);
+    final CountDownLatch releaseDownload = new CountDownLatch(1);
+    final Callable<ReportData> slowLoader = new Callable<ReportData>() {
+      @Override
+      public ReportData call() throws Exception {
+        downloads.incrementAndGet();
+        downloadStarted.countDown();
+        releaseDownload.await();
+        return TestEntitiesGenerator.getTestReportData();
+      }
+    };
+
+    for (int i = 0; i < 4; i++) {
+      store.addConsumer(QUERY_KEY);
+    }
+    ExecutorService executorService = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<ReportData>> results = new ArrayList<Future<ReportData>>();
+      results.add(executorService.submit(store.memoize(1L, QUERY_KEY, slowLoader)));
+      downloadStarted.await();
+      for (int i = 0; i < 3; i++) {
+        results.add(executorService.submit(store.memoize(1L, QUERY_KEY, slowLoader)));
+      }
+      releaseDownload.countDown();
+
+      for (Future<ReportData> result : results) {
+        assertEquals("Verify the waiting requests get the report",
+            TestEntitiesGenerator.getTestReportDataRows(), result.get().getRows().size());
+      }
+    } finally {
+      executorService.shutdownNow();
+    }
+
+    assertEquals("Verify the report is downloaded only once", 1, downloads.get());
+  }
+
+  @Test
+  public void testFailedDownloadIsNotKept() throws Exception {
+    Callable<ReportData> failingLoader = new Callable<ReportData>() {
+      @Override
+      public ReportData call() throws AlertProcessingException {
+        downloads.incrementAndGet();
+        throw new AlertProcessingException("Test failure.", null);
+      }
+    };
+
+    try {
+      store.get(1L, QUERY_KEY, failingLoader);
+      fail("Expected AlertProcessingException.");
+    } catch (AlertProcessingException e) {
+      // Expected.
+    }
+
+    store.get(1L, QUERY_KEY, newLoader());
+    assertEquals("Verify the failed download is retried", 2, downloads.get());
+  }
+
+  @Test
+  public void testViewsAreIndependent() throws Exception {
+    store.addConsumer(QUERY_KEY);
+    store.addConsumer(QUERY_KEY);
+    ReportData view1 = store.get(1L, QUERY_KEY, newLoader());
+    ReportData view2 = store.get(1L, QUERY_KEY, newLoader());
+    int rowsCount = view2.getRows().size();
+    String cost = view2.getRow(0).get(view2.getColumnIndex("Cost"));
+
+    // Alter the first view like alert rules do.
+    view1.appendNewColumn("AccountManagerName");
+    ReportRow row = new ReportRow(view1.getRow(0), view1.getIndexMapping());
+    row.appendFieldValue("Manager");
+    row.setFieldValue("Cost", "0");
+    view1.getRows().remove(1);
+
+    assertEquals("Verify rows are not removed from other views", rowsCount,
+        view2.getRows().size());
+    assertEquals("Verify columns are not appended to other views", 8,
+        view2.getIndexMapping().size());
+    assertEquals("Verify values are not changed in other views", cost,
+        view2.getRow(0).get(view2.getColumnIndex("Cost")));
+    assertEquals("Verify the altered view", "0", view1.getRow(0).get(view1.getColumnIndex("Cost")));
+    assertEquals("Verify the appended value", "Manager",
+        view1.getRow(0).get(view1.getColumnIndex("AccountManagerName")));
+  }
+
+  @Test
+  public void testReportIsEvictedAfterLastConsumer() throws Exception {
+    final ReportData report = TestEntitiesGenerator.getTestReportData();
+    Callable<ReportData> loader = new Callable<ReportData>() {
+      @Override
+      public ReportData call() {
+        downloads.incrementAndGet();
+        return report;
+      }
+    };
+    store.addConsumer(QUERY_KEY);
+    store.addConsumer(QUERY_KEY);
+
+    assertNotSame("Verify the first consumer gets a view", report,
+        store.get(1L, QUERY_KEY, loader));
+    assertSame("Verify the last consumer gets the report", report,
+        store.get(1L, QUERY_KEY, loader));
+    assertEquals("Verify the report is downloaded once for its consumers", 1, downloads.get());
+
+    store.get(1L, QUERY_KEY, loader);
+    assertEquals("Verify the evicted report is downloaded again", 2, downloads.get());
+  }
+
+  @Test
+  public void testStorageIsPartOfKey() throws Exception {
+    store.get(1L, QUERY_KEY, newLoader());
+    store.get(1L, ReportDataStore.getQueryKey(AWQL, ReportStorage.COLUMNAR, DictionaryScope.RUN),
+        newLoader());
+
+    assertEquals("Verify the reports of different storages are not shared", 2, downloads.get());
+  }
+
+  @Test
+  public void testCancelledDownloadIsRetriedByWaiters() throws Exception {
+    final CountDownLatch downloadStarted = new CountDownLatch(1);
+    Callable<ReportData> loader = new Callable<ReportData>() {
+      @Override
+      public ReportData call() throws Exception {
+        if (downloads.incrementAndGet() == 1) {
+          downloadStarted.countDown();
+          try {
+            new CountDownLatch(1).await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw e;
+          }
+        }
+        return TestEntitiesGenerator.getTestReportData();
+      }
+    };
+    store.addConsumer(QUERY_KEY);
+    store.addConsumer(QUERY_KEY);
+
+    ExecutorService executorService = Executors.newFixedThreadPool(2);
+    try {
+      Future<ReportData> cancelledResult =
+          executorService.submit(store.memoize(1L, QUERY_KEY, loader));
+      downloadStarted.await();
+      Future<ReportData> waitingResult =
+          executorService.submit(store.memoize(1L, QUERY_KEY, loader));
+      cancelledResult.cancel(true);
+
+      assertEquals("Verify the waiting request gets the report",
+          TestEntitiesGenerator.getTestReportDataRows(),
+          waitingResult.get(10, TimeUnit.SECONDS).getRows().size());
+    } finally {
+      executorService.shutdownNow();
+    }
+    assertEquals("Verify the waiting request downloads the report again", 2, downloads.get());
+  }
+
+  @Test
+  public void testBudgetCountsViewsUntilReleased() throws Exception {
+    ReportMemoryBudget budget = new ReportMemoryBudget(1L << 20, folder.getRoot().toPath());
+    store = new ReportDataStore(budget);
+    store.addConsumer(QUERY_KEY);
+    store.addConsumer(QUERY_KEY);
+
+    ReportData view = store.get(1L, QUERY_KEY, newLoader());
+    long reportBytes = TestEntitiesGenerator.getTestReportData().getEstimatedBytes();
+    assertTrue("Verify the view is counted", budget.getUsedBytes() > reportBytes);
+
+    ReportData report = store.get(1L, QUERY_KEY, newLoader());
+    view.release();
+    assertEquals("Verify the view gives its memory back", reportBytes, budget.getUsedBytes());
+
+    report.release();
+    assertEquals("Verify the report gives its memory back", 0, budget.getUsedBytes());
+  }
+
+  @Test
+  public void testConcurrentConsumersOnlyGetViews() throws Exception {
+    ReportMemoryBudget budget = new ReportMemoryBudget(1L << 20, folder.getRoot().toPath());
+    store = new ReportDataStore(budget, true);
+    store.addConsumer(QUERY_KEY);
+    store.addConsumer(QUERY_KEY);
+    final List<List<String>> expectedRows = new ArrayList<List<String>>();
+    for (List<String> row : TestEntitiesGenerator.getTestReportData().getRows()) {
+      expectedRows.add(new ArrayList<String>(row));
+    }
+
+    // One alert appends its message to the rows while the other one reads them.
+    final ReportData readView = store.get(1L, QUERY_KEY, newLoader());
+    final ReportData modifiedView = store.get(1L, QUERY_KEY, newLoader());
+    assertNotSame("Verify the last consumer gets its own view", readView, modifiedView);
+    final CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executorService = Executors.newFixedThreadPool(2);
+    try {
+      Future<?> modified = executorService.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws InterruptedException {
+          start.await();
+          modifiedView.appendNewColumn("AlertMessage");
+          for (List<String> row : modifiedView.getRows()) {
+            row.set(0, "modified");
+            row.add("Alert message");
+          }
+          return null;
+        }
+      });
+      Future<Boolean> readUnchanged = executorService.submit(new Callable<Boolean>() {
+        @Override
+        public Boolean call() throws InterruptedException {
+          start.await();
+          for (int i = 0; i < 100; i++) {
+            if (!expectedRows.equals(readView.getRows())) {
+              return false;
+            }
+          }
+          return true;
+        }
+      });
+      start.countDown();
+      modified.get(10, TimeUnit.SECONDS);
+      assertTrue("Verify the other view is not modified",
+          readUnchanged.get(10, TimeUnit.SECONDS));
+    } finally {
+      executorService.shutdownNow();
+    }
+    assertEquals("Verify the rows are modified in their view",
+        "Alert message", modifiedView.getReportRow(0).getFieldValue("AlertMessage"));
+    assertEquals("Verify the other view still reads the downloaded rows",
+        expectedRows, readView.getRows());
+
+    long reportBytes = TestEntitiesGenerator.getTestReportData().getEstimatedBytes();
+    modifiedView.release();
+    assertTrue("Verify the report is kept for the other view",
+        budget.getUsedBytes() > reportBytes);
+    readView.release();
+    assertEquals("Verify the report is released with its last view", 0, budget.getUsedBytes());
+  }
+
+  private Callable<ReportData> newLoader() {
+    return new Callable<ReportData>() {
+      @Override
+      public ReportData call() throws Exception {
+        downloads.incrementAndGet();
+        return TestEntitiesGenerator.getTestReportData();
+      }
+    };
+  }
+}
@@ -0,0 +1,113 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.report;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.api.ads.adwords.jaxws.v201705.cm.ReportDefinitionReportType;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test case for the {@link ReportFieldsMappingCache} class.
+ */
+@RunWith(JUnit4.class)
+public class ReportFieldsMappingCacheTest {
+
+  private static final String API_VERSION = "v201705";
+  private static final ReportDefinitionReportType REPORT_TYPE =
+      ReportDefinitionReportType.ACCOUNT_PERFORMANCE_REPORT;
+  private static final long ONE_DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private Path file;
+  private AtomicInteger downloads;
+
+  @Before
+  public void setUp() {
+    file = temporaryFolder.getRoot().toPath().resolve("fields.json");
+    downloads = new AtomicInteger();
+  }
+
+  @Test
+  public void testDownloadsOnceAndPersists() throws Exception {
+    ReportFieldsMappingCache cache =
+        new ReportFieldsMappingCache(file, ONE_DAY_MILLIS, MoreExecutors.directExecutor());
+    cache.get(API_VERSION, REPORT_TYPE, newLoader());
+    Map<String, String> fieldsMapping = cache.get(API_VERSION, REPORT_TYPE, newLoader());
+    cache.get("v201708", REPORT_TYPE, newLoader());
+
+    assertEquals("Verify one download per API version", 2, downloads.get());
+    assertEquals("Verify the fields mapping", "Cost", fieldsMapping.get("Cost (1)"));
+
+    ReportFieldsMappingCache reloadedCache =
+        new ReportFieldsMappingCache(file, ONE_DAY_MILLIS, MoreExecutors.directExecutor());
+    assertEquals("Verify the fields mapping is loaded from file",
+        fieldsMapping, reloadedCache.get(API_VERSION, REPORT_TYPE, newLoader()));
+    assertEquals("Verify no download after reloading", 2, downloads.get());
+  }
+
+  @Test
+  public void testStaleMappingRefreshedInBackground() throws Exception {
+    ReportFieldsMappingCache cache =
+        new ReportFieldsMappingCache(file, 0L, MoreExecutors.directExecutor());
+    cache.get(API_VERSION, REPORT_TYPE, newLoader());
+
+    assertEquals("Verify the stale mapping is returned",
+        "Cost", cache.get(API_VERSION, REPORT_TYPE, newLoader()).get("Cost (1)"));
+    assertEquals("Verify the stale mapping is refreshed", 2, downloads.get());
+    assertEquals("Verify the refreshed mapping",
+        "Cost", cache.get(API_VERSION, REPORT_TYPE, newLoader()).get("Cost (2)"));
+  }
+
+  @Test
+  public void testInvalidFileIsIgnored() throws Exception {
+    Files.write(file, Collections.singletonList("{not json"), StandardCharsets.UTF_8);
+    ReportFieldsMappingCache cache =
+        new ReportFieldsMappingCache(file, ONE_DAY_MILLIS, MoreExecutors.directExecutor());
+    cache.get(API_VERSION, REPORT_TYPE, newLoader());
+
+    assertEquals("Verify the mapping is downloaded", 1, downloads.get());
+  }
+
+  /**
+   * Returns a loader which maps "Cost (n)" to "Cost", n being the download count.
+   */
+  private Callable<Map<String, String>> newLoader() {
+    return new Callable<Map<String, String>>() {
+      @Override
+      public Map<String, String> call() {
+        return Collections.singletonMap("Cost (" + downloads.incrementAndGet() + ")", "Cost");
+      }
+    };
+  }
+}
@@ -0,0 +1,83 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.report;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.ads.adwords.awalerting.util.TestEntitiesGenerator;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Test case for the {@link ReportMemoryBudget} class.
+ */
+@RunWith(JUnit4.class)
+public class ReportMemoryBudgetTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testAdmitWithinBudget() throws IOException {
+    ReportMemoryBudget budget = new ReportMemoryBudget(1L << 20, folder.getRoot().toPath());
+    ReportData report = TestEntitiesGenerator.getTestReportData();
+
+    assertSame("Verify the report is kept in memory", report, budget.admit(report));
+    assertTrue("Verify the used memory", budget.getUsedBytes() > 0);
+
+    budget.release(report);
+    assertEquals("Verify the memory is given back", 0, budget.getUsedBytes());
+    assertEquals("Verify no report is spilled", 0, budget.getSpilledReportsCount());
+  }
+
+  @Test
+  public void testSpillBeyondBudget() throws IOException {
+    ReportMemoryBudget budget = new ReportMemoryBudget(0, folder.getRoot().toPath());
+    ReportData report = TestEntitiesGenerator.getTestReportData();
+    ReportData expected = TestEntitiesGenerator.getTestReportData();
+
+    ReportData spilledReport = budget.admit(report);
+    assertTrue("Verify the report is spilled", spilledReport instanceof OffHeapReportData);
+    assertEquals("Verify the spilled reports count", 1, budget.getSpilledReportsCount());
+    assertEquals("Verify no memory is used", 0, budget.getUsedBytes());
+    assertEquals("Verify the column names",
+        expected.getColumnNames(), spilledReport.getColumnNames());
+    assertEquals("Verify the rows", expected.getRows(), spilledReport.getRows());
+    File[] spillFiles = folder.getRoot().listFiles();
+    assertTrue("Verify the spill file is deleted or deleted on exit",
+        spillFiles.length == 0 || spillFiles.length == 1);
+
+    // The modified rows are written outside the mapped file.
+    ReportData view = spilledReport.newCopyOnWriteView();
+    view.appendNewColumn("Extra");
+    view.getReportRow(0).appendFieldValue("extra value");
+    assertEquals("Verify the modified row", "extra value", view.getRow(0).get(8));
+    assertEquals("Verify the spilled report is unchanged",
+        Arrays.asList(expected.getRow(0).toArray()), spilledReport.getRow(0));
+
+    view.release();
+    budget.release(spilledReport);
+  }
+}
@@ -14,16 +14,21 @@
 
 package com.google.api.ads.adwords.awalerting.sampleimpl.downloader;
 
+import static org.junit.Assert.assertEquals;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 import com.google.api.ads.adwords.awalerting.AlertProcessingException;
+import com.google.api.ads.adwords.awalerting.report.ReportFieldsMappingCache;
 import com.google.api.ads.adwords.awalerting.util.TestEntitiesGenerator;
+import com.google.api.ads.adwords.jaxws.v201705.cm.ReportDefinitionField;
 import com.google.api.ads.adwords.jaxws.v201705.cm.ReportDefinitionReportType;
 import com.google.api.ads.adwords.lib.client.AdWordsSession;
 import com.google.api.ads.common.lib.exception.ValidationException;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -58,4 +63,42 @@ public class AwReportDefinitionDownloaderTest {
 
     verify(mockedAwReportDefinitionDownloader, times(1)).getFieldsMapping(reportType);
   }
+
+  @Test
+  public void testFieldsMappingAndTypesShareOneDownload() throws Exception {
+    ReportDefinitionReportType reportType = ReportDefinitionReportType.ACCOUNT_PERFORMANCE_REPORT;
+    mockReportFields();
+
+    assertEquals("Verify the fields mapping", "Impressions",
+        mockedAwReportDefinitionDownloader.getFieldsMapping(reportType).get("Impr."));
+    assertEquals("Verify the field types",
+        "Long", mockedAwReportDefinitionDownloader.getFieldTypes(reportType).get("Impressions"));
+    verify(mockedAwReportDefinitionDownloader, times(1)).downloadReportFields(reportType);
+  }
+
+  @Test
+  public void testCachedFieldsMappingAndTypesShareOneDownload() throws Exception {
+    ReportDefinitionReportType reportType = ReportDefinitionReportType.ACCOUNT_PERFORMANCE_REPORT;
+    ReportFieldsMappingCache cache = new ReportFieldsMappingCache(null, TimeUnit.DAYS.toMillis(1));
+    mockedAwReportDefinitionDownloader = Mockito.spy(new AwReportDefinitionDownloader(
+        TestEntitiesGenerator.getTestAdWordsSession(), cache));
+    mockReportFields();
+
+    assertEquals("Verify the field types",
+        "Long", mockedAwReportDefinitionDownloader.getFieldTypes(reportType).get("Impressions"));
+    assertEquals("Verify the fields mapping", "Impressions",
+        mockedAwReportDefinitionDownloader.getFieldsMapping(reportType).get("Impr."));
+    verify(mockedAwReportDefinitionDownloader, times(1)).downloadReportFields(reportType);
+    assertEquals("Verify one cache miss", 1, cache.getMisses());
+  }
+
+  private void mockReportFields() throws AlertProcessingException {
+    ReportDefinitionField field = new ReportDefinitionField();
+    field.setFieldName("Impressions");
+    field.setDisplayFieldName("Impr.");
+    field.setFieldType("Long");
+    doReturn(Collections.singletonList(field))
+        .when(mockedAwReportDefinitionDownloader)
+        .downloadReportFields(Mockito.<ReportDefinitionReportType>anyObject());
+  }
 }
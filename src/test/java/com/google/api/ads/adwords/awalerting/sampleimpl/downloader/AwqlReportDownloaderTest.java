@@ -15,24 +15,46 @@
 package com.google.api.ads.adwords.awalerting.sampleimpl.downloader;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.spy;
 
 import com.google.api.ads.adwords.awalerting.AlertProcessingException;
 import com.google.api.ads.adwords.awalerting.report.AwqlReportQuery;
 import com.google.api.ads.adwords.awalerting.report.ReportData;
 import com.google.api.ads.adwords.awalerting.report.ReportDataLoader;
+import com.google.api.ads.adwords.awalerting.report.ReportDataSink;
+import com.google.api.ads.adwords.awalerting.report.ReportDownloadContext;
+import com.google.api.ads.adwords.awalerting.util.Deadline;
 import com.google.api.ads.adwords.awalerting.util.TestEntitiesGenerator;
 import com.google.api.ads.adwords.jaxws.v201705.cm.ReportDefinitionReportType;
 import com.google.api.ads.adwords.lib.client.AdWordsSession.ImmutableAdWordsSession;
+import com.google.api.ads.adwords.lib.utils.ReportDownloadResponseException;
 import com.google.api.ads.common.lib.exception.ValidationException;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 /** Test case for the {@link AwqlReportDownloader} class. */
 @RunWith(JUnit4.class)
@@ -40,6 +62,9 @@ public class AwqlReportDownloaderTest {
 
   private static final int NUMBER_OF_ACCOUNTS = 100;
 
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
   @Test
   public void testDownloadReports()
       throws ValidationException, AlertProcessingException, IOException {
@@ -95,4 +120,239 @@ public class AwqlReportDownloaderTest {
           results.get(i), reportData);
     }
   }
+
+  @Test
+  public void testRetryAndDeferredPass()
+      throws ValidationException, AlertProcessingException, IOException {
+    File failuresFile = new File(temporaryFolder.getRoot(), "failures.json");
+    JsonObject retryConfig = new JsonObject();
+    retryConfig.addProperty("MaxAttempts", 2);
+    retryConfig.addProperty("InitialBackoffMillis", 0);
+    retryConfig.addProperty("DeferredPassConcurrency", 1);
+    JsonObject config = TestEntitiesGenerator.getTestReportDownloaderConfig();
+    config.add("Retry", retryConfig);
+    config.addProperty("FailuresFile", failuresFile.getAbsolutePath());
+    ImmutableAdWordsSession session = TestEntitiesGenerator.getTestAdWordsSession();
+
+    final Map<String, String> fieldsMapping = TestEntitiesGenerator.getTestFiledsMapping();
+    final ReportData reportData = TestEntitiesGenerator.getTestReportData();
+    final AwqlReportQuery reportQuery =
+        new AwqlReportQuery(TestEntitiesGenerator.getTestReportQueryConfig());
+    AwReportDefinitionDownloader reportDefDownloader = new AwReportDefinitionDownloader(session) {
+      @Override
+      public Map<String, String> getFieldsMapping(ReportDefinitionReportType reportType) {
+        return fieldsMapping;
+      }
+    };
+
+    // Account 1 succeeds at the 3rd attempt (in the deferred pass), account 2 always gets a
+    // server error and account 3 a bad request error.
+    final ConcurrentMap<Long, AtomicInteger> attempts = new ConcurrentHashMap<>();
+    AwqlReportDownloader reportDownloader = new AwqlReportDownloader(config) {
+      @Override
+      protected CallableAwqlReportDownloader genCallableAwqlReportDownloader(
+          final ImmutableAdWordsSession session, ReportDataLoader loader) {
+        return new CallableAwqlReportDownloader(session, reportQuery, loader) {
+          @Override
+          public ReportData call() throws AlertProcessingException {
+            Long cid = Long.valueOf(session.getClientCustomerId());
+            attempts.putIfAbsent(cid, new AtomicInteger());
+            int attempt = attempts.get(cid).incrementAndGet();
+            if (cid == 1L && attempt >= 3) {
+              return reportData;
+            }
+            int httpStatus = cid == 3L ? 400 : 503;
+            throw ReportDownloadException.from(
+                "Test failure.", new ReportDownloadResponseException(httpStatus), cid);
+          }
+        };
+      }
+    };
+
+    List<ReportData> results = reportDownloader.downloadReports(
+        session, reportDefDownloader, new HashSet<Long>(Arrays.asList(1L, 2L, 3L)));
+
+    assertEquals("Verify the report downloaded in the deferred pass", 1, results.size());
+    assertEquals("Verify attempts of account 1", 3, attempts.get(1L).get());
+    assertEquals("Verify attempts of account 2", 4, attempts.get(2L).get());
+    assertEquals("Verify bad requests are not retried", 1, attempts.get(3L).get());
+
+    List<String> lines = Files.readAllLines(failuresFile.toPath(), StandardCharsets.UTF_8);
+    assertEquals("Verify failures are written", 2, lines.size());
+    JsonObject failure = new JsonParser().parse(lines.get(0)).getAsJsonObject();
+    assertEquals("Verify failed account", 2L, failure.get("ClientCustomerId").getAsLong());
+    assertEquals("Verify failure reason", "SERVER_ERROR", failure.get("Reason").getAsString());
+    assertEquals("Verify failure attempts", 2, failure.get("Attempts").getAsInt());
+    assertTrue("Verify failure message", failure.has("Message"));
+  }
+
+  @Test
+  public void testDownloadTimeout()
+      throws ValidationException, AlertProcessingException, IOException, InterruptedException {
+    File failuresFile = new File(temporaryFolder.getRoot(), "failures.json");
+    JsonObject config = TestEntitiesGenerator.getTestReportDownloaderConfig();
+    config.addProperty("FailuresFile", failuresFile.getAbsolutePath());
+    ImmutableAdWordsSession session = TestEntitiesGenerator.getTestAdWordsSession();
+
+    final Map<String, String> fieldsMapping = TestEntitiesGenerator.getTestFiledsMapping();
+    final ReportData reportData = TestEntitiesGenerator.getTestReportData();
+    final AwqlReportQuery reportQuery =
+        new AwqlReportQuery(TestEntitiesGenerator.getTestReportQueryConfig());
+    AwReportDefinitionDownloader reportDefDownloader = new AwReportDefinitionDownloader(session) {
+      @Override
+      public Map<String, String> getFieldsMapping(ReportDefinitionReportType reportType) {
+        return fieldsMapping;
+      }
+    };
+
+    // The download of account 2 hangs until it's interrupted.
+    final CountDownLatch interrupted = new CountDownLatch(1);
+    AwqlReportDownloader reportDownloader = new AwqlReportDownloader(config) {
+      @Override
+      protected CallableAwqlReportDownloader genCallableAwqlReportDownloader(
+          final ImmutableAdWordsSession session, ReportDataLoader loader) {
+        return new CallableAwqlReportDownloader(session, reportQuery, loader) {
+          @Override
+          public ReportData call() throws AlertProcessingException {
+            if (Long.valueOf(session.getClientCustomerId()) == 2L) {
+              try {
+                Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+              } catch (InterruptedException e) {
+                interrupted.countDown();
+                Thread.currentThread().interrupt();
+                throw new AlertProcessingException("Interrupted.", e);
+              }
+            }
+            return reportData;
+          }
+        };
+      }
+    };
+    reportDownloader.setReportDownloadContext(
+        new ReportDownloadContext(null, null, null, null, null, null, null, 200, Deadline.NONE));
+
+    List<ReportData> results = reportDownloader.downloadReports(
+        session, reportDefDownloader, new HashSet<Long>(Arrays.asList(1L, 2L, 3L)));
+
+    assertEquals("Verify the other reports are downloaded", 2, results.size());
+    assertTrue("Verify the hung download is interrupted", interrupted.await(10, TimeUnit.SECONDS));
+    List<String> lines = Files.readAllLines(failuresFile.toPath(), StandardCharsets.UTF_8);
+    assertEquals("Verify the timeout is written", 1, lines.size());
+    JsonObject failure = new JsonParser().parse(lines.get(0)).getAsJsonObject();
+    assertEquals("Verify timed out account", 2L, failure.get("ClientCustomerId").getAsLong());
+    assertEquals("Verify failure reason", "TIMED_OUT", failure.get("Reason").getAsString());
+  }
+
+  @Test
+  public void testReportOfCancelledDownloadIsReleased()
+      throws ValidationException, AlertProcessingException, IOException, InterruptedException {
+    JsonObject config = TestEntitiesGenerator.getTestReportDownloaderConfig();
+    ImmutableAdWordsSession session = TestEntitiesGenerator.getTestAdWordsSession();
+
+    final Map<String, String> fieldsMapping = TestEntitiesGenerator.getTestFiledsMapping();
+    final ReportData reportData = TestEntitiesGenerator.getTestReportData();
+    final AwqlReportQuery reportQuery =
+        new AwqlReportQuery(TestEntitiesGenerator.getTestReportQueryConfig());
+    AwReportDefinitionDownloader reportDefDownloader = new AwReportDefinitionDownloader(session) {
+      @Override
+      public Map<String, String> getFieldsMapping(ReportDefinitionReportType reportType) {
+        return fieldsMapping;
+      }
+    };
+
+    // The download of account 2 ignores the interrupt, and loads its report after the timeout.
+    final ReportData lateReport = spy(TestEntitiesGenerator.getTestReportData());
+    final CountDownLatch released = new CountDownLatch(1);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) {
+        released.countDown();
+        return null;
+      }
+    }).when(lateReport).release();
+    AwqlReportDownloader reportDownloader = new AwqlReportDownloader(config) {
+      @Override
+      protected CallableAwqlReportDownloader genCallableAwqlReportDownloader(
+          final ImmutableAdWordsSession session, ReportDataLoader loader) {
+        return new CallableAwqlReportDownloader(session, reportQuery, loader) {
+          @Override
+          public ReportData call() {
+            if (Long.valueOf(session.getClientCustomerId()) == 2L) {
+              Uninterruptibles.sleepUninterruptibly(2000, TimeUnit.MILLISECONDS);
+              return lateReport;
+            }
+            return reportData;
+          }
+        };
+      }
+    };
+    reportDownloader.setReportDownloadContext(
+        new ReportDownloadContext(null, null, null, null, null, null, null, 200, Deadline.NONE));
+
+    List<ReportData> results = reportDownloader.downloadReports(
+        session, reportDefDownloader, new HashSet<Long>(Arrays.asList(1L, 2L, 3L)));
+
+    assertEquals("Verify the other reports are downloaded", 2, results.size());
+    assertTrue("Verify the late report is released", released.await(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testDownloadsAreBoundedByBlockedSink()
+      throws ValidationException, AlertProcessingException, IOException {
+    JsonObject config = TestEntitiesGenerator.getTestReportDownloaderConfig();
+    ImmutableAdWordsSession session = TestEntitiesGenerator.getTestAdWordsSession();
+
+    final Map<String, String> fieldsMapping = TestEntitiesGenerator.getTestFiledsMapping();
+    final ReportData reportData = TestEntitiesGenerator.getTestReportData();
+    final AwqlReportQuery reportQuery =
+        new AwqlReportQuery(TestEntitiesGenerator.getTestReportQueryConfig());
+    AwReportDefinitionDownloader reportDefDownloader = new AwReportDefinitionDownloader(session) {
+      @Override
+      public Map<String, String> getFieldsMapping(ReportDefinitionReportType reportType) {
+        return fieldsMapping;
+      }
+    };
+
+    final AtomicInteger loaded = new AtomicInteger();
+    AwqlReportDownloader reportDownloader = new AwqlReportDownloader(config) {
+      @Override
+      protected CallableAwqlReportDownloader genCallableAwqlReportDownloader(
+          ImmutableAdWordsSession session, ReportDataLoader loader) {
+        return new CallableAwqlReportDownloader(session, reportQuery, loader) {
+          @Override
+          public ReportData call() {
+            loaded.incrementAndGet();
+            return reportData;
+          }
+        };
+      }
+    };
+
+    // The sink holds 2 reports at a time, and blocks on the first one for a while.
+    final AtomicInteger accepted = new AtomicInteger();
+    final AtomicInteger maxLoadedAhead = new AtomicInteger();
+    Set<Long> cids = new HashSet<Long>();
+    for (int i = 1; i <= 20; i++) {
+      cids.add(Long.valueOf(i));
+    }
+    reportDownloader.downloadReports(session, reportDefDownloader, cids, new ReportDataSink() {
+      @Override
+      public void accept(ReportData report) {
+        if (accepted.get() == 0) {
+          Uninterruptibles.sleepUninterruptibly(300, TimeUnit.MILLISECONDS);
+        }
+        int loadedAhead = loaded.get() - accepted.incrementAndGet();
+        maxLoadedAhead.set(Math.max(maxLoadedAhead.get(), loadedAhead));
+      }
+
+      @Override
+      public int getMaxInFlightReports() {
+        return 2;
+      }
+    });
+
+    assertEquals("Verify all reports are downloaded", 20, accepted.get());
+    assertTrue("Verify at most 2 reports are loaded ahead of the blocked sink, got "
+        + maxLoadedAhead.get(), maxLoadedAhead.get() <= 2);
+  }
 }
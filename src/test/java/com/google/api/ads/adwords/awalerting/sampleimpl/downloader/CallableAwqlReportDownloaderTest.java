@@ -14,6 +14,8 @@
 
 package com.google.api.ads.adwords.awalerting.sampleimpl.downloader;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -24,10 +26,17 @@ import com.google.api.ads.adwords.awalerting.report.ReportDataLoader;
 import com.google.api.ads.adwords.awalerting.util.TestEntitiesGenerator;
 import com.google.api.ads.adwords.lib.client.AdWordsSession;
 import com.google.api.ads.common.lib.exception.ValidationException;
+import com.google.common.io.ByteStreams;
 import com.google.gson.JsonObject;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPOutputStream;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 import org.mockito.MockitoAnnotations;
@@ -39,6 +48,9 @@ import org.mockito.Spy;
 @RunWith(JUnit4.class)
 public class CallableAwqlReportDownloaderTest {
 
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
   @Spy private CallableAwqlReportDownloader mockedCallableAwqlReportDownloader;
 
   @Before
@@ -63,4 +75,32 @@ public class CallableAwqlReportDownloaderTest {
     mockedCallableAwqlReportDownloader.call();
     verify(mockedCallableAwqlReportDownloader, times(1)).call();
   }
+
+  @Test
+  public void testDiskCacheHitIsNotADownload()
+      throws AlertProcessingException, IOException, ValidationException {
+    JsonObject cacheConfig = new JsonObject();
+    cacheConfig.addProperty("Directory", temporaryFolder.getRoot().getAbsolutePath());
+    ReportDiskCache reportDiskCache = new ReportDiskCache(cacheConfig);
+    JsonObject queryConfig = TestEntitiesGenerator.getTestReportQueryConfig();
+    queryConfig.addProperty("DateRange", "LAST_MONTH");
+    AwqlReportQuery reportQuery = new AwqlReportQuery(queryConfig);
+
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzipStream = new GZIPOutputStream(compressed);
+        InputStream reportStream = TestEntitiesGenerator.getTestReportStream()) {
+      ByteStreams.copy(reportStream, gzipStream);
+    }
+    try (InputStream cachedStream = reportDiskCache.put(
+        123L, reportQuery, new ByteArrayInputStream(compressed.toByteArray()))) {
+      ByteStreams.exhaust(cachedStream);
+    }
+
+    CallableAwqlReportDownloader download = new CallableAwqlReportDownloader(
+        TestEntitiesGenerator.getTestAdWordsSession(), reportQuery,
+        TestEntitiesGenerator.getTestReportDataLoader(), reportDiskCache);
+    assertEquals("Verify the report is read from the disk cache",
+        TestEntitiesGenerator.getTestReportDataRows(), download.call().getRowsCount());
+    assertTrue("Verify the call is a disk cache hit", download.isFromDiskCache());
+  }
 }
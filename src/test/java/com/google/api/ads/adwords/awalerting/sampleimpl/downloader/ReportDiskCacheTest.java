@@ -0,0 +1,188 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.sampleimpl.downloader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import com.google.api.ads.adwords.awalerting.report.AwqlReportQuery;
+import com.google.api.ads.adwords.awalerting.util.TestEntitiesGenerator;
+import com.google.common.io.ByteStreams;
+import com.google.gson.JsonObject;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test case for the {@link ReportDiskCache} class.
+ */
+@RunWith(JUnit4.class)
+public class ReportDiskCacheTest {
+
+  private static final byte[] REPORT_CONTENT = new byte[] {1, 2, 3, 4, 5, 6, 7, 8};
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private JsonObject cacheConfig;
+
+  @Before
+  public void setUp() {
+    cacheConfig = new JsonObject();
+    cacheConfig.addProperty("Directory", temporaryFolder.getRoot().getAbsolutePath());
+  }
+
+  @Test
+  public void testMissThenHit() throws IOException {
+    ReportDiskCache cache = new ReportDiskCache(cacheConfig);
+    AwqlReportQuery reportQuery = getReportQuery("LAST_MONTH");
+
+    assertNull("Verify the report is not cached yet", cache.get(1L, reportQuery));
+    assertArrayEquals("Verify the stored report is returned",
+        REPORT_CONTENT, read(cache.put(1L, reportQuery, newReportStream())));
+    assertArrayEquals("Verify the report is read from cache",
+        REPORT_CONTENT, read(cache.get(1L, reportQuery)));
+    assertNull("Verify the cache is per account", cache.get(2L, reportQuery));
+
+    assertEquals("Verify hits count", 1, cache.getHits());
+    assertEquals("Verify misses count", 2, cache.getMisses());
+  }
+
+  @Test
+  public void testCacheSharedByInstances() throws IOException {
+    AwqlReportQuery reportQuery = getReportQuery("LAST_MONTH");
+    read(new ReportDiskCache(cacheConfig).put(1L, reportQuery, newReportStream()));
+
+    assertNotNull("Verify the report is read by another instance",
+        new ReportDiskCache(cacheConfig).get(1L, reportQuery));
+  }
+
+  @Test
+  public void testExpiredEntry() throws IOException {
+    JsonObject ttlConfig = new JsonObject();
+    ttlConfig.addProperty("OpenDateRange", TimeUnit.HOURS.toSeconds(1));
+    cacheConfig.add("TtlSeconds", ttlConfig);
+    ReportDiskCache cache = new ReportDiskCache(cacheConfig);
+    AwqlReportQuery reportQuery = getReportQuery("THIS_MONTH");
+    read(cache.put(1L, reportQuery, newReportStream()));
+
+    // Open date ranges expire after one hour as configured.
+    File[] files = temporaryFolder.getRoot().listFiles();
+    assertEquals("Verify one cached file", 1, files.length);
+    Files.setLastModifiedTime(files[0].toPath(), FileTime.fromMillis(
+        System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2)));
+
+    assertNull("Verify the expired report is not returned", cache.get(1L, reportQuery));
+    assertEquals("Verify the expired report is removed",
+        0, temporaryFolder.getRoot().listFiles().length);
+  }
+
+  @Test
+  public void testOpenDateRangeIsNotCachedByDefault() throws IOException {
+    ReportDiskCache cache = new ReportDiskCache(cacheConfig);
+    for (String dateRange : new String[] {"TODAY", "THIS_MONTH"}) {
+      AwqlReportQuery reportQuery = getReportQuery(dateRange);
+      read(cache.put(1L, reportQuery, newReportStream()));
+      assertNull("Verify " + dateRange + " is not cached", cache.get(1L, reportQuery));
+    }
+    assertEquals("Verify nothing is written", 0, temporaryFolder.getRoot().listFiles().length);
+  }
+
+  @Test
+  public void testTtlPerDateRangeType() throws IOException {
+    JsonObject ttlConfig = new JsonObject();
+    ttlConfig.addProperty("LAST_MONTH", 0);
+    cacheConfig.add("TtlSeconds", ttlConfig);
+    ReportDiskCache cache = new ReportDiskCache(cacheConfig);
+
+    AwqlReportQuery reportQuery = getReportQuery("LAST_MONTH");
+    read(cache.put(1L, reportQuery, newReportStream()));
+    assertNull("Verify caching is disabled by zero TTL", cache.get(1L, reportQuery));
+
+    AwqlReportQuery otherQuery = getReportQuery("LAST_WEEK");
+    read(cache.put(1L, otherQuery, newReportStream()));
+    assertNotNull("Verify other date range types are cached", cache.get(1L, otherQuery));
+  }
+
+  @Test
+  public void testLeastRecentlyUsedEviction() throws IOException {
+    // Room for two reports only.
+    cacheConfig.addProperty("MaxSizeMB", (2.5 * REPORT_CONTENT.length) / (1024 * 1024));
+    ReportDiskCache cache = new ReportDiskCache(cacheConfig);
+    AwqlReportQuery reportQuery = getReportQuery("LAST_MONTH");
+
+    read(cache.put(1L, reportQuery, newReportStream()));
+    read(cache.put(2L, reportQuery, newReportStream()));
+    setLastAccessTime(1L, 2);
+    setLastAccessTime(2L, 1);
+    read(cache.put(3L, reportQuery, newReportStream()));
+
+    assertNull("Verify the least recently used report is evicted", cache.get(1L, reportQuery));
+    assertNotNull("Verify recently used report is kept", cache.get(2L, reportQuery));
+    assertNotNull("Verify the new report is kept", cache.get(3L, reportQuery));
+  }
+
+  @Test
+  public void testNoDateRangeIsNotCached() throws IOException {
+    ReportDiskCache cache = new ReportDiskCache(cacheConfig);
+    JsonObject queryConfig = TestEntitiesGenerator.getTestReportQueryConfig();
+    queryConfig.remove("DateRange");
+    AwqlReportQuery reportQuery = new AwqlReportQuery(queryConfig);
+
+    read(cache.put(1L, reportQuery, newReportStream()));
+    assertEquals("Verify nothing is written", 0, temporaryFolder.getRoot().listFiles().length);
+  }
+
+  private AwqlReportQuery getReportQuery(String dateRange) {
+    JsonObject queryConfig = TestEntitiesGenerator.getTestReportQueryConfig();
+    queryConfig.addProperty("DateRange", dateRange);
+    return new AwqlReportQuery(queryConfig);
+  }
+
+  private void setLastAccessTime(Long clientCustomerId, int hoursAgo) throws IOException {
+    for (File file : temporaryFolder.getRoot().listFiles()) {
+      if (file.getName().startsWith(clientCustomerId + "-")) {
+        Files.setAttribute(file.toPath(), "lastAccessTime", FileTime.fromMillis(
+            System.currentTimeMillis() - TimeUnit.HOURS.toMillis(hoursAgo)));
+      }
+    }
+  }
+
+  private static InputStream newReportStream() {
+    return new ByteArrayInputStream(REPORT_CONTENT);
+  }
+
+  private static byte[] read(InputStream inputStream) throws IOException {
+    try {
+      return ByteStreams.toByteArray(inputStream);
+    } finally {
+      inputStream.close();
+    }
+  }
+}
@@ -0,0 +1,75 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.sampleimpl.downloader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.ads.adwords.awalerting.sampleimpl.downloader.ReportDownloadException.Reason;
+import com.google.api.ads.adwords.lib.utils.DetailedReportDownloadResponseException;
+import com.google.api.ads.adwords.lib.utils.ReportDownloadResponseException;
+import com.google.api.ads.adwords.lib.utils.ReportException;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Test case for the {@link ReportDownloadException} class.
+ */
+@RunWith(JUnit4.class)
+public class ReportDownloadExceptionTest {
+
+  @Test
+  public void testRateExceeded() {
+    DetailedReportDownloadResponseException cause =
+        new DetailedReportDownloadResponseException(400, "RateExceededError.RATE_EXCEEDED");
+    cause.setType("RateExceededError.RATE_EXCEEDED");
+    cause.setTrigger("Retry after 12 seconds");
+    ReportDownloadException e = ReportDownloadException.from("Test.", cause, 1L);
+
+    assertEquals("Verify reason", Reason.RATE_EXCEEDED, e.getReason());
+    assertEquals("Verify error type", "RateExceededError.RATE_EXCEEDED", e.getErrorType());
+    assertEquals("Verify retry-after hint", 12000L, e.getRetryAfterMillis());
+    assertTrue("Verify overload", e.isOverload());
+    assertTrue("Verify retriable", e.isRetriable());
+
+    e = ReportDownloadException.from("Test.", new ReportDownloadResponseException(429), 1L);
+    assertEquals("Verify reason of HTTP 429", Reason.RATE_EXCEEDED, e.getReason());
+    assertEquals("Verify default retry-after delay", 30000L, e.getRetryAfterMillis());
+  }
+
+  @Test
+  public void testOtherErrors() {
+    ReportDownloadException e =
+        ReportDownloadException.from("Test.", new ReportDownloadResponseException(503), 1L);
+    assertEquals("Verify reason of HTTP 503", Reason.SERVER_ERROR, e.getReason());
+    assertEquals("Verify error type", "HTTP_503", e.getErrorType());
+    assertTrue("Verify overload", e.isOverload());
+
+    e = ReportDownloadException.from("Test.", new ReportException("Connection reset."), 1L);
+    assertEquals("Verify reason of ReportException", Reason.NETWORK_ERROR, e.getReason());
+    assertFalse("Verify not overload", e.isOverload());
+    assertTrue("Verify retriable", e.isRetriable());
+
+    DetailedReportDownloadResponseException cause =
+        new DetailedReportDownloadResponseException(400, "Invalid field.");
+    cause.setType("ReportDefinitionError.INVALID_FIELD_NAME_FOR_REPORT");
+    e = ReportDownloadException.from("Test.", cause, 1L);
+    assertEquals("Verify reason of bad request", Reason.REQUEST_ERROR, e.getReason());
+    assertFalse("Verify not retriable", e.isRetriable());
+  }
+}
@@ -0,0 +1,94 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Test case for the {@link AccountShard} class.
+ */
+@RunWith(JUnit4.class)
+public class AccountShardTest {
+
+  @Test
+  public void testShardsAreDisjointAndCoverAllAccounts() {
+    Set<Long> clientCustomerIds = new LinkedHashSet<Long>();
+    for (long id = 1000000000L; id < 1000001000L; id++) {
+      clientCustomerIds.add(id);
+    }
+
+    Set<Long> covered = new HashSet<Long>();
+    int total = 0;
+    for (int index = 0; index < 4; index++) {
+      Set<Long> shardIds = AccountShard.parse(index + "/4").filter(clientCustomerIds);
+      assertTrue("Verify each shard has accounts", shardIds.size() > 0);
+      assertEquals("Verify the same shard on each call",
+          shardIds, new AccountShard(index, 4).filter(clientCustomerIds));
+      covered.addAll(shardIds);
+      total += shardIds.size();
+    }
+    assertEquals("Verify the shards are disjoint", clientCustomerIds.size(), total);
+    assertEquals("Verify the shards cover all accounts", clientCustomerIds, covered);
+  }
+
+  @Test
+  public void testParse() {
+    AccountShard shard = AccountShard.parse(" 2 / 3 ");
+    assertEquals("Verify index", 2, shard.getIndex());
+    assertEquals("Verify count", 3, shard.getCount());
+    assertEquals("Verify toString", "2/3", shard.toString());
+
+    for (String malformed : Arrays.asList("3/3", "-1/3", "0/0", "1", "a/b")) {
+      try {
+        AccountShard.parse(malformed);
+        fail("Verify malformed shard is rejected: " + malformed);
+      } catch (IllegalArgumentException e) {
+        // Expected.
+      }
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testFilterPagedAccounts() {
+    AccountShard shard = new AccountShard(1, 2);
+    PagedClientCustomerIds clientCustomerIds = new PagedClientCustomerIds();
+    Set<Long> shardIds = shard.filter(clientCustomerIds);
+
+    List<Long> expected = new ArrayList<Long>();
+    for (long id = 1; id <= 20; id++) {
+      clientCustomerIds.publish(Arrays.asList(id));
+      if (shard.apply(id)) {
+        expected.add(id);
+      }
+    }
+    clientCustomerIds.complete();
+
+    assertEquals("Verify the accounts of the shard in order",
+        expected, new ArrayList<Long>(shardIds));
+  }
+}
@@ -0,0 +1,183 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.api.ads.adwords.awalerting.util.AdaptiveConcurrencyLimiter.Permit;
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Ticker;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Test case for the {@link AdaptiveConcurrencyLimiter} class.
+ */
+@RunWith(JUnit4.class)
+public class AdaptiveConcurrencyLimiterTest {
+
+  private final FakeTicker ticker = new FakeTicker();
+
+  @Test
+  public void testIncreaseWhileHealthy() throws InterruptedException {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 10, 2, ticker);
+    for (int i = 0; i < 20; i++) {
+      runRound(limiter, 100);
+    }
+    assertEquals("Verify the limit goes up to the maximum", 10, limiter.getLimit());
+  }
+
+  @Test
+  public void testNoIncreaseWhenLatencyDegrades() throws InterruptedException {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 100, 5, ticker);
+    runRound(limiter, 100);
+    runRound(limiter, 100);
+    assertEquals("Verify the limit is increased", 6, limiter.getLimit());
+
+    for (int i = 0; i < 3; i++) {
+      runRound(limiter, 1000);
+    }
+    assertEquals("Verify the limit is kept with high latency", 6, limiter.getLimit());
+  }
+
+  @Test
+  public void testLatencyEndsAtResponse() throws InterruptedException {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 100, 5, ticker);
+    runRound(limiter, 100);
+    runRound(limiter, 100);
+    assertEquals("Verify the limit is increased", 6, limiter.getLimit());
+
+    // Fast responses followed by a slow processing of their reports.
+    for (int i = 0; i < 3; i++) {
+      List<Permit> permits = acquire(limiter, limiter.getLimit());
+      ticker.advance(100);
+      for (Permit permit : permits) {
+        limiter.onResponse(permit);
+      }
+      ticker.advance(1000);
+      for (Permit permit : permits) {
+        limiter.onSuccess(permit);
+      }
+    }
+    assertEquals("Verify the processing time is not counted as latency",
+        9, limiter.getLimit());
+  }
+
+  @Test
+  public void testOverloadHalvesLimitOncePerGeneration() throws InterruptedException {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 20, 16, ticker);
+    List<Permit> permits = acquire(limiter, 16);
+    for (Permit permit : permits.subList(0, 8)) {
+      limiter.onOverload(permit, 0);
+    }
+    assertEquals("Verify the limit is halved once for concurrent failures",
+        8, limiter.getLimit());
+
+    for (Permit permit : permits.subList(8, 16)) {
+      limiter.release(permit);
+    }
+    assertEquals("Verify released permits", 0, limiter.getInFlight());
+
+    limiter.onOverload(limiter.acquire(), 0);
+    assertEquals("Verify the limit is halved again for new requests", 4, limiter.getLimit());
+  }
+
+  @Test
+  public void testAcquireWaitsForRelease() throws Exception {
+    final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 5, 1);
+    Permit permit = limiter.acquire();
+
+    ExecutorService executorService = Executors.newSingleThreadExecutor();
+    try {
+      Future<Permit> nextPermit = executorService.submit(new Callable<Permit>() {
+        @Override
+        public Permit call() throws InterruptedException {
+          return limiter.acquire();
+        }
+      });
+      try {
+        nextPermit.get(100, TimeUnit.MILLISECONDS);
+        fail("Expected the request to wait for the limit.");
+      } catch (TimeoutException e) {
+        // Expected.
+      }
+
+      limiter.onSuccess(permit);
+      assertNotNull("Verify the waiting request starts",
+          nextPermit.get(5, TimeUnit.SECONDS));
+    } finally {
+      executorService.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testRetryAfterHoldsNewRequests() throws InterruptedException {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 5, 5);
+    limiter.onOverload(limiter.acquire(), 200);
+
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    limiter.release(limiter.acquire());
+    assertTrue("Verify new requests wait for the retry-after delay",
+        stopwatch.elapsed(TimeUnit.MILLISECONDS) >= 150);
+  }
+
+  /**
+   * Runs as many requests as the current limit, all with the given latency.
+   */
+  private void runRound(AdaptiveConcurrencyLimiter limiter, long latencyMillis)
+      throws InterruptedException {
+    List<Permit> permits = acquire(limiter, limiter.getLimit());
+    ticker.advance(latencyMillis);
+    for (Permit permit : permits) {
+      limiter.onSuccess(permit);
+    }
+  }
+
+  private static List<Permit> acquire(AdaptiveConcurrencyLimiter limiter, int count)
+      throws InterruptedException {
+    List<Permit> permits = new ArrayList<Permit>();
+    for (int i = 0; i < count; i++) {
+      permits.add(limiter.acquire());
+    }
+    return permits;
+  }
+
+  private static class FakeTicker extends Ticker {
+    private long nanos;
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+
+    void advance(long millis) {
+      nanos += TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+  }
+}
@@ -0,0 +1,92 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.base.Ticker;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test case for the {@link CircuitBreaker} class.
+ */
+@RunWith(JUnit4.class)
+public class CircuitBreakerTest {
+
+  private static final long OPEN_MILLIS = 1000L;
+
+  private long nanos;
+  private final Ticker ticker = new Ticker() {
+    @Override
+    public long read() {
+      return nanos;
+    }
+  };
+
+  @Test
+  public void testOpensAfterConsecutiveFailures() {
+    CircuitBreaker<Long> circuitBreaker = new CircuitBreaker<Long>(3, OPEN_MILLIS, ticker);
+    circuitBreaker.onFailure(1L);
+    circuitBreaker.onFailure(1L);
+    circuitBreaker.onSuccess(1L);
+    circuitBreaker.onFailure(1L);
+    circuitBreaker.onFailure(1L);
+    assertTrue("Verify a success resets the failures", circuitBreaker.allowRequest(1L));
+
+    circuitBreaker.onFailure(1L);
+    assertFalse("Verify the circuit is open", circuitBreaker.allowRequest(1L));
+    assertTrue("Verify other keys are not affected", circuitBreaker.allowRequest(2L));
+    assertEquals("Verify open keys", Collections.singleton(1L), circuitBreaker.getOpenKeys());
+  }
+
+  @Test
+  public void testSingleTrialAfterOpenDuration() {
+    CircuitBreaker<Long> circuitBreaker = new CircuitBreaker<Long>(1, OPEN_MILLIS, ticker);
+    circuitBreaker.onFailure(1L);
+    advance(OPEN_MILLIS);
+
+    assertTrue("Verify a trial request is allowed", circuitBreaker.allowRequest(1L));
+    assertFalse("Verify only one trial request", circuitBreaker.allowRequest(1L));
+
+    circuitBreaker.onFailure(1L);
+    assertFalse("Verify a failed trial opens the circuit again", circuitBreaker.allowRequest(1L));
+
+    advance(OPEN_MILLIS);
+    assertTrue("Verify another trial request", circuitBreaker.allowRequest(1L));
+    circuitBreaker.onSuccess(1L);
+    assertFalse("Verify a successful trial closes the circuit", circuitBreaker.isOpen(1L));
+    assertTrue("Verify requests are allowed", circuitBreaker.allowRequest(1L));
+
+    circuitBreaker.onFailure(1L);
+    advance(OPEN_MILLIS);
+    assertTrue("Verify a trial request is allowed", circuitBreaker.allowRequest(1L));
+    circuitBreaker.onIgnored(1L);
+    assertTrue("Verify an ignored trial lets another trial through",
+        circuitBreaker.allowRequest(1L));
+    assertTrue("Verify an ignored trial keeps the circuit open", circuitBreaker.isOpen(1L));
+  }
+
+  private void advance(long millis) {
+    nanos += TimeUnit.MILLISECONDS.toNanos(millis);
+  }
+}
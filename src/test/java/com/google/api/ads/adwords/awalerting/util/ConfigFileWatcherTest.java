@@ -0,0 +1,117 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test case for the {@link ConfigFileWatcher} class.
+ */
+@RunWith(JUnit4.class)
+public class ConfigFileWatcherTest {
+  private static final long QUIET_MILLIS = 100;
+  // Long enough for the file system events to come, even on platforms that poll for them.
+  private static final long EVENT_TIMEOUT_SECONDS = 30;
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private Path file;
+  // The changed files the listener was called with, and the valid configs it loaded from them.
+  private BlockingQueue<Path> changes;
+  private BlockingQueue<JsonObject> configs;
+  private ConfigFileWatcher watcher;
+
+  @Before
+  public void setUp() throws IOException {
+    file = temporaryFolder.getRoot().toPath().resolve("alerts.json");
+    write(file, "{\"Version\": 1}");
+    changes = new LinkedBlockingQueue<Path>();
+    configs = new LinkedBlockingQueue<JsonObject>();
+
+    // Loads the config like the resident mode does, failing on an invalid file.
+    watcher = new ConfigFileWatcher(file, new ConfigFileWatcher.Listener() {
+      @Override
+      public void onChange(Path changedFile) {
+        changes.add(changedFile);
+        try {
+          String content = new String(Files.readAllBytes(changedFile), StandardCharsets.UTF_8);
+          configs.add(new JsonParser().parse(content).getAsJsonObject());
+        } catch (IOException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    }, QUIET_MILLIS);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    watcher.close();
+  }
+
+  @Test(timeout = 120000)
+  public void testChangedFileIsReloaded() throws Exception {
+    write(temporaryFolder.getRoot().toPath().resolve("other.json"), "{}");
+    write(file, "{\"Version\":");
+    write(file, "{\"Version\": 2}");
+
+    JsonObject config = configs.poll(EVENT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    assertNotNull("Verify the changed file is reloaded", config);
+    assertEquals("Verify the last content is reloaded", 2, config.get("Version").getAsInt());
+    assertEquals("Verify the changed file", file.toAbsolutePath(), changes.poll());
+    assertNull("Verify a burst of writes is reloaded once",
+        changes.poll(5 * QUIET_MILLIS, TimeUnit.MILLISECONDS));
+  }
+
+  @Test(timeout = 120000)
+  public void testInvalidFileIsIgnored() throws Exception {
+    write(file, "{not json");
+
+    assertNotNull("Verify the invalid file is seen",
+        changes.poll(EVENT_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    assertNull("Verify the invalid file is not loaded", configs.poll());
+
+    write(file, "{\"Version\": 3}");
+    JsonObject config = configs.poll(EVENT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    assertNotNull("Verify the watcher goes on after the invalid file", config);
+    assertEquals("Verify the fixed file is reloaded", 3, config.get("Version").getAsInt());
+  }
+
+  private static void write(Path path, String content) throws IOException {
+    Files.write(path, Collections.singletonList(content), StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,77 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+
+/**
+ * Test case for the {@link CronSchedule} class.
+ */
+@RunWith(JUnit4.class)
+public class CronScheduleTest {
+  private static final DateTimeZone ZONE = DateTimeZone.UTC;
+
+  private static DateTime next(String expression, DateTime after) {
+    return new DateTime(CronSchedule.parse(expression).next(after.getMillis(), ZONE), ZONE);
+  }
+
+  @Test
+  public void testNext() {
+    // Friday, June 30th 2017.
+    DateTime now = new DateTime(2017, 6, 30, 10, 17, 42, ZONE);
+
+    assertEquals("Verify every hour",
+        new DateTime(2017, 6, 30, 11, 0, ZONE), next("@hourly", now));
+    assertEquals("Verify the next minute",
+        new DateTime(2017, 6, 30, 10, 18, ZONE), next("* * * * *", now));
+    assertEquals("Verify steps",
+        new DateTime(2017, 6, 30, 10, 30, ZONE), next("*/15 * * * *", now));
+    assertEquals("Verify ranges and days of week, over the weekend",
+        new DateTime(2017, 7, 3, 8, 0, ZONE), next("0 8-18/2 * * 1-5", now.withHourOfDay(19)));
+    assertEquals("Verify lists over the end of the month",
+        new DateTime(2017, 7, 1, 6, 30, ZONE), next("30 6 1,15 * *", now));
+    assertEquals("Verify days of month or of week",
+        new DateTime(2017, 7, 2, 0, 0, ZONE), next("0 0 15 * 7", now));
+    assertEquals("Verify leap days",
+        new DateTime(2020, 2, 29, 0, 0, ZONE), next("0 0 29 2 *", now));
+    assertEquals("Verify days of week match even without such a day of month",
+        new DateTime(2018, 2, 4, 0, 0, ZONE), next("0 0 30 2 0", now));
+    assertEquals("Verify strictly after",
+        new DateTime(2017, 6, 30, 11, 0, ZONE),
+        next("0 * * * *", new DateTime(2017, 6, 30, 10, 0, ZONE)));
+  }
+
+  @Test
+  public void testMalformed() {
+    for (String malformed : Arrays.asList("* * * *", "60 * * * *", "* * 0 * *", "*/0 * * * *",
+        "5-1 * * * *", "a * * * *", "@yearly", "0 0 30 2 *", "0 0 31 4,6,9,11 *")) {
+      try {
+        CronSchedule.parse(malformed);
+        fail("Verify malformed expression is rejected: " + malformed);
+      } catch (IllegalArgumentException e) {
+        // Expected.
+      }
+    }
+  }
+}
@@ -0,0 +1,99 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.base.Ticker;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test case for the {@link Deadline} class.
+ */
+@RunWith(JUnit4.class)
+public class DeadlineTest {
+
+  private long nanos;
+  private final Ticker ticker = new Ticker() {
+    @Override
+    public long read() {
+      return nanos;
+    }
+  };
+
+  @Test
+  public void testExpiry() {
+    Deadline deadline = Deadline.after(1000, TimeUnit.MILLISECONDS, ticker);
+    assertTrue("Verify the deadline is finite", deadline.isFinite());
+    assertFalse("Verify the deadline is not expired", deadline.isExpired());
+    assertEquals("Verify remaining millis", 1000, deadline.getRemainingMillis());
+
+    nanos += TimeUnit.MILLISECONDS.toNanos(999) + 1;
+    assertEquals("Verify remaining millis are rounded up", 1, deadline.getRemainingMillis());
+
+    nanos += TimeUnit.MILLISECONDS.toNanos(1);
+    assertTrue("Verify the deadline is expired", deadline.isExpired());
+    assertEquals("Verify no millis remain", 0, deadline.getRemainingMillis());
+  }
+
+  @Test
+  public void testNoneAndMin() {
+    assertSame("Verify no timeout means no deadline",
+        Deadline.NONE, Deadline.after(0, TimeUnit.MINUTES));
+    assertFalse("Verify no deadline never expires", Deadline.NONE.isExpired());
+    assertEquals("Verify no deadline remaining millis",
+        Long.MAX_VALUE, Deadline.NONE.getRemainingMillis());
+
+    Deadline earlier = Deadline.after(1, TimeUnit.SECONDS, ticker);
+    Deadline later = Deadline.after(2, TimeUnit.SECONDS, ticker);
+    assertSame("Verify the earlier deadline", earlier, later.min(earlier));
+    assertSame("Verify the earlier deadline", earlier, earlier.min(later));
+    assertSame("Verify any deadline is earlier than none", earlier, Deadline.NONE.min(earlier));
+    assertSame("Verify any deadline is earlier than none", earlier, earlier.min(Deadline.NONE));
+  }
+
+  @Test
+  public void testBefore() {
+    Deadline deadline = Deadline.after(10, TimeUnit.SECONDS, ticker);
+    Deadline earlier = deadline.before(2, TimeUnit.SECONDS);
+    assertEquals("Verify remaining millis", 8000, earlier.getRemainingMillis());
+    assertSame("Verify the earlier deadline", earlier, deadline.min(earlier));
+    assertTrue("Verify a deadline moved before now is expired",
+        deadline.before(11, TimeUnit.SECONDS).isExpired());
+    assertSame("Verify no deadline stays none",
+        Deadline.NONE, Deadline.NONE.before(1, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testAwaitAndAcquire() throws InterruptedException {
+    Deadline deadline = Deadline.after(10, TimeUnit.MILLISECONDS);
+    assertFalse("Verify the wait times out", deadline.await(new CountDownLatch(1)));
+    assertTrue("Verify the latch is done", deadline.await(new CountDownLatch(0)));
+
+    Semaphore semaphore = new Semaphore(1);
+    assertTrue("Verify the permit is acquired", Deadline.NONE.tryAcquire(semaphore, 1));
+    assertFalse("Verify the acquisition times out", deadline.tryAcquire(semaphore, 1));
+  }
+}
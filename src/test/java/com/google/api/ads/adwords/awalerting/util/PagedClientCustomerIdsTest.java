@@ -0,0 +1,108 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.api.ads.adwords.awalerting.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test case for the {@link PagedClientCustomerIds} class.
+ */
+@RunWith(JUnit4.class)
+public class PagedClientCustomerIdsTest {
+
+  @Test(timeout = 10000)
+  public void testIterationFollowsPublishedPages() throws Exception {
+    final PagedClientCustomerIds clientCustomerIds = new PagedClientCustomerIds();
+    clientCustomerIds.publish(Arrays.asList(1L, 2L));
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<List<Long>> iterated = executor.submit(new Callable<List<Long>>() {
+        @Override
+        public List<Long> call() {
+          return new ArrayList<Long>(clientCustomerIds);
+        }
+      });
+
+      Thread.sleep(100);
+      assertFalse("Verify the iteration waits for the next pages", iterated.isDone());
+      assertEquals("Verify published count", 2, clientCustomerIds.getPublishedCount());
+
+      clientCustomerIds.publish(Arrays.asList(2L, 3L));
+      clientCustomerIds.complete();
+      assertEquals("Verify all IDs are iterated in order without duplicates",
+          Arrays.asList(1L, 2L, 3L), iterated.get(5, TimeUnit.SECONDS));
+      assertEquals("Verify size", 3, clientCustomerIds.size());
+      assertTrue("Verify contains", clientCustomerIds.contains(3L));
+      assertFalse("Verify not contains", clientCustomerIds.contains(4L));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testAwaitNext() {
+    PagedClientCustomerIds clientCustomerIds = new PagedClientCustomerIds();
+    PagedClientCustomerIds.PagedIterator iterator = clientCustomerIds.iterator();
+    assertFalse("Verify nothing is published yet", iterator.awaitNext(0));
+    assertFalse("Verify the wait times out", iterator.awaitNext(50));
+
+    clientCustomerIds.publish(Arrays.asList(1L));
+    assertTrue("Verify the next ID is published", iterator.awaitNext(0));
+    assertEquals("Verify the next ID", Long.valueOf(1L), iterator.next());
+    assertFalse("Verify the next page is not published yet", iterator.awaitNext(0));
+
+    clientCustomerIds.complete();
+    assertTrue("Verify the completion is seen", iterator.awaitNext(0));
+    assertFalse("Verify no more IDs", iterator.hasNext());
+  }
+
+  @Test
+  public void testFailure() {
+    PagedClientCustomerIds clientCustomerIds = new PagedClientCustomerIds();
+    clientCustomerIds.publish(Arrays.asList(1L));
+    RuntimeException cause = new RuntimeException("Test.");
+    clientCustomerIds.fail(cause);
+
+    Iterator<Long> iterator = clientCustomerIds.iterator();
+    assertEquals("Verify published IDs are still iterated", Long.valueOf(1L), iterator.next());
+    try {
+      iterator.hasNext();
+      fail("Verify the failure is thrown");
+    } catch (ClientCustomerIdsRetrievalException e) {
+      assertSame("Verify the cause", cause, e.getCause());
+    }
+    assertSame("Verify the failure", cause, clientCustomerIds.getFailure());
+    assertFalse("Verify not completed", clientCustomerIds.isCompleted());
+  }
+}